@@ -0,0 +1,101 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares matching one million synthetic keys with a {@link KeyGlob} and with a {@link PathMatcher}
+ * as s3FindFiles did before. It is only compiled with the <code>benchmark</code> profile and not part of the test suite:
+ * <code>mvn -P benchmark test-compile exec:java</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KeyGlobBenchmark {
+
+	private static final int KEYS = 1_000_000;
+
+	@Param({"builds/**/*.jar", "builds/*/module-1?/target/*.{jar,war}", "**/artifact-[0-9]*"})
+	public String glob;
+
+	private String[] keys;
+	private KeyGlob keyGlob;
+	private PathMatcher pathMatcher;
+
+	@Setup
+	public void setup() {
+		this.keys = new String[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			this.keys[i] = "builds/" + (i % 100) + "/module-" + (i % 37) + "/target/artifact-" + i + (i % 3 == 0 ? ".jar" : ".txt");
+		}
+		this.keyGlob = KeyGlob.compile(this.glob);
+		this.pathMatcher = FileSystems.getDefault().getPathMatcher("glob:" + this.glob);
+	}
+
+	@Benchmark
+	public int keyGlob() {
+		int matches = 0;
+		for (String key : this.keys) {
+			if (this.keyGlob.matches(key)) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+
+	@Benchmark
+	public int pathMatcher() {
+		int matches = 0;
+		for (String key : this.keys) {
+			if (this.pathMatcher.matches(Paths.get(key))) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(KeyGlobBenchmark.class.getSimpleName()).build()).run();
+	}
+}
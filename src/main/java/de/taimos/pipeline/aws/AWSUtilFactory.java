@@ -7,10 +7,13 @@ import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import de.taimos.pipeline.aws.cloudformation.CloudFormationStack;
 import de.taimos.pipeline.aws.cloudformation.stacksets.CloudFormationStackSet;
 import de.taimos.pipeline.aws.cloudformation.stacksets.SleepStrategy;
+import de.taimos.pipeline.aws.s3.TransferSettings;
+import hudson.EnvVars;
 import hudson.model.TaskListener;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
+import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -47,12 +50,36 @@ public class AWSUtilFactory {
 	}
 
 	public static TransferManager newTransferManager(AmazonS3 s3Client) {
+		return newTransferManager(s3Client, new TransferSettings());
+	}
+
+	public static TransferManager newTransferManager(AmazonS3 s3Client, TransferSettings transferSettings) {
 		if (transferManagerSupplier != null) {
 			return transferManagerSupplier.get();
 		}
-		return TransferManagerBuilder.standard()
-				.withS3Client(s3Client)
-				.build();
+		TransferManagerBuilder builder = transferSettings.applyTo(TransferManagerBuilder.standard())
+				.withS3Client(s3Client);
+		if (transferSettings.getConcurrency() != null) {
+			builder.withExecutorFactory(() -> Executors.newFixedThreadPool(transferSettings.getConcurrency()));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Leases an S3 client and TransferManager from the agent wide {@link S3ClientCache}.
+	 * If a TransferManager supplier is registered, a fresh client and the supplied
+	 * TransferManager are returned instead and shut down when the lease is closed.
+	 *
+	 * @param options the S3 client options of the step
+	 * @param envVars the environment of the step
+	 * @return the lease, to be closed after the transfer
+	 */
+	public static S3ClientCache.Lease leaseS3Transfer(AbstractS3Step.S3ClientOptions options, EnvVars envVars) {
+		if (transferManagerSupplier != null) {
+			AmazonS3 s3Client = AWSClientFactory.create(options.createAmazonS3ClientBuilder(), envVars);
+			return new S3ClientCache.Lease(s3Client, transferManagerSupplier.get(), null);
+		}
+		return S3ClientCache.getInstance().lease(options, envVars);
 	}
 
 	public static void setTransferManagerSupplier(Supplier<TransferManager> tfSupplier) {
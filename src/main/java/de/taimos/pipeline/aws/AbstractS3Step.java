@@ -22,16 +22,28 @@
 package de.taimos.pipeline.aws;
 
 import java.io.Serializable;
+import java.util.Objects;
 
 import org.jenkinsci.plugins.workflow.steps.Step;
 import org.kohsuke.stapler.DataBoundSetter;
 
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 
+import de.taimos.pipeline.aws.s3.TransferSettings;
+import jenkins.model.Jenkins;
+
 public abstract class AbstractS3Step extends Step {
 
 	protected boolean pathStyleAccessEnabled = false;
 	protected boolean payloadSigningEnabled = false;
+	private Integer transferConcurrency;
+	private Integer minimumUploadPartSizeMB;
+	private Integer multipartUploadThresholdMB;
+	private Integer multipartCopyThresholdMB;
+	private Integer multipartCopyPartSizeMB;
+	private Boolean disableParallelDownloads;
+	private Integer downloadPartSizeMB;
+	private String transferProfile;
 
 	protected AbstractS3Step(final boolean pathStyleAccessEnabled, final boolean payloadSigningEnabled) {
 		this.pathStyleAccessEnabled = pathStyleAccessEnabled;
@@ -56,16 +68,112 @@ public abstract class AbstractS3Step extends Step {
 		this.payloadSigningEnabled = payloadSigningEnabled;
 	}
 
+	public Integer getTransferConcurrency() {
+		return this.transferConcurrency;
+	}
+
+	@DataBoundSetter
+	public void setTransferConcurrency(final Integer transferConcurrency) {
+		this.transferConcurrency = transferConcurrency;
+	}
+
+	public Integer getMinimumUploadPartSizeMB() {
+		return this.minimumUploadPartSizeMB;
+	}
+
+	@DataBoundSetter
+	public void setMinimumUploadPartSizeMB(final Integer minimumUploadPartSizeMB) {
+		this.minimumUploadPartSizeMB = minimumUploadPartSizeMB;
+	}
+
+	public Integer getMultipartUploadThresholdMB() {
+		return this.multipartUploadThresholdMB;
+	}
+
+	@DataBoundSetter
+	public void setMultipartUploadThresholdMB(final Integer multipartUploadThresholdMB) {
+		this.multipartUploadThresholdMB = multipartUploadThresholdMB;
+	}
+
+	public Integer getMultipartCopyThresholdMB() {
+		return this.multipartCopyThresholdMB;
+	}
+
+	@DataBoundSetter
+	public void setMultipartCopyThresholdMB(final Integer multipartCopyThresholdMB) {
+		this.multipartCopyThresholdMB = multipartCopyThresholdMB;
+	}
+
+	public Integer getMultipartCopyPartSizeMB() {
+		return this.multipartCopyPartSizeMB;
+	}
+
+	@DataBoundSetter
+	public void setMultipartCopyPartSizeMB(final Integer multipartCopyPartSizeMB) {
+		this.multipartCopyPartSizeMB = multipartCopyPartSizeMB;
+	}
+
+	public Boolean getDisableParallelDownloads() {
+		return this.disableParallelDownloads;
+	}
+
+	@DataBoundSetter
+	public void setDisableParallelDownloads(final Boolean disableParallelDownloads) {
+		this.disableParallelDownloads = disableParallelDownloads;
+	}
+
+	public Integer getDownloadPartSizeMB() {
+		return this.downloadPartSizeMB;
+	}
+
+	@DataBoundSetter
+	public void setDownloadPartSizeMB(final Integer downloadPartSizeMB) {
+		this.downloadPartSizeMB = downloadPartSizeMB;
+	}
+
+	public String getTransferProfile() {
+		return this.transferProfile;
+	}
+
+	@DataBoundSetter
+	public void setTransferProfile(final String transferProfile) {
+		this.transferProfile = transferProfile;
+	}
+
 	protected S3ClientOptions createS3ClientOptions() {
 		S3ClientOptions options = new S3ClientOptions();
 		options.setPathStyleAccessEnabled(this.isPathStyleAccessEnabled());
 		options.setPayloadSigningEnabled(this.isPayloadSigningEnabled());
+		options.setTransferSettings(this.createTransferSettings());
 		return options;
 	}
 
+	/**
+	 * Creates the transfer settings of this step, using the global configuration for everything not set on the step.
+	 *
+	 * @return the validated transfer settings
+	 */
+	protected TransferSettings createTransferSettings() {
+		TransferSettings settings = new TransferSettings()
+				.withConcurrency(this.transferConcurrency)
+				.withMinimumUploadPartSizeMB(this.minimumUploadPartSizeMB)
+				.withMultipartUploadThresholdMB(this.multipartUploadThresholdMB)
+				.withMultipartCopyThresholdMB(this.multipartCopyThresholdMB)
+				.withMultipartCopyPartSizeMB(this.multipartCopyPartSizeMB)
+				.withDisableParallelDownloads(this.disableParallelDownloads)
+				.withDownloadPartSizeMB(this.downloadPartSizeMB)
+				.withProfile(this.transferProfile);
+		if (Jenkins.getInstanceOrNull() != null) {
+			settings = settings.withDefaults(PluginImpl.getInstance().getTransferSettings());
+		}
+		settings.validate();
+		return settings;
+	}
+
 	public static class S3ClientOptions implements Serializable {
 		private boolean pathStyleAccessEnabled = false;
 		private boolean payloadSigningEnabled = false;
+		private TransferSettings transferSettings = new TransferSettings();
 
 		public boolean isPathStyleAccessEnabled() {
 			return this.pathStyleAccessEnabled;
@@ -83,11 +191,52 @@ public abstract class AbstractS3Step extends Step {
 			this.payloadSigningEnabled = payloadSigningEnabled;
 		}
 
+		public TransferSettings getTransferSettings() {
+			return this.transferSettings;
+		}
+
+		public void setTransferSettings(final TransferSettings transferSettings) {
+			this.transferSettings = transferSettings;
+		}
+
+		/**
+		 * Creates a copy of these options using the given transfer settings, e.g. after resolving the auto profile.
+		 *
+		 * @param transferSettings the transfer settings
+		 * @return the new options
+		 */
+		public S3ClientOptions withTransferSettings(final TransferSettings transferSettings) {
+			S3ClientOptions options = new S3ClientOptions();
+			options.setPathStyleAccessEnabled(this.pathStyleAccessEnabled);
+			options.setPayloadSigningEnabled(this.payloadSigningEnabled);
+			options.setTransferSettings(transferSettings);
+			return options;
+		}
+
 		protected AmazonS3ClientBuilder createAmazonS3ClientBuilder() {
 			return AmazonS3ClientBuilder.standard()
 					.withPathStyleAccessEnabled(this.isPathStyleAccessEnabled())
 					.withPayloadSigningEnabled(this.isPayloadSigningEnabled());
 		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (o == null || this.getClass() != o.getClass()) {
+				return false;
+			}
+			S3ClientOptions other = (S3ClientOptions) o;
+			return this.pathStyleAccessEnabled == other.pathStyleAccessEnabled
+					&& this.payloadSigningEnabled == other.payloadSigningEnabled
+					&& Objects.equals(this.transferSettings, other.transferSettings);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.pathStyleAccessEnabled, this.payloadSigningEnabled, this.transferSettings);
+		}
 	}
 
 }
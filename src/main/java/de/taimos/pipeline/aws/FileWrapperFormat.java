@@ -0,0 +1,124 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The formats s3FindFiles can write its results in, one line per file.
+ */
+public enum FileWrapperFormat {
+
+	/** One JSON object per line with the properties of the {@link FileWrapper}. */
+	JSONL("jsonl"),
+	/** A header line followed by one comma separated line per file, quoted as in RFC 4180. */
+	CSV("csv");
+
+	static final String[] COLUMNS = {"name", "path", "directory", "length", "lastModified"};
+
+	/** Generators neither close nor flush the writer, so the lines stay buffered. */
+	private static final JsonFactory JSON = new JsonFactory()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+			.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+
+	private final String value;
+
+	FileWrapperFormat(String value) {
+		this.value = value;
+	}
+
+	public String getValue() {
+		return this.value;
+	}
+
+	/**
+	 * Parses the outputFormat parameter of a step.
+	 *
+	 * @param value the parameter value, e.g. <code>csv</code>
+	 * @return the format
+	 * @throws IllegalArgumentException if the format is not supported
+	 */
+	public static FileWrapperFormat of(String value) {
+		String normalized = value.trim().toLowerCase(Locale.ENGLISH);
+		for (FileWrapperFormat format : values()) {
+			if (format.value.equals(normalized)) {
+				return format;
+			}
+		}
+		throw new IllegalArgumentException("Output format must be one of jsonl or csv");
+	}
+
+	/**
+	 * Writes what comes before the first file, i.e. the header line of a CSV file.
+	 *
+	 * @param writer the target
+	 * @throws IOException if the writer fails
+	 */
+	public void writeHeader(Writer writer) throws IOException {
+		if (this == CSV) {
+			writer.write(String.join(",", COLUMNS));
+			writer.write('\n');
+		}
+	}
+
+	/**
+	 * @param writer the target
+	 * @param file   the file to write as one line
+	 * @throws IOException if the writer fails
+	 */
+	public void write(Writer writer, FileWrapper file) throws IOException {
+		if (this == JSONL) {
+			JsonGenerator generator = JSON.createGenerator(writer);
+			generator.writeStartObject();
+			generator.writeStringField(COLUMNS[0], file.getName());
+			generator.writeStringField(COLUMNS[1], file.getPath());
+			generator.writeBooleanField(COLUMNS[2], file.isDirectory());
+			generator.writeNumberField(COLUMNS[3], file.getLength());
+			generator.writeNumberField(COLUMNS[4], file.getLastModified());
+			generator.writeEndObject();
+			generator.close();
+		} else {
+			writer.write(quote(file.getName()));
+			writer.write(',');
+			writer.write(quote(file.getPath()));
+			writer.write(',');
+			writer.write(Boolean.toString(file.isDirectory()));
+			writer.write(',');
+			writer.write(Long.toString(file.getLength()));
+			writer.write(',');
+			writer.write(Long.toString(file.getLastModified()));
+		}
+		writer.write('\n');
+	}
+
+	static String quote(String field) {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+			return field;
+		}
+		return '"' + field.replace("\"", "\"\"") + '"';
+	}
+}
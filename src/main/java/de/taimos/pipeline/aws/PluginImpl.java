@@ -20,6 +20,7 @@
  */
 package de.taimos.pipeline.aws;
 
+import de.taimos.pipeline.aws.s3.TransferSettings;
 import hudson.Extension;
 import hudson.ExtensionList;
 import static hudson.model.Descriptor.FormException;
@@ -44,6 +45,15 @@ public class PluginImpl extends GlobalConfiguration {
 
 	private boolean enableCredentialsFromNode;
 
+	private Integer transferConcurrency;
+	private Integer minimumUploadPartSizeMB;
+	private Integer multipartUploadThresholdMB;
+	private Integer multipartCopyThresholdMB;
+	private Integer multipartCopyPartSizeMB;
+	private boolean disableParallelDownloads;
+	private Integer downloadPartSizeMB;
+	private String transferProfile;
+
 	/**
 	 * Default constructor.
 	 */
@@ -54,8 +64,24 @@ public class PluginImpl extends GlobalConfiguration {
 
 	@Override
 	public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+		JSONObject transfer = json.optJSONObject("s3TransferSettings");
 		json = json.getJSONObject("enableCredentialsFromNode");
 		enableCredentialsFromNode = json.getBoolean("enableCredentialsFromNode");
+		if (transfer != null) {
+			transferConcurrency = optionalInteger(transfer, "transferConcurrency");
+			minimumUploadPartSizeMB = optionalInteger(transfer, "minimumUploadPartSizeMB");
+			multipartUploadThresholdMB = optionalInteger(transfer, "multipartUploadThresholdMB");
+			multipartCopyThresholdMB = optionalInteger(transfer, "multipartCopyThresholdMB");
+			multipartCopyPartSizeMB = optionalInteger(transfer, "multipartCopyPartSizeMB");
+			disableParallelDownloads = transfer.optBoolean("disableParallelDownloads");
+			downloadPartSizeMB = optionalInteger(transfer, "downloadPartSizeMB");
+			transferProfile = transfer.optString("transferProfile", null);
+			try {
+				getTransferSettings().validate();
+			} catch (IllegalArgumentException e) {
+				throw new FormException(e.getMessage(), "s3TransferSettings");
+			}
+		}
 		save();
 		return true;
 	}
@@ -68,6 +94,106 @@ public class PluginImpl extends GlobalConfiguration {
 		return this.enableCredentialsFromNode;
 	}
 
+	/**
+	 * The default transfer settings of all S3 steps. Values set on a step take precedence.
+	 * @return the transfer settings
+	 */
+	public TransferSettings getTransferSettings() {
+		return new TransferSettings()
+				.withConcurrency(this.transferConcurrency)
+				.withMinimumUploadPartSizeMB(this.minimumUploadPartSizeMB)
+				.withMultipartUploadThresholdMB(this.multipartUploadThresholdMB)
+				.withMultipartCopyThresholdMB(this.multipartCopyThresholdMB)
+				.withMultipartCopyPartSizeMB(this.multipartCopyPartSizeMB)
+				.withDisableParallelDownloads(this.disableParallelDownloads ? Boolean.TRUE : null)
+				.withDownloadPartSizeMB(this.downloadPartSizeMB)
+				.withProfile(this.transferProfile);
+	}
+
+	public Integer getTransferConcurrency() {
+		return this.transferConcurrency;
+	}
+
+	@DataBoundSetter
+	public void setTransferConcurrency(Integer transferConcurrency) {
+		this.transferConcurrency = transferConcurrency;
+	}
+
+	public Integer getMinimumUploadPartSizeMB() {
+		return this.minimumUploadPartSizeMB;
+	}
+
+	@DataBoundSetter
+	public void setMinimumUploadPartSizeMB(Integer minimumUploadPartSizeMB) {
+		this.minimumUploadPartSizeMB = minimumUploadPartSizeMB;
+	}
+
+	public Integer getMultipartUploadThresholdMB() {
+		return this.multipartUploadThresholdMB;
+	}
+
+	@DataBoundSetter
+	public void setMultipartUploadThresholdMB(Integer multipartUploadThresholdMB) {
+		this.multipartUploadThresholdMB = multipartUploadThresholdMB;
+	}
+
+	public Integer getMultipartCopyThresholdMB() {
+		return this.multipartCopyThresholdMB;
+	}
+
+	@DataBoundSetter
+	public void setMultipartCopyThresholdMB(Integer multipartCopyThresholdMB) {
+		this.multipartCopyThresholdMB = multipartCopyThresholdMB;
+	}
+
+	public Integer getMultipartCopyPartSizeMB() {
+		return this.multipartCopyPartSizeMB;
+	}
+
+	@DataBoundSetter
+	public void setMultipartCopyPartSizeMB(Integer multipartCopyPartSizeMB) {
+		this.multipartCopyPartSizeMB = multipartCopyPartSizeMB;
+	}
+
+	public boolean isDisableParallelDownloads() {
+		return this.disableParallelDownloads;
+	}
+
+	@DataBoundSetter
+	public void setDisableParallelDownloads(boolean disableParallelDownloads) {
+		this.disableParallelDownloads = disableParallelDownloads;
+	}
+
+	public Integer getDownloadPartSizeMB() {
+		return this.downloadPartSizeMB;
+	}
+
+	@DataBoundSetter
+	public void setDownloadPartSizeMB(Integer downloadPartSizeMB) {
+		this.downloadPartSizeMB = downloadPartSizeMB;
+	}
+
+	public String getTransferProfile() {
+		return this.transferProfile;
+	}
+
+	@DataBoundSetter
+	public void setTransferProfile(String transferProfile) {
+		this.transferProfile = transferProfile;
+	}
+
+	private static Integer optionalInteger(JSONObject json, String key) throws FormException {
+		String value = json.optString(key, "").trim();
+		if (value.isEmpty()) {
+			return null;
+		}
+		try {
+			return Integer.valueOf(value);
+		} catch (NumberFormatException e) {
+			throw new FormException("Not a number: " + value, key);
+		}
+	}
+
 	/**
 	 * Return the singleton instance.
 	 *
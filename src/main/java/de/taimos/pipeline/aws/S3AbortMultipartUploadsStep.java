@@ -0,0 +1,147 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.google.common.base.Preconditions;
+import de.taimos.pipeline.aws.s3.StaleMultipartUploads;
+import de.taimos.pipeline.aws.utils.StepUtils;
+import hudson.Extension;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The S3AbortMultipartUploadsStep aborts incomplete multipart uploads below a prefix,
+ * e.g. uploads of resumable s3Upload steps that were never retried.
+ * <p>
+ * Returns the number of aborted uploads.
+ */
+public class S3AbortMultipartUploadsStep extends AbstractS3Step {
+
+	static final int DEFAULT_OLDER_THAN_HOURS = 24;
+
+	/**
+	 * This is the bucket name.
+	 */
+	private final String bucket;
+	/**
+	 * This is the prefix to limit the cleanup to.
+	 */
+	private String path = "";
+	/**
+	 * Only uploads initiated more than this number of hours ago are aborted.
+	 */
+	private Integer olderThanHours;
+
+	@DataBoundConstructor
+	public S3AbortMultipartUploadsStep(String bucket, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
+		super(pathStyleAccessEnabled, payloadSigningEnabled);
+		this.bucket = bucket;
+	}
+
+	public String getBucket() {
+		return this.bucket;
+	}
+
+	public String getPath() {
+		return this.path;
+	}
+
+	@DataBoundSetter
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public Integer getOlderThanHours() {
+		return this.olderThanHours;
+	}
+
+	@DataBoundSetter
+	public void setOlderThanHours(Integer olderThanHours) {
+		this.olderThanHours = olderThanHours;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new S3AbortMultipartUploadsStep.Execution(this, context);
+	}
+
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor {
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return StepUtils.requiresDefault();
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "s3AbortMultipartUploads";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Abort incomplete multipart uploads in S3";
+		}
+	}
+
+	public static class Execution extends SynchronousNonBlockingStepExecution<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient S3AbortMultipartUploadsStep step;
+
+		public Execution(S3AbortMultipartUploadsStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		public Integer run() throws Exception {
+			final String bucket = this.step.getBucket();
+			final String path = this.step.getPath();
+			final int olderThanHours = this.step.getOlderThanHours() != null ? this.step.getOlderThanHours() : DEFAULT_OLDER_THAN_HOURS;
+
+			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(olderThanHours >= 0, "OlderThanHours must not be negative");
+
+			TaskListener listener = this.getContext().get(TaskListener.class);
+			listener.getLogger().format("Aborting multipart uploads below s3://%s/%s initiated more than %d hours ago%n", bucket, path, olderThanHours);
+
+			AmazonS3 s3Client = AWSClientFactory.create(this.step.createS3ClientOptions().createAmazonS3ClientBuilder(), this.getContext());
+			Date cutoff = new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(olderThanHours));
+			int aborted = StaleMultipartUploads.abort(s3Client, bucket, path, cutoff, listener.getLogger());
+
+			listener.getLogger().format("Aborted %d multipart uploads%n", aborted);
+			return aborted;
+		}
+	}
+}
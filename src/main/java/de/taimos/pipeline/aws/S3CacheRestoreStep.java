@@ -0,0 +1,225 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.google.common.base.Preconditions;
+import de.taimos.pipeline.aws.s3.ArchiveFormat;
+import de.taimos.pipeline.aws.s3.ArchiveTransfer;
+import de.taimos.pipeline.aws.s3.BuildCache;
+import de.taimos.pipeline.aws.utils.StepUtils;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The S3CacheRestoreStep restores a build cache saved by s3CacheSave into the workspace.
+ * <p>
+ * The key is resolved the same way as by s3CacheSave. If no cache exists for the key, the most recent
+ * cache whose key starts with one of the restore keys is restored instead. The archive is extracted
+ * while it is downloaded.
+ * <p>
+ * Returns the key of the restored cache or null if no cache was found.
+ */
+public class S3CacheRestoreStep extends AbstractS3Step {
+
+	/**
+	 * This is the bucket name.
+	 */
+	private final String bucket;
+	/**
+	 * This is the cache key.
+	 */
+	private final String key;
+	/**
+	 * This is the key prefix of all caches.
+	 */
+	private String path = "";
+	/**
+	 * This is the Ant style pattern of the lockfiles whose hash is appended to the key.
+	 */
+	private String hashFiles;
+	/**
+	 * These are the fallback key prefixes, separated by commas or line breaks.
+	 */
+	private String restoreKeys;
+	private String archive = S3CacheSaveStep.DEFAULT_ARCHIVE;
+
+	@DataBoundConstructor
+	public S3CacheRestoreStep(String bucket, String key, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
+		super(pathStyleAccessEnabled, payloadSigningEnabled);
+		this.bucket = bucket;
+		this.key = key;
+	}
+
+	public String getBucket() {
+		return this.bucket;
+	}
+
+	public String getKey() {
+		return this.key;
+	}
+
+	public String getPath() {
+		return this.path;
+	}
+
+	@DataBoundSetter
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public String getHashFiles() {
+		return this.hashFiles;
+	}
+
+	@DataBoundSetter
+	public void setHashFiles(String hashFiles) {
+		this.hashFiles = hashFiles;
+	}
+
+	public String getRestoreKeys() {
+		return this.restoreKeys;
+	}
+
+	@DataBoundSetter
+	public void setRestoreKeys(String restoreKeys) {
+		this.restoreKeys = restoreKeys;
+	}
+
+	public String getArchive() {
+		return this.archive;
+	}
+
+	@DataBoundSetter
+	public void setArchive(String archive) {
+		this.archive = archive;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new S3CacheRestoreStep.Execution(this, context);
+	}
+
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor {
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return StepUtils.requires(TaskListener.class, EnvVars.class, FilePath.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "s3CacheRestore";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Restore a build cache from S3";
+		}
+	}
+
+	public static class Execution extends SynchronousNonBlockingStepExecution<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient S3CacheRestoreStep step;
+
+		public Execution(S3CacheRestoreStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		public String run() throws Exception {
+			final String bucket = this.step.getBucket();
+			final String key = this.step.getKey();
+
+			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(key != null && !key.isEmpty(), "Key must not be null or empty");
+			final ArchiveFormat format = ArchiveFormat.of(this.step.getArchive() != null ? this.step.getArchive() : S3CacheSaveStep.DEFAULT_ARCHIVE);
+			final List<String> restoreKeys = BuildCache.parseRestoreKeys(this.step.getRestoreKeys());
+
+			TaskListener listener = this.getContext().get(TaskListener.class);
+			FilePath workspace = this.getContext().get(FilePath.class);
+			String cacheKey = S3CacheSaveStep.resolveKey(workspace, key, this.step.getHashFiles());
+
+			AmazonS3 s3Client = AWSClientFactory.create(this.step.createS3ClientOptions().createAmazonS3ClientBuilder(), this.getContext());
+			String objectKey = BuildCache.find(s3Client, bucket, this.step.getPath(), cacheKey, restoreKeys, format);
+			if (objectKey == null) {
+				listener.getLogger().format("No cache found for key %s%n", cacheKey);
+				return null;
+			}
+			String restoredKey = BuildCache.cacheKey(this.step.getPath(), objectKey, format);
+			listener.getLogger().format("Restoring cache %s from s3://%s/%s%s%n", restoredKey, bucket, objectKey, restoredKey.equals(cacheKey) ? "" : " (restore key)");
+			workspace.act(new RemoteCacheExtractor(this.step.createS3ClientOptions(), this.getContext().get(EnvVars.class), listener, bucket, objectKey, format));
+			return restoredKey;
+		}
+	}
+
+	/**
+	 * Streams the cache archive from S3 and extracts it into the workspace without a temporary file.
+	 */
+	private static class RemoteCacheExtractor extends MasterToSlaveFileCallable<Void> {
+
+		protected static final long serialVersionUID = 1L;
+
+		private final S3ClientOptions amazonS3ClientOptions;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final String bucket;
+		private final String path;
+		private final ArchiveFormat format;
+
+		RemoteCacheExtractor(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path, ArchiveFormat format) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.bucket = bucket;
+			this.path = path;
+			this.format = format;
+		}
+
+		@Override
+		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			try (S3ClientCache.Lease lease = AWSUtilFactory.leaseS3Transfer(this.amazonS3ClientOptions, this.envVars)) {
+				ArchiveTransfer.extract(lease.getS3Client(), this.bucket, this.path, this.format, localFile, this.taskListener.getLogger());
+			}
+			return null;
+		}
+	}
+}
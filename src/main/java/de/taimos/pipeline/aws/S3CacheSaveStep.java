@@ -0,0 +1,250 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.base.Preconditions;
+import de.taimos.pipeline.aws.s3.ArchiveFormat;
+import de.taimos.pipeline.aws.s3.ArchiveTransfer;
+import de.taimos.pipeline.aws.s3.BuildCache;
+import de.taimos.pipeline.aws.utils.StepUtils;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * The S3CacheSaveStep stores files of the workspace, e.g. dependency directories, as a build cache in S3.
+ * <p>
+ * The files are streamed into a compressed archive that is uploaded while it is written. If
+ * <code>hashFiles</code> is set, the hash of the matching lockfiles is appended to the key. A cache
+ * that already exists is never uploaded again.
+ * <p>
+ * Returns the cache key.
+ */
+public class S3CacheSaveStep extends AbstractS3Step {
+
+	static final String DEFAULT_ARCHIVE = "tar.gz";
+
+	/**
+	 * This is the bucket name.
+	 */
+	private final String bucket;
+	/**
+	 * This is the cache key.
+	 */
+	private final String key;
+	/**
+	 * This is the key prefix of all caches.
+	 */
+	private String path = "";
+	/**
+	 * This is the Ant style pattern of the lockfiles whose hash is appended to the key.
+	 */
+	private String hashFiles;
+	private String includePathPattern;
+	private String excludePathPattern;
+	private String archive = DEFAULT_ARCHIVE;
+
+	@DataBoundConstructor
+	public S3CacheSaveStep(String bucket, String key, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
+		super(pathStyleAccessEnabled, payloadSigningEnabled);
+		this.bucket = bucket;
+		this.key = key;
+	}
+
+	public String getBucket() {
+		return this.bucket;
+	}
+
+	public String getKey() {
+		return this.key;
+	}
+
+	public String getPath() {
+		return this.path;
+	}
+
+	@DataBoundSetter
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public String getHashFiles() {
+		return this.hashFiles;
+	}
+
+	@DataBoundSetter
+	public void setHashFiles(String hashFiles) {
+		this.hashFiles = hashFiles;
+	}
+
+	public String getIncludePathPattern() {
+		return this.includePathPattern;
+	}
+
+	@DataBoundSetter
+	public void setIncludePathPattern(String includePathPattern) {
+		this.includePathPattern = includePathPattern;
+	}
+
+	public String getExcludePathPattern() {
+		return this.excludePathPattern;
+	}
+
+	@DataBoundSetter
+	public void setExcludePathPattern(String excludePathPattern) {
+		this.excludePathPattern = excludePathPattern;
+	}
+
+	public String getArchive() {
+		return this.archive;
+	}
+
+	@DataBoundSetter
+	public void setArchive(String archive) {
+		this.archive = archive;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new S3CacheSaveStep.Execution(this, context);
+	}
+
+	/**
+	 * Appends the hash of the lockfiles to the key, if any.
+	 */
+	static String resolveKey(FilePath workspace, String key, String hashFiles) throws IOException, InterruptedException {
+		if (hashFiles == null || hashFiles.trim().isEmpty()) {
+			return key;
+		}
+		return key + "-" + workspace.act(new BuildCache.HashFiles(hashFiles, null));
+	}
+
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor {
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return StepUtils.requires(TaskListener.class, EnvVars.class, FilePath.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "s3CacheSave";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Save a build cache to S3";
+		}
+	}
+
+	public static class Execution extends SynchronousNonBlockingStepExecution<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient S3CacheSaveStep step;
+
+		public Execution(S3CacheSaveStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		public String run() throws Exception {
+			final String bucket = this.step.getBucket();
+			final String key = this.step.getKey();
+			final String includePathPattern = this.step.getIncludePathPattern();
+			final String excludePathPattern = this.step.getExcludePathPattern() != null && !this.step.getExcludePathPattern().trim().isEmpty() ? this.step.getExcludePathPattern() : null;
+
+			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(key != null && !key.isEmpty(), "Key must not be null or empty");
+			Preconditions.checkArgument(includePathPattern != null && !includePathPattern.trim().isEmpty(), "IncludePathPattern must not be null or empty");
+			final ArchiveFormat format = ArchiveFormat.of(this.step.getArchive() != null ? this.step.getArchive() : DEFAULT_ARCHIVE);
+
+			TaskListener listener = this.getContext().get(TaskListener.class);
+			FilePath workspace = this.getContext().get(FilePath.class);
+			String cacheKey = resolveKey(workspace, key, this.step.getHashFiles());
+			String objectKey = BuildCache.objectKey(this.step.getPath(), cacheKey, format);
+
+			AmazonS3 s3Client = AWSClientFactory.create(this.step.createS3ClientOptions().createAmazonS3ClientBuilder(), this.getContext());
+			if (s3Client.doesObjectExist(bucket, objectKey)) {
+				listener.getLogger().format("Cache s3://%s/%s already exists, not saving%n", bucket, objectKey);
+				return cacheKey;
+			}
+			listener.getLogger().format("Saving cache %s to s3://%s/%s%n", includePathPattern, bucket, objectKey);
+			workspace.act(new RemoteCacheArchiver(this.step.createS3ClientOptions(), this.getContext().get(EnvVars.class), listener, format, includePathPattern, excludePathPattern, bucket, objectKey));
+			return cacheKey;
+		}
+	}
+
+	/**
+	 * Streams the matching files of the workspace into an archive that is uploaded in parts while it is written.
+	 */
+	private static class RemoteCacheArchiver extends MasterToSlaveFileCallable<Long> {
+
+		protected static final long serialVersionUID = 1L;
+
+		private final S3ClientOptions amazonS3ClientOptions;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final ArchiveFormat format;
+		private final String includePathPattern;
+		private final String excludePathPattern;
+		private final String bucket;
+		private final String path;
+
+		RemoteCacheArchiver(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, ArchiveFormat format, String includePathPattern, String excludePathPattern, String bucket, String path) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.format = format;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
+			this.bucket = bucket;
+			this.path = path;
+		}
+
+		@Override
+		public Long invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			try (S3ClientCache.Lease lease = AWSUtilFactory.leaseS3Transfer(this.amazonS3ClientOptions, this.envVars)) {
+				int concurrency = this.amazonS3ClientOptions.getTransferSettings().getConcurrency(S3ClientCache.MAX_THREADS);
+				return ArchiveTransfer.upload(lease.getS3Client(), lease.getTransferManager(), S3ClientCache.getInstance()::newExecutor, concurrency,
+						this.format, localFile, this.includePathPattern, this.excludePathPattern, this.bucket, this.path, new ObjectMetadata(), null, this.taskListener.getLogger());
+			}
+		}
+	}
+}
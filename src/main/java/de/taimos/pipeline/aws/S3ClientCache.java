@@ -0,0 +1,263 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+
+import de.taimos.pipeline.aws.AbstractS3Step.S3ClientOptions;
+import de.taimos.pipeline.aws.s3.BoundedExecutorView;
+import hudson.EnvVars;
+
+/**
+ * JVM wide cache of S3 clients and TransferManagers used by the steps that run on agents.
+ * <p>
+ * Entries are keyed by the client options and a digest of every environment variable that
+ * influences client creation (region, endpoint, credentials, proxy and SDK settings). All
+ * TransferManagers share one bounded thread pool, each limited to its configured concurrency, so concurrent steps on the same agent reuse
+ * HTTP connections and threads instead of creating and tearing them down for every transfer.
+ * Entries that have not been leased for {@link #IDLE_TIMEOUT_SECONDS} are shut down.
+ */
+@Restricted(NoExternalUse.class)
+public final class S3ClientCache {
+
+	static final int MAX_THREADS = Integer.getInteger(S3ClientCache.class.getName() + ".maxThreads", Math.max(16, 4 * Runtime.getRuntime().availableProcessors()));
+	static final long IDLE_TIMEOUT_SECONDS = Long.getLong(S3ClientCache.class.getName() + ".idleTimeoutSeconds", 300L);
+
+	private static final String[] KEY_VARIABLES = {
+			AWSClientFactory.AWS_PROFILE,
+			AWSClientFactory.AWS_DEFAULT_PROFILE,
+			AWSClientFactory.AWS_ACCESS_KEY_ID,
+			AWSClientFactory.AWS_SECRET_ACCESS_KEY,
+			AWSClientFactory.AWS_SESSION_TOKEN,
+			AWSClientFactory.AWS_DEFAULT_REGION,
+			AWSClientFactory.AWS_REGION,
+			AWSClientFactory.AWS_ENDPOINT_URL,
+			AWSClientFactory.AWS_SDK_SOCKET_TIMEOUT,
+			AWSClientFactory.AWS_SDK_RETRIES,
+			ProxyConfiguration.HTTP_PROXY,
+			ProxyConfiguration.HTTP_PROXY_LC,
+			ProxyConfiguration.HTTPS_PROXY,
+			ProxyConfiguration.HTTPS_PROXY_LC,
+			ProxyConfiguration.NO_PROXY,
+			ProxyConfiguration.NO_PROXY_LC
+	};
+
+	private static final S3ClientCache INSTANCE = new S3ClientCache();
+
+	private final Map<Key, Entry> entries = new HashMap<>();
+	private final ThreadPoolExecutor sharedExecutor;
+	private final ScheduledExecutorService evictor;
+
+	private S3ClientCache() {
+		this.sharedExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreadFactory("s3-transfer-"));
+		this.sharedExecutor.allowCoreThreadTimeOut(true);
+		this.evictor = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("s3-client-cache-evictor-"));
+		this.evictor.scheduleWithFixedDelay(this::evictIdle, 60L, 60L, TimeUnit.SECONDS);
+	}
+
+	public static S3ClientCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Leases the client and TransferManager for the given options and environment, creating them if necessary.
+	 * The lease must be closed when the transfer is done; this does not shut the TransferManager down.
+	 *
+	 * @param options the S3 client options of the step
+	 * @param envVars the environment of the step
+	 * @return the lease
+	 */
+	public Lease lease(S3ClientOptions options, EnvVars envVars) {
+		Key key = new Key(options, digest(envVars));
+		synchronized (this.entries) {
+			Entry entry = this.entries.get(key);
+			if (entry == null) {
+				AmazonS3 s3Client = AWSClientFactory.create(options.createAmazonS3ClientBuilder(), envVars);
+				int concurrency = options.getTransferSettings().getConcurrency(MAX_THREADS);
+				TransferManager transferManager = options.getTransferSettings().applyTo(TransferManagerBuilder.standard())
+						.withS3Client(s3Client)
+						.withExecutorFactory(() -> new BoundedExecutorView(this.sharedExecutor, concurrency))
+						.build();
+				entry = new Entry(s3Client, transferManager);
+				this.entries.put(key, entry);
+			}
+			entry.leases++;
+			return new Lease(entry.s3Client, entry.transferManager, entry);
+		}
+	}
+
+	/**
+	 * Creates an executor running on the shared transfer pool, for work the TransferManager does not cover.
+	 * The executor does not need to be shut down.
+	 *
+	 * @param concurrency the maximum number of tasks running at the same time
+	 * @return the executor
+	 */
+	public ExecutorService newExecutor(int concurrency) {
+		return new BoundedExecutorView(this.sharedExecutor, Math.max(1, Math.min(concurrency, MAX_THREADS)));
+	}
+
+	private void release(Entry entry) {
+		synchronized (this.entries) {
+			entry.leases--;
+			entry.lastReleased = System.nanoTime();
+		}
+	}
+
+	void evictIdle() {
+		long now = System.nanoTime();
+		synchronized (this.entries) {
+			Iterator<Entry> it = this.entries.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (entry.leases == 0 && now - entry.lastReleased > TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT_SECONDS)) {
+					it.remove();
+					entry.transferManager.shutdownNow(true);
+				}
+			}
+		}
+	}
+
+	private static String digest(EnvVars envVars) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String name : KEY_VARIABLES) {
+				String value = envVars.get(name);
+				digest.update((name + "=" + (value == null ? "" : value) + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest()) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static ThreadFactory daemonThreadFactory(String prefix) {
+		AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * A leased S3 client and TransferManager. Pooled resources are returned to the cache on close,
+	 * resources created outside of the cache (e.g. by tests) are shut down.
+	 */
+	public static final class Lease implements AutoCloseable {
+		private final AmazonS3 s3Client;
+		private final TransferManager transferManager;
+		private final Entry entry;
+		private boolean closed;
+
+		Lease(AmazonS3 s3Client, TransferManager transferManager, Entry entry) {
+			this.s3Client = s3Client;
+			this.transferManager = transferManager;
+			this.entry = entry;
+		}
+
+		public AmazonS3 getS3Client() {
+			return this.s3Client;
+		}
+
+		public TransferManager getTransferManager() {
+			return this.transferManager;
+		}
+
+		@Override
+		public void close() {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			if (this.entry != null) {
+				INSTANCE.release(this.entry);
+			} else {
+				this.transferManager.shutdownNow();
+			}
+		}
+	}
+
+	private static final class Entry {
+		private final AmazonS3 s3Client;
+		private final TransferManager transferManager;
+		private int leases;
+		private long lastReleased = System.nanoTime();
+
+		Entry(AmazonS3 s3Client, TransferManager transferManager) {
+			this.s3Client = s3Client;
+			this.transferManager = transferManager;
+		}
+	}
+
+	private static final class Key {
+		private final S3ClientOptions options;
+		private final String environmentDigest;
+
+		Key(S3ClientOptions options, String environmentDigest) {
+			this.options = options;
+			this.environmentDigest = environmentDigest;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return this.options.equals(other.options) && this.environmentDigest.equals(other.environmentDigest);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.options, this.environmentDigest);
+		}
+	}
+}
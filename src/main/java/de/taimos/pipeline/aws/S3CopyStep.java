@@ -27,10 +27,17 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.CopyObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
 import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
 import com.amazonaws.services.s3.transfer.Copy;
 import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
 import com.google.common.base.Preconditions;
+import de.taimos.pipeline.aws.s3.BatchDeleter;
+import de.taimos.pipeline.aws.s3.KeyGlob;
+import de.taimos.pipeline.aws.s3.PrefixCopier;
+import de.taimos.pipeline.aws.s3.TransferSettings;
+import de.taimos.pipeline.aws.s3.UploadSyncPlan;
 import de.taimos.pipeline.aws.utils.StepUtils;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -43,9 +50,11 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiFunction;
 
 public class S3CopyStep extends AbstractS3Step {
 
@@ -60,6 +69,10 @@ public class S3CopyStep extends AbstractS3Step {
 	private String contentType;
 	private String contentDisposition;
 	private String sseAlgorithm;
+	private String glob;
+	private String excludeGlob;
+	private boolean sync;
+	private boolean mirror;
 
 	@DataBoundConstructor
 	public S3CopyStep(String fromBucket, String fromPath, String toBucket, String toPath, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
@@ -157,6 +170,42 @@ public class S3CopyStep extends AbstractS3Step {
 		this.sseAlgorithm = sseAlgorithm;
 	}
 
+	public String getGlob() {
+		return this.glob;
+	}
+
+	@DataBoundSetter
+	public void setGlob(String glob) {
+		this.glob = glob;
+	}
+
+	public String getExcludeGlob() {
+		return this.excludeGlob;
+	}
+
+	@DataBoundSetter
+	public void setExcludeGlob(String excludeGlob) {
+		this.excludeGlob = excludeGlob;
+	}
+
+	public boolean isSync() {
+		return this.sync;
+	}
+
+	@DataBoundSetter
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	public boolean isMirror() {
+		return this.mirror;
+	}
+
+	@DataBoundSetter
+	public void setMirror(boolean mirror) {
+		this.mirror = mirror;
+	}
+
 	@Override
 	public StepExecution start(StepContext context) throws Exception {
 		return new S3CopyStep.Execution(this, context);
@@ -199,6 +248,98 @@ public class S3CopyStep extends AbstractS3Step {
 			final String toBucket = this.step.getToBucket();
 			final String fromPath = this.step.getFromPath();
 			final String toPath = this.step.getToPath();
+			final String kmsId = this.step.getKmsId();
+			final String glob = this.step.getGlob();
+			final String excludeGlob = this.step.getExcludeGlob();
+			final S3ClientOptions s3ClientOptions = this.step.createS3ClientOptions();
+			final EnvVars envVars = this.getContext().get(EnvVars.class);
+
+			Preconditions.checkArgument(fromBucket != null && !fromBucket.isEmpty(), "From bucket must not be null or empty");
+			Preconditions.checkArgument(fromPath != null && !fromPath.isEmpty(), "From path must not be null or empty");
+			Preconditions.checkArgument(toBucket != null && !toBucket.isEmpty(), "To bucket must not be null or empty");
+			Preconditions.checkArgument(toPath != null && !toPath.isEmpty(), "To path must not be null or empty");
+			final boolean folder = fromPath.endsWith("/");
+			Preconditions.checkArgument(folder || glob == null || glob.isEmpty(), "Glob can only be used to copy a folder");
+			Preconditions.checkArgument(folder || excludeGlob == null || excludeGlob.isEmpty(), "ExcludeGlob can only be used to copy a folder");
+			Preconditions.checkArgument(folder || !this.step.isSync(), "Sync can only be used to copy a folder");
+			Preconditions.checkArgument(!this.step.isMirror() || this.step.isSync(), "Mirror can only be used together with Sync");
+			Preconditions.checkArgument(!folder || !fromBucket.equals(toBucket) || !overlaps(fromPath, toPath), "From path and to path must not contain each other");
+
+			TaskListener listener = Execution.this.getContext().get(TaskListener.class);
+			listener.getLogger().format("Copying s3://%s/%s to s3://%s/%s%n", fromBucket, fromPath, toBucket, toPath);
+			if (kmsId != null && !kmsId.isEmpty()) {
+				listener.getLogger().format("Using KMS: %s%n", kmsId);
+			}
+
+			AmazonS3 s3client = AWSClientFactory.create(s3ClientOptions.createAmazonS3ClientBuilder(), this.getContext(), envVars);
+			TransferManager mgr = AWSUtilFactory.newTransferManager(s3client, s3ClientOptions.getTransferSettings());
+			try {
+				if (folder) {
+					this.copyFolder(s3client, mgr, s3ClientOptions, listener);
+				} else {
+					final Copy copy = mgr.copy(this.createRequest(fromBucket, fromPath, toBucket, toPath));
+					copy.addProgressListener((ProgressListener) progressEvent -> {
+						if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
+							listener.getLogger().println("Finished: " + copy.getDescription());
+						}
+					});
+					copy.waitForCompletion();
+				}
+			}
+			finally{
+				mgr.shutdownNow();
+			}
+
+			listener.getLogger().println("Copy complete");
+			return String.format("s3://%s/%s", toBucket, toPath);
+		}
+
+		/**
+		 * Copies every object below the source folder with server-side copies in parallel while the folder is listed.
+		 */
+		private void copyFolder(AmazonS3 s3client, TransferManager mgr, S3ClientOptions s3ClientOptions, TaskListener listener) throws IOException, InterruptedException {
+			final String fromPrefix = this.step.getFromPath().equals("/") ? "" : this.step.getFromPath();
+			final String toPrefix = this.step.getToPath().equals("/") ? "" : UploadSyncPlan.normalizePrefix(this.step.getToPath());
+			final String glob = this.step.getGlob();
+			final String excludeGlob = this.step.getExcludeGlob();
+			final TransferSettings settings = s3ClientOptions.getTransferSettings();
+
+			int concurrency = settings.getConcurrency(S3ClientCache.MAX_THREADS);
+			long threshold = settings.getMultipartCopyThreshold(new TransferManagerConfiguration().getMultipartCopyThreshold());
+			PrefixCopier copier = new PrefixCopier(s3client, mgr, S3ClientCache.getInstance().newExecutor(concurrency), concurrency, threshold);
+			KeyGlob include = glob == null || glob.isEmpty() ? null : KeyGlob.compile(glob);
+			KeyGlob exclude = excludeGlob == null || excludeGlob.isEmpty() ? null : KeyGlob.compile(excludeGlob);
+			BiFunction<String, String, CopyObjectRequest> requestFactory = (fromKey, toKey) -> this.createRequest(this.step.getFromBucket(), fromKey, this.step.getToBucket(), toKey);
+			if (!this.step.isSync()) {
+				copier.copy(this.step.getFromBucket(), fromPrefix, this.step.getToBucket(), toPrefix, include, exclude, requestFactory);
+				listener.getLogger().format("Copied %d objects with %d bytes (%d retries)%n", copier.getObjects(), copier.getBytes(), copier.getRetries());
+				return;
+			}
+
+			BatchDeleter deleter = this.step.isMirror() ? new BatchDeleter(s3client, this.step.getToBucket(), S3ClientCache.getInstance().newExecutor(concurrency), concurrency) : null;
+			copier.sync(this.step.getFromBucket(), fromPrefix, this.step.getToBucket(), toPrefix, include, exclude, requestFactory,
+					S3ClientCache.getInstance().newExecutor(2), deleter, this.isKmsEncrypted());
+			listener.getLogger().format("Copied %d objects with %d bytes, %d objects are unchanged (%d retries)%n", copier.getObjects(), copier.getBytes(), copier.getUnchanged(), copier.getRetries());
+			if (deleter != null) {
+				deleter.finish(listener.getLogger(), "objects that are not in the source");
+			}
+		}
+
+		private boolean isKmsEncrypted() {
+			final String kmsId = this.step.getKmsId();
+			return kmsId != null && !kmsId.isEmpty() || SSEAlgorithm.KMS.getAlgorithm().equals(this.step.getSseAlgorithm());
+		}
+
+		/**
+		 * @return true if one of the folders is below the other one, copying would then list its own copies
+		 */
+		static boolean overlaps(String fromPath, String toPath) {
+			String from = fromPath.equals("/") ? "" : fromPath;
+			String to = toPath.equals("/") ? "" : UploadSyncPlan.normalizePrefix(toPath);
+			return !from.equals(to) && (from.startsWith(to) || to.startsWith(from));
+		}
+
+		private CopyObjectRequest createRequest(String fromBucket, String fromKey, String toBucket, String toKey) {
 			final String kmsId = this.step.getKmsId();
 			final Map<String, String> metadatas = new HashMap<>();
 			final CannedAccessControlList acl = this.step.getAcl();
@@ -206,8 +347,6 @@ public class S3CopyStep extends AbstractS3Step {
 			final String contentType = this.step.getContentType();
 			final String contentDisposition = this.step.getContentDisposition();
 			final String sseAlgorithm = this.step.getSseAlgorithm();
-			final S3ClientOptions s3ClientOptions = this.step.createS3ClientOptions();
-			final EnvVars envVars = this.getContext().get(EnvVars.class);
 
 			if (this.step.getMetadatas() != null && this.step.getMetadatas().length != 0) {
 				for (String metadata : this.step.getMetadatas()) {
@@ -217,15 +356,7 @@ public class S3CopyStep extends AbstractS3Step {
 				}
 			}
 
-			Preconditions.checkArgument(fromBucket != null && !fromBucket.isEmpty(), "From bucket must not be null or empty");
-			Preconditions.checkArgument(fromPath != null && !fromPath.isEmpty(), "From path must not be null or empty");
-			Preconditions.checkArgument(toBucket != null && !toBucket.isEmpty(), "To bucket must not be null or empty");
-			Preconditions.checkArgument(toPath != null && !toPath.isEmpty(), "To path must not be null or empty");
-
-			TaskListener listener = Execution.this.getContext().get(TaskListener.class);
-			listener.getLogger().format("Copying s3://%s/%s to s3://%s/%s%n", fromBucket, fromPath, toBucket, toPath);
-
-			CopyObjectRequest request = new CopyObjectRequest(fromBucket, fromPath, toBucket, toPath);
+			CopyObjectRequest request = new CopyObjectRequest(fromBucket, fromKey, toBucket, toKey);
 
 			// Add metadata
 			if (metadatas.size() > 0 || (cacheControl != null && !cacheControl.isEmpty()) || (contentType != null && !contentType.isEmpty()) || (contentDisposition != null && !contentDisposition.isEmpty())|| (sseAlgorithm != null && !sseAlgorithm.isEmpty())) {
@@ -255,27 +386,9 @@ public class S3CopyStep extends AbstractS3Step {
 
 			// Add kms
 			if (kmsId != null && !kmsId.isEmpty()) {
-				listener.getLogger().format("Using KMS: %s%n", kmsId);
 				request.withSSEAwsKeyManagementParams(new SSEAwsKeyManagementParams(kmsId));
 			}
-
-			AmazonS3 s3client = AWSClientFactory.create(s3ClientOptions.createAmazonS3ClientBuilder(), this.getContext(), envVars);
-			TransferManager mgr = AWSUtilFactory.newTransferManager(s3client);
-			try {
-				final Copy copy = mgr.copy(request);
-				copy.addProgressListener((ProgressListener) progressEvent -> {
-					if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
-						listener.getLogger().println("Finished: " + copy.getDescription());
-					}
-				});
-				copy.waitForCompletion();
-			}
-			finally{
-				mgr.shutdownNow();
-			}
-
-			listener.getLogger().println("Copy complete");
-			return String.format("s3://%s/%s", toBucket, toPath);
+			return request;
 		}
 
 	}
@@ -22,9 +22,13 @@
 package de.taimos.pipeline.aws;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
@@ -32,13 +36,21 @@ import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.VersionListing;
 import com.google.common.base.Preconditions;
 
+import de.taimos.pipeline.aws.s3.BatchDeleter;
+import de.taimos.pipeline.aws.s3.InventoryManifest;
+import de.taimos.pipeline.aws.s3.InventoryReader;
+import de.taimos.pipeline.aws.s3.VersionSummaryFilter;
 import de.taimos.pipeline.aws.utils.StepUtils;
 import hudson.Extension;
 import hudson.model.TaskListener;
@@ -47,6 +59,11 @@ import hudson.model.TaskListener;
  * The S3DeleteStep deletes an object from S3.
  * If the path ends with a "/", then this interprets the object as a folder
  * and removes all content, as well.
+ * <p>
+ * The content of a folder can be taken from an S3 Inventory report instead of a listing.
+ * Folders are deleted in batches of up to 1000 keys while they are listed.
+ * <p>
+ * On versioned buckets, the versions and delete markers can be purged permanently instead.
  */
 public class S3DeleteStep extends AbstractS3Step {
 	/**
@@ -57,6 +74,23 @@ public class S3DeleteStep extends AbstractS3Step {
 	 * This is the path to the object.
 	 */
 	private final String path;
+	/**
+	 * This is the s3:// location of the manifest.json of an S3 Inventory report of the bucket.
+	 * By default, the folder is listed.
+	 */
+	private String inventoryManifest;
+	/**
+	 * Whether all versions and delete markers are removed permanently instead of adding delete markers.
+	 */
+	private boolean purgeVersions;
+	/**
+	 * Whether only noncurrent versions and delete markers are purged.
+	 */
+	private boolean noncurrentVersionsOnly;
+	/**
+	 * Only versions that are noncurrent (or current versions that exist) since more than this many days are purged.
+	 */
+	private Integer olderThanDays;
 
 	@DataBoundConstructor
 	public S3DeleteStep(String bucket, String path, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
@@ -73,6 +107,42 @@ public class S3DeleteStep extends AbstractS3Step {
 		return this.path;
 	}
 
+	@DataBoundSetter
+	public void setInventoryManifest(String inventoryManifest) {
+		this.inventoryManifest = inventoryManifest;
+	}
+
+	public String getInventoryManifest() {
+		return this.inventoryManifest;
+	}
+
+	@DataBoundSetter
+	public void setPurgeVersions(boolean purgeVersions) {
+		this.purgeVersions = purgeVersions;
+	}
+
+	public boolean isPurgeVersions() {
+		return this.purgeVersions;
+	}
+
+	@DataBoundSetter
+	public void setNoncurrentVersionsOnly(boolean noncurrentVersionsOnly) {
+		this.noncurrentVersionsOnly = noncurrentVersionsOnly;
+	}
+
+	public boolean isNoncurrentVersionsOnly() {
+		return this.noncurrentVersionsOnly;
+	}
+
+	@DataBoundSetter
+	public void setOlderThanDays(Integer olderThanDays) {
+		this.olderThanDays = olderThanDays;
+	}
+
+	public Integer getOlderThanDays() {
+		return this.olderThanDays;
+	}
+
 	@Override
 	public StepExecution start(StepContext context) throws Exception {
 		return new S3DeleteStep.Execution(this, context);
@@ -112,8 +182,18 @@ public class S3DeleteStep extends AbstractS3Step {
 		public boolean start() throws Exception {
 			final String bucket = this.step.getBucket();
 			final String path = this.step.getPath();
+			final String inventoryManifest = this.step.getInventoryManifest();
+			final boolean useInventory = inventoryManifest != null && !inventoryManifest.isEmpty();
+			final boolean purgeVersions = this.step.isPurgeVersions();
+			final Integer olderThanDays = this.step.getOlderThanDays();
 
 			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(path != null, "Path must not be null");
+			Preconditions.checkArgument(!useInventory || path.isEmpty() || path.endsWith("/"), "InventoryManifest can only be used to delete a folder");
+			Preconditions.checkArgument(!useInventory || !purgeVersions, "InventoryManifest cannot be used together with PurgeVersions");
+			Preconditions.checkArgument(purgeVersions || !this.step.isNoncurrentVersionsOnly(), "NoncurrentVersionsOnly can only be used together with PurgeVersions");
+			Preconditions.checkArgument(purgeVersions || olderThanDays == null, "OlderThanDays can only be used together with PurgeVersions");
+			Preconditions.checkArgument(olderThanDays == null || olderThanDays >= 0, "OlderThanDays must not be negative");
 
 			new Thread("s3Delete") {
 				@Override
@@ -123,7 +203,9 @@ public class S3DeleteStep extends AbstractS3Step {
 						listener.getLogger().format("Deleting s3://%s/%s%n", bucket, path);
 						AmazonS3 s3Client = AWSClientFactory.create(Execution.this.step.createS3ClientOptions().createAmazonS3ClientBuilder(), Execution.this.getContext());
 
-						if (path != null && !path.endsWith("/") && !path.isEmpty()) {
+						if (purgeVersions) {
+							this.purgeVersions(s3Client);
+						} else if (!path.endsWith("/") && !path.isEmpty()) {
 							this.deleteFile(s3Client);
 						} else {
 							this.deleteFolder(s3Client);
@@ -136,72 +218,109 @@ public class S3DeleteStep extends AbstractS3Step {
 					}
 				}
 
+				/**
+				 * Deletes the folder in batches with DeleteObjects while the keys are listed, so the keys are never
+				 * collected in memory.
+				 */
 				private void deleteFolder(AmazonS3 s3Client) throws IOException, InterruptedException {
-					// This is the list of keys to delete from the bucket.
-					List<String> objectsToDelete = new ArrayList<>();
-
-					// See if the thing that we were given is a file.
-					if (!path.isEmpty() && s3Client.doesObjectExist(bucket, path)) {
-						objectsToDelete.add(path);
+					PrintStream logger = Execution.this.getContext().get(TaskListener.class).getLogger();
+					int concurrency = Execution.this.step.createS3ClientOptions().getTransferSettings().getConcurrency(S3ClientCache.MAX_THREADS);
+					BatchDeleter deleter = new BatchDeleter(s3Client, bucket, S3ClientCache.getInstance().newExecutor(concurrency), concurrency);
+					String prefix = path.equals("/") ? "" : path;
+
+					if (useInventory) {
+						// See if the thing that we were given is a file, it may be newer than the inventory.
+						if (!prefix.isEmpty() && s3Client.doesObjectExist(bucket, prefix)) {
+							deleter.delete(prefix);
+						}
+						this.deleteInventoryObjects(s3Client, prefix, concurrency, deleter);
+					} else {
+						this.deleteListedObjects(s3Client, prefix, deleter);
 					}
+					deleter.finish(logger, "objects");
+				}
 
-					this.searchObjectsRecursively(s3Client, objectsToDelete);
-
-					// Go through all of the objects that we want to delete and actually delete them.
-					for (String objectToDelete : objectsToDelete) {
-						Execution.this.getContext().get(TaskListener.class).getLogger().format("Deleting object at s3://%s/%s%n", bucket, objectToDelete);
-						// TODO Use deleteObjects to reduce API calls
-						s3Client.deleteObject(bucket, objectToDelete);
+				/**
+				 * Permanently removes the versions and delete markers of the file or below the folder in batches
+				 * while the versions are listed.
+				 */
+				private void purgeVersions(AmazonS3 s3Client) throws IOException, InterruptedException {
+					PrintStream logger = Execution.this.getContext().get(TaskListener.class).getLogger();
+					int concurrency = Execution.this.step.createS3ClientOptions().getTransferSettings().getConcurrency(S3ClientCache.MAX_THREADS);
+					BatchDeleter deleter = new BatchDeleter(s3Client, bucket, S3ClientCache.getInstance().newExecutor(concurrency), concurrency);
+					String prefix = path.equals("/") ? "" : path;
+					boolean file = !prefix.isEmpty() && !prefix.endsWith("/");
+					Date cutoff = olderThanDays == null ? null : new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(olderThanDays));
+					VersionSummaryFilter filter = new VersionSummaryFilter(file ? prefix : null, Execution.this.step.isNoncurrentVersionsOnly(), cutoff);
+					logger.format("Purging %s versions and delete markers of s3://%s/%s%s%n", Execution.this.step.isNoncurrentVersionsOnly() ? "noncurrent" : "all",
+							bucket, prefix, cutoff == null ? "" : " older than " + olderThanDays + " days");
+
+					ListVersionsRequest request = new ListVersionsRequest().withBucketName(bucket);
+					if (!prefix.isEmpty()) {
+						request.setPrefix(prefix);
+					}
+					VersionListing listing = s3Client.listVersions(request);
+					while (true) {
+						for (S3VersionSummary summary : listing.getVersionSummaries()) {
+							if (filter.test(summary)) {
+								deleter.delete(summary.getKey(), summary.getVersionId());
+							}
+						}
+						if (!listing.isTruncated()) {
+							break;
+						}
+						listing = s3Client.listNextBatchOfVersions(listing);
 					}
+					deleter.finish(logger, "versions and delete markers");
 				}
 
-				private void searchObjectsRecursively(AmazonS3 s3Client, List<String> objectsToDelete) {
-					// This is the list of folders that we need to investigate.
-					// We're going to start with the path that we've been given,
-					// and then we'll grow it from there.
-					List<String> folders = new ArrayList<>();
-					folders.add(path);
-
-					// Go through all of the folders that we need to investigate,
-					// popping the first item off and working on it.  When they're
-					// all gone, we'll be done.
-					while (!folders.isEmpty()) {
-						// This is the folder to investigate.
-						String folder = folders.remove(0);
-
-						// Create the request to list the objects within it.
-						ListObjectsRequest request = new ListObjectsRequest();
-						request.setBucketName(bucket);
-						request.setDelimiter("/");
-
-						if (folder.equals("/") || folder.isEmpty()) {
-							request.setPrefix(null);
-						} else if (!folder.endsWith("/")) {
-							request.setPrefix(folder + "/");
-						} else {
-							request.setPrefix(folder);
+				/**
+				 * Deletes the objects below the path that are listed in the inventory, while the inventory is read.
+				 * Objects created after the inventory are not deleted.
+				 */
+				private void deleteInventoryObjects(AmazonS3 s3Client, String prefix, int concurrency, BatchDeleter deleter) throws IOException, InterruptedException {
+					TaskListener listener = Execution.this.getContext().get(TaskListener.class);
+					InventoryManifest manifest = InventoryManifest.load(s3Client, inventoryManifest);
+					Preconditions.checkArgument(bucket.equals(manifest.getSourceBucket()), "The inventory manifest describes bucket %s", manifest.getSourceBucket());
+					listener.getLogger().format("Reading the inventory of s3://%s created at %s%n", bucket, manifest.getCreationTime());
+
+					InventoryReader reader = new InventoryReader(s3Client, S3ClientCache.getInstance().newExecutor(concurrency), concurrency);
+					reader.read(manifest, prefix, page -> {
+						List<String> keys = new ArrayList<>(page.getObjectSummaries().size());
+						for (S3ObjectSummary summary : page.getObjectSummaries()) {
+							keys.add(summary.getKey());
 						}
-
-						// Get the list of objects within the folder.  Because AWS
-						// might paginate this, we're going to continue dealing with
-						// the "objectListing" object until it claims that it's done.
-						ObjectListing objectListing = s3Client.listObjects(request);
-						while (true) {
-							// Add any real objects to the list of objects to delete.
-							for (S3ObjectSummary entry : objectListing.getObjectSummaries()) {
-								objectsToDelete.add(entry.getKey());
+						return keys;
+					}, keys -> {
+						try {
+							for (String key : keys) {
+								deleter.delete(key);
 							}
-							// Add any folders to the list of folders that we need to investigate.
-							folders.addAll(objectListing.getCommonPrefixes());
-
-							// If this listing is complete, then we can stop.
-							if (!objectListing.isTruncated()) {
-								break;
-							}
-							// Otherwise, we need to get the next batch and repeat.
-							objectListing = s3Client.listNextBatchOfObjects(objectListing);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException(e.getMessage());
 						}
+					});
+					listener.getLogger().format("Read %d inventory files with %d objects%n", reader.getFiles(), reader.getObjects());
+				}
+
+				/**
+				 * Lists everything below the prefix without a delimiter, one page of up to 1000 keys per request.
+				 * The listing waits whenever all batches are in flight.
+				 */
+				private void deleteListedObjects(AmazonS3 s3Client, String prefix, BatchDeleter deleter) throws IOException, InterruptedException {
+					ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket);
+					if (!prefix.isEmpty()) {
+						request.setPrefix(prefix);
 					}
+					ListObjectsV2Result result;
+					do {
+						result = s3Client.listObjectsV2(request);
+						for (S3ObjectSummary summary : result.getObjectSummaries()) {
+							deleter.delete(summary.getKey());
+						}
+						request.setContinuationToken(result.getNextContinuationToken());
+					} while (result.isTruncated());
 				}
 
 				private void deleteFile(AmazonS3 s3Client) throws IOException, InterruptedException {
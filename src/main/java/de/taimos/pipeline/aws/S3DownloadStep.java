@@ -24,16 +24,30 @@ package de.taimos.pipeline.aws;
 import com.amazonaws.event.ProgressEventType;
 import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.transfer.Download;
 import com.amazonaws.services.s3.transfer.MultipleFileDownload;
 import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
 import com.google.common.base.Preconditions;
+import de.taimos.pipeline.aws.s3.ArchiveFormat;
+import de.taimos.pipeline.aws.s3.ArchiveTransfer;
+import de.taimos.pipeline.aws.s3.BlobManifest;
+import de.taimos.pipeline.aws.s3.DownloadCache;
+import de.taimos.pipeline.aws.s3.DownloadSyncPlan;
+import de.taimos.pipeline.aws.s3.DownloadSyncState;
+import de.taimos.pipeline.aws.s3.KeyPatternFilter;
+import de.taimos.pipeline.aws.s3.ParallelRangeDownloader;
+import de.taimos.pipeline.aws.s3.TransferSettings;
 import de.taimos.pipeline.aws.utils.StepUtils;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
 import jenkins.MasterToSlaveFileCallable;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
@@ -44,7 +58,14 @@ import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 public class S3DownloadStep extends AbstractS3Step {
 
@@ -52,6 +73,14 @@ public class S3DownloadStep extends AbstractS3Step {
 	private final String bucket;
 	private String path = "";
 	private boolean force = false;
+	private String archive;
+	private boolean contentAddressed = false;
+	private boolean sync = false;
+	private boolean mirror = false;
+	private String includePathPattern;
+	private String excludePathPattern;
+	private boolean cache = false;
+	private boolean resumable = false;
 
 	@DataBoundConstructor
 	public S3DownloadStep(String file, String bucket, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
@@ -86,6 +115,78 @@ public class S3DownloadStep extends AbstractS3Step {
 		this.path = path;
 	}
 
+	public String getArchive() {
+		return this.archive;
+	}
+
+	@DataBoundSetter
+	public void setArchive(String archive) {
+		this.archive = archive;
+	}
+
+	public boolean isContentAddressed() {
+		return this.contentAddressed;
+	}
+
+	@DataBoundSetter
+	public void setContentAddressed(boolean contentAddressed) {
+		this.contentAddressed = contentAddressed;
+	}
+
+	public boolean isSync() {
+		return this.sync;
+	}
+
+	@DataBoundSetter
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	public boolean isMirror() {
+		return this.mirror;
+	}
+
+	@DataBoundSetter
+	public void setMirror(boolean mirror) {
+		this.mirror = mirror;
+	}
+
+	public String getIncludePathPattern() {
+		return this.includePathPattern;
+	}
+
+	@DataBoundSetter
+	public void setIncludePathPattern(String includePathPattern) {
+		this.includePathPattern = includePathPattern;
+	}
+
+	public String getExcludePathPattern() {
+		return this.excludePathPattern;
+	}
+
+	@DataBoundSetter
+	public void setExcludePathPattern(String excludePathPattern) {
+		this.excludePathPattern = excludePathPattern;
+	}
+
+	public boolean isCache() {
+		return this.cache;
+	}
+
+	@DataBoundSetter
+	public void setCache(boolean cache) {
+		this.cache = cache;
+	}
+
+	public boolean isResumable() {
+		return this.resumable;
+	}
+
+	@DataBoundSetter
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+
 	@Override
 	public StepExecution start(StepContext context) throws Exception {
 		return new S3DownloadStep.Execution(this, context);
@@ -113,6 +214,7 @@ public class S3DownloadStep extends AbstractS3Step {
 	public static class Execution extends SynchronousNonBlockingStepExecution<Void> {
 
 		protected static final long serialVersionUID = 1L;
+		private static final String SYNC_STATE_DIR = "s3-download-state";
 
 		protected transient S3DownloadStep step;
 
@@ -132,9 +234,36 @@ public class S3DownloadStep extends AbstractS3Step {
 			final boolean force = this.step.isForce();
 
 			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			final String archive = this.step.getArchive() != null && !this.step.getArchive().trim().isEmpty() ? this.step.getArchive() : null;
+			Preconditions.checkArgument(archive == null || (path != null && !path.isEmpty() && !path.endsWith("/")), "Archive requires the path of the archive object");
+			final boolean contentAddressed = this.step.isContentAddressed();
+			Preconditions.checkArgument(!contentAddressed || archive == null, "ContentAddressed and Archive cannot be used together");
+			Preconditions.checkArgument(!contentAddressed || (path != null && !path.isEmpty() && !path.endsWith("/")), "ContentAddressed requires the path of the manifest object");
+			final boolean sync = this.step.isSync();
+			final boolean mirror = this.step.isMirror();
+			Preconditions.checkArgument(!sync || path == null || path.isEmpty() || path.endsWith("/"), "Sync can only be used to download a prefix");
+			Preconditions.checkArgument(!sync || (archive == null && !contentAddressed), "Sync cannot be used together with Archive or ContentAddressed");
+			Preconditions.checkArgument(!mirror || sync, "Mirror can only be used together with Sync");
+			final String includePathPattern = this.step.getIncludePathPattern() != null && !this.step.getIncludePathPattern().trim().isEmpty() ? this.step.getIncludePathPattern() : null;
+			final String excludePathPattern = this.step.getExcludePathPattern() != null && !this.step.getExcludePathPattern().trim().isEmpty() ? this.step.getExcludePathPattern() : null;
+			final boolean filtered = includePathPattern != null || excludePathPattern != null;
+			Preconditions.checkArgument(!filtered || path == null || path.isEmpty() || path.endsWith("/"), "IncludePathPattern and ExcludePathPattern can only be used to download a prefix");
+			Preconditions.checkArgument(!filtered || (archive == null && !contentAddressed), "IncludePathPattern and ExcludePathPattern cannot be used together with Archive or ContentAddressed");
+			final boolean cache = this.step.isCache();
+			Preconditions.checkArgument(!cache || (archive == null && !contentAddressed), "Cache cannot be used together with Archive or ContentAddressed");
+			final boolean resumable = this.step.isResumable();
+			Preconditions.checkArgument(!resumable || sync || (path != null && !path.isEmpty() && !path.endsWith("/")), "Resumable can only be used to download a single object or together with Sync");
+			Preconditions.checkArgument(!resumable || (archive == null && !contentAddressed && !cache), "Resumable cannot be used together with Archive, ContentAddressed or Cache");
+			final ArchiveFormat archiveFormat = archive != null ? ArchiveFormat.of(archive) : null;
 
 			listener.getLogger().format("Downloading s3://%s/%s to %s %n ", bucket, path, target.toURI());
-			if (target.exists()) {
+			String syncStateDir = null;
+			if (sync) {
+				// keep the state next to the workspace, so it is not part of the downloaded files
+				FilePath workspace = this.getContext().get(FilePath.class);
+				FilePath tempDir = WorkspaceList.tempDir(workspace);
+				syncStateDir = (tempDir != null ? tempDir : workspace).child(SYNC_STATE_DIR).getRemote();
+			} else if (target.exists()) {
 				if (force) {
 					if (target.isDirectory()) {
 						target.deleteRecursive();
@@ -146,7 +275,13 @@ public class S3DownloadStep extends AbstractS3Step {
 					throw new RuntimeException("Target exists: " + target.toURI().toString());
 				}
 			}
-			target.act(new RemoteDownloader(Execution.this.step.createS3ClientOptions(), envVars, listener, bucket, path));
+			if (contentAddressed) {
+				target.act(new RemoteBlobRestorer(Execution.this.step.createS3ClientOptions(), envVars, listener, bucket, path));
+			} else if (archiveFormat != null) {
+				target.act(new RemoteArchiveExtractor(Execution.this.step.createS3ClientOptions(), envVars, listener, bucket, path, archiveFormat));
+			} else {
+				target.act(new RemoteDownloader(Execution.this.step.createS3ClientOptions(), envVars, listener, bucket, path, includePathPattern, excludePathPattern, mirror, syncStateDir, cache, resumable));
+			}
 			listener.getLogger().println("Download complete");
 			return null;
 		}
@@ -162,46 +297,247 @@ public class S3DownloadStep extends AbstractS3Step {
 		private final TaskListener taskListener;
 		private final String bucket;
 		private final String path;
-
-		RemoteDownloader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path) {
+		private final String includePathPattern;
+		private final String excludePathPattern;
+		private final boolean mirror;
+		private final String syncStateDir;
+		private final boolean cache;
+		private final boolean resumable;
+
+		RemoteDownloader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path, String includePathPattern, String excludePathPattern, boolean mirror, String syncStateDir, boolean cache, boolean resumable) {
 			this.amazonS3ClientOptions = amazonS3ClientOptions;
 			this.envVars = envVars;
 			this.taskListener = taskListener;
 			this.bucket = bucket;
 			this.path = path;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
+			this.mirror = mirror;
+			this.syncStateDir = syncStateDir;
+			this.cache = cache;
+			this.resumable = resumable;
 		}
 
 		@Override
 		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
-			AmazonS3 s3Client = AWSClientFactory.create(this.amazonS3ClientOptions.createAmazonS3ClientBuilder(), this.envVars);
-			TransferManager mgr = AWSUtilFactory.newTransferManager(s3Client);
-
-			if (this.path == null || this.path.isEmpty() || this.path.endsWith("/")) {
-				try {
+			try (S3ClientCache.Lease lease = AWSUtilFactory.leaseS3Transfer(this.amazonS3ClientOptions, this.envVars)) {
+				TransferManager mgr = lease.getTransferManager();
+				KeyPatternFilter filter = KeyPatternFilter.of(this.includePathPattern, this.excludePathPattern);
+				DownloadCache downloadCache = this.cache ? DownloadCache.getDefault() : null;
+				boolean prefix = this.path == null || this.path.isEmpty() || this.path.endsWith("/");
+				if (this.syncStateDir != null || filter != null || (downloadCache != null && prefix)) {
+					this.downloadSelected(lease.getS3Client(), mgr, localFile, filter, downloadCache);
+				} else if (prefix) {
 					final MultipleFileDownload fileDownload = mgr.downloadDirectory(this.bucket, this.path, localFile);
-					fileDownload.waitForCompletion();
+					try {
+						fileDownload.waitForCompletion();
+					} catch (InterruptedException e) {
+						// the TransferManager is shared, so the transfer has to be cancelled explicitly
+						fileDownload.abort();
+						throw e;
+					}
 					RemoteDownloader.this.taskListener.getLogger().println("Finished: " + fileDownload.getDescription());
-				}
-				finally {
-					mgr.shutdownNow();
-				}
-				return null;
-			} else {
-				try {
+				} else if (downloadCache != null) {
+					this.downloadCached(lease.getS3Client(), localFile, downloadCache);
+				} else if (this.resumable || !Boolean.TRUE.equals(this.amazonS3ClientOptions.getTransferSettings().getDisableParallelDownloads())) {
+					long start = System.currentTimeMillis();
+					ParallelRangeDownloader downloader = newRangeDownloader(lease.getS3Client(), this.amazonS3ClientOptions.getTransferSettings(), this.resumable);
+					ObjectMetadata metadata = downloader.download(this.bucket, this.path, localFile);
+					this.logResumed(downloader);
+					this.taskListener.getLogger().format("Finished: Downloaded %d bytes from s3://%s/%s in %d ms%n", metadata.getContentLength(), this.bucket, this.path, System.currentTimeMillis() - start);
+				} else {
 					final Download download = mgr.download(this.bucket, this.path, localFile);
 					download.addProgressListener((ProgressListener) progressEvent -> {
 						if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
 							RemoteDownloader.this.taskListener.getLogger().println("Finished: " + download.getDescription());
 						}
 					});
-					download.waitForCompletion();
+					try {
+						download.waitForCompletion();
+					} catch (InterruptedException e) {
+						download.abort();
+						throw e;
+					}
 				}
-				finally {
-					mgr.shutdownNow();
+				if (downloadCache != null) {
+					this.taskListener.getLogger().format("Cache: %d hits, %d misses, %d bytes from cache%n", downloadCache.getHits(), downloadCache.getMisses(), downloadCache.getBytesFromCache());
 				}
 				return null;
 			}
 		}
 
+		/**
+		 * Downloads a single object through the cache. The HEAD request provides the current ETag, so a changed object is a miss.
+		 */
+		private void downloadCached(AmazonS3 s3Client, File localFile, DownloadCache downloadCache) throws IOException, InterruptedException {
+			long start = System.currentTimeMillis();
+			ObjectMetadata metadata = s3Client.getObjectMetadata(this.bucket, this.path);
+			if (!downloadCache.restore(this.bucket, this.path, metadata.getETag(), metadata.getContentLength(), localFile)) {
+				File temp = downloadCache.newTempFile(this.bucket, this.path);
+				try {
+					newRangeDownloader(s3Client, this.amazonS3ClientOptions.getTransferSettings(), false).download(this.bucket, this.path, metadata.getContentLength(), metadata.getETag(), temp);
+					downloadCache.store(temp, this.bucket, this.path, metadata.getETag(), localFile);
+				} finally {
+					Files.deleteIfExists(temp.toPath());
+				}
+			}
+			this.taskListener.getLogger().format("Finished: Downloaded %d bytes from s3://%s/%s in %d ms%n", metadata.getContentLength(), this.bucket, this.path, System.currentTimeMillis() - start);
+		}
+
+		/**
+		 * Downloads the objects selected by the filter in parallel. With sync only the objects that differ from the local files
+		 * are downloaded and local files without remote counterpart are optionally deleted. With a cache, cached objects are
+		 * placed from the cache and the others are stored in it.
+		 */
+		private void downloadSelected(AmazonS3 s3Client, TransferManager mgr, File localFile, KeyPatternFilter filter, DownloadCache downloadCache) throws IOException, InterruptedException {
+			long start = System.currentTimeMillis();
+			DownloadSyncState state = this.syncStateDir != null ? DownloadSyncState.load(new File(this.syncStateDir), this.bucket, this.path, localFile) : null;
+			// without sync the target directory was removed before, so every selected object is downloaded
+			DownloadSyncPlan plan = DownloadSyncPlan.create(s3Client, this.bucket, this.path, localFile, filter, state, this.mirror, minimumUploadPartSize(mgr));
+			if (state != null) {
+				this.taskListener.getLogger().format("Sync: %d objects changed, %d unchanged, %d obsolete%n", plan.getChangedObjects().size(), plan.getUnchangedCount(), plan.getObsoleteFiles().size());
+				plan.deleteObsoleteFiles(this.taskListener.getLogger());
+			} else {
+				this.taskListener.getLogger().format("Selected %d objects in %d ms%n", plan.getChangedObjects().size(), System.currentTimeMillis() - start);
+			}
+			Consumer<S3ObjectSummary> record = state == null ? object -> { } : object -> state.record(plan.relativePath(object.getKey()), plan.targetFile(object.getKey()), object.getETag());
+			ParallelRangeDownloader downloader = newRangeDownloader(s3Client, this.amazonS3ClientOptions.getTransferSettings(), this.resumable);
+			long bytes;
+			try {
+				if (downloadCache == null) {
+					bytes = downloader.downloadAll(this.bucket, plan.getChangedObjects(), plan::targetFile, record);
+				} else {
+					bytes = downloadThroughCache(downloader, downloadCache, this.bucket, plan, record);
+				}
+			} finally {
+				if (state != null) {
+					// record the objects downloaded so far, even if the download failed
+					state.save();
+				}
+				this.logResumed(downloader);
+			}
+			this.taskListener.getLogger().format("Finished: %d objects in %d ms, %d bytes downloaded%n", plan.getChangedObjects().size(), System.currentTimeMillis() - start, bytes);
+		}
+
+		private void logResumed(ParallelRangeDownloader downloader) {
+			if (downloader.getResumedBytes() > 0) {
+				this.taskListener.getLogger().format("Resumed: %d bytes taken from partial downloads%n", downloader.getResumedBytes());
+			}
+		}
+	}
+
+	private static long downloadThroughCache(ParallelRangeDownloader downloader, DownloadCache downloadCache, String bucket, DownloadSyncPlan plan, Consumer<S3ObjectSummary> record) throws IOException, InterruptedException {
+		List<S3ObjectSummary> missing = new ArrayList<>();
+		for (S3ObjectSummary object : plan.getChangedObjects()) {
+			if (downloadCache.restore(bucket, object.getKey(), object.getETag(), object.getSize(), plan.targetFile(object.getKey()))) {
+				record.accept(object);
+			} else {
+				missing.add(object);
+			}
+		}
+		Map<String, File> tempFiles = new ConcurrentHashMap<>();
+		try {
+			return downloader.downloadAll(bucket, missing, key -> tempFiles.computeIfAbsent(key, k -> downloadCache.newTempFile(bucket, k)), object -> {
+				try {
+					downloadCache.store(tempFiles.remove(object.getKey()), bucket, object.getKey(), object.getETag(), plan.targetFile(object.getKey()));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				record.accept(object);
+			});
+		} finally {
+			for (File file : tempFiles.values()) {
+				Files.deleteIfExists(file.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Creates a downloader that splits objects larger than the part size into ranges, unless parallel downloads are disabled.
+	 * A resumable downloader keeps the partial files of failed downloads.
+	 */
+	private static ParallelRangeDownloader newRangeDownloader(AmazonS3 s3Client, TransferSettings settings, boolean resumable) {
+		int concurrency = settings.getConcurrency(S3ClientCache.MAX_THREADS);
+		long partSize = !Boolean.TRUE.equals(settings.getDisableParallelDownloads())
+				? settings.getDownloadPartSize(ParallelRangeDownloader.DEFAULT_PART_SIZE)
+				: Long.MAX_VALUE;
+		return new ParallelRangeDownloader(s3Client, S3ClientCache.getInstance().newExecutor(concurrency), partSize, concurrency, resumable);
+	}
+
+	private static long minimumUploadPartSize(TransferManager mgr) {
+		TransferManagerConfiguration configuration = mgr.getConfiguration();
+		if (configuration == null) {
+			configuration = new TransferManagerConfiguration();
+		}
+		return configuration.getMinimumUploadPartSize();
+	}
+
+	/**
+	 * Streams an archive object from S3 and extracts it into the target directory without a temporary file.
+	 */
+	private static class RemoteArchiveExtractor extends MasterToSlaveFileCallable<Void> {
+
+		protected static final long serialVersionUID = 1L;
+
+		private final S3ClientOptions amazonS3ClientOptions;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final String bucket;
+		private final String path;
+		private final ArchiveFormat format;
+
+		RemoteArchiveExtractor(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path, ArchiveFormat format) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.bucket = bucket;
+			this.path = path;
+			this.format = format;
+		}
+
+		@Override
+		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			try (S3ClientCache.Lease lease = AWSUtilFactory.leaseS3Transfer(this.amazonS3ClientOptions, this.envVars)) {
+				ArchiveTransfer.extract(lease.getS3Client(), this.bucket, this.path, this.format, localFile, this.taskListener.getLogger());
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a manifest written by a content addressed upload and restores its files into the target directory.
+	 */
+	private static class RemoteBlobRestorer extends MasterToSlaveFileCallable<Void> {
+
+		protected static final long serialVersionUID = 1L;
+
+		private final S3ClientOptions amazonS3ClientOptions;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final String bucket;
+		private final String path;
+
+		RemoteBlobRestorer(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.bucket = bucket;
+			this.path = path;
+		}
+
+		@Override
+		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			long start = System.currentTimeMillis();
+			try (S3ClientCache.Lease lease = AWSUtilFactory.leaseS3Transfer(this.amazonS3ClientOptions, this.envVars)) {
+				BlobManifest manifest;
+				try (S3Object object = lease.getS3Client().getObject(this.bucket, this.path)) {
+					manifest = BlobManifest.parse(object.getObjectContent());
+				}
+				int concurrency = this.amazonS3ClientOptions.getTransferSettings().getConcurrency(S3ClientCache.MAX_THREADS);
+				int downloaded = manifest.restore(lease.getS3Client(), this.bucket, localFile, S3ClientCache.getInstance().newExecutor(concurrency));
+				this.taskListener.getLogger().format("Restored %d files from %d blobs in %d ms%n", manifest.getEntries().size(), downloaded, System.currentTimeMillis() - start);
+			}
+			return null;
+		}
 	}
 }
@@ -21,14 +21,23 @@
 
 package de.taimos.pipeline.aws;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.nio.file.FileSystems;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
@@ -38,11 +47,16 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.google.common.base.Preconditions;
 
+import de.taimos.pipeline.aws.s3.GlobPrefixPlanner;
+import de.taimos.pipeline.aws.s3.InventoryManifest;
+import de.taimos.pipeline.aws.s3.InventoryReader;
+import de.taimos.pipeline.aws.s3.KeyGlob;
+import de.taimos.pipeline.aws.s3.ObjectSummaryFilter;
+import de.taimos.pipeline.aws.s3.PrefixLister;
 import de.taimos.pipeline.aws.utils.StepUtils;
 import hudson.EnvVars;
 import hudson.Extension;
@@ -62,6 +76,17 @@ import hudson.model.TaskListener;
  * The glob, if specified, sets the glob that should be matched.  If left unspecified,
  * then this defaults to "*", which will match everything within `path`, but only
  * one level deep.  To match absolutely everything, use "**".
+ * <p>
+ * The exclude glob and the size, modification time and storage class conditions, if
+ * specified, narrow the matches further while the bucket is listed.  The metadata
+ * conditions only apply to files.
+ * <p>
+ * The inventory manifest, if specified, replaces the listing of the bucket with the
+ * data files of an S3 Inventory report.  Only files are found this way.
+ * <p>
+ * The output file, if specified, receives the matches as JSON lines or CSV while the
+ * bucket is listed.  The step then only returns the number of matches and the path of
+ * the file instead of the matches themselves.
  */
 public class S3FindFilesStep extends AbstractS3Step {
 	/**
@@ -83,6 +108,41 @@ public class S3FindFilesStep extends AbstractS3Step {
 	 * By default, both files and folders are returned.
 	 */
 	private boolean onlyFiles = false;
+	/**
+	 * This is the glob of entries that are left out even if they match `glob`.
+	 * By default, nothing is excluded.
+	 */
+	private String excludeGlob;
+	/**
+	 * These are the minimum and maximum size of files in bytes, both inclusive.
+	 */
+	private Long minSize;
+	private Long maxSize;
+	/**
+	 * These are the bounds of the last modification time of files, as ISO-8601 date, date time
+	 * or duration before now.
+	 */
+	private String modifiedAfter;
+	private String modifiedBefore;
+	/**
+	 * These are the storage classes of files, separated by commas or whitespace.
+	 */
+	private String storageClass;
+	/**
+	 * This is the workspace file the matches are written to.
+	 * By default, the matches are returned as an array.
+	 */
+	private String outputFile;
+	/**
+	 * This is the format of the output file, "jsonl" or "csv".
+	 * This defaults to "csv" for files ending in ".csv" and "jsonl" otherwise.
+	 */
+	private String outputFormat;
+	/**
+	 * This is the s3:// location of the manifest.json of an S3 Inventory report of the bucket.
+	 * By default, the bucket is listed.
+	 */
+	private String inventoryManifest;
 
 	@DataBoundConstructor
 	public S3FindFilesStep(String bucket, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
@@ -121,6 +181,87 @@ public class S3FindFilesStep extends AbstractS3Step {
 		return this.onlyFiles;
 	}
 
+	@DataBoundSetter
+	public void setExcludeGlob(String excludeGlob) {
+		this.excludeGlob = excludeGlob;
+	}
+
+	public String getExcludeGlob() {
+		return this.excludeGlob;
+	}
+
+	@DataBoundSetter
+	public void setMinSize(Long minSize) {
+		this.minSize = minSize;
+	}
+
+	public Long getMinSize() {
+		return this.minSize;
+	}
+
+	@DataBoundSetter
+	public void setMaxSize(Long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public Long getMaxSize() {
+		return this.maxSize;
+	}
+
+	@DataBoundSetter
+	public void setModifiedAfter(String modifiedAfter) {
+		this.modifiedAfter = modifiedAfter;
+	}
+
+	public String getModifiedAfter() {
+		return this.modifiedAfter;
+	}
+
+	@DataBoundSetter
+	public void setModifiedBefore(String modifiedBefore) {
+		this.modifiedBefore = modifiedBefore;
+	}
+
+	public String getModifiedBefore() {
+		return this.modifiedBefore;
+	}
+
+	@DataBoundSetter
+	public void setStorageClass(String storageClass) {
+		this.storageClass = storageClass;
+	}
+
+	public String getStorageClass() {
+		return this.storageClass;
+	}
+
+	@DataBoundSetter
+	public void setOutputFile(String outputFile) {
+		this.outputFile = outputFile;
+	}
+
+	public String getOutputFile() {
+		return this.outputFile;
+	}
+
+	@DataBoundSetter
+	public void setOutputFormat(String outputFormat) {
+		this.outputFormat = outputFormat;
+	}
+
+	public String getOutputFormat() {
+		return this.outputFormat;
+	}
+
+	@DataBoundSetter
+	public void setInventoryManifest(String inventoryManifest) {
+		this.inventoryManifest = inventoryManifest;
+	}
+
+	public String getInventoryManifest() {
+		return this.inventoryManifest;
+	}
+
 	@Override
 	public StepExecution start(StepContext context) throws Exception {
 		return new S3FindFilesStep.Execution(this, context);
@@ -145,8 +286,9 @@ public class S3FindFilesStep extends AbstractS3Step {
 		}
 	}
 
-	public static class Execution extends SynchronousNonBlockingStepExecution<FileWrapper[]> {
+	public static class Execution extends SynchronousNonBlockingStepExecution<Object> {
 		private static final long serialVersionUID = 1L;
+		private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
 
 		private final transient S3FindFilesStep step;
 
@@ -156,19 +298,31 @@ public class S3FindFilesStep extends AbstractS3Step {
 		}
 
 		@Override
-		public FileWrapper[] run() throws Exception {
+		public Object run() throws Exception {
 			final String bucket = this.step.getBucket();
 			final String path = this.step.getPath();
 			final String glob = this.step.getGlob();
 			final boolean onlyFiles = this.step.isOnlyFiles();
+			final String outputFile = this.step.getOutputFile();
+			final String outputFormat = this.step.getOutputFormat();
 
 			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(outputFormat == null || outputFile != null, "OutputFormat can only be used together with OutputFile");
+			final FileWrapperFormat format = outputFile == null ? null : outputFormat != null ? FileWrapperFormat.of(outputFormat)
+					: outputFile.toLowerCase(Locale.ENGLISH).endsWith(".csv") ? FileWrapperFormat.CSV : FileWrapperFormat.JSONL;
+
+			final String excludeGlob = this.step.getExcludeGlob();
+			final long now = System.currentTimeMillis();
+			final ObjectSummaryFilter filter = ObjectSummaryFilter.of(this.step.getMinSize(), this.step.getMaxSize(),
+					ObjectSummaryFilter.parseTime(this.step.getModifiedAfter(), now), ObjectSummaryFilter.parseTime(this.step.getModifiedBefore(), now), this.step.getStorageClass());
 
-			this.getContext().get(TaskListener.class).getLogger().format("Searching s3://%s/%s for glob:'%s' %s%n", bucket, path, glob, onlyFiles ? "(only files)" : "");
+			this.getContext().get(TaskListener.class).getLogger().format("Searching s3://%s/%s for glob:'%s' %s%s%s%n", bucket, path, glob,
+					excludeGlob == null || excludeGlob.isEmpty() ? "" : "excluding glob:'" + excludeGlob + "' ",
+					filter == null ? "" : "(filtered by metadata) ", onlyFiles ? "(only files)" : "");
 
 			AmazonS3 s3Client = AWSClientFactory.create(Execution.this.step.createS3ClientOptions().createAmazonS3ClientBuilder(), Execution.this.getContext());
 
-			// Construct a PatternMatcher to match the files.
+			// Compile the glob to match the keys.
 			// Essentially, we're going to match against "${path}/${glob}".  Obviously,
 			// if there's no path, then we're going to leave that part out.  If no glob
 			// was given, then we're going to default to "*", which will match everything
@@ -176,105 +330,179 @@ public class S3FindFilesStep extends AbstractS3Step {
 			//
 			// Note that a glob of "**" will match everything (both files and folders) under
 			// the path.
+			//
+			// The keys are matched as strings, segment by segment, without creating a Path for
+			// every key, so the matching does not depend on the file system of the controller.
 			final String matcherString = computeMatcherString(path, glob);
-			PathMatcher matcher = FileSystems.getDefault().getPathMatcher(matcherString);
+			final KeyGlob matcher = KeyGlob.compile(matcherString);
+			// The exclude glob is relative to the path as well.
+			final KeyGlob excludeMatcher = excludeGlob == null || excludeGlob.isEmpty() ? null : KeyGlob.compile(computeMatcherString(path, excludeGlob));
 
-			// This is how may components there are in the root path.  We'll use this information
-			// to strip out these parts from the matches later on.
+			// This is the prefix of all keys below the path.  We'll strip it from the matches
+			// later on.
 			//
-			// For exmple, if `path` is "path/to", then this will be "2".
-			final int pathComponentCount = path.length() == 0 ? 0 : Paths.get(path).getNameCount();
-
-			// This is the list of S3 file information for all of the matching objects.
-			List<FileWrapper> matchingObjects = new ArrayList<>();
-
-			// This is the list of folders that we need to investigate.
-			// We're going to start with the path that we've been given,
-			// and then we'll grow it from there.
-			List<String> folders = new ArrayList<>();
-			folders.add(path);
-
-			// Go through all of the folders that we need to investigate,
-			// popping the first item off and working on it.  When they're
-			// all gone, we'll be done.
-			while (!folders.isEmpty()) {
-				// This is the folder to investigate.
-				String folder = folders.remove(0);
-
-				// Create the request to list the objects within it.
-				ListObjectsRequest request = new ListObjectsRequest();
-				request.setBucketName(bucket);
-				request.setPrefix(folder);
-				request.setDelimiter("/");
-				if (folder.length() > 0 && !folder.endsWith("/")) {
-					request.setPrefix(folder + "/");
-				}
-
-				// Get the list of objects within the folder.  Because AWS
-				// might paginate this, we're going to continue dealing with
-				// the "objectListing" object until it claims that it's done.
-				ObjectListing objectListing = s3Client.listObjects(request);
-				while (true) {
-					// Add any real objects to the list of objects to delete.
-					for (S3ObjectSummary entry : objectListing.getObjectSummaries()) {
-						// S3 does this sneaky thing with folders created in the management console:
-						// It *actually* creates a zero-length file whose name ends in "/".
-						//
-						// Here, we're going to quietly skip those entries; they'll be handled normally
-						// by the folder pathway below, anyway.  (Yes, they are returned as actual s3
-						// entities as well as prefixes).
-						if (entry.getKey().endsWith("/")) {
-							continue;
-						}
+			// For exmple, if `path` is "path/to", then this will be "path/to/".
+			final String root = path.length() == 0 || path.endsWith("/") ? path : path + "/";
+
+			// List the path and the "folders" below it in parallel.  The planner reads the glob to
+			// skip folders that cannot contain a match, to narrow every request to the literal
+			// prefix of the next level and to list everything below a "**" flat, without delimiter.
+			// Every page of a listing is matched on the thread that fetched it; the matches are
+			// merged folder by folder in breadth-first order, so the result does not depend on the
+			// timing of the requests.
+			int concurrency = this.step.createS3ClientOptions().getTransferSettings().getConcurrency(S3ClientCache.MAX_THREADS);
+			Executor executor = S3ClientCache.getInstance().newExecutor(concurrency);
+			Function<ListObjectsV2Result, List<FileWrapper>> mapper = page -> {
+				List<FileWrapper> matches = new ArrayList<>();
+				for (S3ObjectSummary entry : page.getObjectSummaries()) {
+					// S3 does this sneaky thing with folders created in the management console:
+					// It *actually* creates a zero-length file whose name ends in "/".
+					//
+					// Here, we're going to quietly skip those entries; they'll be handled normally
+					// by the folder pathway below, anyway.  (Yes, they are returned as actual s3
+					// entities as well as prefixes).
+					if (entry.getKey().endsWith("/")) {
+						continue;
+					}
 
-						Path javaPath = Paths.get(entry.getKey());
-						if (matcher.matches(javaPath)) {
-							FileWrapper file = createFileWrapperFromFile(pathComponentCount, javaPath, entry);
-							matchingObjects.add(file);
-						}
+					// The metadata of the listing is checked before anything is allocated for the entry.
+					if (matcher.matches(entry.getKey())
+							&& (filter == null || filter.test(entry))
+							&& (excludeMatcher == null || !excludeMatcher.matches(entry.getKey()))) {
+						matches.add(createFileWrapperFromFile(root, entry));
 					}
-					// Add any folders to the list of folders that we need to investigate.
-					folders.addAll(objectListing.getCommonPrefixes());
-					// In addition, if we are allowed to add folders to the list, then
-					// go through the folders and add any matching ones.
-					if (!onlyFiles) {
-						for (String prefix : objectListing.getCommonPrefixes()) {
-							Path javaPath = Paths.get(prefix);
-							if (matcher.matches(javaPath)) {
-								FileWrapper file = createFileWrapperFromFolder(pathComponentCount, javaPath);
-								matchingObjects.add(file);
-							}
+				}
+				// If we are allowed to add folders to the list, then go through the folders
+				// and add any matching ones.
+				if (!onlyFiles) {
+					for (String prefix : page.getCommonPrefixes()) {
+						if (matcher.matchesFolder(prefix) && (excludeMatcher == null || !excludeMatcher.matchesFolder(prefix))) {
+							matches.add(createFileWrapperFromFolder(root, prefix));
 						}
 					}
+				}
+				return matches;
+			};
+
+			final PrintStream logger = this.getContext().get(TaskListener.class).getLogger();
+			final String inventoryManifest = this.step.getInventoryManifest();
+			final MatchSource source;
+			if (inventoryManifest != null && !inventoryManifest.isEmpty()) {
+				// Read the keys from the data files of an S3 Inventory report instead of listing them.
+				// The files are read in parallel; the inventory has no folders, so only files are found.
+				InventoryManifest manifest = InventoryManifest.load(s3Client, inventoryManifest);
+				Preconditions.checkArgument(bucket.equals(manifest.getSourceBucket()), "The inventory manifest describes bucket %s", manifest.getSourceBucket());
+				logger.format("Reading the inventory of s3://%s created at %s%n", bucket, manifest.getCreationTime());
+				InventoryReader reader = new InventoryReader(s3Client, executor, concurrency);
+				source = sink -> {
+					long start = System.currentTimeMillis();
+					reader.read(manifest, root, mapper, sink);
+					logger.format("Read %d inventory files with %d objects in %d ms%n", reader.getFiles(), reader.getObjects(), System.currentTimeMillis() - start);
+				};
+			} else {
+				PrefixLister lister = new PrefixLister(s3Client, executor);
+				source = sink -> {
+					long start = System.currentTimeMillis();
+					lister.list(bucket, path, new GlobPrefixPlanner(matcherString), mapper, sink);
+					logger.format("Listed %d folders with %d requests in %d ms%n", lister.getFolders(), lister.getRequests(), System.currentTimeMillis() - start);
+				};
+			}
 
-					// If this listing is complete, then we can stop.
-					if (!objectListing.isTruncated()) {
-						break;
-					}
-					// Otherwise, we need to get the next batch and repeat.
-					objectListing = s3Client.listNextBatchOfObjects(objectListing);
+			if (format != null) {
+				// Stream the matches into the workspace file while listing, so neither the controller
+				// nor the program state of the pipeline has to hold them.
+				FilePath target = this.getContext().get(FilePath.class).child(outputFile);
+				FilePath parent = target.getParent();
+				if (parent != null) {
+					parent.mkdirs();
+				}
+				AtomicLong count = new AtomicLong();
+				try (Writer writer = new BufferedWriter(new OutputStreamWriter(target.write(), StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE)) {
+					format.writeHeader(writer);
+					source.list(matches -> {
+						for (FileWrapper match : matches) {
+							format.write(writer, match);
+						}
+						count.addAndGet(matches.size());
+					});
 				}
+				logger.format("Search complete, wrote %d matches to %s%n", count.get(), target.getRemote());
+
+				Map<String, Object> stepResult = new LinkedHashMap<>();
+				stepResult.put("count", count.get());
+				stepResult.put("path", target.getRemote());
+				return stepResult;
 			}
 
+			List<FileWrapper> matchingObjects = new ArrayList<>();
+			source.list(matchingObjects::addAll);
+
 			FileWrapper[] stepResult = new FileWrapper[matchingObjects.size()];
 			stepResult = matchingObjects.toArray(stepResult);
 
-			this.getContext().get(TaskListener.class).getLogger().println("Search complete");
+			logger.println("Search complete");
 			return stepResult;
 		}
 
 		/**
-		 * This computes the string that will be used to construct a PathMatcher that will
+		 * The keys the matches are searched in: a live listing or an inventory.
+		 */
+		private interface MatchSource {
+			void list(PrefixLister.ResultSink<FileWrapper> sink) throws IOException, InterruptedException;
+		}
+
+		/**
+		 * This computes the string that will be used to compile the KeyGlob that will
 		 * attempt to match the S3 keys.
 		 *
 		 * @param path The step's `path` parameter.
 		 * @param glob The step's `glob` parameter.
-		 * @return A string that can be used to construct a PathMatcher.
+		 * @return A string that can be used to compile a KeyGlob.
 		 */
 		public static String computeMatcherString(String path, String glob) {
 			return "glob:" + (path.length() == 0 ? "" : path + (path.endsWith("/") ? "" : "/")) + (glob.length() == 0 ? "*" : glob);
 		}
 
+		/**
+		 * This creates a new FileWrapper instance based on the S3ObjectSummary information.
+		 *
+		 * @param root  The prefix of all keys below the `path` parameter.
+		 * @param entry The S3ObjectSummary for the file.
+		 * @return A new FileWrapper instance.
+		 */
+		public static FileWrapper createFileWrapperFromFile(String root, S3ObjectSummary entry) {
+			// Inventories do not have to contain the last modified date.
+			return createFileWrapper(root, entry.getKey(), false, entry.getSize(), entry.getLastModified() == null ? 0 : entry.getLastModified().getTime());
+		}
+
+		/**
+		 * This creates a new FileWrapper instance for the folder.
+		 *
+		 * @param root   The prefix of all keys below the `path` parameter.
+		 * @param prefix The common prefix of the folder.
+		 * @return A new FileWrapper instance.
+		 */
+		public static FileWrapper createFileWrapperFromFolder(String root, String prefix) {
+			// S3 folders have no size and no last modified date (they don't even really exist).
+			return createFileWrapper(root, prefix, true, 0, 0);
+		}
+
+		private static FileWrapper createFileWrapper(String root, String key, boolean directory, long length, long lastModified) {
+			int end = key.endsWith("/") ? key.length() - 1 : key.length();
+			return new FileWrapper(
+					// Name:
+					key.substring(key.lastIndexOf('/', end - 1) + 1, end),
+					// Path (relative to the `path` parameter):
+					key.substring(root.length(), end),
+					// Directory?
+					directory,
+					// Size:
+					length,
+					// Last modified (milliseconds):
+					lastModified
+			);
+		}
+
 		/**
 		 * This creates a new FileWrapper instance based on the S3ObjectSummary information.
 		 *
@@ -282,7 +510,9 @@ public class S3FindFilesStep extends AbstractS3Step {
 		 * @param javaPath           The Path instance for the file.
 		 * @param entry              The S3ObjectSummary for the file.
 		 * @return A new FileWrapper instance.
+		 * @deprecated The keys are matched as strings, use {@link #createFileWrapperFromFile(String, S3ObjectSummary)}.
 		 */
+		@Deprecated
 		public static FileWrapper createFileWrapperFromFile(int pathComponentCount, Path javaPath, S3ObjectSummary entry) {
 			Path pathFileName = javaPath.getFileName();
 			if (pathFileName == null) {
@@ -308,7 +538,9 @@ public class S3FindFilesStep extends AbstractS3Step {
 		 * @param pathComponentCount The root path component count.
 		 * @param javaPath           The Path instance for the folder.
 		 * @return A new FileWrapper instance.
+		 * @deprecated The keys are matched as strings, use {@link #createFileWrapperFromFolder(String, String)}.
 		 */
+		@Deprecated
 		public static FileWrapper createFileWrapperFromFolder(int pathComponentCount, Path javaPath) {
 			Path pathFileName = javaPath.getFileName();
 			if (pathFileName == null) {
@@ -336,7 +568,9 @@ public class S3FindFilesStep extends AbstractS3Step {
 		 *
 		 * @param javaPath The Path instance.
 		 * @return A string representing the path, which AWS can use.
+		 * @deprecated The keys are no longer converted to a Path.
 		 */
+		@Deprecated
 		public static String convertPathToAwsFormat(Path javaPath) {
 			// Since we're using the default FileSystem to create the Path, we'll need to replace all
 			// of the default `File.separator` instances with "/".
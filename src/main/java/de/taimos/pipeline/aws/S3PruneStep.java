@@ -0,0 +1,206 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.google.common.base.Preconditions;
+import de.taimos.pipeline.aws.s3.BatchDeleter;
+import de.taimos.pipeline.aws.s3.ObjectSummaryFilter;
+import de.taimos.pipeline.aws.s3.RetentionPruner;
+import de.taimos.pipeline.aws.utils.StepUtils;
+import hudson.Extension;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The S3PruneStep deletes the folders below a prefix that fall out of a retention policy,
+ * e.g. old builds below <code>artifacts/&lt;job&gt;/</code>.
+ * <p>
+ * Returns a map with the number of groups, kept groups, pruned groups, pruned objects and pruned bytes.
+ */
+public class S3PruneStep extends AbstractS3Step {
+
+	/**
+	 * This is the bucket name.
+	 */
+	private final String bucket;
+	/**
+	 * This is the prefix whose folders are pruned.
+	 */
+	private String path = "";
+	/**
+	 * This is the regular expression the folder names must match; its first group is used to order them.
+	 */
+	private String groupPattern;
+	/**
+	 * This is the number of newest folders to keep.
+	 */
+	private Integer keep;
+	/**
+	 * Folders with an object modified after this date or within this ISO-8601 duration are kept.
+	 */
+	private String keepNewerThan;
+	/**
+	 * Whether the folders are only logged instead of deleted.
+	 */
+	private boolean dryRun;
+
+	@DataBoundConstructor
+	public S3PruneStep(String bucket, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
+		super(pathStyleAccessEnabled, payloadSigningEnabled);
+		this.bucket = bucket;
+	}
+
+	public String getBucket() {
+		return this.bucket;
+	}
+
+	public String getPath() {
+		return this.path;
+	}
+
+	@DataBoundSetter
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public String getGroupPattern() {
+		return this.groupPattern;
+	}
+
+	@DataBoundSetter
+	public void setGroupPattern(String groupPattern) {
+		this.groupPattern = groupPattern;
+	}
+
+	public Integer getKeep() {
+		return this.keep;
+	}
+
+	@DataBoundSetter
+	public void setKeep(Integer keep) {
+		this.keep = keep;
+	}
+
+	public String getKeepNewerThan() {
+		return this.keepNewerThan;
+	}
+
+	@DataBoundSetter
+	public void setKeepNewerThan(String keepNewerThan) {
+		this.keepNewerThan = keepNewerThan;
+	}
+
+	public boolean isDryRun() {
+		return this.dryRun;
+	}
+
+	@DataBoundSetter
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new S3PruneStep.Execution(this, context);
+	}
+
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor {
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return StepUtils.requiresDefault();
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "s3Prune";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Prune old folders in S3";
+		}
+	}
+
+	public static class Execution extends SynchronousNonBlockingStepExecution<Map<String, Object>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient S3PruneStep step;
+
+		public Execution(S3PruneStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		public Map<String, Object> run() throws Exception {
+			final String bucket = this.step.getBucket();
+			final String path = this.step.getPath() == null || this.step.getPath().equals("/") ? "" : this.step.getPath();
+			final String groupPattern = this.step.getGroupPattern();
+			final Date cutoff = ObjectSummaryFilter.parseTime(this.step.getKeepNewerThan(), System.currentTimeMillis());
+
+			Preconditions.checkArgument(bucket != null && !bucket.isEmpty(), "Bucket must not be null or empty");
+			Preconditions.checkArgument(this.step.getKeep() != null || cutoff != null, "Keep or KeepNewerThan must be set");
+			Preconditions.checkArgument(this.step.getKeep() == null || this.step.getKeep() >= 0, "Keep must not be negative");
+
+			PrintStream logger = this.getContext().get(TaskListener.class).getLogger();
+			logger.format("Pruning the folders below s3://%s/%s%s%n", bucket, path, this.step.isDryRun() ? " (dry run)" : "");
+
+			AmazonS3 s3Client = AWSClientFactory.create(this.step.createS3ClientOptions().createAmazonS3ClientBuilder(), this.getContext());
+			Pattern pattern = groupPattern == null || groupPattern.isEmpty() ? null : Pattern.compile(groupPattern);
+			RetentionPruner pruner = new RetentionPruner(s3Client, bucket, path, pattern, this.step.getKeep(), cutoff);
+			if (this.step.isDryRun()) {
+				pruner.prune(null, logger);
+			} else {
+				int concurrency = this.step.createS3ClientOptions().getTransferSettings().getConcurrency(S3ClientCache.MAX_THREADS);
+				BatchDeleter deleter = new BatchDeleter(s3Client, bucket, S3ClientCache.getInstance().newExecutor(concurrency), concurrency);
+				pruner.prune(deleter, logger);
+				deleter.finish(logger, "objects");
+			}
+
+			logger.format("%s %d of %d folders with %d objects and %d bytes, kept %d folders%n", this.step.isDryRun() ? "Would prune" : "Pruned",
+					pruner.getPrunedGroups(), pruner.getGroups(), pruner.getPrunedObjects(), pruner.getPrunedBytes(), pruner.getKeptGroups());
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("groups", pruner.getGroups());
+			result.put("kept", pruner.getKeptGroups());
+			result.put("pruned", pruner.getPrunedGroups());
+			result.put("objects", pruner.getPrunedObjects());
+			result.put("bytes", pruner.getPrunedBytes());
+			return result;
+		}
+	}
+}
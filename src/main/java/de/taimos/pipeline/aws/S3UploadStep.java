@@ -25,6 +25,7 @@ import com.amazonaws.event.ProgressEventType;
 import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.ObjectTagging;
@@ -32,18 +33,27 @@ import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.SSEAlgorithm;
 import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
 import com.amazonaws.services.s3.model.Tag;
-import com.amazonaws.services.s3.transfer.MultipleFileUpload;
 import com.amazonaws.services.s3.transfer.ObjectMetadataProvider;
-import com.amazonaws.services.s3.transfer.ObjectTaggingProvider;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
 import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
 import com.amazonaws.services.s3.transfer.Upload;
 import com.google.common.base.Preconditions;
+import de.taimos.pipeline.aws.s3.ArchiveFormat;
+import de.taimos.pipeline.aws.s3.ArchiveTransfer;
+import de.taimos.pipeline.aws.s3.BlobManifest;
+import de.taimos.pipeline.aws.s3.KeyPatternFilter;
+import de.taimos.pipeline.aws.s3.ResumableUploadState;
+import de.taimos.pipeline.aws.s3.TransferSettings;
+import de.taimos.pipeline.aws.s3.UploadScheduler;
+import de.taimos.pipeline.aws.s3.UploadSyncPlan;
 import de.taimos.pipeline.aws.utils.StepUtils;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
 import jenkins.MasterToSlaveFileCallable;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
@@ -57,13 +67,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class S3UploadStep extends AbstractS3Step {
 
@@ -85,6 +99,12 @@ public class S3UploadStep extends AbstractS3Step {
 	private String sseAlgorithm;
 	private String redirectLocation;
 	private boolean verbose = true;
+	private boolean sync = false;
+	private boolean mirror = false;
+	private String archive;
+	private boolean contentAddressed = false;
+	private String blobPrefix;
+	private boolean resumable = false;
 
 	@DataBoundConstructor
 	public S3UploadStep(String bucket, boolean pathStyleAccessEnabled, boolean payloadSigningEnabled) {
@@ -266,6 +286,60 @@ public class S3UploadStep extends AbstractS3Step {
 		return this.verbose;
 	}
 
+	public boolean isSync() {
+		return this.sync;
+	}
+
+	@DataBoundSetter
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	public boolean isMirror() {
+		return this.mirror;
+	}
+
+	@DataBoundSetter
+	public void setMirror(boolean mirror) {
+		this.mirror = mirror;
+	}
+
+	public String getArchive() {
+		return this.archive;
+	}
+
+	@DataBoundSetter
+	public void setArchive(String archive) {
+		this.archive = archive;
+	}
+
+	public boolean isContentAddressed() {
+		return this.contentAddressed;
+	}
+
+	@DataBoundSetter
+	public void setContentAddressed(boolean contentAddressed) {
+		this.contentAddressed = contentAddressed;
+	}
+
+	public String getBlobPrefix() {
+		return this.blobPrefix;
+	}
+
+	@DataBoundSetter
+	public void setBlobPrefix(String blobPrefix) {
+		this.blobPrefix = blobPrefix;
+	}
+
+	public boolean isResumable() {
+		return this.resumable;
+	}
+
+	@DataBoundSetter
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+
 	@Override
 	public StepExecution start(StepContext context) throws Exception {
 		return new S3UploadStep.Execution(this, context);
@@ -293,6 +367,7 @@ public class S3UploadStep extends AbstractS3Step {
 	public static class Execution extends SynchronousNonBlockingStepExecution<String> {
 
 		protected static final long serialVersionUID = 1L;
+		private static final String RESUME_STATE_DIR = "s3-upload-state";
 
 		protected final transient S3UploadStep step;
 
@@ -321,6 +396,12 @@ public class S3UploadStep extends AbstractS3Step {
 			final String sseAlgorithm = this.step.getSseAlgorithm();
 			final String redirectLocation = this.step.getRedirectLocation();
 			final boolean verbose = this.step.getVerbose();
+			final boolean sync = this.step.isSync();
+			final boolean mirror = this.step.isMirror();
+			final String archive = this.step.getArchive() != null && !this.step.getArchive().trim().isEmpty() ? this.step.getArchive() : null;
+			final boolean contentAddressed = this.step.isContentAddressed();
+			final boolean resumable = this.step.isResumable();
+			final String blobPrefix = this.step.getBlobPrefix() != null && !this.step.getBlobPrefix().trim().isEmpty() ? this.step.getBlobPrefix() : BlobManifest.DEFAULT_BLOB_PREFIX;
 			boolean omitSourcePath = false;
 			boolean sendingText = false;
 
@@ -347,8 +428,20 @@ public class S3UploadStep extends AbstractS3Step {
 			Preconditions.checkArgument(includePathPattern == null || file == null, "File and IncludePathPattern cannot be used together");
 			Preconditions.checkArgument(text == null || file == null, "Text and File cannot be used together");
 			Preconditions.checkArgument(includePathPattern == null || text == null, "IncludePathPattern and Text cannot be used together");
-
-			final List<FilePath> children = new ArrayList<>();
+			Preconditions.checkArgument(!sync || text == null, "Sync and Text cannot be used together");
+			Preconditions.checkArgument(!mirror || sync, "Mirror can only be used together with Sync");
+			Preconditions.checkArgument(archive == null || text == null, "Archive and Text cannot be used together");
+			Preconditions.checkArgument(archive == null || !sync, "Archive and Sync cannot be used together");
+			Preconditions.checkArgument(archive == null || (path != null && !path.isEmpty() && !path.endsWith("/")), "Archive requires the path of the archive object");
+			Preconditions.checkArgument(!contentAddressed || text == null, "ContentAddressed and Text cannot be used together");
+			Preconditions.checkArgument(!contentAddressed || !sync, "ContentAddressed and Sync cannot be used together");
+			Preconditions.checkArgument(!contentAddressed || archive == null, "ContentAddressed and Archive cannot be used together");
+			Preconditions.checkArgument(!contentAddressed || (path != null && !path.isEmpty() && !path.endsWith("/")), "ContentAddressed requires the path of the manifest object");
+			Preconditions.checkArgument(!resumable || file != null, "Resumable can only be used together with File");
+			Preconditions.checkArgument(!resumable || (archive == null && !contentAddressed), "Resumable cannot be used together with Archive or ContentAddressed");
+			final ArchiveFormat archiveFormat = archive != null ? ArchiveFormat.of(archive) : null;
+
+			FilePath child = null;
 			final FilePath dir;
 			if (workingDir != null && !"".equals(workingDir.trim())) {
 				dir = this.getContext().get(FilePath.class).child(workingDir);
@@ -358,17 +451,44 @@ public class S3UploadStep extends AbstractS3Step {
 			if (text != null) {
 				sendingText = true;
 			} else if (file != null) {
-				children.add(dir.child(file));
+				child = dir.child(file);
 				omitSourcePath = true;
-			} else if (excludePathPattern != null && !excludePathPattern.trim().isEmpty()) {
-				children.addAll(Arrays.asList(dir.list(includePathPattern, excludePathPattern, true)));
-			} else {
-				children.addAll(Arrays.asList(dir.list(includePathPattern, null, true)));
-
 			}
 
 			TaskListener listener = Execution.this.getContext().get(TaskListener.class);
 
+			if (archiveFormat != null) {
+				final FilePath source = child != null ? child : dir;
+				listener.getLogger().format("Uploading %s archive of %s to s3://%s/%s %n", archiveFormat.getExtension(), source.toURI(), bucket, path);
+				if (!source.isDirectory()) {
+					listener.getLogger().println("Upload failed due to missing source directory");
+					throw new FileNotFoundException(source.toURI().toString());
+				}
+				String includes = includePathPattern != null ? includePathPattern : "**";
+				String excludes = excludePathPattern != null && !excludePathPattern.trim().isEmpty() ? excludePathPattern : null;
+				source.act(new RemoteArchiveUploader(Execution.this.step.createS3ClientOptions(), Execution.this.getContext().get(EnvVars.class), listener, archiveFormat, includes, excludes, bucket, path, metadatas, tags, acl, cacheControl, contentEncoding, contentType, contentDisposition, kmsId, sseAlgorithm));
+				listener.getLogger().println("Upload complete");
+				return String.format("s3://%s/%s", bucket, path);
+			}
+
+			if (contentAddressed) {
+				final FilePath source = child != null ? child : dir;
+				listener.getLogger().format("Uploading %s content addressed to s3://%s/%s %n", source.toURI(), bucket, path);
+				if (!source.exists()) {
+					listener.getLogger().println("Upload failed due to missing source file");
+					throw new FileNotFoundException(source.toURI().toString());
+				}
+				String includes = includePathPattern != null ? includePathPattern : "**";
+				String excludes = excludePathPattern != null && !excludePathPattern.trim().isEmpty() ? excludePathPattern : null;
+				int uploaded = source.act(new RemoteBlobUploader(Execution.this.step.createS3ClientOptions(), Execution.this.getContext().get(EnvVars.class), listener, includes, excludes, bucket, path, blobPrefix, metadatas, tags, acl, cacheControl, contentEncoding, contentType, contentDisposition, kmsId, sseAlgorithm));
+				if (uploaded == 0) {
+					listener.getLogger().println("Nothing to upload");
+					return null;
+				}
+				listener.getLogger().println("Upload complete");
+				return String.format("s3://%s/%s", bucket, path);
+			}
+
 			if (sendingText) {
 				listener.getLogger().format("Uploading text string to s3://%s/%s %n", bucket, path);
 
@@ -376,7 +496,7 @@ public class S3UploadStep extends AbstractS3Step {
 				EnvVars envVars = Execution.this.getContext().get(EnvVars.class);
 
 				AmazonS3 s3Client = AWSClientFactory.create(amazonS3ClientOptions.createAmazonS3ClientBuilder(), Execution.this.getContext(), envVars);
-				TransferManager mgr = AWSUtilFactory.newTransferManager(s3Client);
+				TransferManager mgr = AWSUtilFactory.newTransferManager(s3Client, amazonS3ClientOptions.getTransferSettings());
 
 				byte[] bytes = text.getBytes(Charset.forName("UTF-8"));
 				PutObjectRequest request = null;
@@ -446,28 +566,33 @@ public class S3UploadStep extends AbstractS3Step {
 
 				listener.getLogger().println("Upload complete");
 				return String.format("s3://%s/%s", bucket, path);
-			} else if (children.isEmpty()) {
-				listener.getLogger().println("Nothing to upload");
-				return null;
 			} else if (omitSourcePath) {
-				FilePath child = children.get(0);
 				listener.getLogger().format("Uploading %s to s3://%s/%s %n", child.toURI(), bucket, path);
 				if (!child.exists()) {
 					listener.getLogger().println("Upload failed due to missing source file");
 					throw new FileNotFoundException(child.toURI().toString());
 				}
+				String resumeStateDir = null;
+				if (resumable) {
+					Preconditions.checkArgument(!child.isDirectory(), "Resumable can only be used to upload a single file");
+					// keep the state next to the workspace, so it survives a cleanup of the workspace content
+					FilePath workspace = this.getContext().get(FilePath.class);
+					FilePath tempDir = WorkspaceList.tempDir(workspace);
+					resumeStateDir = (tempDir != null ? tempDir : workspace).child(RESUME_STATE_DIR).getRemote();
+				}
 
-				child.act(new RemoteUploader(Execution.this.step.createS3ClientOptions(), Execution.this.getContext().get(EnvVars.class), listener, bucket, path, metadatas, tags, acl, cacheControl, contentEncoding, contentType, contentDisposition, kmsId, sseAlgorithm, redirectLocation));
+				child.act(new RemoteUploader(Execution.this.step.createS3ClientOptions(), Execution.this.getContext().get(EnvVars.class), listener, bucket, path, metadatas, tags, acl, cacheControl, contentEncoding, contentType, contentDisposition, kmsId, sseAlgorithm, redirectLocation, sync, mirror, resumeStateDir));
 
 				listener.getLogger().println("Upload complete");
 				return String.format("s3://%s/%s", bucket, path);
 			} else {
-				List<File> fileList = new ArrayList<>();
 				listener.getLogger().format("Uploading %s to s3://%s/%s %n", includePathPattern, bucket, path);
-				for (FilePath child : children) {
-					fileList.add(child.act(FIND_FILE_ON_SLAVE));
+				String excludes = excludePathPattern != null && !excludePathPattern.trim().isEmpty() ? excludePathPattern : null;
+				int uploaded = dir.act(new RemoteListUploader(Execution.this.step.createS3ClientOptions(), Execution.this.getContext().get(EnvVars.class), listener, includePathPattern, excludes, bucket, path, metadatas, tags, acl, cacheControl, contentEncoding, contentType, contentDisposition, kmsId, sseAlgorithm, sync, mirror));
+				if (uploaded == 0) {
+					listener.getLogger().println("Nothing to upload");
+					return null;
 				}
-				dir.act(new RemoteListUploader(Execution.this.step.createS3ClientOptions(), Execution.this.getContext().get(EnvVars.class), listener, fileList, bucket, path, metadatas, tags, acl, cacheControl, contentEncoding, contentType, contentDisposition, kmsId, sseAlgorithm));
 				listener.getLogger().println("Upload complete");
 				return String.format("s3://%s/%s", bucket, path);
 			}
@@ -475,6 +600,80 @@ public class S3UploadStep extends AbstractS3Step {
 
 	}
 
+	/**
+	 * Uploads the files with the size-aware {@link UploadScheduler} using the same keys as the TransferManager
+	 * would for a directory upload. Running uploads are aborted if the step is interrupted, as the shared
+	 * TransferManager is not shut down at the end of the step.
+	 */
+	private static void uploadFiles(TransferManager mgr, int concurrency, TaskListener listener, String bucket, String path, File baseDir, List<File> files, ObjectMetadataProvider metadatasProvider, ObjectTagging tagging) throws InterruptedException {
+		String keyPrefix = UploadSyncPlan.normalizePrefix(path);
+		uploadFiles(mgr, concurrency, listener, bucket, files, file -> keyPrefix + UploadSyncPlan.relativeKey(baseDir, file), metadatasProvider, tagging);
+	}
+
+	private static void uploadFiles(TransferManager mgr, int concurrency, TaskListener listener, String bucket, List<File> files, Function<File, String> keyFunction, ObjectMetadataProvider metadatasProvider, ObjectTagging tagging) throws InterruptedException {
+		if (files.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		new UploadScheduler(mgr, concurrency).upload(bucket, files, keyFunction, metadatasProvider, tagging, upload ->
+				upload.addProgressListener((ProgressListener) progressEvent -> {
+					if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
+						listener.getLogger().println("Finished: " + upload.getDescription());
+					}
+				}));
+		listener.getLogger().format("Uploaded %d files in %d ms%n", files.size(), System.currentTimeMillis() - start);
+	}
+
+	private static ObjectMetadataProvider metadataProvider(Map<String, String> metadatas, CannedAccessControlList acl, String cacheControl, String contentEncoding, String contentType, String contentDisposition, String sseAlgorithm, String kmsId) {
+		return (file, meta) -> {
+			if (meta != null) {
+				if (metadatas != null && metadatas.size() > 0) {
+					meta.setUserMetadata(metadatas);
+				}
+				if (acl != null) {
+					meta.setHeader(Headers.S3_CANNED_ACL, acl);
+				}
+				if (cacheControl != null && !cacheControl.isEmpty()) {
+					meta.setCacheControl(cacheControl);
+				}
+				if (contentEncoding != null && !contentEncoding.isEmpty()) {
+					meta.setContentEncoding(contentEncoding);
+				}
+				if (contentType != null && !contentType.isEmpty()) {
+					meta.setContentType(contentType);
+				}
+				if (contentDisposition != null && !contentDisposition.isEmpty()) {
+					meta.setContentDisposition(contentDisposition);
+				}
+				if (sseAlgorithm != null && !sseAlgorithm.isEmpty()) {
+					meta.setSSEAlgorithm(sseAlgorithm);
+				}
+				if (kmsId != null && !kmsId.isEmpty()) {
+					final SSEAwsKeyManagementParams sseAwsKeyManagementParams = new SSEAwsKeyManagementParams(kmsId);
+					meta.setSSEAlgorithm(SSEAlgorithm.KMS.getAlgorithm());
+					meta.setHeader(
+							Headers.SERVER_SIDE_ENCRYPTION_AWS_KMS_KEYID,
+							sseAwsKeyManagementParams.getAwsKmsKeyId()
+					);
+				}
+			}
+		};
+	}
+
+	private static ObjectTagging objectTagging(Map<String, String> tags) {
+		List<Tag> tagList = new ArrayList<Tag>();
+		if (tags != null) {
+			for (Map.Entry<String, String> entry : tags.entrySet()) {
+				tagList.add(new Tag(entry.getKey(), entry.getValue()));
+			}
+		}
+		return new ObjectTagging(tagList);
+	}
+
+	private static int transferConcurrency(S3ClientOptions options) {
+		return options.getTransferSettings().getConcurrency(S3ClientCache.MAX_THREADS);
+	}
+
 	private static class RemoteUploader extends MasterToSlaveFileCallable<Void> {
 
 		protected static final long serialVersionUID = 1L;
@@ -493,8 +692,11 @@ public class S3UploadStep extends AbstractS3Step {
 		private final String kmsId;
 		private final String sseAlgorithm;
 		private final String redirectLocation;
+		private final boolean sync;
+		private final boolean mirror;
+		private final String resumeStateDir;
 
-		RemoteUploader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path, Map<String, String> metadatas, Map<String, String> tags, CannedAccessControlList acl, String cacheControl, String contentEncoding, String contentType, String contentDisposition, String kmsId, String sseAlgorithm, String redirectLocation) {
+		RemoteUploader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String bucket, String path, Map<String, String> metadatas, Map<String, String> tags, CannedAccessControlList acl, String cacheControl, String contentEncoding, String contentType, String contentDisposition, String kmsId, String sseAlgorithm, String redirectLocation, boolean sync, boolean mirror, String resumeStateDir) {
 			this.amazonS3ClientOptions = amazonS3ClientOptions;
 			this.envVars = envVars;
 			this.taskListener = taskListener;
@@ -510,17 +712,29 @@ public class S3UploadStep extends AbstractS3Step {
 			this.kmsId = kmsId;
 			this.sseAlgorithm = sseAlgorithm;
 			this.redirectLocation = redirectLocation;
+			this.sync = sync;
+			this.mirror = mirror;
+			this.resumeStateDir = resumeStateDir;
 		}
 
 		@Override
 		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
-			AmazonS3 s3Client = AWSClientFactory.create(this.amazonS3ClientOptions.createAmazonS3ClientBuilder(), this.envVars);
-			TransferManager mgr = AWSUtilFactory.newTransferManager(s3Client);
+			S3ClientOptions options = autoTune(this.amazonS3ClientOptions, this.amazonS3ClientOptions.getTransferSettings().autoTune(localFile), this.taskListener);
+			try (S3ClientCache.Lease lease = AWSUtilFactory.leaseS3Transfer(options, this.envVars)) {
+				return this.upload(localFile, lease.getS3Client(), lease.getTransferManager(), transferConcurrency(options));
+			}
+		}
+
+		private Void upload(File localFile, AmazonS3 s3Client, TransferManager mgr, int concurrency) throws IOException, InterruptedException {
 			if (localFile.isFile()) {
 				String path = this.path;
 				if (path.endsWith("/") || path.isEmpty()) {
 					path += localFile.getName();
 				}
+				if (this.sync && UploadSyncPlan.isUpToDate(s3Client, this.bucket, path, localFile, minimumUploadPartSize(mgr))) {
+					RemoteUploader.this.taskListener.getLogger().format("Skipping unchanged file s3://%s/%s%n", this.bucket, path);
+					return null;
+				}
 				PutObjectRequest request = new PutObjectRequest(this.bucket, path, localFile);
 
 				// Add metadata
@@ -569,88 +783,75 @@ public class S3UploadStep extends AbstractS3Step {
 					request.withRedirectLocation(this.redirectLocation);
 				}
 
-				try {
-					final Upload upload = mgr.upload(request);
-					upload.addProgressListener((ProgressListener) progressEvent -> {
-						if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
-							RemoteUploader.this.taskListener.getLogger().println("Finished: " + upload.getDescription());
-						}
-					});
-					upload.waitForCompletion();
+				if (this.resumeStateDir == null) {
+					this.await(mgr.upload(request), null, localFile);
+					return null;
 				}
-				finally {
-					mgr.shutdownNow();
+				ResumableUploadState state = ResumableUploadState.of(new File(this.resumeStateDir), this.bucket, path, localFile);
+				PersistableUpload previous = state.load(localFile);
+				if (previous != null) {
+					RemoteUploader.this.taskListener.getLogger().format("Resuming upload of s3://%s/%s%n", this.bucket, path);
+					try {
+						this.await(mgr.resumeUpload(previous), state, localFile);
+						state.delete();
+						return null;
+					} catch (AmazonS3Exception e) {
+						if (!"NoSuchUpload".equals(e.getErrorCode())) {
+							throw e;
+						}
+						RemoteUploader.this.taskListener.getLogger().println("The previous upload no longer exists, starting a new upload");
+						state.delete();
+					}
 				}
+				this.await(mgr.upload(request, state.persistingListener(localFile, RemoteUploader.this.taskListener.getLogger())), state, localFile);
+				state.delete();
 				return null;
 			}
 			if (localFile.isDirectory()) {
-				final MultipleFileUpload fileUpload;
-				final ObjectMetadataProvider metadatasProvider = (file, meta) -> {
-					if (meta != null) {
-						if (RemoteUploader.this.metadatas != null && RemoteUploader.this.metadatas.size() > 0) {
-							meta.setUserMetadata(RemoteUploader.this.metadatas);
-						}
-						if (RemoteUploader.this.acl != null) {
-							meta.setHeader(Headers.S3_CANNED_ACL, RemoteUploader.this.acl);
-						}
-						if (RemoteUploader.this.cacheControl != null && !RemoteUploader.this.cacheControl.isEmpty()) {
-							meta.setCacheControl(RemoteUploader.this.cacheControl);
-						}
-						if (RemoteUploader.this.contentEncoding != null && !RemoteUploader.this.contentEncoding.isEmpty()) {
-							meta.setContentEncoding(RemoteUploader.this.contentEncoding);
-						}
-						if (RemoteUploader.this.contentType != null && !RemoteUploader.this.contentType.isEmpty()) {
-							meta.setContentType(RemoteUploader.this.contentType);
-						}
-						if (RemoteUploader.this.contentDisposition != null && !RemoteUploader.this.contentDisposition.isEmpty()) {
-							meta.setContentDisposition(RemoteUploader.this.contentDisposition);
-						}
-						if (RemoteUploader.this.kmsId != null && !RemoteUploader.this.kmsId.isEmpty()) {
-							final SSEAwsKeyManagementParams sseAwsKeyManagementParams = new SSEAwsKeyManagementParams(RemoteUploader.this.kmsId);
-							meta.setSSEAlgorithm(SSEAlgorithm.KMS.getAlgorithm());
-							meta.setHeader(
-									Headers.SERVER_SIDE_ENCRYPTION_AWS_KMS_KEYID,
-									sseAwsKeyManagementParams.getAwsKmsKeyId()
-							);
-						}
-					}
-				};
-
-				ObjectTaggingProvider objectTaggingProvider =(uploadContext) -> {
-					List<Tag> tagList = new ArrayList<Tag>();
-
-					//add tags
-					if(tags != null){
-						for (Map.Entry<String, String> entry : tags.entrySet()) {
-							Tag tag = new Tag(entry.getKey(), entry.getValue());
-							tagList.add(tag);
-						}
-					}
-					return new ObjectTagging(tagList);
-				};
-
-				try {
-					fileUpload = mgr.uploadDirectory(this.bucket, this.path, localFile, true, metadatasProvider, objectTaggingProvider);
-					for (final Upload upload : fileUpload.getSubTransfers()) {
-						upload.addProgressListener((ProgressListener) progressEvent -> {
-							if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
-								RemoteUploader.this.taskListener.getLogger().println("Finished: " + upload.getDescription());
-							}
-						});
-					}
-					fileUpload.waitForCompletion();
+				List<File> files;
+				try (Stream<Path> walk = Files.walk(localFile.toPath())) {
+					files = walk.filter(Files::isRegularFile).map(Path::toFile).collect(Collectors.toList());
 				}
-				finally {
-					mgr.shutdownNow();
+				if (this.sync) {
+					files = syncWithRemote(s3Client, mgr, concurrency, this.taskListener, this.bucket, this.path, localFile, files, null, this.mirror).getChangedFiles();
 				}
+				ObjectMetadataProvider metadatasProvider = metadataProvider(this.metadatas, this.acl, this.cacheControl, this.contentEncoding, this.contentType, this.contentDisposition, this.sseAlgorithm, this.kmsId);
+				uploadFiles(mgr, concurrency, this.taskListener, this.bucket, this.path, localFile, files, metadatasProvider, objectTagging(this.tags));
 				return null;
 			}
 			return null;
 		}
 
+		/**
+		 * Waits for the upload. If the step is interrupted, a resumable upload is paused and its state is kept,
+		 * any other upload is aborted. A failed upload keeps its uploaded parts and its state, so a retry can resume it.
+		 */
+		private void await(Upload upload, ResumableUploadState state, File localFile) throws InterruptedException {
+			upload.addProgressListener((ProgressListener) progressEvent -> {
+				if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
+					RemoteUploader.this.taskListener.getLogger().println("Finished: " + upload.getDescription());
+				}
+			});
+			try {
+				upload.waitForCompletion();
+			} catch (InterruptedException e) {
+				// the TransferManager is shared, so the transfer has to be cancelled explicitly
+				if (state == null || !state.pause(upload, localFile)) {
+					upload.abort();
+				} else {
+					RemoteUploader.this.taskListener.getLogger().format("Paused upload, the state is kept in %s%n", state.getStateFile());
+				}
+				throw e;
+			}
+		}
+
 	}
 
-	private static class RemoteListUploader extends MasterToSlaveFileCallable<Void> {
+	/**
+	 * Resolves the include/exclude patterns on the agent and uploads all matching files.
+	 * Returns the number of matched files.
+	 */
+	private static class RemoteListUploader extends MasterToSlaveFileCallable<Integer> {
 
 		protected static final long serialVersionUID = 1L;
 		private final S3ClientOptions amazonS3ClientOptions;
@@ -658,7 +859,8 @@ public class S3UploadStep extends AbstractS3Step {
 		private final TaskListener taskListener;
 		private final String bucket;
 		private final String path;
-		private final List<File> fileList;
+		private final String includePathPattern;
+		private final String excludePathPattern;
 		private final Map<String, String> metadatas;
 		private final Map<String, String> tags;
 		private final CannedAccessControlList acl;
@@ -668,12 +870,15 @@ public class S3UploadStep extends AbstractS3Step {
 		private final String contentDisposition;
 		private final String kmsId;
 		private final String sseAlgorithm;
+		private final boolean sync;
+		private final boolean mirror;
 
-		RemoteListUploader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, List<File> fileList, String bucket, String path, Map<String, String> metadatas, Map<String, String> tags, CannedAccessControlList acl, final String cacheControl, final String contentEncoding, final String contentType, final String contentDisposition, String kmsId, String sseAlgorithm) {
+		RemoteListUploader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String includePathPattern, String excludePathPattern, String bucket, String path, Map<String, String> metadatas, Map<String, String> tags, CannedAccessControlList acl, final String cacheControl, final String contentEncoding, final String contentType, final String contentDisposition, String kmsId, String sseAlgorithm, boolean sync, boolean mirror) {
 			this.amazonS3ClientOptions = amazonS3ClientOptions;
 			this.envVars = envVars;
 			this.taskListener = taskListener;
-			this.fileList = fileList;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
 			this.bucket = bucket;
 			this.path = path;
 			this.metadatas = metadatas;
@@ -685,84 +890,225 @@ public class S3UploadStep extends AbstractS3Step {
 			this.contentDisposition = contentDisposition;
 			this.kmsId = kmsId;
 			this.sseAlgorithm = sseAlgorithm;
+			this.sync = sync;
+			this.mirror = mirror;
 		}
 
 		@Override
-		public Void invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
-			AmazonS3 s3Client = AWSClientFactory.create(this.amazonS3ClientOptions.createAmazonS3ClientBuilder(), this.envVars);
-			TransferManager mgr = AWSUtilFactory.newTransferManager(s3Client);
-			final MultipleFileUpload fileUpload;
-			ObjectMetadataProvider metadatasProvider = (file, meta) -> {
-				if (meta != null) {
-					if (RemoteListUploader.this.metadatas != null && RemoteListUploader.this.metadatas.size() > 0) {
-						meta.setUserMetadata(RemoteListUploader.this.metadatas);
-					}
-					if (RemoteListUploader.this.acl != null) {
-						meta.setHeader(Headers.S3_CANNED_ACL, RemoteListUploader.this.acl);
-					}
-					if (RemoteListUploader.this.cacheControl != null && !RemoteListUploader.this.cacheControl.isEmpty()) {
-						meta.setCacheControl(RemoteListUploader.this.cacheControl);
-					}
-					if (RemoteListUploader.this.contentEncoding != null && !RemoteListUploader.this.contentEncoding.isEmpty()) {
-						meta.setContentEncoding(RemoteListUploader.this.contentEncoding);
-					}
-					if (RemoteListUploader.this.contentType != null && !RemoteListUploader.this.contentType.isEmpty()) {
-						meta.setContentType(RemoteListUploader.this.contentType);
-					}
-					if (RemoteListUploader.this.contentDisposition != null && !RemoteListUploader.this.contentDisposition.isEmpty()) {
-						meta.setContentDisposition(RemoteListUploader.this.contentDisposition);
-					}
-					if (RemoteListUploader.this.sseAlgorithm != null && !RemoteListUploader.this.sseAlgorithm.isEmpty()) {
-						meta.setSSEAlgorithm(RemoteListUploader.this.sseAlgorithm);
-					}
-					if (RemoteListUploader.this.kmsId != null && !RemoteListUploader.this.kmsId.isEmpty()) {
-						final SSEAwsKeyManagementParams sseAwsKeyManagementParams = new SSEAwsKeyManagementParams(RemoteListUploader.this.kmsId);
-						meta.setSSEAlgorithm(sseAwsKeyManagementParams.getAwsKmsKeyId());
-						meta.setHeader(
-								Headers.SERVER_SIDE_ENCRYPTION_AWS_KMS_KEYID,
-								sseAwsKeyManagementParams.getAwsKmsKeyId()
-						);
-					}
+		public Integer invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			long scanStart = System.currentTimeMillis();
+			List<File> files = new ArrayList<>();
+			for (FilePath match : new FilePath(localFile).list(this.includePathPattern, this.excludePathPattern, true)) {
+				files.add(new File(match.getRemote()));
+			}
+			this.taskListener.getLogger().format("Found %d files matching %s in %d ms%n", files.size(), this.includePathPattern, System.currentTimeMillis() - scanStart);
+			if (files.isEmpty()) {
+				return 0;
+			}
+			final int matched = files.size();
 
-				}
-			};
+			S3ClientOptions options = autoTune(this.amazonS3ClientOptions, this.amazonS3ClientOptions.getTransferSettings().autoTune(files), this.taskListener);
+			try (S3ClientCache.Lease lease = AWSUtilFactory.leaseS3Transfer(options, this.envVars)) {
+				this.upload(localFile, files, lease.getS3Client(), lease.getTransferManager(), transferConcurrency(options));
+			}
+			return matched;
+		}
 
-			ObjectTaggingProvider objectTaggingProvider =(uploadContext) -> {
-				List<Tag> tagList = new ArrayList<Tag>();
+		private void upload(File localFile, List<File> files, AmazonS3 s3Client, TransferManager mgr, int concurrency) throws IOException, InterruptedException {
+			if (this.sync) {
+				files = syncWithRemote(s3Client, mgr, concurrency, this.taskListener, this.bucket, this.path, localFile, files,
+						KeyPatternFilter.withDefaultExcludes(this.includePathPattern, this.excludePathPattern), this.mirror).getChangedFiles();
+			}
+			ObjectMetadataProvider metadatasProvider = metadataProvider(this.metadatas, this.acl, this.cacheControl, this.contentEncoding, this.contentType, this.contentDisposition, this.sseAlgorithm, this.kmsId);
+			uploadFiles(mgr, concurrency, this.taskListener, this.bucket, this.path, localFile, files, metadatasProvider, objectTagging(this.tags));
+		}
+	}
 
-				//add tags
-				if(tags != null){
-					for (Map.Entry<String, String> entry : tags.entrySet()) {
-						Tag tag = new Tag(entry.getKey(), entry.getValue());
-						tagList.add(tag);
-					}
-				}
-				return new ObjectTagging(tagList);
-			};
+	/**
+	 * Streams an archive of the matching files into a multipart upload, without a temporary file.
+	 * Returns the size of the archive.
+	 */
+	private static class RemoteArchiveUploader extends MasterToSlaveFileCallable<Long> {
 
-			try {
-				fileUpload = mgr.uploadFileList(this.bucket, this.path, localFile, this.fileList, metadatasProvider, objectTaggingProvider);
-				for (final Upload upload : fileUpload.getSubTransfers()) {
-					upload.addProgressListener((ProgressListener) progressEvent -> {
-						if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
-							RemoteListUploader.this.taskListener.getLogger().println("Finished: " + upload.getDescription());
-						}
-					});
+		protected static final long serialVersionUID = 1L;
+
+		private final S3ClientOptions amazonS3ClientOptions;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final ArchiveFormat format;
+		private final String includePathPattern;
+		private final String excludePathPattern;
+		private final String bucket;
+		private final String path;
+		private final Map<String, String> metadatas;
+		private final Map<String, String> tags;
+		private final CannedAccessControlList acl;
+		private final String cacheControl;
+		private final String contentEncoding;
+		private final String contentType;
+		private final String contentDisposition;
+		private final String kmsId;
+		private final String sseAlgorithm;
+
+		RemoteArchiveUploader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, ArchiveFormat format, String includePathPattern, String excludePathPattern, String bucket, String path, Map<String, String> metadatas, Map<String, String> tags, CannedAccessControlList acl, String cacheControl, String contentEncoding, String contentType, String contentDisposition, String kmsId, String sseAlgorithm) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.format = format;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
+			this.bucket = bucket;
+			this.path = path;
+			this.metadatas = metadatas;
+			this.tags = tags;
+			this.acl = acl;
+			this.cacheControl = cacheControl;
+			this.contentEncoding = contentEncoding;
+			this.contentType = contentType;
+			this.contentDisposition = contentDisposition;
+			this.kmsId = kmsId;
+			this.sseAlgorithm = sseAlgorithm;
+		}
+
+		@Override
+		public Long invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			try (S3ClientCache.Lease lease = AWSUtilFactory.leaseS3Transfer(this.amazonS3ClientOptions, this.envVars)) {
+				ObjectMetadata metadata = new ObjectMetadata();
+				metadataProvider(this.metadatas, this.acl, this.cacheControl, this.contentEncoding, this.contentType, this.contentDisposition, this.sseAlgorithm, this.kmsId).provideObjectMetadata(localFile, metadata);
+				ObjectTagging tagging = this.tags == null || this.tags.isEmpty() ? null : objectTagging(this.tags);
+				return ArchiveTransfer.upload(lease.getS3Client(), lease.getTransferManager(), S3ClientCache.getInstance()::newExecutor, transferConcurrency(this.amazonS3ClientOptions),
+						this.format, localFile, this.includePathPattern, this.excludePathPattern, this.bucket, this.path, metadata, tagging, this.taskListener.getLogger());
+			}
+		}
+	}
+
+	/**
+	 * Hashes the matching files in parallel, uploads every content that is not stored below the blob
+	 * prefix yet and writes the manifest mapping the relative paths to the blobs.
+	 * Returns the number of matched files.
+	 */
+	private static class RemoteBlobUploader extends MasterToSlaveFileCallable<Integer> {
+
+		protected static final long serialVersionUID = 1L;
+		private static final String MANIFEST_CONTENT_TYPE = "application/json";
+
+		private final S3ClientOptions amazonS3ClientOptions;
+		private final EnvVars envVars;
+		private final TaskListener taskListener;
+		private final String includePathPattern;
+		private final String excludePathPattern;
+		private final String bucket;
+		private final String path;
+		private final String blobPrefix;
+		private final Map<String, String> metadatas;
+		private final Map<String, String> tags;
+		private final CannedAccessControlList acl;
+		private final String cacheControl;
+		private final String contentEncoding;
+		private final String contentType;
+		private final String contentDisposition;
+		private final String kmsId;
+		private final String sseAlgorithm;
+
+		RemoteBlobUploader(S3ClientOptions amazonS3ClientOptions, EnvVars envVars, TaskListener taskListener, String includePathPattern, String excludePathPattern, String bucket, String path, String blobPrefix, Map<String, String> metadatas, Map<String, String> tags, CannedAccessControlList acl, String cacheControl, String contentEncoding, String contentType, String contentDisposition, String kmsId, String sseAlgorithm) {
+			this.amazonS3ClientOptions = amazonS3ClientOptions;
+			this.envVars = envVars;
+			this.taskListener = taskListener;
+			this.includePathPattern = includePathPattern;
+			this.excludePathPattern = excludePathPattern;
+			this.bucket = bucket;
+			this.path = path;
+			this.blobPrefix = blobPrefix;
+			this.metadatas = metadatas;
+			this.tags = tags;
+			this.acl = acl;
+			this.cacheControl = cacheControl;
+			this.contentEncoding = contentEncoding;
+			this.contentType = contentType;
+			this.contentDisposition = contentDisposition;
+			this.kmsId = kmsId;
+			this.sseAlgorithm = sseAlgorithm;
+		}
+
+		@Override
+		public Integer invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
+			long start = System.currentTimeMillis();
+			File baseDir;
+			List<File> files = new ArrayList<>();
+			if (localFile.isFile()) {
+				baseDir = localFile.getParentFile();
+				files.add(localFile);
+			} else {
+				baseDir = localFile;
+				for (FilePath match : new FilePath(localFile).list(this.includePathPattern, this.excludePathPattern, true)) {
+					files.add(new File(match.getRemote()));
 				}
-				fileUpload.waitForCompletion();
 			}
-			finally {
-				mgr.shutdownNow();
+			if (files.isEmpty()) {
+				return 0;
 			}
-			return null;
+
+			int cpus = Runtime.getRuntime().availableProcessors();
+			BlobManifest manifest = BlobManifest.create(baseDir, files, this.blobPrefix, S3ClientCache.getInstance().newExecutor(cpus));
+			this.taskListener.getLogger().format("Hashed %d files in %d ms%n", files.size(), System.currentTimeMillis() - start);
+
+			S3ClientOptions options = autoTune(this.amazonS3ClientOptions, this.amazonS3ClientOptions.getTransferSettings().autoTune(files), this.taskListener);
+			try (S3ClientCache.Lease lease = AWSUtilFactory.leaseS3Transfer(options, this.envVars)) {
+				AmazonS3 s3Client = lease.getS3Client();
+				int concurrency = transferConcurrency(options);
+				Set<String> missing = manifest.findMissingBlobs(s3Client, this.bucket, S3ClientCache.getInstance().newExecutor(concurrency));
+
+				Map<String, File> byPath = new HashMap<>();
+				for (File file : files) {
+					byPath.put(UploadSyncPlan.relativeKey(baseDir, file), file);
+				}
+				Map<File, String> blobKeys = new HashMap<>();
+				long uploadBytes = 0;
+				for (BlobManifest.Entry blob : manifest.getUniqueBlobs().values()) {
+					if (missing.contains(blob.getSha256())) {
+						blobKeys.put(byPath.get(blob.getPath()), manifest.blobKey(blob.getSha256()));
+						uploadBytes += blob.getSize();
+					}
+				}
+				ObjectMetadataProvider metadatasProvider = metadataProvider(this.metadatas, this.acl, this.cacheControl, this.contentEncoding, this.contentType, this.contentDisposition, this.sseAlgorithm, this.kmsId);
+				ObjectTagging tagging = objectTagging(this.tags);
+				uploadFiles(lease.getTransferManager(), concurrency, this.taskListener, this.bucket, new ArrayList<>(blobKeys.keySet()), blobKeys::get, metadatasProvider, tagging);
+
+				byte[] json = manifest.toJson();
+				ObjectMetadata metadata = new ObjectMetadata();
+				metadatasProvider.provideObjectMetadata(null, metadata);
+				metadata.setContentType(MANIFEST_CONTENT_TYPE);
+				metadata.setContentLength(json.length);
+				s3Client.putObject(new PutObjectRequest(this.bucket, this.path, new ByteArrayInputStream(json), metadata).withTagging(tagging));
+
+				this.taskListener.getLogger().format("Content addressed upload: %d files, %d distinct blobs, %d uploaded, %d bytes skipped in %d ms%n",
+						files.size(), manifest.getUniqueBlobs().size(), blobKeys.size(), manifest.getTotalBytes() - uploadBytes, System.currentTimeMillis() - start);
+			}
+			return files.size();
 		}
 	}
 
-	private static MasterToSlaveFileCallable<File> FIND_FILE_ON_SLAVE = new MasterToSlaveFileCallable<File>() {
-		@Override
-		public File invoke(File localFile, VirtualChannel channel) throws IOException, InterruptedException {
-			return localFile;
+	private static UploadSyncPlan syncWithRemote(AmazonS3 s3Client, TransferManager mgr, int concurrency, TaskListener listener, String bucket, String path, File baseDir, List<File> files, Predicate<String> filter, boolean mirror) throws IOException, InterruptedException {
+		UploadSyncPlan plan = UploadSyncPlan.create(s3Client, bucket, path, baseDir, files, filter, mirror, minimumUploadPartSize(mgr));
+		listener.getLogger().format("Sync: %d files changed, %d unchanged, %d obsolete%n", plan.getChangedFiles().size(), plan.getUnchangedCount(), plan.getObsoleteKeys().size());
+		plan.deleteObsoleteKeys(s3Client, S3ClientCache.getInstance().newExecutor(concurrency), concurrency, listener.getLogger());
+		return plan;
+	}
+
+	private static S3ClientOptions autoTune(S3ClientOptions options, TransferSettings tuned, TaskListener listener) {
+		if (tuned == options.getTransferSettings()) {
+			return options;
 		}
-	};
+		listener.getLogger().format("Using auto transfer settings: %s%n", tuned);
+		return options.withTransferSettings(tuned);
+	}
+
+	private static long minimumUploadPartSize(TransferManager mgr) {
+		TransferManagerConfiguration configuration = mgr.getConfiguration();
+		if (configuration == null) {
+			configuration = new TransferManagerConfiguration();
+		}
+		return configuration.getMinimumUploadPartSize();
+	}
 
 }
@@ -0,0 +1,156 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import hudson.FilePath;
+import hudson.util.io.Archiver;
+import hudson.util.io.ArchiverFactory;
+
+/**
+ * The archive formats supported by s3Upload and s3Download.
+ */
+public enum ArchiveFormat {
+
+	TAR("tar"),
+	TAR_GZ("tar.gz"),
+	ZIP("zip");
+
+	private final String extension;
+
+	ArchiveFormat(String extension) {
+		this.extension = extension;
+	}
+
+	public String getExtension() {
+		return this.extension;
+	}
+
+	/**
+	 * @return the content type of an archive in this format
+	 */
+	public String getContentType() {
+		switch (this) {
+			case TAR:
+				return "application/x-tar";
+			case TAR_GZ:
+				return "application/gzip";
+			default:
+				return "application/zip";
+		}
+	}
+
+	/**
+	 * Parses the archive parameter of a step.
+	 *
+	 * @param value the parameter value, e.g. <code>tar.gz</code>
+	 * @return the format
+	 * @throws IllegalArgumentException if the format is not supported
+	 */
+	public static ArchiveFormat of(String value) {
+		String normalized = value.trim().toLowerCase(Locale.ENGLISH);
+		if ("tgz".equals(normalized)) {
+			return TAR_GZ;
+		}
+		for (ArchiveFormat format : values()) {
+			if (format.extension.equals(normalized)) {
+				return format;
+			}
+		}
+		throw new IllegalArgumentException("Archive must be one of tar, tar.gz or zip");
+	}
+
+	/**
+	 * Creates an archiver writing to the given stream. The archiver closes the stream when it is closed.
+	 *
+	 * @param out         the target stream
+	 * @param executor    the executor used for parallel compression
+	 * @param parallelism the number of blocks compressed in parallel
+	 * @return the archiver
+	 * @throws IOException if the archiver cannot be created
+	 */
+	public Archiver createArchiver(OutputStream out, Executor executor, int parallelism) throws IOException {
+		switch (this) {
+			case TAR:
+				return ArchiverFactory.TAR.create(out);
+			case TAR_GZ:
+				return ArchiverFactory.TAR.create(new ParallelGzipOutputStream(out, executor, parallelism));
+			default:
+				return ArchiverFactory.ZIP.create(out);
+		}
+	}
+
+	/**
+	 * Extracts the archive read from the given stream into the target directory without buffering it on disk.
+	 *
+	 * @param in        the archive
+	 * @param directory the target directory
+	 * @throws IOException          if the archive cannot be read or written
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public void extract(InputStream in, File directory) throws IOException, InterruptedException {
+		switch (this) {
+			case TAR:
+				new FilePath(directory).untarFrom(in, FilePath.TarCompression.NONE);
+				break;
+			case TAR_GZ:
+				new FilePath(directory).untarFrom(in, FilePath.TarCompression.GZIP);
+				break;
+			default:
+				unzip(in, directory);
+		}
+	}
+
+	private static void unzip(InputStream in, File directory) throws IOException {
+		Path target = directory.toPath().toAbsolutePath().normalize();
+		Files.createDirectories(target);
+		try (ZipInputStream zip = new ZipInputStream(in)) {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				Path path = target.resolve(entry.getName()).normalize();
+				if (!path.startsWith(target)) {
+					throw new IOException("Zip entry " + entry.getName() + " is outside of the target directory");
+				}
+				if (entry.isDirectory()) {
+					Files.createDirectories(path);
+				} else {
+					Files.createDirectories(path.getParent());
+					Files.copy(zip, path, StandardCopyOption.REPLACE_EXISTING);
+				}
+				if (entry.getTime() != -1) {
+					path.toFile().setLastModified(entry.getTime());
+				}
+			}
+		}
+	}
+}
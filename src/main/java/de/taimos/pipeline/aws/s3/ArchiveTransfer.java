@@ -0,0 +1,138 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.Executor;
+import java.util.function.IntFunction;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+
+import hudson.util.DirScanner;
+import hudson.util.io.Archiver;
+
+/**
+ * Streams archives between a directory and S3 without temporary files, for s3Upload and s3Download with an
+ * archive as well as for s3CacheSave and s3CacheRestore.
+ */
+public final class ArchiveTransfer {
+
+	static final long MIN_PART_SIZE = 8L * 1024 * 1024;
+
+	/** Default limit of the archive data buffered for the upload, may be overridden with a system property. */
+	static final long DEFAULT_MAX_BUFFERED_BYTES = Long.getLong(ArchiveTransfer.class.getName() + ".maxBufferedBytes", 64L * 1024 * 1024);
+
+	private ArchiveTransfer() {
+		// hidden constructor
+	}
+
+	/**
+	 * Archives the matching files of the directory into a multipart upload that is sent in parts while the archive
+	 * is written. If the archive fails, the upload is aborted, so no incomplete object is left behind. The parts
+	 * waiting for their upload hold at most {@link #DEFAULT_MAX_BUFFERED_BYTES}, but at least one part.
+	 *
+	 * @param s3Client    the client
+	 * @param mgr         the TransferManager whose minimum part size is used
+	 * @param executors   creates an executor with the given number of threads
+	 * @param concurrency the maximum number of parts uploaded in parallel
+	 * @param format      the archive format
+	 * @param directory   the directory to archive
+	 * @param includes    the Ant style include patterns
+	 * @param excludes    the Ant style exclude patterns, may be null
+	 * @param bucket      the bucket
+	 * @param key         the key of the archive
+	 * @param metadata    the metadata of the archive, the content type defaults to the one of the format
+	 * @param tagging     the tags of the archive, may be null
+	 * @param logger      the logger
+	 * @return the size of the archive
+	 * @throws IOException          if a file cannot be read or the upload fails
+	 * @throws InterruptedException if the thread is interrupted while waiting for a part
+	 */
+	public static long upload(AmazonS3 s3Client, TransferManager mgr, IntFunction<Executor> executors, int concurrency, ArchiveFormat format, File directory, String includes, String excludes,
+			String bucket, String key, ObjectMetadata metadata, ObjectTagging tagging, PrintStream logger) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		int cpus = Runtime.getRuntime().availableProcessors();
+		TransferManagerConfiguration configuration = mgr.getConfiguration();
+		long partSize = Math.max(MIN_PART_SIZE, configuration != null ? configuration.getMinimumUploadPartSize() : new TransferManagerConfiguration().getMinimumUploadPartSize());
+		if (metadata.getContentType() == null) {
+			metadata.setContentType(format.getContentType());
+		}
+
+		MultipartUploadOutputStream upload = new MultipartUploadOutputStream(s3Client, executors.apply(concurrency),
+				bucket, key, metadata, tagging, (int) Math.min(Integer.MAX_VALUE, partSize), concurrency, DEFAULT_MAX_BUFFERED_BYTES);
+		Archiver archiver = format.createArchiver(upload, executors.apply(cpus), cpus);
+		boolean completed = false;
+		try {
+			new DirScanner.Glob(includes, excludes).scan(directory, archiver);
+			archiver.close();
+			completed = true;
+		} finally {
+			if (!completed) {
+				upload.abort();
+			}
+		}
+		logger.format("Archived %d files into %d bytes in %d ms%n", archiver.countEntries(), upload.getBytesWritten(), System.currentTimeMillis() - start);
+		return upload.getBytesWritten();
+	}
+
+	/**
+	 * Streams an archive object from S3 and extracts it into the directory while it is downloaded. If the extraction
+	 * fails, the download is aborted instead of reading the rest of the object.
+	 *
+	 * @param s3Client  the client
+	 * @param bucket    the bucket
+	 * @param key       the key of the archive
+	 * @param format    the archive format
+	 * @param directory the target directory
+	 * @param logger    the logger
+	 * @return the size of the archive
+	 * @throws IOException          if the archive cannot be read or a file cannot be written
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public static long extract(AmazonS3 s3Client, String bucket, String key, ArchiveFormat format, File directory, PrintStream logger) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		try (S3Object object = s3Client.getObject(bucket, key)) {
+			S3ObjectInputStream in = object.getObjectContent();
+			boolean extracted = false;
+			try {
+				format.extract(in, directory);
+				extracted = true;
+			} finally {
+				if (!extracted) {
+					// do not read the rest of the object just to reuse the connection
+					in.abort();
+				}
+			}
+			long size = object.getObjectMetadata().getContentLength();
+			logger.format("Extracted %d bytes into %s in %d ms%n", size, directory, System.currentTimeMillis() - start);
+			return size;
+		}
+	}
+}
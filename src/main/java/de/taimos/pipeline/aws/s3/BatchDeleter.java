@@ -0,0 +1,301 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+
+/**
+ * Deletes objects in batches of up to {@value #MAX_BATCH_SIZE} keys with DeleteObjects while the keys are produced.
+ * <p>
+ * Full batches are sent on the executor as soon as they are complete; at most <code>concurrency</code> batches are in
+ * flight and {@link #delete(String)} blocks until one of them is done, so the keys of a large prefix are never held
+ * in memory at once. Throttled requests and keys that failed with a transient error are retried with exponential
+ * backoff and jitter. Keys that cannot be deleted are collected as failures, a request that fails for good stops the
+ * deletion.
+ */
+public class BatchDeleter {
+
+	public static final int MAX_BATCH_SIZE = 1000;
+	public static final int MAX_REPORTED_FAILURES = 100;
+
+	private final AmazonS3 s3Client;
+	private final String bucket;
+	private final Executor executor;
+	private final int concurrency;
+	private final RetryPolicy retryPolicy;
+	private final Semaphore inFlight;
+
+	private List<KeyVersion> batch = new ArrayList<>();
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	private final List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger retries = new AtomicInteger();
+
+	/**
+	 * @param s3Client    the client
+	 * @param bucket      the bucket
+	 * @param executor    the executor the batches are sent on
+	 * @param concurrency the maximum number of batches in flight
+	 */
+	public BatchDeleter(AmazonS3 s3Client, String bucket, Executor executor, int concurrency) {
+		this(s3Client, bucket, executor, concurrency, RetryPolicy.DEFAULT_BACKOFF_MILLIS);
+	}
+
+	BatchDeleter(AmazonS3 s3Client, String bucket, Executor executor, int concurrency, long backoffMillis) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive");
+		}
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.executor = executor;
+		this.concurrency = concurrency;
+		this.retryPolicy = new RetryPolicy(backoffMillis);
+		this.inFlight = new Semaphore(concurrency);
+	}
+
+	/**
+	 * Adds the key to the current batch and sends the batch once it is full. Only one thread may add keys.
+	 *
+	 * @param key the key to delete
+	 * @throws InterruptedException if the thread is interrupted while waiting for a batch to finish
+	 * @throws IOException          if a previous batch failed with a checked exception
+	 */
+	public void delete(String key) throws InterruptedException, IOException {
+		this.delete(key, null);
+	}
+
+	/**
+	 * Adds the version of the key to the current batch and sends the batch once it is full. Deleting a version or
+	 * a delete marker removes it permanently. Only one thread may add keys.
+	 *
+	 * @param key       the key to delete
+	 * @param versionId the version to delete, null to add a delete marker on versioned buckets
+	 * @throws InterruptedException if the thread is interrupted while waiting for a batch to finish
+	 * @throws IOException          if a previous batch failed with a checked exception
+	 */
+	public void delete(String key, String versionId) throws InterruptedException, IOException {
+		this.batch.add(new KeyVersion(key, versionId));
+		if (this.batch.size() == MAX_BATCH_SIZE) {
+			this.send();
+		}
+	}
+
+	/**
+	 * Sends the last batch and waits until all batches are done.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * @throws IOException          if a batch failed with a checked exception
+	 */
+	public void finish() throws InterruptedException, IOException {
+		if (!this.batch.isEmpty()) {
+			this.send();
+		}
+		this.inFlight.acquire(this.concurrency);
+		this.inFlight.release(this.concurrency);
+		this.rethrowFailure();
+	}
+
+	/**
+	 * Waits until all batches are done, logs the result and the first {@value #MAX_REPORTED_FAILURES} keys that
+	 * could not be deleted.
+	 *
+	 * @param logger the logger
+	 * @param what   the description of the deleted objects in the log, e.g. "objects"
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * @throws IOException          if a key could not be deleted or a batch failed with a checked exception
+	 */
+	public void finish(PrintStream logger, String what) throws InterruptedException, IOException {
+		this.finish();
+
+		logger.format("Deleted %d %s with %d requests (%d retries)%n", this.getDeleted(), what, this.getRequests(), this.getRetries());
+		List<Failure> failed = this.getFailures();
+		if (!failed.isEmpty()) {
+			for (Failure failure : failed.subList(0, Math.min(failed.size(), MAX_REPORTED_FAILURES))) {
+				logger.format("Failed to delete s3://%s/%s%n", this.bucket, failure);
+			}
+			if (failed.size() > MAX_REPORTED_FAILURES) {
+				logger.format("... and %d more%n", failed.size() - MAX_REPORTED_FAILURES);
+			}
+			throw new IOException(String.format("Failed to delete %d %s", failed.size(), what));
+		}
+	}
+
+	public long getDeleted() {
+		return this.deleted.get();
+	}
+
+	/**
+	 * @return the number of DeleteObjects requests sent, including retries
+	 */
+	public int getRequests() {
+		return this.requests.get();
+	}
+
+	public int getRetries() {
+		return this.retries.get();
+	}
+
+	/**
+	 * @return the keys that could not be deleted
+	 */
+	public List<Failure> getFailures() {
+		synchronized (this.failures) {
+			return new ArrayList<>(this.failures);
+		}
+	}
+
+	private void send() throws InterruptedException, IOException {
+		this.rethrowFailure();
+		List<KeyVersion> keys = this.batch;
+		this.batch = new ArrayList<>();
+		this.inFlight.acquire();
+		try {
+			CompletableFuture.runAsync(() -> {
+				try {
+					this.deleteBatch(keys);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					this.failure.compareAndSet(null, e);
+				} catch (RuntimeException | Error e) {
+					this.failure.compareAndSet(null, e);
+				} finally {
+					this.inFlight.release();
+				}
+			}, this.executor);
+		} catch (RuntimeException e) {
+			this.inFlight.release();
+			throw e;
+		}
+	}
+
+	private void deleteBatch(List<KeyVersion> keys) throws InterruptedException {
+		List<KeyVersion> pending = keys;
+		for (int attempt = 1; ; attempt++) {
+			if (this.failure.get() != null) {
+				// another batch failed for good
+				return;
+			}
+			List<KeyVersion> retry = new ArrayList<>();
+			try {
+				this.requests.incrementAndGet();
+				// the client throws MultiObjectDeleteException if any key of the batch failed
+				this.s3Client.deleteObjects(new DeleteObjectsRequest(this.bucket).withKeys(pending).withQuiet(true));
+				this.deleted.addAndGet(pending.size());
+			} catch (MultiObjectDeleteException e) {
+				this.deleted.addAndGet(pending.size() - e.getErrors().size());
+				for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+					if (RetryPolicy.isRetryable(error.getCode()) && this.retryPolicy.canRetry(attempt)) {
+						retry.add(new KeyVersion(error.getKey(), error.getVersionId()));
+					} else {
+						this.failures.add(new Failure(error.getKey(), error.getVersionId(), error.getCode(), error.getMessage()));
+					}
+				}
+			} catch (AmazonServiceException e) {
+				if (!RetryPolicy.isRetryable(e) || !this.retryPolicy.canRetry(attempt)) {
+					throw e;
+				}
+				retry = pending;
+			}
+			if (retry.isEmpty()) {
+				return;
+			}
+			this.retries.incrementAndGet();
+			Thread.sleep(this.retryPolicy.delay(attempt));
+			pending = retry;
+		}
+	}
+
+	private void rethrowFailure() throws IOException, InterruptedException {
+		Throwable t = this.failure.get();
+		if (t == null) {
+			return;
+		}
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		if (t instanceof InterruptedException) {
+			throw new InterruptedException("Deletion of a batch was interrupted");
+		}
+		throw new IOException(t);
+	}
+
+	/**
+	 * A key that could not be deleted.
+	 */
+	public static final class Failure {
+		private final String key;
+		private final String versionId;
+		private final String code;
+		private final String message;
+
+		public Failure(String key, String versionId, String code, String message) {
+			this.key = key;
+			this.versionId = versionId;
+			this.code = code;
+			this.message = message;
+		}
+
+		public String getKey() {
+			return this.key;
+		}
+
+		/**
+		 * @return the version that could not be deleted or null if no version was given
+		 */
+		public String getVersionId() {
+			return this.versionId;
+		}
+
+		public String getCode() {
+			return this.code;
+		}
+
+		public String getMessage() {
+			return this.message;
+		}
+
+		@Override
+		public String toString() {
+			return this.key + (this.versionId == null ? "" : " (version " + this.versionId + ")") + ": " + this.code + " " + this.message;
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+/**
+ * Maps the logical paths of a set of files to content addressed blobs.
+ * <p>
+ * Every distinct file content is stored once below the blob prefix under the key
+ * <code>&lt;blobPrefix&gt;&lt;first two hex digits&gt;/&lt;sha256&gt;</code>, so identical
+ * files of different builds share one object. The manifest itself is a small JSON document
+ * that records the blob prefix and the path, SHA-256 and size of every file.
+ */
+public class BlobManifest {
+
+	public static final int VERSION = 1;
+	public static final String ALGORITHM = "SHA-256";
+	public static final String DEFAULT_BLOB_PREFIX = "blobs/";
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final Pattern SHA256_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	private final String blobPrefix;
+	private final List<Entry> entries;
+
+	public BlobManifest(String blobPrefix, List<Entry> entries) {
+		this.blobPrefix = UploadSyncPlan.normalizePrefix(blobPrefix);
+		this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+	}
+
+	/**
+	 * Hashes the files in parallel and creates the manifest with paths relative to baseDir.
+	 *
+	 * @param baseDir    the directory the paths are computed relative to
+	 * @param files      the files
+	 * @param blobPrefix the key prefix of the blobs
+	 * @param executor   the executor the files are hashed on
+	 * @return the manifest, entries are sorted by path
+	 * @throws IOException          if a file cannot be read
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public static BlobManifest create(File baseDir, List<File> files, String blobPrefix, Executor executor) throws IOException, InterruptedException {
+		List<CompletableFuture<Entry>> hashes = new ArrayList<>(files.size());
+		for (File file : files) {
+			hashes.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return new Entry(UploadSyncPlan.relativeKey(baseDir, file), ETagUtils.sha256Hex(file), file.length());
+				} catch (IOException e) {
+					throw new BlobException("Failed to hash " + file, e);
+				}
+			}, executor));
+		}
+		List<Entry> entries = awaitAll(hashes);
+		entries.sort((a, b) -> a.getPath().compareTo(b.getPath()));
+		return new BlobManifest(blobPrefix, entries);
+	}
+
+	/**
+	 * Parses a manifest written by {@link #toJson()}.
+	 *
+	 * @param in the JSON document
+	 * @return the manifest
+	 * @throws IOException if the document is not a valid manifest
+	 */
+	public static BlobManifest parse(InputStream in) throws IOException {
+		JsonNode root = MAPPER.readTree(in);
+		if (root == null || root.path("version").asInt() != VERSION || !ALGORITHM.equals(root.path("algorithm").asText())) {
+			throw new IOException("Unsupported blob manifest");
+		}
+		List<Entry> entries = new ArrayList<>();
+		for (JsonNode node : root.path("files")) {
+			String sha256 = node.path("sha256").asText();
+			if (!SHA256_PATTERN.matcher(sha256).matches()) {
+				throw new IOException("Invalid SHA-256 in blob manifest: " + sha256);
+			}
+			entries.add(new Entry(node.path("path").asText(), sha256, node.path("size").asLong()));
+		}
+		return new BlobManifest(root.path("blobPrefix").asText(), entries);
+	}
+
+	public byte[] toJson() throws IOException {
+		ObjectNode root = MAPPER.createObjectNode();
+		root.put("version", VERSION);
+		root.put("algorithm", ALGORITHM);
+		root.put("blobPrefix", this.blobPrefix);
+		ArrayNode files = root.putArray("files");
+		for (Entry entry : this.entries) {
+			files.addObject()
+					.put("path", entry.getPath())
+					.put("sha256", entry.getSha256())
+					.put("size", entry.getSize());
+		}
+		return MAPPER.writeValueAsBytes(root);
+	}
+
+	public String getBlobPrefix() {
+		return this.blobPrefix;
+	}
+
+	public List<Entry> getEntries() {
+		return this.entries;
+	}
+
+	public String blobKey(String sha256) {
+		return this.blobPrefix + sha256.substring(0, 2) + "/" + sha256;
+	}
+
+	/**
+	 * @return the first entry of every distinct content, keyed by SHA-256
+	 */
+	public Map<String, Entry> getUniqueBlobs() {
+		Map<String, Entry> unique = new LinkedHashMap<>();
+		for (Entry entry : this.entries) {
+			unique.putIfAbsent(entry.getSha256(), entry);
+		}
+		return unique;
+	}
+
+	public long getTotalBytes() {
+		long total = 0;
+		for (Entry entry : this.entries) {
+			total += entry.getSize();
+		}
+		return total;
+	}
+
+	/**
+	 * Checks in parallel which of the distinct blobs are not stored in the bucket yet.
+	 *
+	 * @param s3Client the client
+	 * @param bucket   the bucket
+	 * @param executor the executor the HEAD requests are sent on
+	 * @return the SHA-256 of the missing blobs
+	 * @throws IOException          if a request fails
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public Set<String> findMissingBlobs(AmazonS3 s3Client, String bucket, Executor executor) throws IOException, InterruptedException {
+		Set<String> missing = ConcurrentHashMap.newKeySet();
+		List<CompletableFuture<Void>> checks = new ArrayList<>();
+		for (Entry blob : this.getUniqueBlobs().values()) {
+			checks.add(CompletableFuture.runAsync(() -> {
+				try {
+					s3Client.getObjectMetadata(bucket, this.blobKey(blob.getSha256()));
+				} catch (AmazonS3Exception e) {
+					if (e.getStatusCode() != 404) {
+						throw e;
+					}
+					missing.add(blob.getSha256());
+				}
+			}, executor));
+		}
+		awaitAll(checks);
+		return missing;
+	}
+
+	/**
+	 * Restores all files of the manifest below the target directory. Every distinct blob is downloaded
+	 * once in parallel and verified against its SHA-256, files with the same content are copied locally.
+	 *
+	 * @param s3Client  the client
+	 * @param bucket    the bucket
+	 * @param directory the target directory
+	 * @param executor  the executor the downloads run on
+	 * @return the number of blobs downloaded
+	 * @throws IOException          if a path is outside of the target directory or a blob is corrupt
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public int restore(AmazonS3 s3Client, String bucket, File directory, Executor executor) throws IOException, InterruptedException {
+		Path target = directory.toPath().toAbsolutePath().normalize();
+		Function<Entry, Path> resolve = entry -> target.resolve(entry.getPath()).normalize();
+		for (Entry entry : this.entries) {
+			Path path = resolve.apply(entry);
+			if (entry.getPath().isEmpty() || !path.startsWith(target) || path.equals(target)) {
+				throw new IOException("Manifest entry " + entry.getPath() + " is outside of the target directory");
+			}
+		}
+
+		Map<String, Entry> unique = this.getUniqueBlobs();
+		List<CompletableFuture<Void>> downloads = new ArrayList<>(unique.size());
+		for (Entry blob : unique.values()) {
+			downloads.add(CompletableFuture.runAsync(() -> {
+				File file = resolve.apply(blob).toFile();
+				s3Client.getObject(new GetObjectRequest(bucket, this.blobKey(blob.getSha256())), file);
+				String problem;
+				try {
+					problem = verify(blob, file);
+				} catch (IOException e) {
+					throw new BlobException("Failed to hash " + file, e);
+				}
+				if (problem != null) {
+					// do not leave a wrong file in the workspace
+					file.delete();
+					throw new BlobException(problem, null);
+				}
+			}, executor));
+		}
+		awaitAll(downloads);
+
+		for (Entry entry : this.entries) {
+			Entry blob = unique.get(entry.getSha256());
+			if (blob != entry) {
+				Path path = resolve.apply(entry);
+				Files.createDirectories(path.getParent());
+				Files.copy(resolve.apply(blob), path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		return unique.size();
+	}
+
+	/**
+	 * @return a description of the difference between the downloaded file and the blob or null if the file is the blob
+	 */
+	private static String verify(Entry blob, File file) throws IOException {
+		if (file.length() != blob.getSize()) {
+			return "Blob " + blob.getSha256() + " has " + file.length() + " bytes instead of " + blob.getSize();
+		}
+		String sha256 = ETagUtils.sha256Hex(file);
+		if (!sha256.equals(blob.getSha256())) {
+			return "Blob " + blob.getSha256() + " has the SHA-256 " + sha256;
+		}
+		return null;
+	}
+
+	private static <T> List<T> awaitAll(List<CompletableFuture<T>> futures) throws IOException, InterruptedException {
+		List<T> results = new ArrayList<>(futures.size());
+		try {
+			for (CompletableFuture<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			futures.forEach(f -> f.cancel(true));
+			throw e;
+		} catch (ExecutionException e) {
+			futures.forEach(f -> f.cancel(true));
+			if (e.getCause() instanceof BlobException) {
+				throw new IOException(e.getCause().getMessage(), e.getCause().getCause());
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		return results;
+	}
+
+	/**
+	 * One file of the manifest.
+	 */
+	public static final class Entry {
+		private final String path;
+		private final String sha256;
+		private final long size;
+
+		public Entry(String path, String sha256, long size) {
+			this.path = path;
+			this.sha256 = sha256;
+			this.size = size;
+		}
+
+		public String getPath() {
+			return this.path;
+		}
+
+		public String getSha256() {
+			return this.sha256;
+		}
+
+		public long getSize() {
+			return this.size;
+		}
+	}
+
+	private static final class BlobException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		BlobException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An ExecutorService that runs its tasks on a shared executor while limiting
+ * the number of tasks running at the same time.
+ * <p>
+ * Shutting down the view never affects the shared executor, so TransferManagers
+ * can be given a view and shut down as usual.
+ */
+public class BoundedExecutorView extends AbstractExecutorService {
+
+	private final Executor delegate;
+	private final int maxConcurrency;
+	private final Queue<Runnable> queue = new ArrayDeque<>();
+	private int running;
+	private boolean shutdown;
+
+	public BoundedExecutorView(Executor delegate, int maxConcurrency) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be positive");
+		}
+		this.delegate = delegate;
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public int getMaxConcurrency() {
+		return this.maxConcurrency;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		synchronized (this) {
+			if (this.shutdown) {
+				throw new RejectedExecutionException("Executor has been shut down");
+			}
+			this.queue.add(command);
+		}
+		this.drain();
+	}
+
+	private void drain() {
+		while (true) {
+			final Runnable next;
+			synchronized (this) {
+				if (this.running >= this.maxConcurrency || this.queue.isEmpty()) {
+					return;
+				}
+				next = this.queue.poll();
+				this.running++;
+			}
+			try {
+				this.delegate.execute(() -> {
+					try {
+						next.run();
+					} finally {
+						this.finished();
+					}
+				});
+			} catch (RuntimeException e) {
+				this.finished();
+				throw e;
+			}
+		}
+	}
+
+	private void finished() {
+		synchronized (this) {
+			this.running--;
+			this.notifyAll();
+		}
+		this.drain();
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		this.shutdown = true;
+		this.notifyAll();
+	}
+
+	@Override
+	public synchronized List<Runnable> shutdownNow() {
+		this.shutdown = true;
+		List<Runnable> pending = new ArrayList<>(this.queue);
+		this.queue.clear();
+		this.notifyAll();
+		return pending;
+	}
+
+	@Override
+	public synchronized boolean isShutdown() {
+		return this.shutdown;
+	}
+
+	@Override
+	public synchronized boolean isTerminated() {
+		return this.shutdown && this.running == 0 && this.queue.isEmpty();
+	}
+
+	@Override
+	public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!this.isTerminated()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Locates the archives of build caches, e.g. dependency directories, stored below a prefix of a bucket.
+ * <p>
+ * Every cache is one archive object named <code>&lt;prefix&gt;&lt;key&gt;.&lt;extension&gt;</code>. Keys are
+ * usually derived from the content of lockfiles, so a cache is replaced by a new one instead of being modified.
+ * If no cache exists for a key, the most recent cache whose key starts with one of the restore keys is used.
+ */
+public final class BuildCache {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private BuildCache() {
+		// hidden constructor
+	}
+
+	/**
+	 * @param prefix the key prefix of all caches
+	 * @param key    the cache key
+	 * @param format the archive format
+	 * @return the key of the archive object
+	 */
+	public static String objectKey(String prefix, String key, ArchiveFormat format) {
+		return UploadSyncPlan.normalizePrefix(prefix) + key + "." + format.getExtension();
+	}
+
+	/**
+	 * @param prefix    the key prefix of all caches
+	 * @param objectKey the key of an archive object
+	 * @param format    the archive format
+	 * @return the cache key of the archive object
+	 */
+	public static String cacheKey(String prefix, String objectKey, ArchiveFormat format) {
+		String key = objectKey.substring(UploadSyncPlan.normalizePrefix(prefix).length());
+		return key.substring(0, key.length() - format.getExtension().length() - 1);
+	}
+
+	/**
+	 * Finds the archive to restore: the archive of the exact key if it exists, otherwise the most recently
+	 * modified archive whose key starts with the first restore key that matches any archive.
+	 *
+	 * @param s3Client    the client
+	 * @param bucket      the bucket
+	 * @param prefix      the key prefix of all caches
+	 * @param key         the cache key
+	 * @param restoreKeys the fallback key prefixes in order of preference
+	 * @param format      the archive format
+	 * @return the key of the archive object or null if there is none
+	 */
+	public static String find(AmazonS3 s3Client, String bucket, String prefix, String key, List<String> restoreKeys, ArchiveFormat format) {
+		String exact = objectKey(prefix, key, format);
+		if (s3Client.doesObjectExist(bucket, exact)) {
+			return exact;
+		}
+		String suffix = "." + format.getExtension();
+		for (String restoreKey : restoreKeys) {
+			ListObjectsV2Request request = new ListObjectsV2Request()
+					.withBucketName(bucket)
+					.withPrefix(UploadSyncPlan.normalizePrefix(prefix) + restoreKey);
+			S3ObjectSummary latest = null;
+			ListObjectsV2Result result;
+			do {
+				result = s3Client.listObjectsV2(request);
+				for (S3ObjectSummary summary : result.getObjectSummaries()) {
+					if (summary.getKey().endsWith(suffix) && (latest == null || summary.getLastModified().after(latest.getLastModified()))) {
+						latest = summary;
+					}
+				}
+				request.setContinuationToken(result.getNextContinuationToken());
+			} while (result.isTruncated());
+			if (latest != null) {
+				return latest.getKey();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Splits the restore keys parameter of a step at commas and line breaks.
+	 *
+	 * @param restoreKeys the parameter, may be null
+	 * @return the restore keys in order
+	 */
+	public static List<String> parseRestoreKeys(String restoreKeys) {
+		List<String> keys = new ArrayList<>();
+		if (restoreKeys != null) {
+			for (String key : restoreKeys.split("[,\\r\\n]+")) {
+				if (!key.trim().isEmpty()) {
+					keys.add(key.trim());
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Computes the SHA-256 over the relative paths and contents of the matching files, in the order of their paths.
+	 *
+	 * @param baseDir  the directory the patterns are relative to
+	 * @param includes the Ant style include pattern, e.g. <code>**&#47;pom.xml</code>
+	 * @param excludes the Ant style exclude pattern, may be null
+	 * @return the hex encoded hash
+	 * @throws IOException if no file matches or a file cannot be read
+	 */
+	public static String hashFiles(File baseDir, String includes, String excludes) throws IOException {
+		Map<String, File> files = new TreeMap<>();
+		new DirScanner.Glob(includes, excludes).scan(baseDir, new FileVisitor() {
+			@Override
+			public void visit(File f, String relativePath) {
+				files.put(relativePath.replace('\\', '/'), f);
+			}
+		});
+		if (files.isEmpty()) {
+			throw new IOException("No file matches " + includes);
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for (Map.Entry<String, File> file : files.entrySet()) {
+			digest.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			try (InputStream in = Files.newInputStream(file.getValue().toPath())) {
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					digest.update(buffer, 0, read);
+				}
+			}
+			digest.update((byte) 0);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Hashes the lockfiles on the agent.
+	 */
+	public static class HashFiles extends MasterToSlaveFileCallable<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String includes;
+		private final String excludes;
+
+		public HashFiles(String includes, String excludes) {
+			this.includes = includes;
+			this.excludes = excludes;
+		}
+
+		@Override
+		public String invoke(File dir, VirtualChannel channel) throws IOException {
+			return hashFiles(dir, this.includes, this.excludes);
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+/**
+ * A size bounded cache of downloaded objects on the agent, shared by all builds running on it.
+ * <p>
+ * Entries are keyed by bucket, key and ETag. The ETag is taken from a HEAD request or the listing of the
+ * download, so a changed object is always a miss and never served stale. Hits are copied into the workspace
+ * with {@link FileChannel#transferTo}, which lets the kernel copy the data without passing it through the
+ * JVM, or hard linked if enabled. Hard links are faster but a build that modifies a linked file in place
+ * also modifies the cache entry, so they are off by default.
+ * <p>
+ * The least recently used entries are removed once the cache grows beyond its maximum size. Every instance
+ * counts its own hits and misses, so a step can report them.
+ */
+public class DownloadCache {
+
+	private static final String PROPERTY_PREFIX = DownloadCache.class.getName();
+	static final File DEFAULT_DIRECTORY = new File(System.getProperty(PROPERTY_PREFIX + ".directory", new File(System.getProperty("java.io.tmpdir"), "s3-download-cache").getPath()));
+	static final long DEFAULT_MAX_SIZE_MB = Long.getLong(PROPERTY_PREFIX + ".maxSizeMB", 10 * 1024L);
+	static final boolean DEFAULT_HARD_LINKS = Boolean.getBoolean(PROPERTY_PREFIX + ".hardLinks");
+
+	private static final long MB = 1024L * 1024L;
+	private static final String TEMP_SUFFIX = ".tmp";
+	// serializes the evictions of all builds running on this agent
+	private static final Object EVICTION_LOCK = new Object();
+
+	private final File directory;
+	private final long maxBytes;
+	private final boolean hardLinks;
+
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+	private final AtomicLong bytesFromCache = new AtomicLong();
+
+	public DownloadCache(File directory, long maxBytes, boolean hardLinks) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.hardLinks = hardLinks;
+	}
+
+	/**
+	 * @return a cache in the directory configured with the system properties of this class
+	 */
+	public static DownloadCache getDefault() {
+		return new DownloadCache(DEFAULT_DIRECTORY, DEFAULT_MAX_SIZE_MB * MB, DEFAULT_HARD_LINKS);
+	}
+
+	/**
+	 * Places the cached content of the object into the target file.
+	 *
+	 * @param bucket the bucket
+	 * @param key    the object key
+	 * @param eTag   the current ETag of the object, a null ETag is always a miss
+	 * @param length the size of the object
+	 * @param target the target file, an existing file is replaced
+	 * @return true if the object was cached, false on a miss
+	 * @throws IOException if the cached file cannot be placed
+	 */
+	public boolean restore(String bucket, String key, String eTag, long length, File target) throws IOException {
+		File entry = eTag != null ? this.entryFile(bucket, key, eTag) : null;
+		if (entry == null || !entry.isFile() || entry.length() != length) {
+			this.misses.incrementAndGet();
+			return false;
+		}
+		// the modification time orders the entries for eviction
+		entry.setLastModified(System.currentTimeMillis());
+		try {
+			this.place(entry.toPath(), target.toPath());
+		} catch (IOException e) {
+			// evicted concurrently
+			if (!entry.isFile()) {
+				this.misses.incrementAndGet();
+				return false;
+			}
+			throw e;
+		}
+		this.hits.incrementAndGet();
+		this.bytesFromCache.addAndGet(length);
+		return true;
+	}
+
+	/**
+	 * @param bucket the bucket
+	 * @param key    the object key
+	 * @return a new file in the cache directory to download the object to before it is stored with {@link #store}
+	 */
+	public File newTempFile(String bucket, String key) {
+		return new File(this.directory, ResumableUploadState.hashName(bucket + "/" + key) + "." + UUID.randomUUID() + TEMP_SUFFIX);
+	}
+
+	/**
+	 * Moves a downloaded file into the cache, places it into the target file and evicts old entries.
+	 *
+	 * @param downloaded the file returned by {@link #newTempFile} holding the object content
+	 * @param bucket     the bucket
+	 * @param key        the object key
+	 * @param eTag       the ETag of the downloaded object, if null the file is only moved to the target
+	 * @param target     the target file, an existing file is replaced
+	 * @throws IOException if the file cannot be stored or placed
+	 */
+	public void store(File downloaded, String bucket, String key, String eTag, File target) throws IOException {
+		Path targetPath = target.toPath();
+		Files.createDirectories(targetPath.toAbsolutePath().getParent());
+		if (eTag == null) {
+			Files.move(downloaded.toPath(), targetPath, StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		Path entry = this.entryFile(bucket, key, eTag).toPath();
+		try {
+			Files.move(downloaded.toPath(), entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(downloaded.toPath(), entry, StandardCopyOption.REPLACE_EXISTING);
+		}
+		this.place(entry, targetPath);
+		this.evict();
+	}
+
+	public int getHits() {
+		return this.hits.get();
+	}
+
+	public int getMisses() {
+		return this.misses.get();
+	}
+
+	public long getBytesFromCache() {
+		return this.bytesFromCache.get();
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache is below its maximum size.
+	 * Leftover temporary files of aborted downloads are removed once they are older than a day.
+	 */
+	void evict() {
+		synchronized (EVICTION_LOCK) {
+			File[] files = this.directory.listFiles();
+			if (files == null) {
+				return;
+			}
+			List<File> entries = new ArrayList<>();
+			long total = 0;
+			long staleTemp = System.currentTimeMillis() - 24L * 60 * 60 * 1000;
+			for (File file : files) {
+				if (!file.isFile()) {
+					continue;
+				}
+				if (file.getName().endsWith(TEMP_SUFFIX) || file.getName().endsWith(ParallelRangeDownloader.PARTIAL_SUFFIX)) {
+					if (file.lastModified() < staleTemp) {
+						file.delete();
+					}
+					continue;
+				}
+				entries.add(file);
+				total += file.length();
+			}
+			entries.sort(Comparator.comparingLong(File::lastModified));
+			for (File entry : entries) {
+				if (total <= this.maxBytes) {
+					break;
+				}
+				long length = entry.length();
+				if (entry.delete()) {
+					total -= length;
+				}
+			}
+		}
+	}
+
+	private File entryFile(String bucket, String key, String eTag) {
+		return new File(this.directory, ResumableUploadState.hashName(bucket + "/" + key + "\n" + ETagUtils.unquote(eTag)));
+	}
+
+	private void place(Path entry, Path target) throws IOException {
+		Files.createDirectories(target.toAbsolutePath().getParent());
+		Files.deleteIfExists(target);
+		if (this.hardLinks) {
+			try {
+				Files.createLink(target, entry);
+				return;
+			} catch (IOException | UnsupportedOperationException e) {
+				// e.g. the workspace is on another file system, copy instead
+			}
+		}
+		try (FileChannel in = FileChannel.open(entry, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+		}
+	}
+}
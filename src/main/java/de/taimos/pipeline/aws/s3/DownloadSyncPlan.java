@@ -0,0 +1,193 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+/**
+ * Compares the objects below an S3 prefix with the files of a local directory and
+ * determines which objects have to be downloaded and which local files are obsolete.
+ * <p>
+ * Files are compared by size first, then by the ETag recorded by an earlier download and
+ * finally by the ETag computed from the file content, so unchanged files are usually
+ * detected without reading them.
+ */
+public class DownloadSyncPlan {
+
+	private final String keyPrefix;
+	private final Path targetDir;
+	private final List<S3ObjectSummary> changedObjects;
+	private final int unchangedCount;
+	private final List<File> obsoleteFiles;
+
+	private DownloadSyncPlan(String keyPrefix, Path targetDir, List<S3ObjectSummary> changedObjects, int unchangedCount, List<File> obsoleteFiles) {
+		this.keyPrefix = keyPrefix;
+		this.targetDir = targetDir;
+		this.changedObjects = changedObjects;
+		this.unchangedCount = unchangedCount;
+		this.obsoleteFiles = obsoleteFiles;
+	}
+
+	/**
+	 * Creates the plan for downloading the objects below the given prefix into targetDir.
+	 *
+	 * @param s3Client    the client used to list the prefix
+	 * @param bucket      the bucket
+	 * @param prefix      the key prefix
+	 * @param targetDir   the target directory
+	 * @param filter      selects the keys relative to the prefix to download, may be null to select all keys
+	 * @param state       the state of earlier downloads, may be null; unchanged files are recorded in it
+	 * @param mirror      whether to collect local files selected by the filter that have no remote counterpart
+	 * @param minPartSize the minimum multipart part size of the TransferManager
+	 * @return the plan
+	 * @throws IOException if a local file cannot be read
+	 */
+	public static DownloadSyncPlan create(AmazonS3 s3Client, String bucket, String prefix, File targetDir, Predicate<String> filter, DownloadSyncState state, boolean mirror, long minPartSize) throws IOException {
+		String keyPrefix = UploadSyncPlan.normalizePrefix(prefix);
+		Path target = targetDir.toPath().toAbsolutePath().normalize();
+		Map<String, S3ObjectSummary> remote = UploadSyncPlan.listRemote(s3Client, bucket, keyPrefix, filter);
+
+		List<S3ObjectSummary> changed = new ArrayList<>();
+		Set<String> remotePaths = new HashSet<>();
+		Set<String> changedPaths = new HashSet<>();
+		int unchanged = 0;
+		for (S3ObjectSummary summary : remote.values()) {
+			// skip the zero byte "folder" objects created by the S3 console
+			if (summary.getKey().endsWith("/")) {
+				continue;
+			}
+			String path = summary.getKey().substring(keyPrefix.length());
+			File file = resolve(target, path);
+			remotePaths.add(path);
+			if (!file.isFile() || file.length() != summary.getSize()) {
+				changed.add(summary);
+				changedPaths.add(path);
+			} else if (state != null && state.matches(path, file, summary.getETag())) {
+				unchanged++;
+			} else if (ETagUtils.matches(file, summary.getSize(), summary.getETag(), minPartSize)) {
+				unchanged++;
+				if (state != null) {
+					state.record(path, file, summary.getETag());
+				}
+			} else {
+				changed.add(summary);
+				changedPaths.add(path);
+			}
+		}
+		if (state != null) {
+			state.retainAll(remotePaths);
+		}
+
+		List<File> obsolete = new ArrayList<>();
+		if (mirror && Files.isDirectory(target)) {
+			try (Stream<Path> files = Files.walk(target)) {
+				for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+					String path = target.relativize(file).toString().replace('\\', '/');
+					if (!remotePaths.contains(path) && !isPartialOf(path, changedPaths) && (filter == null || filter.test(path))) {
+						obsolete.add(file.toFile());
+					}
+				}
+			}
+		}
+		changed.sort((a, b) -> a.getKey().compareTo(b.getKey()));
+		return new DownloadSyncPlan(keyPrefix, target, changed, unchanged, obsolete);
+	}
+
+	/**
+	 * @return whether the file is the partial download of a changed object or its state, which a resumable download continues
+	 */
+	private static boolean isPartialOf(String path, Set<String> changedPaths) {
+		for (String suffix : new String[] { ParallelRangeDownloader.PARTIAL_SUFFIX, ParallelRangeDownloader.PARTIAL_STATE_SUFFIX }) {
+			if (path.endsWith(suffix) && changedPaths.contains(path.substring(0, path.length() - suffix.length()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public List<S3ObjectSummary> getChangedObjects() {
+		return this.changedObjects;
+	}
+
+	public int getUnchangedCount() {
+		return this.unchangedCount;
+	}
+
+	public List<File> getObsoleteFiles() {
+		return this.obsoleteFiles;
+	}
+
+	/**
+	 * @param key the object key
+	 * @return the path of the object relative to the target directory
+	 */
+	public String relativePath(String key) {
+		return key.substring(this.keyPrefix.length());
+	}
+
+	/**
+	 * @param key the object key
+	 * @return the local file of the object
+	 * @throws IllegalArgumentException if the key resolves to a file outside of the target directory
+	 */
+	public File targetFile(String key) {
+		return resolve(this.targetDir, this.relativePath(key));
+	}
+
+	private static File resolve(Path targetDir, String path) {
+		Path file = targetDir.resolve(path).normalize();
+		if (!file.startsWith(targetDir) || file.equals(targetDir)) {
+			throw new IllegalArgumentException("Key " + path + " is outside of the target directory");
+		}
+		return file.toFile();
+	}
+
+	/**
+	 * Deletes all obsolete local files.
+	 *
+	 * @param logger the logger to report deleted files to
+	 * @throws IOException if a file cannot be deleted
+	 */
+	public void deleteObsoleteFiles(PrintStream logger) throws IOException {
+		for (File file : this.obsoleteFiles) {
+			logger.format("Deleting obsolete file %s%n", file);
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+/**
+ * Records the ETag of every file written by a synchronized download together with the size and
+ * modification time of the local file. A file that has not been touched since it was recorded is
+ * known to hold the content of the recorded ETag, so it is compared without reading it.
+ */
+public class DownloadSyncState {
+
+	private static final int VERSION = 1;
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final File stateFile;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	DownloadSyncState(File stateFile) {
+		this.stateFile = stateFile;
+	}
+
+	/**
+	 * Loads the state of the download of the given prefix into the given directory. A missing or
+	 * unreadable state is treated like an empty one.
+	 *
+	 * @param stateDir  the directory holding the state files
+	 * @param bucket    the bucket
+	 * @param prefix    the key prefix
+	 * @param targetDir the target directory
+	 * @return the state
+	 */
+	public static DownloadSyncState load(File stateDir, String bucket, String prefix, File targetDir) {
+		String id = bucket + "/" + UploadSyncPlan.normalizePrefix(prefix) + "\n" + targetDir.getAbsolutePath();
+		DownloadSyncState state = new DownloadSyncState(new File(stateDir, ResumableUploadState.stateFileName(id)));
+		if (!state.stateFile.isFile()) {
+			return state;
+		}
+		try {
+			JsonNode root = MAPPER.readTree(state.stateFile);
+			if (root != null && root.path("version").asInt() == VERSION) {
+				Iterator<Map.Entry<String, JsonNode>> files = root.path("files").fields();
+				while (files.hasNext()) {
+					Map.Entry<String, JsonNode> file = files.next();
+					JsonNode node = file.getValue();
+					state.entries.put(file.getKey(), new Entry(node.path("eTag").asText(), node.path("length").asLong(-1), node.path("lastModified").asLong(-1)));
+				}
+			}
+		} catch (IOException e) {
+			// the files are compared by their content instead
+			state.entries.clear();
+		}
+		return state;
+	}
+
+	public File getStateFile() {
+		return this.stateFile;
+	}
+
+	/**
+	 * @param path the path relative to the target directory
+	 * @param file the local file
+	 * @param eTag the ETag of the remote object
+	 * @return true if the file was recorded with the given ETag and has not been modified since
+	 */
+	public boolean matches(String path, File file, String eTag) {
+		Entry entry = this.entries.get(path);
+		return entry != null && eTag != null
+				&& entry.eTag.equalsIgnoreCase(ETagUtils.unquote(eTag))
+				&& entry.length == file.length()
+				&& entry.lastModified == file.lastModified();
+	}
+
+	/**
+	 * Records that the file holds the content of the object with the given ETag.
+	 *
+	 * @param path the path relative to the target directory
+	 * @param file the local file
+	 * @param eTag the ETag of the remote object
+	 */
+	public void record(String path, File file, String eTag) {
+		if (eTag != null) {
+			this.entries.put(path, new Entry(ETagUtils.unquote(eTag), file.length(), file.lastModified()));
+		}
+	}
+
+	/**
+	 * Forgets all files that are not part of the given paths.
+	 *
+	 * @param paths the paths relative to the target directory
+	 */
+	public void retainAll(Set<String> paths) {
+		this.entries.keySet().retainAll(paths);
+	}
+
+	/**
+	 * Writes the state atomically, so an interrupted write never leaves a corrupt file.
+	 *
+	 * @throws IOException if the state cannot be written
+	 */
+	public void save() throws IOException {
+		ObjectNode root = MAPPER.createObjectNode();
+		root.put("version", VERSION);
+		ObjectNode files = root.putObject("files");
+		for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+			files.putObject(entry.getKey())
+					.put("eTag", entry.getValue().eTag)
+					.put("length", entry.getValue().length)
+					.put("lastModified", entry.getValue().lastModified);
+		}
+		Path target = this.stateFile.toPath();
+		Files.createDirectories(target.getParent());
+		Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			MAPPER.writeValue(tmp.toFile(), root);
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static final class Entry {
+		private final String eTag;
+		private final long length;
+		private final long lastModified;
+
+		Entry(String eTag, long length, long lastModified) {
+			this.eTag = eTag;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+}
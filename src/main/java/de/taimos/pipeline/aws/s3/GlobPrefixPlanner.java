@@ -0,0 +1,148 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import de.taimos.pipeline.aws.s3.PrefixLister.FolderPlan;
+
+/**
+ * Plans the listing of the keys that can match a glob, e.g. <code>releases/2024-*&#47;**&#47;*.jar</code>.
+ * <p>
+ * The glob is split into its path components. A folder is only listed if its path matches the leading
+ * components of the glob, so subtrees that cannot contain a match are pruned. Folders above the first
+ * component containing <code>**</code> are listed with the delimiter, as their depth is fixed by the glob;
+ * from that component on, everything below the folder is listed flat without delimiter, which needs one
+ * request per 1000 keys instead of at least one per folder. Every request is narrowed to the literal
+ * prefix of the next component, so <code>releases/2024-*</code> only lists keys starting with
+ * <code>releases/2024-</code>.
+ * <p>
+ * The planner never excludes a key the glob can match; the glob itself is still applied to the results.
+ * Globs whose path components cannot be determined, i.e. with a <code>/</code> inside brackets or braces or
+ * with escapes, are listed with the delimiter without pruning.
+ */
+public class GlobPrefixPlanner implements Function<String, FolderPlan> {
+
+	private static final String GLOB_SYNTAX = "glob:";
+	private static final String META_CHARS = "*?[{\\";
+
+	private final List<String> components;
+	private final int firstRecursive;
+	private final List<KeyGlob> prefixMatchers;
+
+	/**
+	 * @param matcherString the glob in the syntax of {@link KeyGlob}, the <code>glob:</code> prefix is optional
+	 */
+	public GlobPrefixPlanner(String matcherString) {
+		String glob = matcherString.startsWith(GLOB_SYNTAX) ? matcherString.substring(GLOB_SYNTAX.length()) : matcherString;
+		this.components = splitComponents(glob);
+		List<KeyGlob> matchers = new ArrayList<>();
+		int recursive = 0;
+		if (this.components != null) {
+			while (recursive < this.components.size() && !this.components.get(recursive).contains("**")) {
+				recursive++;
+			}
+			for (int depth = 1; depth <= recursive; depth++) {
+				matchers.add(KeyGlob.compile(String.join("/", this.components.subList(0, depth))));
+			}
+		}
+		this.firstRecursive = recursive;
+		this.prefixMatchers = Collections.unmodifiableList(matchers);
+	}
+
+	@Override
+	public FolderPlan apply(String folder) {
+		if (this.components == null) {
+			return FolderPlan.delimited(folder);
+		}
+		int depth = 0;
+		for (int i = folder.indexOf('/'); i >= 0; i = folder.indexOf('/', i + 1)) {
+			depth++;
+		}
+		if (depth >= this.components.size()) {
+			// the keys below are deeper than the glob
+			return FolderPlan.skip();
+		}
+		if (depth > this.firstRecursive) {
+			return FolderPlan.delimited(folder);
+		}
+		if (depth > 0 && !this.prefixMatchers.get(depth - 1).matchesFolder(folder)) {
+			return FolderPlan.skip();
+		}
+		String prefix = folder + literalPrefix(this.components.get(depth));
+		return depth == this.firstRecursive ? FolderPlan.flat(prefix) : FolderPlan.delimited(prefix);
+	}
+
+	/**
+	 * @param glob the glob
+	 * @return the path components of the glob or null if they cannot be determined
+	 */
+	static List<String> splitComponents(String glob) {
+		if (glob.indexOf('\\') >= 0) {
+			return null;
+		}
+		List<String> components = new ArrayList<>();
+		int braces = 0;
+		boolean bracket = false;
+		int start = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (bracket) {
+				if (c == ']') {
+					bracket = false;
+				} else if (c == '/') {
+					return null;
+				}
+			} else if (c == '[') {
+				bracket = true;
+			} else if (c == '{') {
+				braces++;
+			} else if (c == '}') {
+				braces--;
+			} else if (c == '/') {
+				if (braces > 0) {
+					return null;
+				}
+				components.add(glob.substring(start, i));
+				start = i + 1;
+			}
+		}
+		components.add(glob.substring(start));
+		return components;
+	}
+
+	/**
+	 * @param component a path component of the glob
+	 * @return the characters before the first glob meta character
+	 */
+	static String literalPrefix(String component) {
+		for (int i = 0; i < component.length(); i++) {
+			if (META_CHARS.indexOf(component.charAt(i)) >= 0) {
+				return component.substring(0, i);
+			}
+		}
+		return component;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The <code>manifest.json</code> of an S3 Inventory report: the bucket it describes, when it was created and the
+ * data files that list the objects.
+ * <p>
+ * Only CSV reports are supported, as reading ORC and Parquet needs libraries that are not part of this plugin.
+ */
+public class InventoryManifest {
+
+	public static final String CSV = "CSV";
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final String ARN_PREFIX = "arn:aws:s3:::";
+	private static final String S3_SCHEME = "s3://";
+
+	private final String sourceBucket;
+	private final String destinationBucket;
+	private final Date creationTime;
+	private final List<String> columns;
+	private final List<String> files;
+
+	public InventoryManifest(String sourceBucket, String destinationBucket, Date creationTime, List<String> columns, List<String> files) {
+		this.sourceBucket = sourceBucket;
+		this.destinationBucket = destinationBucket;
+		this.creationTime = creationTime;
+		this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+		this.files = Collections.unmodifiableList(new ArrayList<>(files));
+	}
+
+	/**
+	 * Reads the manifest from S3.
+	 *
+	 * @param s3Client the client
+	 * @param location the location of the manifest, <code>s3://bucket/key/manifest.json</code>
+	 * @return the manifest
+	 * @throws IOException if the manifest cannot be read or is not a CSV inventory
+	 */
+	public static InventoryManifest load(AmazonS3 s3Client, String location) throws IOException {
+		if (!location.startsWith(S3_SCHEME) || location.indexOf('/', S3_SCHEME.length()) < 0) {
+			throw new IllegalArgumentException("Inventory manifest must be an s3://bucket/key location");
+		}
+		int slash = location.indexOf('/', S3_SCHEME.length());
+		try (S3Object object = s3Client.getObject(location.substring(S3_SCHEME.length(), slash), location.substring(slash + 1));
+			 InputStream in = object.getObjectContent()) {
+			return parse(in);
+		}
+	}
+
+	/**
+	 * @param in the JSON document
+	 * @return the manifest
+	 * @throws IOException if the document is not the manifest of a CSV inventory
+	 */
+	public static InventoryManifest parse(InputStream in) throws IOException {
+		JsonNode root = MAPPER.readTree(in);
+		if (root == null || !root.has("files") || !root.has("fileSchema")) {
+			throw new IOException("Not an S3 Inventory manifest");
+		}
+		String format = root.path("fileFormat").asText();
+		if (!CSV.equalsIgnoreCase(format)) {
+			throw new IOException("Only CSV inventories are supported, not " + format);
+		}
+		List<String> columns = new ArrayList<>();
+		for (String column : root.path("fileSchema").asText().split(",")) {
+			columns.add(column.trim());
+		}
+		if (!columns.contains("Key")) {
+			throw new IOException("The inventory does not contain the Key column");
+		}
+		List<String> files = new ArrayList<>();
+		for (JsonNode file : root.path("files")) {
+			files.add(file.path("key").asText());
+		}
+		String destination = root.path("destinationBucket").asText();
+		if (destination.startsWith(ARN_PREFIX)) {
+			destination = destination.substring(ARN_PREFIX.length());
+		}
+		return new InventoryManifest(root.path("sourceBucket").asText(), destination,
+				new Date(root.path("creationTimestamp").asLong()), columns, files);
+	}
+
+	/**
+	 * @return the bucket the inventory describes
+	 */
+	public String getSourceBucket() {
+		return this.sourceBucket;
+	}
+
+	/**
+	 * @return the bucket holding the data files
+	 */
+	public String getDestinationBucket() {
+		return this.destinationBucket;
+	}
+
+	public Date getCreationTime() {
+		return this.creationTime;
+	}
+
+	/**
+	 * @return the names of the CSV columns, e.g. <code>Bucket</code>, <code>Key</code> and <code>Size</code>
+	 */
+	public List<String> getColumns() {
+		return this.columns;
+	}
+
+	/**
+	 * @return the keys of the gzipped CSV data files
+	 */
+	public List<String> getFiles() {
+		return this.files;
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Reads the objects of a bucket from the CSV data files of an S3 Inventory report instead of listing them.
+ * <p>
+ * The data files are downloaded and parsed in parallel as a stream, without storing them. The objects below the
+ * prefix are grouped into pages of {@link #PAGE_SIZE} summaries, like the pages of a listing, and mapped to results
+ * on the worker threads. The results of every page are passed to the sink on the calling thread in the order of
+ * the data files in the manifest, while the files are read. At most <code>readAhead</code> data files are read ahead
+ * of the sink and every file holds at most {@link #PAGES_PER_FILE} pages the sink has not taken, its download
+ * waits until the sink catches up. So only a few thousand results are held at any time, however large the data
+ * files and the inventory are. Versions that are not the latest one and
+ * delete markers are skipped, so versioned inventories describe the same objects as a listing.
+ */
+public class InventoryReader {
+
+	public static final int PAGE_SIZE = 1000;
+
+	/** The number of mapped pages a data file holds until the sink takes them. */
+	static final int PAGES_PER_FILE = 4;
+
+	private static final long ROOM_TIMEOUT_MILLIS = 100L;
+
+	private final AmazonS3 s3Client;
+	private final Executor executor;
+	private final int readAhead;
+	private final AtomicInteger files = new AtomicInteger();
+	private final AtomicLong objects = new AtomicLong();
+
+	/**
+	 * @param s3Client  the client
+	 * @param executor  the executor the data files are read on, bounds the number of concurrent downloads
+	 * @param readAhead the maximum number of data files that are read or hold results not passed to the sink yet
+	 */
+	public InventoryReader(AmazonS3 s3Client, Executor executor, int readAhead) {
+		this.s3Client = s3Client;
+		this.executor = executor;
+		this.readAhead = Math.max(1, readAhead);
+	}
+
+	/**
+	 * @return the number of data files read so far
+	 */
+	public int getFiles() {
+		return this.files.get();
+	}
+
+	/**
+	 * @return the number of objects below the prefix read so far
+	 */
+	public long getObjects() {
+		return this.objects.get();
+	}
+
+	/**
+	 * Reads all data files of the manifest and waits until they are read. If a file cannot be read, the sink fails
+	 * or the thread is interrupted, no further files are read.
+	 *
+	 * @param manifest the manifest of the inventory
+	 * @param prefix   only objects with keys starting with this prefix are read, may be empty
+	 * @param mapper   maps every page to the results it contributes, called concurrently
+	 * @param sink     receives the results of every page in manifest order
+	 * @param <T>      the type of the results
+	 * @throws IOException          if a data file cannot be read or the sink fails
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public <T> void read(InventoryManifest manifest, String prefix, Function<ListObjectsV2Result, List<T>> mapper, PrefixLister.ResultSink<T> sink) throws IOException, InterruptedException {
+		Columns columns = new Columns(manifest.getColumns());
+		AtomicBoolean cancelled = new AtomicBoolean();
+		Iterator<String> pending = manifest.getFiles().iterator();
+		Deque<DataFile<T>> reads = new ArrayDeque<>();
+		try {
+			while (pending.hasNext() || !reads.isEmpty()) {
+				while (pending.hasNext() && reads.size() < this.readAhead) {
+					String file = pending.next();
+					DataFile<T> dataFile = new DataFile<>();
+					dataFile.done = CompletableFuture.runAsync(() -> {
+						try {
+							this.readFile(manifest.getDestinationBucket(), file, columns, prefix == null ? "" : prefix, mapper, dataFile, cancelled);
+						} catch (IOException e) {
+							throw new UncheckedIOException("Failed to read inventory file s3://" + manifest.getDestinationBucket() + "/" + file, e);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new UncheckedIOException("Interrupted while reading inventory file s3://" + manifest.getDestinationBucket() + "/" + file, new InterruptedIOException());
+						} finally {
+							dataFile.pages.add(dataFile.end);
+						}
+					}, this.executor);
+					reads.add(dataFile);
+				}
+				DataFile<T> head = reads.peek();
+				List<T> results = head.pages.take();
+				if (results == head.end) {
+					reads.poll();
+					head.done.get();
+				} else {
+					sink.accept(results);
+					head.room.release();
+				}
+			}
+		} catch (InterruptedException | IOException | RuntimeException e) {
+			cancelled.set(true);
+			reads.forEach(r -> r.done.cancel(true));
+			throw e;
+		} catch (ExecutionException e) {
+			cancelled.set(true);
+			reads.forEach(r -> r.done.cancel(true));
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw new IOException(e.getCause().getMessage(), e.getCause().getCause());
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Passes the results of every page to the data file as soon as they are mapped.
+	 */
+	private <T> void readFile(String bucket, String key, Columns columns, String prefix, Function<ListObjectsV2Result, List<T>> mapper, DataFile<T> target, AtomicBoolean cancelled)
+			throws IOException, InterruptedException {
+		if (cancelled.get()) {
+			return;
+		}
+		try (S3Object object = this.s3Client.getObject(bucket, key);
+			 InputStream in = key.endsWith(".gz") ? new GZIPInputStream(object.getObjectContent(), 64 * 1024) : object.getObjectContent();
+			 BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			ListObjectsV2Result page = new ListObjectsV2Result();
+			List<String> fields = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				parseLine(line, fields);
+				S3ObjectSummary summary = columns.toSummary(fields, prefix);
+				if (summary == null) {
+					continue;
+				}
+				page.getObjectSummaries().add(summary);
+				if (page.getObjectSummaries().size() == PAGE_SIZE) {
+					if (!this.pass(this.map(page, mapper), target, cancelled)) {
+						// abort the download instead of draining the rest of the file
+						object.getObjectContent().abort();
+						return;
+					}
+					page = new ListObjectsV2Result();
+				}
+			}
+			if (!page.getObjectSummaries().isEmpty() && !this.pass(this.map(page, mapper), target, cancelled)) {
+				return;
+			}
+		}
+		this.files.incrementAndGet();
+	}
+
+	/**
+	 * Waits until the data file has room for another page and queues the results, empty results are skipped.
+	 *
+	 * @return false if the read was cancelled
+	 */
+	private <T> boolean pass(List<T> results, DataFile<T> target, AtomicBoolean cancelled) throws InterruptedException {
+		if (results.isEmpty()) {
+			return !cancelled.get();
+		}
+		while (!target.room.tryAcquire(ROOM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (cancelled.get()) {
+				return false;
+			}
+		}
+		if (cancelled.get()) {
+			return false;
+		}
+		target.pages.add(results);
+		return true;
+	}
+
+	private <T> List<T> map(ListObjectsV2Result page, Function<ListObjectsV2Result, List<T>> mapper) {
+		this.objects.addAndGet(page.getObjectSummaries().size());
+		page.setKeyCount(page.getObjectSummaries().size());
+		return mapper.apply(page);
+	}
+
+	/**
+	 * Splits a CSV line of an inventory file. All fields are quoted, quotes within fields are doubled.
+	 */
+	static void parseLine(String line, List<String> fields) {
+		fields.clear();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+	}
+
+	/**
+	 * The pages of a data file that are mapped but not passed to the sink yet, followed by {@link #end}.
+	 */
+	private static final class DataFile<T> {
+		private final BlockingQueue<List<T>> pages = new LinkedBlockingQueue<>();
+		private final Semaphore room = new Semaphore(PAGES_PER_FILE);
+		private final List<T> end = new ArrayList<>(0);
+		private CompletableFuture<Void> done;
+	}
+
+	/**
+	 * The positions of the columns the summaries are built from, -1 if the inventory does not contain a column.
+	 */
+	static final class Columns {
+		private final int bucket;
+		private final int key;
+		private final int isLatest;
+		private final int isDeleteMarker;
+		private final int size;
+		private final int lastModified;
+		private final int eTag;
+		private final int storageClass;
+
+		Columns(List<String> columns) {
+			this.bucket = columns.indexOf("Bucket");
+			this.key = columns.indexOf("Key");
+			this.isLatest = columns.indexOf("IsLatest");
+			this.isDeleteMarker = columns.indexOf("IsDeleteMarker");
+			this.size = columns.indexOf("Size");
+			this.lastModified = columns.indexOf("LastModifiedDate");
+			this.eTag = columns.indexOf("ETag");
+			this.storageClass = columns.indexOf("StorageClass");
+		}
+
+		/**
+		 * @return the summary of the object or null if it is not below the prefix, not the latest version or a delete marker
+		 */
+		S3ObjectSummary toSummary(List<String> fields, String prefix) throws IOException {
+			if (fields.size() <= this.key) {
+				throw new IOException("Inventory line with " + fields.size() + " fields");
+			}
+			S3ObjectSummary summary = new S3ObjectSummary();
+			try {
+				// keys are URL encoded in CSV inventories
+				String objectKey = fields.get(this.key);
+				if (objectKey.indexOf('%') >= 0 || objectKey.indexOf('+') >= 0) {
+					objectKey = URLDecoder.decode(objectKey, "UTF-8");
+				}
+				if (!objectKey.startsWith(prefix)
+						|| "false".equalsIgnoreCase(get(fields, this.isLatest))
+						|| "true".equalsIgnoreCase(get(fields, this.isDeleteMarker))) {
+					return null;
+				}
+				summary.setKey(objectKey);
+				String objectSize = get(fields, this.size);
+				summary.setSize(objectSize == null || objectSize.isEmpty() ? 0 : Long.parseLong(objectSize));
+				String modified = get(fields, this.lastModified);
+				if (modified != null && !modified.isEmpty()) {
+					summary.setLastModified(Date.from(Instant.parse(modified)));
+				}
+			} catch (IllegalArgumentException | DateTimeParseException e) {
+				throw new IOException("Invalid inventory line: " + String.join(",", fields), e);
+			}
+			summary.setBucketName(get(fields, this.bucket));
+			summary.setETag(get(fields, this.eTag));
+			summary.setStorageClass(get(fields, this.storageClass));
+			return summary;
+		}
+
+		private static String get(List<String> fields, int index) {
+			return index >= 0 && index < fields.size() ? fields.get(index) : null;
+		}
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A glob compiled for matching S3 keys as plain strings.
+ * <p>
+ * The syntax is the one of {@link java.nio.file.FileSystem#getPathMatcher(String)}: <code>*</code> matches
+ * any characters within a path segment, <code>**</code> matches across segments, <code>?</code> matches one
+ * character, <code>[a-z]</code> and <code>[!a-z]</code> match one character of a class, <code>{a,b}</code>
+ * matches one of the alternatives and <code>\</code> escapes the next character. Only <code>/</code> separates
+ * segments and matching is case sensitive on every platform.
+ * <p>
+ * In contrast to a {@link java.nio.file.PathMatcher}, a key is matched without creating a
+ * {@link java.nio.file.Path} or running a regular expression, and without normalizing it: empty segments
+ * like in <code>a//b</code> are kept. Keys are rejected early by their literal prefix and suffix and, for
+ * globs without <code>**</code>, by their number of segments; the remaining keys are matched node by node
+ * without allocating memory.
+ */
+public final class KeyGlob {
+
+	private static final String GLOB_SYNTAX = "glob:";
+
+	private final String glob;
+	private final Node[] nodes;
+	private final String literalPrefix;
+	private final String literalSuffix;
+	/** The number of separators of every matching key, or -1 if it is not fixed. */
+	private final int separators;
+
+	private KeyGlob(String glob, Node[] nodes) {
+		this.glob = glob;
+		this.nodes = nodes;
+		this.literalPrefix = nodes.length > 0 && nodes[0].type == Type.LITERAL ? nodes[0].text : "";
+		this.literalSuffix = nodes.length > 1 && nodes[nodes.length - 1].type == Type.LITERAL ? nodes[nodes.length - 1].text : "";
+		int count = 0;
+		for (Node node : nodes) {
+			if (node.type == Type.ANY_PATH || node.type == Type.GROUP) {
+				count = -1;
+				break;
+			}
+			if (node.type == Type.LITERAL) {
+				count += countSeparators(node.text, 0, node.text.length());
+			}
+		}
+		this.separators = count;
+		int rest = 0;
+		for (int i = nodes.length - 1; i >= 0; i--) {
+			nodes[i].restLength = rest;
+			rest = rest < 0 ? -1 : nodes[i].fixedLength(rest);
+		}
+	}
+
+	/**
+	 * @param glob the glob, the <code>glob:</code> prefix of matcher strings is optional
+	 * @return the compiled glob
+	 * @throws PatternSyntaxException if the glob is invalid
+	 */
+	public static KeyGlob compile(String glob) {
+		String pattern = glob.startsWith(GLOB_SYNTAX) ? glob.substring(GLOB_SYNTAX.length()) : glob;
+		return new KeyGlob(pattern, new Parser(pattern).parse());
+	}
+
+	public String getGlob() {
+		return this.glob;
+	}
+
+	/**
+	 * @param key the key
+	 * @return whether the whole key matches the glob
+	 */
+	public boolean matches(String key) {
+		return this.matches(key, key.length());
+	}
+
+	/**
+	 * Matches a common prefix as a folder, i.e. without its trailing <code>/</code>.
+	 *
+	 * @param prefix the common prefix
+	 * @return whether the folder matches the glob
+	 */
+	public boolean matchesFolder(String prefix) {
+		return this.matches(prefix, prefix.endsWith("/") ? prefix.length() - 1 : prefix.length());
+	}
+
+	/**
+	 * @param key    the key
+	 * @param length the number of leading characters of the key to match
+	 * @return whether the leading characters of the key match the glob
+	 */
+	public boolean matches(String key, int length) {
+		if (length < this.literalPrefix.length() + this.literalSuffix.length()
+				|| !key.startsWith(this.literalPrefix)
+				|| !key.regionMatches(length - this.literalSuffix.length(), this.literalSuffix, 0, this.literalSuffix.length())) {
+			return false;
+		}
+		if (this.separators >= 0 && countSeparators(key, 0, length) != this.separators) {
+			return false;
+		}
+		return match(this.nodes, 0, null, 0, key, 0, length);
+	}
+
+	@Override
+	public String toString() {
+		return this.glob;
+	}
+
+	private static int countSeparators(String s, int start, int end) {
+		int count = 0;
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) == '/') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Matches the nodes from index ni against the key from index si. The nodes of a group alternative continue with
+	 * the outer nodes from index oi.
+	 */
+	private static boolean match(Node[] nodes, int ni, Node[] outer, int oi, String key, int si, int end) {
+		while (ni < nodes.length) {
+			Node node = nodes[ni];
+			switch (node.type) {
+				case LITERAL:
+					if (end - si < node.text.length() || !key.startsWith(node.text, si)) {
+						return false;
+					}
+					si += node.text.length();
+					ni++;
+					break;
+				case ANY_CHAR:
+					if (si >= end || key.charAt(si) == '/') {
+						return false;
+					}
+					si++;
+					ni++;
+					break;
+				case CLASS:
+					if (si >= end || !node.matchesClass(key.charAt(si))) {
+						return false;
+					}
+					si++;
+					ni++;
+					break;
+				case ANY_SEGMENT:
+					if (node.restLength >= 0 && outer == null) {
+						// the rest has a fixed length, so there is only one place where it can start
+						int start = end - node.restLength;
+						if (start < si) {
+							return false;
+						}
+						int separator = key.indexOf('/', si);
+						return (separator < 0 || separator >= start) && match(nodes, ni + 1, null, 0, key, start, end);
+					}
+					for (int k = si; ; k++) {
+						if (match(nodes, ni + 1, outer, oi, key, k, end)) {
+							return true;
+						}
+						if (k >= end || key.charAt(k) == '/') {
+							return false;
+						}
+					}
+				case ANY_PATH:
+					if (node.restLength >= 0 && outer == null) {
+						int start = end - node.restLength;
+						return start >= si && match(nodes, ni + 1, null, 0, key, start, end);
+					}
+					for (int k = si; k <= end; k++) {
+						if (match(nodes, ni + 1, outer, oi, key, k, end)) {
+							return true;
+						}
+					}
+					return false;
+				case GROUP:
+					for (Node[] alternative : node.alternatives) {
+						if (match(alternative, 0, nodes, ni + 1, key, si, end)) {
+							return true;
+						}
+					}
+					return false;
+				default:
+					throw new IllegalStateException(node.type.name());
+			}
+		}
+		if (outer != null) {
+			return match(outer, oi, null, 0, key, si, end);
+		}
+		return si == end;
+	}
+
+	private enum Type {
+		LITERAL, ANY_CHAR, CLASS, ANY_SEGMENT, ANY_PATH, GROUP
+	}
+
+	/**
+	 * One element of a compiled glob.
+	 */
+	private static final class Node {
+		private final Type type;
+		private final String text;
+		/** Pairs of first and last character of the ranges of a class. */
+		private final char[] ranges;
+		private final boolean negated;
+		private final Node[][] alternatives;
+		/** The length of the keys matched by the following nodes of the glob if it is fixed, otherwise -1. */
+		private int restLength = -1;
+
+		private Node(Type type, String text, char[] ranges, boolean negated, Node[][] alternatives) {
+			this.type = type;
+			this.text = text;
+			this.ranges = ranges;
+			this.negated = negated;
+			this.alternatives = alternatives;
+		}
+
+		static Node of(Type type) {
+			return new Node(type, null, null, false, null);
+		}
+
+		/**
+		 * @param rest the fixed length of the following nodes
+		 * @return the fixed length matched by this and the following nodes, or -1 if it is not fixed
+		 */
+		int fixedLength(int rest) {
+			switch (this.type) {
+				case LITERAL:
+					return this.text.length() + rest;
+				case ANY_CHAR:
+				case CLASS:
+					return 1 + rest;
+				default:
+					return -1;
+			}
+		}
+
+		boolean matchesClass(char c) {
+			if (c == '/') {
+				return false;
+			}
+			for (int i = 0; i < this.ranges.length; i += 2) {
+				if (c >= this.ranges[i] && c <= this.ranges[i + 1]) {
+					return !this.negated;
+				}
+			}
+			return this.negated;
+		}
+	}
+
+	/**
+	 * Parses a glob into nodes, following the rules of the glob syntax of the default file system.
+	 */
+	private static final class Parser {
+		private final String glob;
+		private int pos;
+
+		Parser(String glob) {
+			this.glob = glob;
+		}
+
+		Node[] parse() {
+			Node[] nodes = this.parseSequence(false);
+			if (this.pos < this.glob.length()) {
+				throw new PatternSyntaxException("Unexpected character", this.glob, this.pos);
+			}
+			return nodes;
+		}
+
+		private Node[] parseSequence(boolean inGroup) {
+			List<Node> nodes = new ArrayList<>();
+			StringBuilder literal = new StringBuilder();
+			while (this.pos < this.glob.length()) {
+				char c = this.glob.charAt(this.pos);
+				if (inGroup && (c == ',' || c == '}')) {
+					break;
+				}
+				this.pos++;
+				switch (c) {
+					case '\\':
+						if (this.pos >= this.glob.length()) {
+							throw new PatternSyntaxException("No character to escape", this.glob, this.pos - 1);
+						}
+						literal.append(this.glob.charAt(this.pos++));
+						break;
+					case '*':
+						flush(literal, nodes);
+						if (this.pos < this.glob.length() && this.glob.charAt(this.pos) == '*') {
+							this.pos++;
+							nodes.add(Node.of(Type.ANY_PATH));
+						} else if (!nodes.isEmpty() && nodes.get(nodes.size() - 1).type == Type.ANY_PATH) {
+							// ***: the single * adds nothing to the preceding **
+							break;
+						} else {
+							nodes.add(Node.of(Type.ANY_SEGMENT));
+						}
+						break;
+					case '?':
+						flush(literal, nodes);
+						nodes.add(Node.of(Type.ANY_CHAR));
+						break;
+					case '[':
+						flush(literal, nodes);
+						nodes.add(this.parseClass());
+						break;
+					case '{':
+						if (inGroup) {
+							throw new PatternSyntaxException("Cannot nest groups", this.glob, this.pos - 1);
+						}
+						flush(literal, nodes);
+						nodes.add(this.parseGroup());
+						break;
+					default:
+						literal.append(c);
+				}
+			}
+			flush(literal, nodes);
+			return nodes.toArray(new Node[0]);
+		}
+
+		private Node parseClass() {
+			boolean negated = false;
+			if (this.pos < this.glob.length() && this.glob.charAt(this.pos) == '!') {
+				negated = true;
+				this.pos++;
+			}
+			StringBuilder ranges = new StringBuilder();
+			boolean first = true;
+			while (true) {
+				if (this.pos >= this.glob.length()) {
+					throw new PatternSyntaxException("Missing ']", this.glob, this.pos - 1);
+				}
+				char c = this.glob.charAt(this.pos++);
+				if (c == ']' && !first) {
+					break;
+				}
+				first = false;
+				if (c == '/') {
+					throw new PatternSyntaxException("Explicit 'name separator' in class", this.glob, this.pos - 1);
+				}
+				if (c == '\\') {
+					if (this.pos >= this.glob.length()) {
+						throw new PatternSyntaxException("No character to escape", this.glob, this.pos - 1);
+					}
+					c = this.glob.charAt(this.pos++);
+				}
+				char last = c;
+				if (this.pos + 1 < this.glob.length() && this.glob.charAt(this.pos) == '-' && this.glob.charAt(this.pos + 1) != ']') {
+					last = this.glob.charAt(this.pos + 1);
+					this.pos += 2;
+					if (last < c) {
+						throw new PatternSyntaxException("Invalid range", this.glob, this.pos - 1);
+					}
+				}
+				ranges.append(c).append(last);
+			}
+			return new Node(Type.CLASS, null, ranges.toString().toCharArray(), negated, null);
+		}
+
+		private Node parseGroup() {
+			int start = this.pos - 1;
+			List<Node[]> alternatives = new ArrayList<>();
+			while (true) {
+				alternatives.add(this.parseSequence(true));
+				if (this.pos >= this.glob.length()) {
+					throw new PatternSyntaxException("Missing '}'", this.glob, start);
+				}
+				if (this.glob.charAt(this.pos++) == '}') {
+					return new Node(Type.GROUP, null, null, false, alternatives.toArray(new Node[0][]));
+				}
+			}
+		}
+
+		private static void flush(StringBuilder literal, List<Node> nodes) {
+			if (literal.length() > 0) {
+				nodes.add(new Node(Type.LITERAL, literal.toString(), null, false, null));
+				literal.setLength(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.DirectoryScanner;
+
+/**
+ * Selects object keys with the Ant style include and exclude patterns that <code>s3Upload</code> applies to
+ * workspace files, so the same patterns can be used in both directions.
+ * <p>
+ * Patterns are separated by commas or whitespace and matched against the key relative to the downloaded prefix.
+ * <code>*</code> matches within one path segment, <code>**</code> matches any number of segments and a pattern
+ * ending with <code>/</code> matches everything below that directory. The patterns are compiled into regular
+ * expressions once, so they can be applied to every key of a listing while it is paged in.
+ */
+public class KeyPatternFilter implements Predicate<String> {
+
+	private static final String REGEX_SPECIAL = "\\.[]{}()<>+-=!^$|";
+
+	private final List<Pattern> includes;
+	private final List<Pattern> excludes;
+
+	/**
+	 * @param includes the include patterns, null or empty to include all keys
+	 * @param excludes the exclude patterns, may be null
+	 */
+	public KeyPatternFilter(String includes, String excludes) {
+		this.includes = compile(includes);
+		this.excludes = compile(excludes);
+	}
+
+	/**
+	 * @param includes the include patterns, may be null
+	 * @param excludes the exclude patterns, may be null
+	 * @return the filter or null if no pattern is given
+	 */
+	public static KeyPatternFilter of(String includes, String excludes) {
+		KeyPatternFilter filter = new KeyPatternFilter(includes, excludes);
+		return filter.includes.isEmpty() && filter.excludes.isEmpty() ? null : filter;
+	}
+
+	/**
+	 * Selects the keys of the files that <code>FilePath.list(includes, excludes, true)</code> selects in the workspace,
+	 * which also leaves out the default excludes of Ant like <code>**&#47;.git/**</code>.
+	 *
+	 * @param includes the include patterns, null or empty to include all keys
+	 * @param excludes the exclude patterns, may be null
+	 * @return the filter
+	 */
+	public static KeyPatternFilter withDefaultExcludes(String includes, String excludes) {
+		String defaultExcludes = String.join(",", DirectoryScanner.getDefaultExcludes());
+		return new KeyPatternFilter(includes, excludes == null || excludes.trim().isEmpty() ? defaultExcludes : excludes + "," + defaultExcludes);
+	}
+
+	@Override
+	public boolean test(String path) {
+		return (this.includes.isEmpty() || matchesAny(this.includes, path)) && !matchesAny(this.excludes, path);
+	}
+
+	private static boolean matchesAny(List<Pattern> patterns, String path) {
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher(path).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<Pattern> compile(String patterns) {
+		List<Pattern> compiled = new ArrayList<>();
+		if (patterns == null) {
+			return compiled;
+		}
+		for (String pattern : patterns.trim().split("[,\\s]+")) {
+			if (!pattern.isEmpty()) {
+				compiled.add(Pattern.compile(toRegex(pattern)));
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * Translates an Ant style pattern into a regular expression.
+	 */
+	static String toRegex(String pattern) {
+		String ant = pattern.replace('\\', '/');
+		if (ant.endsWith("/")) {
+			ant += "**";
+		}
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < ant.length(); i++) {
+			char c = ant.charAt(i);
+			if (c == '*' && i + 1 < ant.length() && ant.charAt(i + 1) == '*') {
+				if (i + 2 < ant.length() && ant.charAt(i + 2) == '/') {
+					regex.append("(?:.*/)?");
+					i += 2;
+				} else {
+					regex.append(".*");
+					i++;
+				}
+			} else if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else {
+				if (REGEX_SPECIAL.indexOf(c) >= 0) {
+					regex.append('\\');
+				}
+				regex.append(c);
+			}
+		}
+		return regex.toString();
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * An OutputStream that writes to an S3 object of unknown size without a temporary file.
+ * <p>
+ * Data is buffered in parts that are uploaded in parallel on the given executor while the caller
+ * keeps writing. At most <code>maxPendingParts</code> parts are uploaded at once, and the part being
+ * written together with the parts being uploaded never hold more than <code>maxBufferedBytes</code>,
+ * except that one part is always uploaded, however large it is. The part size is
+ * doubled every {@value #PARTS_PER_SIZE_STEP} parts, so the 10000 parts limit of S3 is not reached
+ * for large streams. Streams smaller than one part are stored with a single PUT request.
+ * <p>
+ * {@link #close()} completes the upload. If writing fails, {@link #abort()} has to be called to
+ * discard the parts already uploaded.
+ */
+public class MultipartUploadOutputStream extends OutputStream {
+
+	private static final int PARTS_PER_SIZE_STEP = 1000;
+	private static final int MAX_PART_SIZE = Integer.MAX_VALUE - 8;
+
+	private final AmazonS3 s3Client;
+	private final Executor executor;
+	private final String bucket;
+	private final String key;
+	private final ObjectMetadata metadata;
+	private final ObjectTagging tagging;
+	private final int maxPendingParts;
+	private final long maxBufferedBytes;
+	private final Object pendingLock = new Object();
+	private final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+
+	private int partSize;
+	private byte[] buffer;
+	private int count;
+	private long bytesWritten;
+	private String uploadId;
+	private boolean closed;
+	private int pendingParts;
+	private long pendingBytes;
+
+	public MultipartUploadOutputStream(AmazonS3 s3Client, Executor executor, String bucket, String key, ObjectMetadata metadata, ObjectTagging tagging, int partSize, int maxPendingParts) {
+		this(s3Client, executor, bucket, key, metadata, tagging, partSize, maxPendingParts, Long.MAX_VALUE);
+	}
+
+	public MultipartUploadOutputStream(AmazonS3 s3Client, Executor executor, String bucket, String key, ObjectMetadata metadata, ObjectTagging tagging, int partSize, int maxPendingParts,
+			long maxBufferedBytes) {
+		this.s3Client = s3Client;
+		this.executor = executor;
+		this.bucket = bucket;
+		this.key = key;
+		this.metadata = metadata == null ? new ObjectMetadata() : metadata;
+		this.tagging = tagging;
+		this.partSize = partSize;
+		this.maxPendingParts = Math.max(1, maxPendingParts);
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.buffer = new byte[partSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.ensureOpen();
+		this.buffer[this.count++] = (byte) b;
+		if (this.count == this.buffer.length) {
+			this.uploadBuffer();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		this.ensureOpen();
+		while (len > 0) {
+			int n = Math.min(len, this.buffer.length - this.count);
+			System.arraycopy(b, off, this.buffer, this.count, n);
+			this.count += n;
+			off += n;
+			len -= n;
+			if (this.count == this.buffer.length) {
+				this.uploadBuffer();
+			}
+		}
+	}
+
+	/**
+	 * Uploads the remaining data and completes the upload.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			if (this.uploadId == null) {
+				this.metadata.setContentLength(this.count);
+				PutObjectRequest request = new PutObjectRequest(this.bucket, this.key, new ByteArrayInputStream(this.buffer, 0, this.count), this.metadata)
+						.withTagging(this.tagging);
+				this.s3Client.putObject(request);
+				return;
+			}
+			if (this.count > 0) {
+				this.submitPart(0);
+			}
+			List<PartETag> etags = new ArrayList<>();
+			for (CompletableFuture<PartETag> part : this.parts) {
+				etags.add(part.get());
+			}
+			etags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+			this.s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(this.bucket, this.key, this.uploadId, etags));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.abort();
+			throw new InterruptedIOException("Interrupted while uploading s3://" + this.bucket + "/" + this.key);
+		} catch (ExecutionException e) {
+			this.abort();
+			throw new IOException("Failed to upload part of s3://" + this.bucket + "/" + this.key, e.getCause());
+		} catch (AmazonClientException e) {
+			this.abort();
+			throw new IOException("Failed to upload s3://" + this.bucket + "/" + this.key, e);
+		} finally {
+			this.buffer = null;
+		}
+	}
+
+	/**
+	 * Aborts the upload and discards the parts uploaded so far. Subsequent calls to close do nothing.
+	 */
+	public void abort() {
+		this.closed = true;
+		this.buffer = null;
+		for (CompletableFuture<PartETag> part : this.parts) {
+			part.cancel(true);
+		}
+		if (this.uploadId != null) {
+			String id = this.uploadId;
+			this.uploadId = null;
+			try {
+				this.s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, this.key, id));
+			} catch (AmazonClientException e) {
+				// a lifecycle rule for incomplete multipart uploads has to clean up
+			}
+		}
+	}
+
+	public long getBytesWritten() {
+		return this.bytesWritten + this.count;
+	}
+
+	private void uploadBuffer() throws IOException {
+		if (this.uploadId == null) {
+			InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(this.bucket, this.key, this.metadata)
+					.withTagging(this.tagging);
+			try {
+				this.uploadId = this.s3Client.initiateMultipartUpload(request).getUploadId();
+			} catch (AmazonClientException e) {
+				throw new IOException("Failed to start upload of s3://" + this.bucket + "/" + this.key, e);
+			}
+		}
+		int nextPartSize = (this.parts.size() + 1) % PARTS_PER_SIZE_STEP == 0 ? (int) Math.min(MAX_PART_SIZE, 2L * this.partSize) : this.partSize;
+		this.submitPart(nextPartSize);
+		this.partSize = nextPartSize;
+		this.buffer = new byte[this.partSize];
+	}
+
+	/**
+	 * @param nextBufferSize the size of the buffer that is allocated for the next part, 0 for the last part
+	 */
+	private void submitPart(int nextBufferSize) throws IOException {
+		for (CompletableFuture<PartETag> part : this.parts) {
+			if (part.isCompletedExceptionally()) {
+				try {
+					part.get();
+				} catch (InterruptedException | ExecutionException e) {
+					throw new IOException("Failed to upload part of s3://" + this.bucket + "/" + this.key, e.getCause());
+				}
+			}
+		}
+		final int length = this.count;
+		try {
+			synchronized (this.pendingLock) {
+				while (this.pendingParts > 0 && (this.pendingParts >= this.maxPendingParts || this.pendingBytes + length + nextBufferSize > this.maxBufferedBytes)) {
+					this.pendingLock.wait();
+				}
+				this.pendingParts++;
+				this.pendingBytes += length;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while uploading s3://" + this.bucket + "/" + this.key);
+		}
+		final int partNumber = this.parts.size() + 1;
+		final byte[] data = this.buffer;
+		final String id = this.uploadId;
+		this.bytesWritten += length;
+		this.count = 0;
+		this.buffer = null;
+		CompletableFuture<PartETag> part = CompletableFuture.supplyAsync(() -> {
+			try {
+				UploadPartRequest request = new UploadPartRequest()
+						.withBucketName(this.bucket)
+						.withKey(this.key)
+						.withUploadId(id)
+						.withPartNumber(partNumber)
+						.withPartSize(length)
+						.withInputStream(new ByteArrayInputStream(data, 0, length));
+				return this.s3Client.uploadPart(request).getPartETag();
+			} finally {
+				synchronized (this.pendingLock) {
+					this.pendingParts--;
+					this.pendingBytes -= length;
+					this.pendingLock.notifyAll();
+				}
+			}
+		}, this.executor);
+		this.parts.add(part);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (this.closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Selects objects by the metadata a listing returns for them: size, last modification time and storage class.
+ * <p>
+ * The filter is applied to the summaries of a page while it is mapped, so objects that do not match are dropped
+ * before anything else is allocated for them and no HEAD request is needed.
+ */
+public class ObjectSummaryFilter implements Predicate<S3ObjectSummary> {
+
+	private final long minSize;
+	private final long maxSize;
+	private final long modifiedAfter;
+	private final long modifiedBefore;
+	private final Set<String> storageClasses;
+
+	/**
+	 * @param minSize        the minimum size in bytes, inclusive, may be null
+	 * @param maxSize        the maximum size in bytes, inclusive, may be null
+	 * @param modifiedAfter  objects must be modified at or after this time, may be null
+	 * @param modifiedBefore objects must be modified before this time, may be null
+	 * @param storageClasses the accepted storage classes separated by commas or whitespace, null or empty for all
+	 */
+	public ObjectSummaryFilter(Long minSize, Long maxSize, Date modifiedAfter, Date modifiedBefore, String storageClasses) {
+		this.minSize = minSize == null ? Long.MIN_VALUE : minSize;
+		this.maxSize = maxSize == null ? Long.MAX_VALUE : maxSize;
+		this.modifiedAfter = modifiedAfter == null ? Long.MIN_VALUE : modifiedAfter.getTime();
+		this.modifiedBefore = modifiedBefore == null ? Long.MAX_VALUE : modifiedBefore.getTime();
+		this.storageClasses = new HashSet<>();
+		if (storageClasses != null) {
+			for (String storageClass : storageClasses.trim().split("[,\\s]+")) {
+				if (!storageClass.isEmpty()) {
+					this.storageClasses.add(storageClass.toUpperCase(Locale.ENGLISH));
+				}
+			}
+		}
+		if (this.minSize > this.maxSize) {
+			throw new IllegalArgumentException("MinSize must not be greater than MaxSize");
+		}
+	}
+
+	/**
+	 * @param minSize        the minimum size in bytes, inclusive, may be null
+	 * @param maxSize        the maximum size in bytes, inclusive, may be null
+	 * @param modifiedAfter  objects must be modified at or after this time, may be null
+	 * @param modifiedBefore objects must be modified before this time, may be null
+	 * @param storageClasses the accepted storage classes separated by commas or whitespace, may be null
+	 * @return the filter or null if no condition is given
+	 */
+	public static ObjectSummaryFilter of(Long minSize, Long maxSize, Date modifiedAfter, Date modifiedBefore, String storageClasses) {
+		ObjectSummaryFilter filter = new ObjectSummaryFilter(minSize, maxSize, modifiedAfter, modifiedBefore, storageClasses);
+		return minSize == null && maxSize == null && modifiedAfter == null && modifiedBefore == null && filter.storageClasses.isEmpty() ? null : filter;
+	}
+
+	/**
+	 * Parses a point in time given as ISO-8601 date time (<code>2024-01-31T12:00:00Z</code>), as ISO-8601 date
+	 * (<code>2024-01-31</code>, midnight UTC) or as ISO-8601 duration before now (<code>P30D</code>, <code>PT12H</code>).
+	 *
+	 * @param value the value, may be null or empty
+	 * @param now   the current time in milliseconds, the base of durations
+	 * @return the point in time or null if the value is null or empty
+	 * @throws IllegalArgumentException if the value cannot be parsed
+	 */
+	public static Date parseTime(String value, long now) {
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		String trimmed = value.trim();
+		try {
+			if (trimmed.startsWith("P") || trimmed.startsWith("p")) {
+				return new Date(now - Duration.parse(trimmed).toMillis());
+			}
+			if (trimmed.length() == 10) {
+				return Date.from(LocalDate.parse(trimmed).atStartOfDay(ZoneOffset.UTC).toInstant());
+			}
+			return Date.from(OffsetDateTime.parse(trimmed).toInstant());
+		} catch (DateTimeParseException | ArithmeticException e) {
+			throw new IllegalArgumentException("Invalid date or duration: " + value, e);
+		}
+	}
+
+	@Override
+	public boolean test(S3ObjectSummary summary) {
+		long size = summary.getSize();
+		if (size < this.minSize || size > this.maxSize) {
+			return false;
+		}
+		if (this.modifiedAfter != Long.MIN_VALUE || this.modifiedBefore != Long.MAX_VALUE) {
+			if (summary.getLastModified() == null) {
+				return false;
+			}
+			long lastModified = summary.getLastModified().getTime();
+			if (lastModified < this.modifiedAfter || lastModified >= this.modifiedBefore) {
+				return false;
+			}
+		}
+		// the listing omits the storage class of STANDARD objects in some S3 compatible stores
+		return this.storageClasses.isEmpty() || this.storageClasses.contains(summary.getStorageClass() == null ? "STANDARD" : summary.getStorageClass().toUpperCase(Locale.ENGLISH));
+	}
+}
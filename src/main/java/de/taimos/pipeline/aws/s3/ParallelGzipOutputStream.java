@@ -0,0 +1,161 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzip stream that compresses blocks of its input in parallel.
+ * <p>
+ * Every block is written as a separate gzip member. Concatenated members are a valid gzip file
+ * (RFC 1952) that gzip, tar and {@link java.util.zip.GZIPInputStream} decompress as a whole.
+ * At most <code>maxPendingBlocks</code> blocks are buffered, which bounds the memory used.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private final OutputStream out;
+	private final Executor executor;
+	private final int blockSize;
+	private final int maxPendingBlocks;
+	private final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+	private byte[] buffer;
+	private int count;
+	private boolean written;
+	private boolean closed;
+
+	public ParallelGzipOutputStream(OutputStream out, Executor executor, int parallelism) {
+		this(out, executor, DEFAULT_BLOCK_SIZE, 2 * parallelism);
+	}
+
+	public ParallelGzipOutputStream(OutputStream out, Executor executor, int blockSize, int maxPendingBlocks) {
+		this.out = out;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+		this.buffer = new byte[blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.ensureOpen();
+		this.buffer[this.count++] = (byte) b;
+		if (this.count == this.blockSize) {
+			this.submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		this.ensureOpen();
+		while (len > 0) {
+			int n = Math.min(len, this.blockSize - this.count);
+			System.arraycopy(b, off, this.buffer, this.count, n);
+			this.count += n;
+			off += n;
+			len -= n;
+			if (this.count == this.blockSize) {
+				this.submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes all completed blocks. Data of the current, incomplete block stays buffered, as a flush
+	 * in the middle of a block would only produce smaller members.
+	 */
+	@Override
+	public void flush() throws IOException {
+		this.ensureOpen();
+		while (!this.pending.isEmpty() && this.pending.peekFirst().isDone()) {
+			this.writeNext();
+		}
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		// the underlying stream is only closed on success, so an upload is not completed with partial data
+		this.closed = true;
+		if (this.count > 0 || !this.written) {
+			// an empty input still has to produce a valid gzip file
+			this.submitBlock();
+		}
+		this.buffer = null;
+		while (!this.pending.isEmpty()) {
+			this.writeNext();
+		}
+		this.out.close();
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] block = Arrays.copyOf(this.buffer, this.count);
+		this.count = 0;
+		this.written = true;
+		this.pending.addLast(CompletableFuture.supplyAsync(() -> compress(block), this.executor));
+		while (this.pending.size() > this.maxPendingBlocks) {
+			this.writeNext();
+		}
+	}
+
+	private void writeNext() throws IOException {
+		try {
+			this.out.write(this.pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing");
+		} catch (ExecutionException e) {
+			throw new IOException("Compression failed", e.getCause());
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (this.closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private static byte[] compress(byte[] block) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(block.length / 2 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes, 64 * 1024)) {
+			gzip.write(block);
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+}
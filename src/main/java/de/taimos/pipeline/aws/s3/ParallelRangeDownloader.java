@@ -0,0 +1,434 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Downloads objects with parallel ranged GET requests.
+ * <p>
+ * The object is split into byte ranges of <code>partSize</code> bytes that are fetched by up to
+ * <code>concurrency</code> workers. Every worker writes its ranges at their offset into a file that is
+ * preallocated to the size of the object, so the parts are never buffered in memory or reassembled.
+ * All requests are bound to the ETag of the HEAD request or listing, so an object that is overwritten
+ * during the download fails it instead of mixing two versions. The data is written to a
+ * <code>.partial</code> file next to the target that is renamed once all ranges are complete.
+ * <p>
+ * A resumable downloader keeps the partial file of a failed download together with a
+ * <code>.partial.json</code> file that records the ETag of the object and how many bytes of every range
+ * were written. The next download of the same object only requests the missing bytes of each range.
+ * The state is discarded if the ETag, the size or the part size differ, and the remaining requests are
+ * again bound to the recorded ETag, so a changed object is never stitched together with the old one.
+ * <p>
+ * In contrast to the parallel download of the TransferManager this works for every object, not
+ * only for objects that were uploaded in multiple parts.
+ */
+public class ParallelRangeDownloader {
+
+	public static final long DEFAULT_PART_SIZE = 16L * 1024L * 1024L;
+	public static final String PARTIAL_SUFFIX = ".partial";
+	public static final String PARTIAL_STATE_SUFFIX = PARTIAL_SUFFIX + ".json";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int STATE_VERSION = 1;
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final AmazonS3 s3Client;
+	private final Executor executor;
+	private final long partSize;
+	private final int concurrency;
+	private final boolean resumable;
+	private final AtomicLong resumedBytes = new AtomicLong();
+
+	public ParallelRangeDownloader(AmazonS3 s3Client, Executor executor, long partSize, int concurrency) {
+		this(s3Client, executor, partSize, concurrency, false);
+	}
+
+	/**
+	 * @param s3Client    the client
+	 * @param executor    the executor the ranges are downloaded on
+	 * @param partSize    the size of the ranges
+	 * @param concurrency the maximum number of ranges downloaded in parallel
+	 * @param resumable   whether failed downloads keep their partial file to be resumed by the next download
+	 */
+	public ParallelRangeDownloader(AmazonS3 s3Client, Executor executor, long partSize, int concurrency, boolean resumable) {
+		if (partSize < 1) {
+			throw new IllegalArgumentException("partSize must be positive");
+		}
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive");
+		}
+		this.s3Client = s3Client;
+		this.executor = executor;
+		this.partSize = partSize;
+		this.concurrency = concurrency;
+		this.resumable = resumable;
+	}
+
+	/**
+	 * @return the number of bytes that were taken from partial files of earlier downloads
+	 */
+	public long getResumedBytes() {
+		return this.resumedBytes.get();
+	}
+
+	/**
+	 * Downloads the object to the target file and waits until all ranges are written. If a range fails
+	 * or the thread is interrupted, the remaining requests are aborted and the partial file is removed,
+	 * unless the downloader is resumable.
+	 *
+	 * @param bucket the bucket
+	 * @param key    the object key
+	 * @param target the target file, an existing file is replaced
+	 * @return the metadata of the downloaded object
+	 * @throws IOException          if a range cannot be downloaded or written, or the object changed
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public ObjectMetadata download(String bucket, String key, File target) throws IOException, InterruptedException {
+		ObjectMetadata metadata = this.s3Client.getObjectMetadata(bucket, key);
+		this.transfer(bucket, key, metadata.getContentLength(), metadata.getETag(), target, true, new AtomicBoolean());
+		return metadata;
+	}
+
+	/**
+	 * Downloads an object whose size and ETag are already known, e.g. from a listing.
+	 *
+	 * @param bucket the bucket
+	 * @param key    the object key
+	 * @param length the size of the object
+	 * @param eTag   the ETag the requests are bound to, may be null
+	 * @param target the target file, an existing file is replaced
+	 * @throws IOException          if a range cannot be downloaded or written, or the object changed
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void download(String bucket, String key, long length, String eTag, File target) throws IOException, InterruptedException {
+		this.transfer(bucket, key, length, eTag, target, true, new AtomicBoolean());
+	}
+
+	/**
+	 * Downloads a list of listed objects. Objects up to the part size are downloaded in parallel with one
+	 * request each, larger objects are downloaded one after another with parallel ranges afterwards, so
+	 * the workers never wait for tasks queued behind them. If one download fails or the thread is
+	 * interrupted, the remaining downloads are aborted.
+	 *
+	 * @param bucket         the bucket
+	 * @param objects        the objects to download
+	 * @param targetFunction computes the target file of a key
+	 * @param onDownloaded   called with every object that was downloaded completely, may be null
+	 * @return the number of bytes downloaded
+	 * @throws IOException          if an object cannot be downloaded or written, or changed during the download
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public long downloadAll(String bucket, List<S3ObjectSummary> objects, Function<String, File> targetFunction, Consumer<S3ObjectSummary> onDownloaded) throws IOException, InterruptedException {
+		List<S3ObjectSummary> large = new ArrayList<>();
+		List<CompletableFuture<Void>> small = new ArrayList<>();
+		AtomicBoolean failed = new AtomicBoolean();
+		long bytes = 0;
+		for (S3ObjectSummary object : objects) {
+			bytes += object.getSize();
+			if (object.getSize() > this.partSize) {
+				large.add(object);
+				continue;
+			}
+			small.add(CompletableFuture.runAsync(() -> {
+				if (failed.get()) {
+					return;
+				}
+				try {
+					this.transfer(bucket, object.getKey(), object.getSize(), object.getETag(), targetFunction.apply(object.getKey()), false, failed);
+				} catch (IOException | InterruptedException | RuntimeException e) {
+					failed.set(true);
+					throw new RangeException(e);
+				}
+				if (onDownloaded != null && !failed.get()) {
+					onDownloaded.accept(object);
+				}
+			}, this.executor));
+		}
+		awaitAll(small, failed);
+		for (S3ObjectSummary object : large) {
+			this.transfer(bucket, object.getKey(), object.getSize(), object.getETag(), targetFunction.apply(object.getKey()), true, failed);
+			if (onDownloaded != null) {
+				onDownloaded.accept(object);
+			}
+		}
+		return bytes;
+	}
+
+	private void transfer(String bucket, String key, long length, String eTag, File target, boolean parallel, AtomicBoolean failed) throws IOException, InterruptedException {
+		int parts = length == 0 ? 0 : (int) ((length - 1) / this.partSize + 1);
+		Path targetPath = target.toPath().toAbsolutePath();
+		Files.createDirectories(targetPath.getParent());
+		Path partial = targetPath.resolveSibling(targetPath.getFileName() + PARTIAL_SUFFIX);
+		Path state = targetPath.resolveSibling(targetPath.getFileName() + PARTIAL_STATE_SUFFIX);
+		AtomicLongArray progress = this.loadProgress(state, partial, length, eTag, parts);
+		boolean complete = false;
+		boolean kept = false;
+		try {
+			try (RandomAccessFile file = new RandomAccessFile(partial.toFile(), "rw")) {
+				file.setLength(length);
+				FileChannel channel = file.getChannel();
+				AtomicInteger nextPart = new AtomicInteger();
+				Runnable worker = () -> {
+					int part;
+					while (!failed.get() && (part = nextPart.getAndIncrement()) < parts) {
+						long partStart = part * this.partSize;
+						long end = Math.min(partStart + this.partSize, length) - 1;
+						if (partStart + progress.get(part) > end) {
+							continue;
+						}
+						try {
+							this.downloadRange(bucket, key, eTag, channel, partStart, end, progress, part, failed);
+						} catch (IOException | RuntimeException e) {
+							failed.set(true);
+							throw new RangeException(e);
+						}
+					}
+				};
+				boolean written = false;
+				try {
+					if (parallel && parts > 1) {
+						List<CompletableFuture<Void>> workers = new ArrayList<>();
+						for (int i = 0; i < Math.min(this.concurrency, parts); i++) {
+							workers.add(CompletableFuture.runAsync(worker, this.executor));
+						}
+						awaitAll(workers, failed);
+					} else {
+						try {
+							worker.run();
+						} catch (RangeException e) {
+							throw unwrap(e);
+						}
+					}
+					if (failed.get()) {
+						// another download of the same batch failed
+						return;
+					}
+					channel.force(false);
+					written = true;
+				} finally {
+					if (!written && this.resumable && eTag != null) {
+						kept = this.saveProgress(state, partial, length, eTag, progress);
+					}
+				}
+			}
+			moveIntoPlace(partial, targetPath);
+			complete = true;
+		} finally {
+			if (!kept) {
+				Files.deleteIfExists(partial);
+				if (this.resumable) {
+					Files.deleteIfExists(state);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the bytes already written to every range of a partial download of the same object, or no progress if there is none
+	 */
+	private AtomicLongArray loadProgress(Path state, Path partial, long length, String eTag, int parts) {
+		AtomicLongArray progress = new AtomicLongArray(parts);
+		if (!this.resumable || eTag == null || !Files.isRegularFile(state) || partial.toFile().length() != length) {
+			return progress;
+		}
+		try {
+			JsonNode root = MAPPER.readTree(state.toFile());
+			JsonNode written = root.path("progress");
+			if (root.path("version").asInt() != STATE_VERSION || !eTag.equals(root.path("eTag").asText())
+					|| root.path("length").asLong(-1) != length || root.path("partSize").asLong(-1) != this.partSize || written.size() != parts) {
+				return progress;
+			}
+			long resumed = 0;
+			for (int part = 0; part < parts; part++) {
+				long bytes = written.get(part).asLong(-1);
+				if (bytes < 0 || bytes > Math.min(this.partSize, length - part * this.partSize)) {
+					return new AtomicLongArray(parts);
+				}
+				progress.set(part, bytes);
+				resumed += bytes;
+			}
+			this.resumedBytes.addAndGet(resumed);
+			return progress;
+		} catch (IOException e) {
+			// an unreadable state is treated like a missing one
+			return new AtomicLongArray(parts);
+		}
+	}
+
+	/**
+	 * Flushes the partial file and records the progress of every range. The progress is read before the flush, so it never
+	 * covers bytes that are not on disk.
+	 *
+	 * @return whether the partial file can be resumed
+	 */
+	private boolean saveProgress(Path state, Path partial, long length, String eTag, AtomicLongArray progress) {
+		ObjectNode root = MAPPER.createObjectNode();
+		root.put("version", STATE_VERSION);
+		root.put("eTag", eTag);
+		root.put("length", length);
+		root.put("partSize", this.partSize);
+		ArrayNode written = root.putArray("progress");
+		long total = 0;
+		for (int part = 0; part < progress.length(); part++) {
+			written.add(progress.get(part));
+			total += progress.get(part);
+		}
+		if (total == 0) {
+			return false;
+		}
+		// an interrupted thread cannot use a file channel, the interrupt is restored afterwards
+		boolean interrupted = Thread.interrupted();
+		try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+			channel.force(false);
+			Path tmp = Files.createTempFile(state.getParent(), state.getFileName().toString(), ".tmp");
+			try {
+				MAPPER.writeValue(tmp.toFile(), root);
+				moveIntoPlace(tmp, state);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void downloadRange(String bucket, String key, String eTag, FileChannel channel, long partStart, long end, AtomicLongArray progress, int part, AtomicBoolean failed) throws IOException {
+		long start = partStart + progress.get(part);
+		GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(start, end);
+		if (eTag != null) {
+			request.withMatchingETagConstraint(eTag);
+		}
+		S3Object object = this.s3Client.getObject(request);
+		if (object == null) {
+			throw new IOException("s3://" + bucket + "/" + key + " changed during the download");
+		}
+		try (S3Object closeable = object) {
+			S3ObjectInputStream in = closeable.getObjectContent();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long position = start;
+			boolean done = false;
+			try {
+				int read;
+				while (!failed.get() && (read = in.read(buffer)) != -1) {
+					ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+					while (bytes.hasRemaining()) {
+						position += channel.write(bytes, position);
+					}
+					progress.set(part, position - partStart);
+				}
+				done = position == end + 1;
+			} finally {
+				if (!done) {
+					// do not read the rest of the range just to reuse the connection
+					in.abort();
+				}
+			}
+			if (!failed.get() && position != end + 1) {
+				throw new IOException("Range " + start + "-" + end + " of s3://" + bucket + "/" + key + " ended after " + (position - start) + " bytes");
+			}
+		}
+	}
+
+	private static void moveIntoPlace(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void awaitAll(List<CompletableFuture<Void>> workers, AtomicBoolean failed) throws IOException, InterruptedException {
+		try {
+			for (CompletableFuture<Void> worker : workers) {
+				worker.get();
+			}
+		} catch (InterruptedException e) {
+			failed.set(true);
+			throw e;
+		} catch (ExecutionException e) {
+			failed.set(true);
+			if (e.getCause() instanceof RangeException) {
+				throw unwrap((RangeException) e.getCause());
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static IOException unwrap(RangeException e) throws InterruptedException {
+		Throwable cause = e.getCause();
+		if (cause instanceof InterruptedException) {
+			throw (InterruptedException) cause;
+		}
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		throw (RuntimeException) cause;
+	}
+
+	private static final class RangeException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		RangeException(Exception cause) {
+			super(cause);
+		}
+	}
+}
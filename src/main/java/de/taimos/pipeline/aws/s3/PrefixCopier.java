@@ -0,0 +1,405 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.TransferManager;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+/**
+ * Copies all objects below a prefix to another prefix with server-side copies, so no data passes through Jenkins.
+ * <p>
+ * The source is listed on the calling thread while the copies run on the executor; at most <code>concurrency</code>
+ * copies are in flight and the listing waits until one of them is done. Objects below the multipart copy threshold
+ * are copied with a single CopyObject request, larger ones by the TransferManager with UploadPartCopy. Throttled
+ * copies are retried with the {@link RetryPolicy}, any other failure stops the copy.
+ * <p>
+ * A sync lists the source and the target concurrently and merge-joins both listings by key, so only missing and
+ * changed objects are copied while the memory use does not depend on the number of objects.
+ */
+public class PrefixCopier {
+
+	/**
+	 * The order of a listing: S3 sorts keys by their UTF-8 bytes, which is the order of their code points.
+	 */
+	static final Comparator<String> KEY_ORDER = (a, b) -> {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int x = a.codePointAt(i);
+			int y = b.codePointAt(j);
+			if (x != y) {
+				return Integer.compare(x, y);
+			}
+			i += Character.charCount(x);
+			j += Character.charCount(y);
+		}
+		return Integer.compare(a.length() - i, b.length() - j);
+	};
+
+	private final AmazonS3 s3Client;
+	private final TransferManager transferManager;
+	private final Executor executor;
+	private final int concurrency;
+	private final long multipartThreshold;
+	private final RetryPolicy retryPolicy;
+	private final Semaphore inFlight;
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	private final AtomicInteger objects = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicInteger retries = new AtomicInteger();
+	private int unchanged;
+
+	/**
+	 * @param s3Client           the client
+	 * @param transferManager    the TransferManager for multipart copies
+	 * @param executor           the executor the copies run on
+	 * @param concurrency        the maximum number of copies in flight
+	 * @param multipartThreshold the size in bytes from which objects are copied by the TransferManager
+	 */
+	public PrefixCopier(AmazonS3 s3Client, TransferManager transferManager, Executor executor, int concurrency, long multipartThreshold) {
+		this(s3Client, transferManager, executor, concurrency, multipartThreshold, RetryPolicy.DEFAULT_BACKOFF_MILLIS);
+	}
+
+	PrefixCopier(AmazonS3 s3Client, TransferManager transferManager, Executor executor, int concurrency, long multipartThreshold, long backoffMillis) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive");
+		}
+		this.s3Client = s3Client;
+		this.transferManager = transferManager;
+		this.executor = executor;
+		this.concurrency = concurrency;
+		this.multipartThreshold = multipartThreshold;
+		this.retryPolicy = new RetryPolicy(backoffMillis);
+		this.inFlight = new Semaphore(concurrency);
+	}
+
+	/**
+	 * Copies the objects below the source prefix whose key relative to it matches the globs.
+	 *
+	 * @param fromBucket     the source bucket
+	 * @param fromPrefix     the source prefix, may be empty
+	 * @param toBucket       the target bucket
+	 * @param toPrefix       the target prefix the relative keys are appended to, may be empty
+	 * @param include        the glob the relative keys must match, may be null
+	 * @param exclude        the glob the relative keys must not match, may be null
+	 * @param requestFactory creates the request for a source and a target key, e.g. with metadata and ACL
+	 * @throws IOException          if a copy failed with a checked exception
+	 * @throws InterruptedException if the thread is interrupted while waiting for a copy
+	 */
+	public void copy(String fromBucket, String fromPrefix, String toBucket, String toPrefix, KeyGlob include, KeyGlob exclude,
+			BiFunction<String, String, CopyObjectRequest> requestFactory) throws IOException, InterruptedException {
+		ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(fromBucket);
+		if (!fromPrefix.isEmpty()) {
+			request.setPrefix(fromPrefix);
+		}
+		ListObjectsV2Result listing;
+		do {
+			listing = this.s3Client.listObjectsV2(request);
+			for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+				String relativeKey = summary.getKey().substring(fromPrefix.length());
+				if (relativeKey.isEmpty() || include != null && !include.matches(relativeKey) || exclude != null && exclude.matches(relativeKey)) {
+					continue;
+				}
+				this.submit(requestFactory.apply(summary.getKey(), toPrefix + relativeKey), summary.getSize());
+			}
+			request.setContinuationToken(listing.getNextContinuationToken());
+		} while (listing.isTruncated());
+
+		this.inFlight.acquire(this.concurrency);
+		this.inFlight.release(this.concurrency);
+		this.rethrowFailure();
+	}
+
+	/**
+	 * Copies the objects below the source prefix that are missing below the target prefix or differ from their copy.
+	 * Objects whose relative key does not match the globs are ignored on both sides.
+	 * <p>
+	 * Objects are compared by size and ETag. Multipart and SSE-KMS ETags are no MD5 of the content and differ between
+	 * an object and its copy, for them a copy of the same size that is not older than the source is treated as unchanged.
+	 *
+	 * @param fromBucket      the source bucket
+	 * @param fromPrefix      the source prefix, may be empty
+	 * @param toBucket        the target bucket
+	 * @param toPrefix        the target prefix, may be empty
+	 * @param include         the glob the relative keys must match, may be null
+	 * @param exclude         the glob the relative keys must not match, may be null
+	 * @param requestFactory  creates the request for a source and a target key
+	 * @param listingExecutor the executor both listings run on, needs two threads
+	 * @param deleter         deletes the target objects that do not exist below the source prefix, may be null
+	 * @param kms             whether the copies are encrypted with SSE-KMS, so their ETags never match the source
+	 * @throws IOException          if a copy or a listing failed with a checked exception
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void sync(String fromBucket, String fromPrefix, String toBucket, String toPrefix, KeyGlob include, KeyGlob exclude,
+			BiFunction<String, String, CopyObjectRequest> requestFactory, Executor listingExecutor, BatchDeleter deleter, boolean kms) throws IOException, InterruptedException {
+		try (ListingStream source = new ListingStream(this.s3Client, fromBucket, fromPrefix, include, exclude, listingExecutor);
+				ListingStream target = new ListingStream(this.s3Client, toBucket, toPrefix, include, exclude, listingExecutor)) {
+			S3ObjectSummary from = source.next();
+			S3ObjectSummary to = target.next();
+			while (from != null || to != null) {
+				int order = from == null ? 1 : to == null ? -1 : KEY_ORDER.compare(source.relativeKey(from), target.relativeKey(to));
+				if (order < 0 || order == 0 && !isSame(from, to, kms)) {
+					this.submit(requestFactory.apply(from.getKey(), toPrefix + source.relativeKey(from)), from.getSize());
+				} else if (order == 0) {
+					this.unchanged++;
+				} else if (deleter != null) {
+					deleter.delete(to.getKey());
+				}
+				if (order <= 0) {
+					from = source.next();
+				}
+				if (order >= 0) {
+					to = target.next();
+				}
+			}
+		}
+
+		this.inFlight.acquire(this.concurrency);
+		this.inFlight.release(this.concurrency);
+		this.rethrowFailure();
+	}
+
+	/**
+	 * @return the number of copied objects
+	 */
+	public int getObjects() {
+		return this.objects.get();
+	}
+
+	/**
+	 * @return the number of copied bytes
+	 */
+	public long getBytes() {
+		return this.bytes.get();
+	}
+
+	public int getRetries() {
+		return this.retries.get();
+	}
+
+	/**
+	 * @return the number of objects a sync found unchanged
+	 */
+	public int getUnchanged() {
+		return this.unchanged;
+	}
+
+	/**
+	 * @param from the source object
+	 * @param to   the copy
+	 * @param kms  whether the copy is encrypted with SSE-KMS
+	 * @return true if the copy is up to date
+	 */
+	static boolean isSame(S3ObjectSummary from, S3ObjectSummary to, boolean kms) {
+		if (from.getSize() != to.getSize()) {
+			return false;
+		}
+		if (from.getETag() != null && from.getETag().equals(to.getETag())) {
+			return true;
+		}
+		if (!kms && !ETagUtils.isMultipartETag(from.getETag()) && !ETagUtils.isMultipartETag(to.getETag())) {
+			return false;
+		}
+		// the copy gets a new modification time, so it is only older than the source if the source was replaced
+		return from.getLastModified() != null && to.getLastModified() != null && !to.getLastModified().before(from.getLastModified());
+	}
+
+	private void submit(CopyObjectRequest request, long size) throws IOException, InterruptedException {
+		this.rethrowFailure();
+		this.inFlight.acquire();
+		try {
+			CompletableFuture.runAsync(() -> {
+				try {
+					if (this.failure.get() == null) {
+						this.copyObject(request, size);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					this.failure.compareAndSet(null, e);
+				} catch (RuntimeException | Error e) {
+					this.failure.compareAndSet(null, e);
+				} finally {
+					this.inFlight.release();
+				}
+			}, this.executor);
+		} catch (RuntimeException e) {
+			this.inFlight.release();
+			throw e;
+		}
+	}
+
+	private void copyObject(CopyObjectRequest request, long size) throws InterruptedException {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				if (size < this.multipartThreshold) {
+					this.s3Client.copyObject(request);
+				} else {
+					this.transferManager.copy(request).waitForCompletion();
+				}
+				this.objects.incrementAndGet();
+				this.bytes.addAndGet(size);
+				return;
+			} catch (AmazonServiceException e) {
+				if (!RetryPolicy.isRetryable(e) || !this.retryPolicy.canRetry(attempt)) {
+					throw e;
+				}
+			}
+			this.retries.incrementAndGet();
+			Thread.sleep(this.retryPolicy.delay(attempt));
+		}
+	}
+
+	private void rethrowFailure() throws IOException, InterruptedException {
+		Throwable t = this.failure.get();
+		if (t == null) {
+			return;
+		}
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		if (t instanceof InterruptedException) {
+			throw new InterruptedException("Copy of an object was interrupted");
+		}
+		throw new IOException(t);
+	}
+
+	/**
+	 * Lists a prefix on the executor while the objects are consumed. At most {@value #BUFFERED_PAGES} pages are
+	 * buffered, so the listing waits for a slow consumer.
+	 */
+	private static final class ListingStream implements Closeable {
+
+		private static final int BUFFERED_PAGES = 2;
+		private static final Object END = new Object();
+
+		private final String prefix;
+		private final KeyGlob include;
+		private final KeyGlob exclude;
+		private final BlockingQueue<Object> pages = new ArrayBlockingQueue<>(BUFFERED_PAGES);
+		private volatile boolean closed;
+		private boolean ended;
+		private Iterator<S3ObjectSummary> current = Collections.emptyIterator();
+
+		ListingStream(AmazonS3 s3Client, String bucket, String prefix, KeyGlob include, KeyGlob exclude, Executor executor) {
+			this.prefix = prefix;
+			this.include = include;
+			this.exclude = exclude;
+			executor.execute(() -> {
+				try {
+					try {
+						ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket);
+						if (!prefix.isEmpty()) {
+							request.setPrefix(prefix);
+						}
+						ListObjectsV2Result listing;
+						do {
+							listing = s3Client.listObjectsV2(request);
+							this.put(listing.getObjectSummaries());
+							request.setContinuationToken(listing.getNextContinuationToken());
+						} while (listing.isTruncated() && !this.closed);
+						this.put(END);
+					} catch (RuntimeException | Error e) {
+						this.put(e);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+
+		String relativeKey(S3ObjectSummary summary) {
+			return summary.getKey().substring(this.prefix.length());
+		}
+
+		/**
+		 * @return the next object whose relative key matches the globs or null at the end of the listing
+		 */
+		S3ObjectSummary next() throws IOException, InterruptedException {
+			while (true) {
+				while (!this.current.hasNext()) {
+					if (this.ended) {
+						return null;
+					}
+					Object page = this.pages.take();
+					if (page == END) {
+						this.ended = true;
+						return null;
+					}
+					if (page instanceof RuntimeException) {
+						throw (RuntimeException) page;
+					}
+					if (page instanceof Error) {
+						throw (Error) page;
+					}
+					@SuppressWarnings("unchecked")
+					List<S3ObjectSummary> summaries = (List<S3ObjectSummary>) page;
+					this.current = summaries.iterator();
+				}
+				S3ObjectSummary summary = this.current.next();
+				String relativeKey = this.relativeKey(summary);
+				if (!relativeKey.isEmpty() && (this.include == null || this.include.matches(relativeKey)) && (this.exclude == null || !this.exclude.matches(relativeKey))) {
+					return summary;
+				}
+			}
+		}
+
+		private void put(Object page) throws InterruptedException {
+			while (!this.closed && !this.pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+				// wait for the consumer or for close
+			}
+		}
+
+		@Override
+		public void close() {
+			this.closed = true;
+			this.pages.clear();
+		}
+	}
+}
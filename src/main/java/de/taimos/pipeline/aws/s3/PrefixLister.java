@@ -0,0 +1,406 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Lists a prefix and all "folders" below it in parallel.
+ * <p>
+ * Every folder is listed with <code>/</code> as delimiter and ListObjectsV2 continuation tokens. The common
+ * prefixes of a page are listed as soon as the page arrives, so the listing fans out over the tree on a
+ * bounded executor instead of walking it one request at a time. The pages are mapped to results on the
+ * worker threads; the results are merged in breadth-first order of the folders and in page order within
+ * a folder, so the outcome does not depend on the timing of the requests. They can be collected into a
+ * list or streamed to a sink while the listing is running.
+ * <p>
+ * A planner decides for every folder how it is listed: with the delimiter, descending into its common
+ * prefixes; flat without delimiter, returning everything below it in one stream of pages; or not at
+ * all. The planner can also narrow the prefix of the request to the literal part of the next level.
+ */
+public class PrefixLister {
+
+	public static final String DELIMITER = "/";
+
+	private final AmazonS3 s3Client;
+	private final Executor executor;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger folders = new AtomicInteger();
+
+	/**
+	 * @param s3Client the client
+	 * @param executor the executor the folders are listed on, bounds the number of concurrent requests
+	 */
+	public PrefixLister(AmazonS3 s3Client, Executor executor) {
+		this.s3Client = s3Client;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the number of list requests sent so far
+	 */
+	public int getRequests() {
+		return this.requests.get();
+	}
+
+	/**
+	 * @return the number of folders listed so far
+	 */
+	public int getFolders() {
+		return this.folders.get();
+	}
+
+	/**
+	 * Lists the prefix and all folders below it and waits until all folders are listed. If a request fails
+	 * or the thread is interrupted, no further requests are started.
+	 *
+	 * @param bucket the bucket
+	 * @param prefix the prefix to start at, a <code>/</code> is appended if it is not empty
+	 * @param mapper maps every page to the results it contributes, called concurrently
+	 * @param <T>    the type of the results
+	 * @return the results of all pages in breadth-first order of the folders
+	 * @throws IOException          if the listing fails with a checked exception
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public <T> List<T> list(String bucket, String prefix, Function<ListObjectsV2Result, List<T>> mapper) throws IOException, InterruptedException {
+		return this.list(bucket, prefix, FolderPlan::delimited, mapper);
+	}
+
+	/**
+	 * Lists the prefix and the folders below it as decided by the planner.
+	 * <p>
+	 * The pages of a flat listing carry the folders between the listed folder and their keys as common
+	 * prefixes, every folder on the first page it appears in, so the mapper sees the same folders as with
+	 * a delimited listing.
+	 *
+	 * @param bucket  the bucket
+	 * @param prefix  the prefix to start at, a <code>/</code> is appended if it is not empty
+	 * @param planner decides how a folder is listed, called with the prefix of the folder
+	 * @param mapper  maps every page to the results it contributes, called concurrently
+	 * @param <T>     the type of the results
+	 * @return the results of all pages in breadth-first order of the folders
+	 * @throws IOException          if the listing fails with a checked exception
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public <T> List<T> list(String bucket, String prefix, Function<String, FolderPlan> planner, Function<ListObjectsV2Result, List<T>> mapper) throws IOException, InterruptedException {
+		List<T> results = new ArrayList<>();
+		this.list(bucket, prefix, planner, mapper, results::addAll);
+		return results;
+	}
+
+	/**
+	 * Lists the prefix and the folders below it as decided by the planner and passes the results to the
+	 * sink while the listing is running.
+	 * <p>
+	 * The sink is called on the calling thread, in the same order as the results of
+	 * {@link #list(String, String, Function, Function)}. The results of a page are handed over as soon as
+	 * all folders before it are complete and released afterwards, so only the results that arrived out of
+	 * order are held in memory. If the sink fails, no further requests are started.
+	 *
+	 * @param bucket  the bucket
+	 * @param prefix  the prefix to start at, a <code>/</code> is appended if it is not empty
+	 * @param planner decides how a folder is listed, called with the prefix of the folder
+	 * @param mapper  maps every page to the results it contributes, called concurrently
+	 * @param sink    receives the results of every page in breadth-first order of the folders
+	 * @param <T>     the type of the results
+	 * @throws IOException          if the listing fails with a checked exception or the sink fails
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public <T> void list(String bucket, String prefix, Function<String, FolderPlan> planner, Function<ListObjectsV2Result, List<T>> mapper, ResultSink<T> sink) throws IOException, InterruptedException {
+		String root = prefix == null ? "" : prefix;
+		if (!root.isEmpty() && !root.endsWith(DELIMITER)) {
+			root += DELIMITER;
+		}
+		Folder<T> rootFolder = new Folder<>(root);
+		Listing<T> listing = new Listing<>(bucket, planner, mapper);
+		Deque<Folder<T>> queue = new ArrayDeque<>();
+		queue.add(rootFolder);
+		try {
+			listing.submit(rootFolder);
+			while (!queue.isEmpty()) {
+				Folder<T> head = queue.peek();
+				// read before draining, so no page of a complete folder is missed
+				boolean complete = head.complete;
+				for (List<T> page = head.pages.poll(); page != null; page = head.pages.poll()) {
+					sink.accept(page);
+				}
+				if (complete) {
+					queue.poll();
+					queue.addAll(head.children);
+				} else if (listing.done.isDone()) {
+					// failed, the folder will never complete
+					listing.done.get();
+				} else {
+					listing.progress.acquire();
+					listing.progress.drainPermits();
+				}
+			}
+			listing.done.get();
+		} catch (InterruptedException | IOException | RuntimeException | Error e) {
+			listing.done.cancel(false);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Receives the results of the pages of a listing.
+	 *
+	 * @param <T> the type of the results
+	 */
+	@FunctionalInterface
+	public interface ResultSink<T> {
+		/**
+		 * @param results the results of one page
+		 * @throws IOException if the results cannot be processed
+		 */
+		void accept(List<T> results) throws IOException;
+	}
+
+	/**
+	 * One listing run. Tracks the folders that are not listed yet and completes once there are none.
+	 */
+	private final class Listing<T> {
+		private final String bucket;
+		private final Function<String, FolderPlan> planner;
+		private final Function<ListObjectsV2Result, List<T>> mapper;
+		private final AtomicInteger pending = new AtomicInteger();
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+		/** Released whenever a page or a folder is complete or the listing is done. */
+		private final Semaphore progress = new Semaphore(0);
+
+		Listing(String bucket, Function<String, FolderPlan> planner, Function<ListObjectsV2Result, List<T>> mapper) {
+			this.bucket = bucket;
+			this.planner = planner;
+			this.mapper = mapper;
+			this.done.whenComplete((result, failure) -> this.progress.release());
+		}
+
+		void submit(Folder<T> folder) {
+			folder.plan = this.planner.apply(folder.prefix);
+			if (folder.plan.getMode() == FolderPlan.Mode.SKIP) {
+				folder.complete = true;
+				if (this.pending.get() == 0) {
+					// the root folder is skipped
+					this.done.complete(null);
+				}
+				return;
+			}
+			this.pending.incrementAndGet();
+			try {
+				PrefixLister.this.executor.execute(() -> this.run(folder));
+			} catch (RuntimeException e) {
+				this.done.completeExceptionally(e);
+			}
+		}
+
+		private void run(Folder<T> folder) {
+			if (this.done.isDone()) {
+				// failed or cancelled
+				return;
+			}
+			try {
+				if (folder.plan.getMode() == FolderPlan.Mode.FLAT) {
+					this.listFlat(folder);
+				} else {
+					this.listFolder(folder);
+				}
+			} catch (RuntimeException | Error e) {
+				this.done.completeExceptionally(e);
+				return;
+			}
+			folder.complete = true;
+			this.progress.release();
+			if (this.pending.decrementAndGet() == 0) {
+				this.done.complete(null);
+			}
+		}
+
+		private void listFolder(Folder<T> folder) {
+			PrefixLister.this.folders.incrementAndGet();
+			ListObjectsV2Request request = new ListObjectsV2Request()
+					.withBucketName(this.bucket)
+					.withDelimiter(DELIMITER);
+			if (!folder.plan.getPrefix().isEmpty()) {
+				request.setPrefix(folder.plan.getPrefix());
+			}
+			ListObjectsV2Result result;
+			do {
+				if (this.done.isDone()) {
+					return;
+				}
+				PrefixLister.this.requests.incrementAndGet();
+				result = PrefixLister.this.s3Client.listObjectsV2(request);
+				this.addPage(folder, result);
+				for (String commonPrefix : result.getCommonPrefixes()) {
+					Folder<T> child = new Folder<>(commonPrefix);
+					folder.children.add(child);
+					this.submit(child);
+				}
+				request.setContinuationToken(result.getNextContinuationToken());
+			} while (result.isTruncated());
+		}
+
+		private void addPage(Folder<T> folder, ListObjectsV2Result result) {
+			List<T> results = this.mapper.apply(result);
+			if (!results.isEmpty()) {
+				folder.pages.add(results);
+				this.progress.release();
+			}
+		}
+
+		private void listFlat(Folder<T> folder) {
+			PrefixLister.this.folders.incrementAndGet();
+			ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(this.bucket);
+			if (!folder.plan.getPrefix().isEmpty()) {
+				request.setPrefix(folder.plan.getPrefix());
+			}
+			Set<String> seen = new HashSet<>();
+			ListObjectsV2Result result;
+			do {
+				if (this.done.isDone()) {
+					return;
+				}
+				PrefixLister.this.requests.incrementAndGet();
+				result = PrefixLister.this.s3Client.listObjectsV2(request);
+				Set<String> subFolders = new LinkedHashSet<>();
+				for (S3ObjectSummary summary : result.getObjectSummaries()) {
+					String key = summary.getKey();
+					for (int i = key.indexOf(DELIMITER, folder.prefix.length()); i >= 0; i = key.indexOf(DELIMITER, i + 1)) {
+						String subFolder = key.substring(0, i + 1);
+						if (seen.add(subFolder)) {
+							subFolders.add(subFolder);
+						}
+					}
+				}
+				result.getCommonPrefixes().clear();
+				result.getCommonPrefixes().addAll(subFolders);
+				this.addPage(folder, result);
+				request.setContinuationToken(result.getNextContinuationToken());
+			} while (result.isTruncated());
+		}
+	}
+
+	/**
+	 * Decides how one folder is listed.
+	 */
+	public static final class FolderPlan {
+
+		/**
+		 * The ways a folder can be listed.
+		 */
+		public enum Mode {
+			/** The folder cannot contain results and is not listed. */
+			SKIP,
+			/** The folder is listed with the delimiter, its common prefixes are planned as folders. */
+			DELIMITED,
+			/** Everything below the folder is listed without delimiter. */
+			FLAT
+		}
+
+		private static final FolderPlan SKIPPED = new FolderPlan(Mode.SKIP, "");
+
+		private final Mode mode;
+		private final String prefix;
+
+		private FolderPlan(Mode mode, String prefix) {
+			this.mode = mode;
+			this.prefix = prefix;
+		}
+
+		public static FolderPlan skip() {
+			return SKIPPED;
+		}
+
+		/**
+		 * @param prefix the prefix of the request, the folder or a longer prefix
+		 * @return a listing with delimiter
+		 */
+		public static FolderPlan delimited(String prefix) {
+			return new FolderPlan(Mode.DELIMITED, prefix);
+		}
+
+		/**
+		 * @param prefix the prefix of the request, the folder or a longer prefix
+		 * @return a listing without delimiter
+		 */
+		public static FolderPlan flat(String prefix) {
+			return new FolderPlan(Mode.FLAT, prefix);
+		}
+
+		public Mode getMode() {
+			return this.mode;
+		}
+
+		public String getPrefix() {
+			return this.prefix;
+		}
+
+		@Override
+		public String toString() {
+			return this.mode + " " + this.prefix;
+		}
+	}
+
+	/**
+	 * A listed folder with the results of its pages and its sub folders in listing order.
+	 * Only the thread listing the folder writes to it; the sub folders are read once it is complete.
+	 */
+	private static final class Folder<T> {
+		private final String prefix;
+		private FolderPlan plan;
+		private final Queue<List<T>> pages = new ConcurrentLinkedQueue<>();
+		private final List<Folder<T>> children = new ArrayList<>();
+		private volatile boolean complete;
+
+		Folder(String prefix) {
+			this.prefix = prefix;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.transfer.PauseResult;
+import com.amazonaws.services.s3.transfer.PersistableTransfer;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
+import com.amazonaws.services.s3.transfer.internal.S3SyncProgressListener;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Persists the state of a multipart upload of a single file, so a later run can resume it with
+ * {@link com.amazonaws.services.s3.transfer.TransferManager#resumeUpload(PersistableUpload)}.
+ * <p>
+ * The state file holds the {@link PersistableUpload} (bucket, key, upload id and part size) together
+ * with the size and modification time of the file. The parts that are already stored are listed by
+ * the TransferManager when the upload is resumed, so only the missing parts are uploaded again.
+ * A state that belongs to a modified file is discarded.
+ */
+public class ResumableUploadState {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final File stateFile;
+
+	ResumableUploadState(File stateFile) {
+		this.stateFile = stateFile;
+	}
+
+	/**
+	 * @param stateDir the directory holding the state files
+	 * @param bucket   the bucket
+	 * @param key      the object key
+	 * @param file     the file to upload
+	 * @return the state of the upload of the file to the given object
+	 */
+	public static ResumableUploadState of(File stateDir, String bucket, String key, File file) {
+		return new ResumableUploadState(new File(stateDir, stateFileName(bucket + "/" + key + "\n" + file.getAbsolutePath())));
+	}
+
+	/**
+	 * @param id the identity of the transfer
+	 * @return a file name derived from a hash of the id
+	 */
+	static String stateFileName(String id) {
+		return hashName(id) + ".json";
+	}
+
+	/**
+	 * @param id the identity of the transfer
+	 * @return the first 16 bytes of the SHA-256 of the id in hex
+	 */
+	static String hashName(String id) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (int i = 0; i < 16; i++) {
+				name.append(String.format("%02x", digest[i]));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public File getStateFile() {
+		return this.stateFile;
+	}
+
+	/**
+	 * Loads the persisted upload of the given file.
+	 *
+	 * @param file the file to upload
+	 * @return the upload to resume or null if there is none or the file was modified since
+	 */
+	public PersistableUpload load(File file) {
+		if (!this.stateFile.isFile()) {
+			return null;
+		}
+		try {
+			JsonNode root = MAPPER.readTree(this.stateFile);
+			if (root.path("length").asLong(-1) != file.length() || root.path("lastModified").asLong(-1) != file.lastModified()) {
+				this.delete();
+				return null;
+			}
+			return PersistableTransfer.deserializeFrom(MAPPER.writeValueAsString(root.path("upload")));
+		} catch (IOException | AmazonClientException | IllegalArgumentException e) {
+			// an unreadable state is treated like a missing one
+			this.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the state atomically, so an interrupted write never leaves a corrupt file.
+	 *
+	 * @param upload the upload to persist
+	 * @param file   the file to upload
+	 * @throws IOException if the state cannot be written
+	 */
+	public void save(PersistableUpload upload, File file) throws IOException {
+		ObjectNode root = MAPPER.createObjectNode();
+		root.put("length", file.length());
+		root.put("lastModified", file.lastModified());
+		root.set("upload", MAPPER.readTree(upload.serialize()));
+		Path target = this.stateFile.toPath();
+		Files.createDirectories(target.getParent());
+		Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			MAPPER.writeValue(tmp.toFile(), root);
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	public void delete() {
+		try {
+			Files.deleteIfExists(this.stateFile.toPath());
+		} catch (IOException e) {
+			// a stale state is discarded on the next run as the upload id is no longer valid
+		}
+	}
+
+	/**
+	 * @param file   the file to upload
+	 * @param logger the logger for failures to write the state
+	 * @return a listener that saves the state as soon as the TransferManager started the multipart upload
+	 */
+	public S3ProgressListener persistingListener(File file, PrintStream logger) {
+		return new S3SyncProgressListener() {
+			@Override
+			public void onPersistableTransfer(PersistableTransfer persistableTransfer) {
+				try {
+					ResumableUploadState.this.save((PersistableUpload) persistableTransfer, file);
+				} catch (IOException e) {
+					logger.format("Failed to save the upload state to %s: %s%n", ResumableUploadState.this.stateFile, e.getMessage());
+				}
+			}
+		};
+	}
+
+	/**
+	 * Pauses the upload instead of aborting it and saves its state.
+	 *
+	 * @param upload the running upload
+	 * @param file   the file to upload
+	 * @return true if the upload was paused, false if it cannot be resumed and has to be aborted
+	 */
+	public boolean pause(Upload upload, File file) {
+		try {
+			PauseResult<PersistableUpload> result = upload.tryPause(false);
+			if (!result.getPauseStatus().isPaused()) {
+				return false;
+			}
+			this.save(result.getInfoToResume(), file);
+			return true;
+		} catch (IOException | AmazonClientException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Prunes the groups of a prefix that fall out of a retention policy, e.g. the <code>&lt;build&gt;/</code> folders
+ * below <code>artifacts/&lt;job&gt;/</code>.
+ * <p>
+ * Every folder directly below the prefix is a group. Folders are ordered by their name, or by the first capturing
+ * group of the group pattern, comparing runs of digits by their value. A group is kept if it is one of the newest
+ * <code>keep</code> groups or if its newest object was modified at or after the cutoff, all other groups are
+ * deleted. Folders that do not match the pattern and objects directly below the prefix are left alone.
+ * <p>
+ * The group folders are listed with a delimiter first, which is cheap. The objects of a group are then listed once:
+ * groups that are deleted anyway stream their keys into the {@link BatchDeleter}, groups that depend on the cutoff
+ * hold the keys of this one group until its newest object is known.
+ */
+public class RetentionPruner {
+
+	/**
+	 * Compares the names character by character, but every run of digits as one number by its value, so
+	 * <code>build-9</code> comes before <code>build-10</code>. A number compares to another character like its digits
+	 * do, which keeps the order total when numeric and other names are mixed.
+	 */
+	static final Comparator<String> GROUP_ORDER = RetentionPruner::compareNames;
+
+	private final AmazonS3 s3Client;
+	private final String bucket;
+	private final String prefix;
+	private final Pattern groupPattern;
+	private final Integer keep;
+	private final Date cutoff;
+
+	private int groups;
+	private int keptGroups;
+	private int prunedGroups;
+	private long prunedObjects;
+	private long prunedBytes;
+
+	/**
+	 * @param s3Client     the client
+	 * @param bucket       the bucket
+	 * @param prefix       the prefix whose folders are the groups, may be empty
+	 * @param groupPattern the pattern the folder names must match, may be null
+	 * @param keep         the number of newest groups to keep, may be null
+	 * @param cutoff       groups with an object modified at or after this time are kept, may be null
+	 */
+	public RetentionPruner(AmazonS3 s3Client, String bucket, String prefix, Pattern groupPattern, Integer keep, Date cutoff) {
+		if (keep == null && cutoff == null) {
+			throw new IllegalArgumentException("Keep or KeepNewerThan must be set");
+		}
+		if (keep != null && keep < 0) {
+			throw new IllegalArgumentException("Keep must not be negative");
+		}
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.prefix = UploadSyncPlan.normalizePrefix(prefix);
+		this.groupPattern = groupPattern;
+		this.keep = keep;
+		this.cutoff = cutoff;
+	}
+
+	/**
+	 * Lists the groups and deletes the ones that are not retained.
+	 *
+	 * @param deleter the deleter, null for a dry run that only logs and counts the groups that would be deleted
+	 * @param logger  the logger
+	 * @throws IOException          if the deletion of a batch failed
+	 * @throws InterruptedException if the thread is interrupted while waiting for a batch
+	 */
+	public void prune(BatchDeleter deleter, PrintStream logger) throws IOException, InterruptedException {
+		List<Group> candidates = this.listGroups();
+		candidates.sort((a, b) -> GROUP_ORDER.compare(b.sortKey, a.sortKey));
+		this.groups = candidates.size();
+
+		for (int i = 0; i < candidates.size(); i++) {
+			Group group = candidates.get(i);
+			if (this.keep != null && i < this.keep) {
+				this.keptGroups++;
+				continue;
+			}
+			if (this.cutoff == null) {
+				// the group is deleted in any case, so its keys are never collected
+				this.listGroup(group, summary -> {
+					if (deleter != null) {
+						deleter.delete(summary.getKey());
+					}
+				});
+			} else {
+				List<String> keys = new ArrayList<>();
+				this.listGroup(group, summary -> keys.add(summary.getKey()));
+				if (group.newest != null && !group.newest.before(this.cutoff)) {
+					this.keptGroups++;
+					continue;
+				}
+				if (deleter != null) {
+					for (String key : keys) {
+						deleter.delete(key);
+					}
+				}
+			}
+			this.prunedGroups++;
+			this.prunedObjects += group.objects;
+			this.prunedBytes += group.bytes;
+			logger.format("%s s3://%s/%s (%d objects, %d bytes, last modified %s)%n", deleter == null ? "Would delete" : "Deleting",
+					this.bucket, group.prefix, group.objects, group.bytes, group.newest);
+		}
+	}
+
+	public int getGroups() {
+		return this.groups;
+	}
+
+	public int getKeptGroups() {
+		return this.keptGroups;
+	}
+
+	public int getPrunedGroups() {
+		return this.prunedGroups;
+	}
+
+	public long getPrunedObjects() {
+		return this.prunedObjects;
+	}
+
+	public long getPrunedBytes() {
+		return this.prunedBytes;
+	}
+
+	private List<Group> listGroups() {
+		List<Group> result = new ArrayList<>();
+		ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(this.bucket).withDelimiter("/");
+		if (!this.prefix.isEmpty()) {
+			request.setPrefix(this.prefix);
+		}
+		ListObjectsV2Result listing;
+		do {
+			listing = this.s3Client.listObjectsV2(request);
+			for (String folder : listing.getCommonPrefixes()) {
+				String name = folder.substring(this.prefix.length(), folder.length() - 1);
+				String sortKey = name;
+				if (this.groupPattern != null) {
+					Matcher matcher = this.groupPattern.matcher(name);
+					if (!matcher.matches()) {
+						continue;
+					}
+					if (matcher.groupCount() > 0 && matcher.group(1) != null) {
+						sortKey = matcher.group(1);
+					}
+				}
+				result.add(new Group(folder, sortKey));
+			}
+			request.setContinuationToken(listing.getNextContinuationToken());
+		} while (listing.isTruncated());
+		return result;
+	}
+
+	private void listGroup(Group group, SummaryConsumer consumer) throws IOException, InterruptedException {
+		ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(this.bucket).withPrefix(group.prefix);
+		ListObjectsV2Result listing;
+		do {
+			listing = this.s3Client.listObjectsV2(request);
+			for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+				group.objects++;
+				group.bytes += summary.getSize();
+				if (summary.getLastModified() != null && (group.newest == null || summary.getLastModified().after(group.newest))) {
+					group.newest = summary.getLastModified();
+				}
+				consumer.accept(summary);
+			}
+			request.setContinuationToken(listing.getNextContinuationToken());
+		} while (listing.isTruncated());
+	}
+
+	private static int compareNames(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			if (isDigit(a.charAt(i)) && isDigit(b.charAt(j))) {
+				int endA = endOfDigits(a, i);
+				int endB = endOfDigits(b, j);
+				i = skipZeros(a, i, endA);
+				j = skipZeros(b, j, endB);
+				if (endA - i != endB - j) {
+					return Integer.compare(endA - i, endB - j);
+				}
+				for (; i < endA; i++, j++) {
+					if (a.charAt(i) != b.charAt(j)) {
+						return Character.compare(a.charAt(i), b.charAt(j));
+					}
+				}
+			} else {
+				if (a.charAt(i) != b.charAt(j)) {
+					return Character.compare(a.charAt(i), b.charAt(j));
+				}
+				i++;
+				j++;
+			}
+		}
+		return Integer.compare(a.length() - i, b.length() - j);
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static int endOfDigits(String s, int start) {
+		int end = start;
+		while (end < s.length() && isDigit(s.charAt(end))) {
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * @return the index of the first significant digit, the last digit of a run of zeros
+	 */
+	private static int skipZeros(String s, int start, int end) {
+		while (start < end - 1 && s.charAt(start) == '0') {
+			start++;
+		}
+		return start;
+	}
+
+	@FunctionalInterface
+	private interface SummaryConsumer {
+		void accept(S3ObjectSummary summary) throws IOException, InterruptedException;
+	}
+
+	private static final class Group {
+		private final String prefix;
+		private final String sortKey;
+		private long objects;
+		private long bytes;
+		private Date newest;
+
+		Group(String prefix, String sortKey) {
+			this.prefix = prefix;
+			this.sortKey = sortKey;
+		}
+	}
+}
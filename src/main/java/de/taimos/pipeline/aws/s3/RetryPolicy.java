@@ -0,0 +1,84 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Retries throttled and transiently failed S3 requests on top of the retries of the client, which give up after a
+ * few attempts when many requests run in parallel against one prefix.
+ * <p>
+ * The delay grows exponentially with the attempt and is randomized over the whole range ("full jitter"), so parallel
+ * requests that were throttled together do not retry together.
+ */
+public final class RetryPolicy {
+
+	public static final int MAX_ATTEMPTS = 8;
+	public static final long DEFAULT_BACKOFF_MILLIS = 100L;
+
+	private static final long MAX_BACKOFF_MILLIS = 20_000L;
+	private static final Set<String> RETRYABLE_CODES = new HashSet<>(Arrays.asList(
+			"SlowDown", "Throttling", "ThrottlingException", "RequestLimitExceeded", "InternalError", "ServiceUnavailable", "RequestTimeout"));
+
+	private final long backoffMillis;
+
+	/**
+	 * @param backoffMillis the upper bound of the delay before the first retry
+	 */
+	public RetryPolicy(long backoffMillis) {
+		this.backoffMillis = backoffMillis;
+	}
+
+	/**
+	 * @param code the error code of a request or of a key of a DeleteObjects request
+	 * @return true if the code denotes throttling or a transient error
+	 */
+	public static boolean isRetryable(String code) {
+		return RETRYABLE_CODES.contains(code);
+	}
+
+	public static boolean isRetryable(AmazonServiceException e) {
+		return e.getStatusCode() == 503 || e.getStatusCode() == 500 || isRetryable(e.getErrorCode());
+	}
+
+	/**
+	 * @param attempt the attempt that failed, starting with 1
+	 * @return true if another attempt is made
+	 */
+	public boolean canRetry(int attempt) {
+		return attempt < MAX_ATTEMPTS;
+	}
+
+	/**
+	 * @param attempt the attempt that failed, starting with 1
+	 * @return a random delay up to the exponentially growing limit of the attempt
+	 */
+	public long delay(int attempt) {
+		long limit = Math.min(MAX_BACKOFF_MILLIS, this.backoffMillis << Math.min(attempt - 1, 16));
+		return ThreadLocalRandom.current().nextLong(limit + 1);
+	}
+}
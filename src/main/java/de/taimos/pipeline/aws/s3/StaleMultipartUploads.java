@@ -0,0 +1,82 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.PrintStream;
+import java.util.Date;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+
+/**
+ * Aborts incomplete multipart uploads, so the storage of their parts is released.
+ */
+public final class StaleMultipartUploads {
+
+	private StaleMultipartUploads() {
+		// hidden constructor
+	}
+
+	/**
+	 * Aborts all multipart uploads below the prefix that were initiated before the cutoff.
+	 *
+	 * @param s3Client the client
+	 * @param bucket   the bucket
+	 * @param prefix   the key prefix, may be empty
+	 * @param cutoff   uploads initiated before this date are aborted
+	 * @param logger   the logger
+	 * @return the number of aborted uploads
+	 */
+	public static int abort(AmazonS3 s3Client, String bucket, String prefix, Date cutoff, PrintStream logger) {
+		ListMultipartUploadsRequest request = new ListMultipartUploadsRequest(bucket);
+		if (prefix != null && !prefix.isEmpty()) {
+			request.setPrefix(prefix);
+		}
+		int aborted = 0;
+		MultipartUploadListing listing;
+		do {
+			listing = s3Client.listMultipartUploads(request);
+			for (MultipartUpload upload : listing.getMultipartUploads()) {
+				if (upload.getInitiated() == null || !upload.getInitiated().before(cutoff)) {
+					continue;
+				}
+				logger.format("Aborting multipart upload of s3://%s/%s initiated at %s%n", bucket, upload.getKey(), upload.getInitiated());
+				try {
+					s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, upload.getKey(), upload.getUploadId()));
+					aborted++;
+				} catch (AmazonS3Exception e) {
+					// completed or aborted concurrently
+					if (!"NoSuchUpload".equals(e.getErrorCode())) {
+						throw e;
+					}
+				}
+			}
+			request.setKeyMarker(listing.getNextKeyMarker());
+			request.setUploadIdMarker(listing.getNextUploadIdMarker());
+		} while (listing.isTruncated());
+		return aborted;
+	}
+}
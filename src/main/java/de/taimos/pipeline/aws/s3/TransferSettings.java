@@ -0,0 +1,369 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.google.common.base.Preconditions;
+
+/**
+ * Tuning of the TransferManager used by the S3 transfer steps.
+ * <p>
+ * Every value is optional; unset values are taken from the global defaults and finally from the
+ * TransferManager defaults. Sizes are given in MB. With the profile {@value #PROFILE_AUTO}
+ * values that are not set explicitly are chosen from the number and size of the files to upload.
+ */
+public class TransferSettings implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String PROFILE_DEFAULT = "default";
+	public static final String PROFILE_AUTO = "auto";
+
+	private static final long MB = 1024L * 1024L;
+	/** S3 rejects parts smaller than 5 MB (except the last one) and larger than 5 GB. */
+	private static final int MIN_PART_SIZE_MB = 5;
+	private static final int MAX_PART_SIZE_MB = 5 * 1024;
+	private static final int AUTO_MAX_PARTS = 1000;
+	private static final int AUTO_MIN_PART_SIZE_MB = 8;
+	private static final int AUTO_MIN_THRESHOLD_MB = 16;
+
+	private Integer concurrency;
+	private Integer minimumUploadPartSizeMB;
+	private Integer multipartUploadThresholdMB;
+	private Integer multipartCopyThresholdMB;
+	private Integer multipartCopyPartSizeMB;
+	private Boolean disableParallelDownloads;
+	private Integer downloadPartSizeMB;
+	private String profile;
+
+	public Integer getConcurrency() {
+		return this.concurrency;
+	}
+
+	public TransferSettings withConcurrency(Integer concurrency) {
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	public Integer getMinimumUploadPartSizeMB() {
+		return this.minimumUploadPartSizeMB;
+	}
+
+	public TransferSettings withMinimumUploadPartSizeMB(Integer minimumUploadPartSizeMB) {
+		this.minimumUploadPartSizeMB = minimumUploadPartSizeMB;
+		return this;
+	}
+
+	public Integer getMultipartUploadThresholdMB() {
+		return this.multipartUploadThresholdMB;
+	}
+
+	public TransferSettings withMultipartUploadThresholdMB(Integer multipartUploadThresholdMB) {
+		this.multipartUploadThresholdMB = multipartUploadThresholdMB;
+		return this;
+	}
+
+	public Integer getMultipartCopyThresholdMB() {
+		return this.multipartCopyThresholdMB;
+	}
+
+	public TransferSettings withMultipartCopyThresholdMB(Integer multipartCopyThresholdMB) {
+		this.multipartCopyThresholdMB = multipartCopyThresholdMB;
+		return this;
+	}
+
+	/**
+	 * @param defaultBytes the threshold to use if none is configured
+	 * @return the size in bytes from which objects are copied in parts
+	 */
+	public long getMultipartCopyThreshold(long defaultBytes) {
+		return this.multipartCopyThresholdMB == null ? defaultBytes : this.multipartCopyThresholdMB * MB;
+	}
+
+	public Integer getMultipartCopyPartSizeMB() {
+		return this.multipartCopyPartSizeMB;
+	}
+
+	public TransferSettings withMultipartCopyPartSizeMB(Integer multipartCopyPartSizeMB) {
+		this.multipartCopyPartSizeMB = multipartCopyPartSizeMB;
+		return this;
+	}
+
+	public Boolean getDisableParallelDownloads() {
+		return this.disableParallelDownloads;
+	}
+
+	public TransferSettings withDisableParallelDownloads(Boolean disableParallelDownloads) {
+		this.disableParallelDownloads = disableParallelDownloads;
+		return this;
+	}
+
+	public Integer getDownloadPartSizeMB() {
+		return this.downloadPartSizeMB;
+	}
+
+	public TransferSettings withDownloadPartSizeMB(Integer downloadPartSizeMB) {
+		this.downloadPartSizeMB = downloadPartSizeMB;
+		return this;
+	}
+
+	/**
+	 * @param defaultBytes the part size to use if none is configured
+	 * @return the size of the byte ranges of parallel downloads in bytes
+	 */
+	public long getDownloadPartSize(long defaultBytes) {
+		return this.downloadPartSizeMB == null ? defaultBytes : this.downloadPartSizeMB * MB;
+	}
+
+	public String getProfile() {
+		return this.profile;
+	}
+
+	public TransferSettings withProfile(String profile) {
+		this.profile = profile;
+		return this;
+	}
+
+	public boolean isAuto() {
+		return PROFILE_AUTO.equalsIgnoreCase(this.profile);
+	}
+
+	/**
+	 * Returns the concurrency to use for one TransferManager.
+	 *
+	 * @param max the upper bound, e.g. the size of the shared thread pool
+	 * @return the configured concurrency capped at max, or max if not configured
+	 */
+	public int getConcurrency(int max) {
+		return this.concurrency == null ? max : Math.min(this.concurrency, max);
+	}
+
+	/**
+	 * Checks the configured values against the limits of S3.
+	 *
+	 * @throws IllegalArgumentException if a value is out of range
+	 */
+	public void validate() {
+		Preconditions.checkArgument(this.concurrency == null || this.concurrency > 0, "Transfer concurrency must be positive");
+		Preconditions.checkArgument(this.minimumUploadPartSizeMB == null || (this.minimumUploadPartSizeMB >= MIN_PART_SIZE_MB && this.minimumUploadPartSizeMB <= MAX_PART_SIZE_MB),
+				"Minimum upload part size must be between %s and %s MB", MIN_PART_SIZE_MB, MAX_PART_SIZE_MB);
+		Preconditions.checkArgument(this.multipartCopyPartSizeMB == null || (this.multipartCopyPartSizeMB >= MIN_PART_SIZE_MB && this.multipartCopyPartSizeMB <= MAX_PART_SIZE_MB),
+				"Multipart copy part size must be between %s and %s MB", MIN_PART_SIZE_MB, MAX_PART_SIZE_MB);
+		Preconditions.checkArgument(this.multipartUploadThresholdMB == null || this.multipartUploadThresholdMB > 0, "Multipart upload threshold must be positive");
+		Preconditions.checkArgument(this.multipartCopyThresholdMB == null || this.multipartCopyThresholdMB > 0, "Multipart copy threshold must be positive");
+		Preconditions.checkArgument(this.downloadPartSizeMB == null || this.downloadPartSizeMB > 0, "Download part size must be positive");
+		Preconditions.checkArgument(this.profile == null || this.profile.isEmpty() || PROFILE_DEFAULT.equalsIgnoreCase(this.profile) || PROFILE_AUTO.equalsIgnoreCase(this.profile),
+				"Transfer profile must be one of %s or %s", PROFILE_DEFAULT, PROFILE_AUTO);
+	}
+
+	/**
+	 * Creates new settings where every unset value is taken from the given defaults.
+	 *
+	 * @param defaults the defaults, may be null
+	 * @return the merged settings
+	 */
+	public TransferSettings withDefaults(TransferSettings defaults) {
+		TransferSettings merged = this.copy();
+		if (defaults == null) {
+			return merged;
+		}
+		merged.concurrency = firstNonNull(this.concurrency, defaults.concurrency);
+		merged.minimumUploadPartSizeMB = firstNonNull(this.minimumUploadPartSizeMB, defaults.minimumUploadPartSizeMB);
+		merged.multipartUploadThresholdMB = firstNonNull(this.multipartUploadThresholdMB, defaults.multipartUploadThresholdMB);
+		merged.multipartCopyThresholdMB = firstNonNull(this.multipartCopyThresholdMB, defaults.multipartCopyThresholdMB);
+		merged.multipartCopyPartSizeMB = firstNonNull(this.multipartCopyPartSizeMB, defaults.multipartCopyPartSizeMB);
+		merged.disableParallelDownloads = firstNonNull(this.disableParallelDownloads, defaults.disableParallelDownloads);
+		merged.downloadPartSizeMB = firstNonNull(this.downloadPartSizeMB, defaults.downloadPartSizeMB);
+		merged.profile = this.profile == null || this.profile.isEmpty() ? defaults.profile : this.profile;
+		return merged;
+	}
+
+	/**
+	 * Resolves the auto profile for the given upload. Explicitly configured values are kept.
+	 * Many small files get a high concurrency, large files get parts big enough to stay
+	 * below {@value #AUTO_MAX_PARTS} parts per file.
+	 *
+	 * @param fileCount    the number of files
+	 * @param totalBytes   the total size of all files
+	 * @param largestBytes the size of the largest file
+	 * @return the resolved settings, or these settings if the profile is not auto
+	 */
+	public TransferSettings autoTune(int fileCount, long totalBytes, long largestBytes) {
+		if (!this.isAuto() || fileCount == 0) {
+			return this;
+		}
+		TransferSettings tuned = this.copy();
+		long averageBytes = totalBytes / fileCount;
+		if (tuned.concurrency == null) {
+			if (averageBytes < MB) {
+				tuned.concurrency = 64;
+			} else if (averageBytes < 64 * MB) {
+				tuned.concurrency = 32;
+			} else {
+				tuned.concurrency = 16;
+			}
+		}
+		if (tuned.minimumUploadPartSizeMB == null) {
+			long partSizeMB = Math.max(AUTO_MIN_PART_SIZE_MB, (largestBytes / AUTO_MAX_PARTS + MB - 1) / MB);
+			// round up to a power of two, so similar uploads share a TransferManager
+			partSizeMB = Long.highestOneBit(partSizeMB - 1) << 1;
+			tuned.minimumUploadPartSizeMB = (int) Math.min(MAX_PART_SIZE_MB, partSizeMB);
+		}
+		if (tuned.multipartUploadThresholdMB == null) {
+			tuned.multipartUploadThresholdMB = Math.max(AUTO_MIN_THRESHOLD_MB, tuned.minimumUploadPartSizeMB);
+		}
+		return tuned;
+	}
+
+	/**
+	 * Resolves the auto profile for the given file or directory.
+	 *
+	 * @param fileOrDirectory the file or directory to upload
+	 * @return the resolved settings, or these settings if the profile is not auto
+	 * @throws IOException if the directory cannot be walked
+	 */
+	public TransferSettings autoTune(File fileOrDirectory) throws IOException {
+		if (!this.isAuto()) {
+			return this;
+		}
+		if (fileOrDirectory.isFile()) {
+			return this.autoTune(1, fileOrDirectory.length(), fileOrDirectory.length());
+		}
+		long[] stats = new long[3];
+		try (Stream<Path> paths = Files.walk(fileOrDirectory.toPath())) {
+			paths.filter(Files::isRegularFile).forEach(path -> {
+				long size = path.toFile().length();
+				stats[0]++;
+				stats[1] += size;
+				stats[2] = Math.max(stats[2], size);
+			});
+		}
+		return this.autoTune((int) Math.min(Integer.MAX_VALUE, stats[0]), stats[1], stats[2]);
+	}
+
+	/**
+	 * Resolves the auto profile for the given files.
+	 *
+	 * @param files the files to upload
+	 * @return the resolved settings, or these settings if the profile is not auto
+	 */
+	public TransferSettings autoTune(Collection<File> files) {
+		if (!this.isAuto()) {
+			return this;
+		}
+		long total = 0;
+		long largest = 0;
+		for (File file : files) {
+			long size = file.length();
+			total += size;
+			largest = Math.max(largest, size);
+		}
+		return this.autoTune(files.size(), total, largest);
+	}
+
+	/**
+	 * Applies the configured sizes to the given builder. Concurrency is applied by the caller
+	 * as it depends on the executor the TransferManager runs on.
+	 *
+	 * @param builder the builder
+	 * @return the builder
+	 */
+	public TransferManagerBuilder applyTo(TransferManagerBuilder builder) {
+		if (this.minimumUploadPartSizeMB != null) {
+			builder.setMinimumUploadPartSize(this.minimumUploadPartSizeMB * MB);
+		}
+		if (this.multipartUploadThresholdMB != null) {
+			builder.setMultipartUploadThreshold(this.multipartUploadThresholdMB * MB);
+		}
+		if (this.multipartCopyThresholdMB != null) {
+			builder.setMultipartCopyThreshold(this.multipartCopyThresholdMB * MB);
+		}
+		if (this.multipartCopyPartSizeMB != null) {
+			builder.setMultipartCopyPartSize(this.multipartCopyPartSizeMB * MB);
+		}
+		if (this.disableParallelDownloads != null) {
+			builder.setDisableParallelDownloads(this.disableParallelDownloads);
+		}
+		return builder;
+	}
+
+	private TransferSettings copy() {
+		return new TransferSettings()
+				.withConcurrency(this.concurrency)
+				.withMinimumUploadPartSizeMB(this.minimumUploadPartSizeMB)
+				.withMultipartUploadThresholdMB(this.multipartUploadThresholdMB)
+				.withMultipartCopyThresholdMB(this.multipartCopyThresholdMB)
+				.withMultipartCopyPartSizeMB(this.multipartCopyPartSizeMB)
+				.withDisableParallelDownloads(this.disableParallelDownloads)
+				.withDownloadPartSizeMB(this.downloadPartSizeMB)
+				.withProfile(this.profile);
+	}
+
+	private static <T> T firstNonNull(T value, T fallback) {
+		return value != null ? value : fallback;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o == null || this.getClass() != o.getClass()) {
+			return false;
+		}
+		TransferSettings other = (TransferSettings) o;
+		return Objects.equals(this.concurrency, other.concurrency)
+				&& Objects.equals(this.minimumUploadPartSizeMB, other.minimumUploadPartSizeMB)
+				&& Objects.equals(this.multipartUploadThresholdMB, other.multipartUploadThresholdMB)
+				&& Objects.equals(this.multipartCopyThresholdMB, other.multipartCopyThresholdMB)
+				&& Objects.equals(this.multipartCopyPartSizeMB, other.multipartCopyPartSizeMB)
+				&& Objects.equals(this.disableParallelDownloads, other.disableParallelDownloads)
+				&& Objects.equals(this.downloadPartSizeMB, other.downloadPartSizeMB)
+				&& Objects.equals(this.profile, other.profile);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(this.concurrency, this.minimumUploadPartSizeMB, this.multipartUploadThresholdMB, this.multipartCopyThresholdMB,
+				this.multipartCopyPartSizeMB, this.disableParallelDownloads, this.downloadPartSizeMB, this.profile);
+	}
+
+	@Override
+	public String toString() {
+		return "concurrency=" + this.concurrency
+				+ ", minimumUploadPartSizeMB=" + this.minimumUploadPartSizeMB
+				+ ", multipartUploadThresholdMB=" + this.multipartUploadThresholdMB
+				+ ", multipartCopyThresholdMB=" + this.multipartCopyThresholdMB
+				+ ", multipartCopyPartSizeMB=" + this.multipartCopyPartSizeMB
+				+ ", disableParallelDownloads=" + this.disableParallelDownloads
+				+ ", downloadPartSizeMB=" + this.downloadPartSizeMB;
+	}
+}
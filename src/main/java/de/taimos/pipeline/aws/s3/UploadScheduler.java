@@ -0,0 +1,268 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.ObjectMetadataProvider;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+import com.amazonaws.services.s3.transfer.Upload;
+
+/**
+ * Uploads a list of files with a TransferManager, largest files first.
+ * <p>
+ * Files above the multipart threshold of the TransferManager are started in descending order of size
+ * as long as they fit into the in-flight byte budget, so the long running multipart uploads do not end
+ * up at the tail of the transfer. Smaller files are uploaded in a separate lane that keeps up to
+ * <code>concurrency</code> single request uploads running next to them. The executor of the
+ * TransferManager is never flooded with queued tasks, so the parts of large files are not starved
+ * by thousands of small files.
+ * <p>
+ * The budget charges small files with their size and multipart uploads with the bytes they can have
+ * in flight at once (part size times concurrency). A file that does not fit into the budget is still
+ * started if nothing else of its lane is running.
+ */
+public class UploadScheduler {
+
+	/** Default in-flight byte budget, may be overridden with a system property. */
+	static final long DEFAULT_MAX_IN_FLIGHT_BYTES = Long.getLong(UploadScheduler.class.getName() + ".maxInFlightBytes", 1024L * 1024L * 1024L);
+
+	private static final long POLL_INTERVAL_MILLIS = 100L;
+
+	private final TransferManager transferManager;
+	private final int concurrency;
+	private final long maxInFlightBytes;
+	private final long multipartThreshold;
+	private final long multipartCharge;
+
+	private final Object lock = new Object();
+	private final List<Running> running = new ArrayList<>();
+	private long inFlightBytes;
+	private int largeInFlight;
+	private int smallInFlight;
+
+	public UploadScheduler(TransferManager transferManager, int concurrency) {
+		this(transferManager, concurrency, DEFAULT_MAX_IN_FLIGHT_BYTES);
+	}
+
+	public UploadScheduler(TransferManager transferManager, int concurrency, long maxInFlightBytes) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive");
+		}
+		this.transferManager = transferManager;
+		this.concurrency = concurrency;
+		this.maxInFlightBytes = maxInFlightBytes;
+		TransferManagerConfiguration configuration = transferManager.getConfiguration();
+		if (configuration == null) {
+			configuration = new TransferManagerConfiguration();
+		}
+		this.multipartThreshold = configuration.getMultipartUploadThreshold();
+		this.multipartCharge = configuration.getMinimumUploadPartSize() * concurrency;
+	}
+
+	/**
+	 * Uploads the files relative to baseDir below the given prefix, using the same keys as
+	 * {@link TransferManager#uploadFileList}, and waits until all uploads are done. If one upload
+	 * fails or the thread is interrupted, all running uploads are aborted.
+	 *
+	 * @param bucket           the bucket
+	 * @param prefix           the key prefix
+	 * @param baseDir          the directory the keys are computed relative to
+	 * @param files            the files to upload
+	 * @param metadataProvider provides the metadata of each file, may be null
+	 * @param tagging          the tags of all objects, may be null
+	 * @param onStart          called for every upload that is started, e.g. to add progress listeners
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void upload(String bucket, String prefix, File baseDir, List<File> files, ObjectMetadataProvider metadataProvider, ObjectTagging tagging, Consumer<Upload> onStart) throws InterruptedException {
+		String keyPrefix = UploadSyncPlan.normalizePrefix(prefix);
+		this.upload(bucket, files, file -> keyPrefix + UploadSyncPlan.relativeKey(baseDir, file), metadataProvider, tagging, onStart);
+	}
+
+	/**
+	 * Uploads the files to the keys computed by the given function and waits until all uploads are done.
+	 *
+	 * @param bucket           the bucket
+	 * @param files            the files to upload
+	 * @param keyFunction      computes the object key of a file
+	 * @param metadataProvider provides the metadata of each file, may be null
+	 * @param tagging          the tags of all objects, may be null
+	 * @param onStart          called for every upload that is started, e.g. to add progress listeners
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void upload(String bucket, List<File> files, Function<File, String> keyFunction, ObjectMetadataProvider metadataProvider, ObjectTagging tagging, Consumer<Upload> onStart) throws InterruptedException {
+		Deque<Pending> large = new ArrayDeque<>();
+		Deque<Pending> small = new ArrayDeque<>();
+		List<Pending> pending = new ArrayList<>(files.size());
+		for (File file : files) {
+			pending.add(new Pending(file, file.length()));
+		}
+		pending.sort(Comparator.comparingLong((Pending p) -> p.size).reversed());
+		for (Pending p : pending) {
+			(p.size > this.multipartThreshold ? large : small).add(p);
+		}
+
+		try {
+			while (true) {
+				List<Pending> admitted = new ArrayList<>();
+				synchronized (this.lock) {
+					this.reapFinished();
+					if (large.isEmpty() && small.isEmpty() && this.running.isEmpty()) {
+						return;
+					}
+					this.admit(large, true, admitted);
+					this.admit(small, false, admitted);
+					if (admitted.isEmpty()) {
+						this.lock.wait(POLL_INTERVAL_MILLIS);
+						continue;
+					}
+				}
+				for (Pending p : admitted) {
+					String key = keyFunction.apply(p.file);
+					ObjectMetadata metadata = new ObjectMetadata();
+					metadata.setContentLength(p.size);
+					if (metadataProvider != null) {
+						metadataProvider.provideObjectMetadata(p.file, metadata);
+					}
+					PutObjectRequest request = new PutObjectRequest(bucket, key, p.file)
+							.withMetadata(metadata)
+							.withTagging(tagging);
+					request.setGeneralProgressListener(this.wakeUpListener());
+					Upload upload = this.transferManager.upload(request);
+					synchronized (this.lock) {
+						this.running.add(new Running(upload, p));
+					}
+					onStart.accept(upload);
+				}
+			}
+		} catch (InterruptedException | RuntimeException e) {
+			this.abortRunning();
+			throw e;
+		}
+	}
+
+	private void admit(Deque<Pending> lane, boolean multipart, List<Pending> admitted) {
+		while (!lane.isEmpty()) {
+			Pending next = lane.peek();
+			next.charge = multipart ? Math.min(next.size, this.multipartCharge) : next.size;
+			int laneInFlight = multipart ? this.largeInFlight : this.smallInFlight;
+			if (!multipart && laneInFlight >= this.concurrency) {
+				return;
+			}
+			if (laneInFlight > 0 && this.inFlightBytes + next.charge > this.maxInFlightBytes) {
+				return;
+			}
+			lane.poll();
+			this.inFlightBytes += next.charge;
+			if (multipart) {
+				this.largeInFlight++;
+			} else {
+				this.smallInFlight++;
+			}
+			admitted.add(next);
+		}
+	}
+
+	/**
+	 * Removes finished uploads and releases their share of the budget. Failures are rethrown.
+	 */
+	private void reapFinished() throws InterruptedException {
+		Iterator<Running> it = this.running.iterator();
+		while (it.hasNext()) {
+			Running r = it.next();
+			if (!r.upload.isDone()) {
+				continue;
+			}
+			it.remove();
+			this.inFlightBytes -= r.pending.charge;
+			if (r.pending.size > this.multipartThreshold) {
+				this.largeInFlight--;
+			} else {
+				this.smallInFlight--;
+			}
+			// returns immediately and throws the failure of the upload, if any
+			r.upload.waitForCompletion();
+		}
+	}
+
+	private ProgressListener wakeUpListener() {
+		return progressEvent -> {
+			ProgressEventType type = progressEvent.getEventType();
+			if (type == ProgressEventType.TRANSFER_COMPLETED_EVENT || type == ProgressEventType.TRANSFER_FAILED_EVENT || type == ProgressEventType.TRANSFER_CANCELED_EVENT) {
+				synchronized (this.lock) {
+					this.lock.notifyAll();
+				}
+			}
+		};
+	}
+
+	private void abortRunning() {
+		List<Running> toAbort;
+		synchronized (this.lock) {
+			toAbort = new ArrayList<>(this.running);
+			this.running.clear();
+		}
+		for (Running r : toAbort) {
+			try {
+				r.upload.abort();
+			} catch (AmazonClientException e) {
+				// best effort, the original failure is more interesting
+			}
+		}
+	}
+
+	private static final class Pending {
+		private final File file;
+		private final long size;
+		private long charge;
+
+		Pending(File file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+	}
+
+	private static final class Running {
+		private final Upload upload;
+		private final Pending pending;
+
+		Running(Upload upload, Pending pending) {
+			this.upload = upload;
+			this.pending = pending;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+/**
+ * Compares a set of local files with the objects below an S3 prefix and
+ * determines which files have to be uploaded and which remote keys are obsolete.
+ * <p>
+ * Files are compared by size first and by ETag second, so unchanged files are
+ * usually detected without reading them.
+ */
+public class UploadSyncPlan {
+
+	private final String bucket;
+	private final List<File> changedFiles;
+	private final int unchangedCount;
+	private final List<String> obsoleteKeys;
+
+	private UploadSyncPlan(String bucket, List<File> changedFiles, int unchangedCount, List<String> obsoleteKeys) {
+		this.bucket = bucket;
+		this.changedFiles = changedFiles;
+		this.unchangedCount = unchangedCount;
+		this.obsoleteKeys = obsoleteKeys;
+	}
+
+	/**
+	 * Creates the plan for uploading the given files relative to baseDir below the given prefix.
+	 *
+	 * @param s3Client    the client used to list the prefix
+	 * @param bucket      the bucket
+	 * @param prefix      the key prefix the files are uploaded to
+	 * @param baseDir     the directory the keys are computed relative to
+	 * @param files       the local files
+	 * @param filter      selects the keys relative to the prefix with the patterns the files were selected with,
+	 *                    may be null if all files below baseDir were selected
+	 * @param mirror      whether to collect remote keys selected by the filter that have no local counterpart
+	 * @param minPartSize the minimum multipart part size of the TransferManager
+	 * @return the plan
+	 * @throws IOException if a local file cannot be read
+	 */
+	public static UploadSyncPlan create(AmazonS3 s3Client, String bucket, String prefix, File baseDir, List<File> files, Predicate<String> filter, boolean mirror, long minPartSize) throws IOException {
+		String keyPrefix = normalizePrefix(prefix);
+		Map<String, S3ObjectSummary> remote = listRemote(s3Client, bucket, keyPrefix, filter);
+
+		List<File> changed = new ArrayList<>();
+		Set<String> localKeys = new HashSet<>();
+		int unchanged = 0;
+		for (File file : files) {
+			String key = keyPrefix + relativeKey(baseDir, file);
+			localKeys.add(key);
+			S3ObjectSummary summary = remote.get(key);
+			if (summary != null && ETagUtils.matches(file, summary.getSize(), summary.getETag(), minPartSize)) {
+				unchanged++;
+			} else {
+				changed.add(file);
+			}
+		}
+
+		List<String> obsolete = new ArrayList<>();
+		if (mirror) {
+			for (String key : remote.keySet()) {
+				// keep the zero byte "folder" objects created by the S3 console
+				if (!localKeys.contains(key) && !key.endsWith("/")) {
+					obsolete.add(key);
+				}
+			}
+		}
+		return new UploadSyncPlan(bucket, changed, unchanged, obsolete);
+	}
+
+	/**
+	 * Checks whether a single file is identical to the object stored under the given key.
+	 *
+	 * @param s3Client    the client
+	 * @param bucket      the bucket
+	 * @param key         the object key
+	 * @param file        the local file
+	 * @param minPartSize the minimum multipart part size of the TransferManager
+	 * @return true if the object exists and has the same content
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isUpToDate(AmazonS3 s3Client, String bucket, String key, File file, long minPartSize) throws IOException {
+		ObjectMetadata metadata;
+		try {
+			metadata = s3Client.getObjectMetadata(bucket, key);
+		} catch (AmazonS3Exception e) {
+			if (e.getStatusCode() == 404) {
+				return false;
+			}
+			throw e;
+		}
+		return ETagUtils.matches(file, metadata.getContentLength(), metadata.getETag(), minPartSize);
+	}
+
+	public List<File> getChangedFiles() {
+		return this.changedFiles;
+	}
+
+	public int getUnchangedCount() {
+		return this.unchangedCount;
+	}
+
+	public List<String> getObsoleteKeys() {
+		return this.obsoleteKeys;
+	}
+
+	/**
+	 * Deletes all obsolete keys with a {@link BatchDeleter}, which retries throttled requests and reports the keys
+	 * that could not be deleted.
+	 *
+	 * @param s3Client    the client
+	 * @param executor    the executor the batches are sent on
+	 * @param concurrency the maximum number of batches in flight
+	 * @param logger      the logger to report the result to
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * @throws IOException          if a key could not be deleted
+	 */
+	public void deleteObsoleteKeys(AmazonS3 s3Client, Executor executor, int concurrency, PrintStream logger) throws InterruptedException, IOException {
+		if (this.obsoleteKeys.isEmpty()) {
+			return;
+		}
+		BatchDeleter deleter = new BatchDeleter(s3Client, this.bucket, executor, concurrency);
+		for (String key : this.obsoleteKeys) {
+			deleter.delete(key);
+		}
+		deleter.finish(logger, "obsolete objects");
+	}
+
+	/**
+	 * Lists the objects below the prefix whose key relative to the prefix is accepted by the filter, keyed by object key.
+	 * The filter is applied to every page as it arrives, so rejected objects are never collected.
+	 */
+	static Map<String, S3ObjectSummary> listRemote(AmazonS3 s3Client, String bucket, String keyPrefix, Predicate<String> filter) {
+		Map<String, S3ObjectSummary> remote = new HashMap<>();
+		ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket);
+		if (!keyPrefix.isEmpty()) {
+			request.setPrefix(keyPrefix);
+		}
+		ListObjectsV2Result result;
+		do {
+			result = s3Client.listObjectsV2(request);
+			for (S3ObjectSummary summary : result.getObjectSummaries()) {
+				if (filter == null || filter.test(summary.getKey().substring(keyPrefix.length()))) {
+					remote.put(summary.getKey(), summary);
+				}
+			}
+			request.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated());
+		return remote;
+	}
+
+	/**
+	 * Normalizes the prefix the same way the TransferManager does for directory uploads.
+	 */
+	public static String normalizePrefix(String prefix) {
+		if (prefix == null || prefix.isEmpty()) {
+			return "";
+		}
+		return prefix.endsWith("/") ? prefix : prefix + "/";
+	}
+
+	/**
+	 * Computes the key of a file relative to baseDir with "/" as separator, as the TransferManager does.
+	 */
+	public static String relativeKey(File baseDir, File file) {
+		return file.getAbsolutePath().substring(baseDir.getAbsolutePath().length() + 1).replace('\\', '/');
+	}
+}
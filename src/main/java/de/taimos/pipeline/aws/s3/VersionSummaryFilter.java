@@ -0,0 +1,72 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.util.Date;
+import java.util.function.Predicate;
+
+import com.amazonaws.services.s3.model.S3VersionSummary;
+
+/**
+ * Selects the versions and delete markers of a ListObjectVersions listing that are purged.
+ * <p>
+ * The age of a version is measured like the NoncurrentDays of a lifecycle rule: a noncurrent version ages from the
+ * time it was superseded, which is the modification time of the next newer version of the key, the current version
+ * and delete markers age from their own modification time. As the listing returns the versions of a key newest first,
+ * the filter is stateful and has to see every summary of the listing in order.
+ */
+public class VersionSummaryFilter implements Predicate<S3VersionSummary> {
+
+	private final String key;
+	private final boolean noncurrentOnly;
+	private final long cutoff;
+
+	private String previousKey;
+	private Date previousModified;
+
+	/**
+	 * @param key            only versions of this exact key are selected, null for all keys
+	 * @param noncurrentOnly select only versions that are not the current version of their key
+	 * @param cutoff         select only versions that aged since before this time, may be null
+	 */
+	public VersionSummaryFilter(String key, boolean noncurrentOnly, Date cutoff) {
+		this.key = key;
+		this.noncurrentOnly = noncurrentOnly;
+		this.cutoff = cutoff == null ? Long.MAX_VALUE : cutoff.getTime();
+	}
+
+	@Override
+	public boolean test(S3VersionSummary summary) {
+		boolean sameKey = summary.getKey().equals(this.previousKey);
+		Date since = sameKey && !summary.isLatest() ? this.previousModified : summary.getLastModified();
+		this.previousKey = summary.getKey();
+		this.previousModified = summary.getLastModified();
+
+		if (this.key != null && !this.key.equals(summary.getKey())) {
+			return false;
+		}
+		if (this.noncurrentOnly && summary.isLatest()) {
+			return false;
+		}
+		return this.cutoff == Long.MAX_VALUE || since != null && since.getTime() < this.cutoff;
+	}
+}
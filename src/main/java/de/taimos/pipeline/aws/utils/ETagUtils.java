@@ -0,0 +1,203 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Computes S3 style ETags for local files so they can be compared with remote objects.
+ * <p>
+ * Objects uploaded with a single PUT have the hex MD5 of their content as ETag. Objects uploaded
+ * in multiple parts have the MD5 of the concatenated binary part digests followed by "-" and the
+ * part count. SSE-KMS encrypted objects have opaque ETags and never match.
+ */
+public final class ETagUtils {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long MAXIMUM_UPLOAD_PARTS = 10000;
+	private static final long MB = 1024 * 1024;
+
+	private ETagUtils() {
+		// hidden constructor
+	}
+
+	/**
+	 * Checks whether the local file has the given remote size and ETag.
+	 *
+	 * @param file        the local file
+	 * @param remoteSize  the size of the remote object
+	 * @param remoteETag  the ETag of the remote object (quoted or unquoted)
+	 * @param minPartSize the minimum part size used by the TransferManager for multipart uploads
+	 * @return true if the file content is identical to the remote object
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean matches(File file, long remoteSize, String remoteETag, long minPartSize) throws IOException {
+		if (remoteETag == null || file.length() != remoteSize) {
+			return false;
+		}
+		String etag = unquote(remoteETag);
+		int dash = etag.indexOf('-');
+		if (dash < 0) {
+			return etag.equalsIgnoreCase(md5Hex(file));
+		}
+		long parts;
+		try {
+			parts = Long.parseLong(etag.substring(dash + 1));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		for (long partSize : candidatePartSizes(remoteSize, parts, minPartSize)) {
+			if (etag.equalsIgnoreCase(multipartETag(file, partSize))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Computes the hex encoded MD5 of the file content.
+	 *
+	 * @param file the local file
+	 * @return the hex MD5, which equals the ETag of a single part upload
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String md5Hex(File file) throws IOException {
+		return digestHex(file, newMD5());
+	}
+
+	/**
+	 * Computes the hex encoded SHA-256 of the file content.
+	 *
+	 * @param file the local file
+	 * @return the hex SHA-256
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String sha256Hex(File file) throws IOException {
+		try {
+			return digestHex(file, MessageDigest.getInstance("SHA-256"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String digestHex(File file, MessageDigest digest) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Computes the ETag S3 assigns to the file when it is uploaded in parts of the given size.
+	 *
+	 * @param file     the local file
+	 * @param partSize the part size
+	 * @return the multipart ETag in the form "hexdigest-partcount"
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String multipartETag(File file, long partSize) throws IOException {
+		MessageDigest whole = newMD5();
+		MessageDigest part = newMD5();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long inPart = 0;
+		int parts = 0;
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int read;
+			while ((read = in.read(buffer, 0, (int) Math.min(buffer.length, partSize - inPart))) != -1) {
+				part.update(buffer, 0, read);
+				inPart += read;
+				if (inPart == partSize) {
+					whole.update(part.digest());
+					parts++;
+					inPart = 0;
+				}
+			}
+		}
+		if (inPart > 0 || parts == 0) {
+			whole.update(part.digest());
+			parts++;
+		}
+		return toHex(whole.digest()) + "-" + parts;
+	}
+
+	/**
+	 * Removes the surrounding quotes S3 puts around ETags in some responses.
+	 *
+	 * @param etag the ETag
+	 * @return the ETag without quotes
+	 */
+	public static String unquote(String etag) {
+		if (etag != null && etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+			return etag.substring(1, etag.length() - 1);
+		}
+		return etag;
+	}
+
+	/**
+	 * Checks whether the ETag is the ETag of a multipart upload.
+	 *
+	 * @param etag the ETag
+	 * @return true if the ETag has a part count suffix
+	 */
+	public static boolean isMultipartETag(String etag) {
+		return etag != null && etag.indexOf('-') >= 0;
+	}
+
+	private static Set<Long> candidatePartSizes(long size, long parts, long minPartSize) {
+		// The part size the TransferManager would choose today, then the common
+		// "whole MiB" part size that produces the observed part count.
+		Set<Long> candidates = new LinkedHashSet<>();
+		long optimal = Math.max(minPartSize, (long) Math.ceil((double) size / MAXIMUM_UPLOAD_PARTS));
+		candidates.add(optimal);
+		long even = (size + parts - 1) / parts;
+		candidates.add(((even + MB - 1) / MB) * MB);
+		candidates.removeIf(partSize -> partSize <= 0 || (size + partSize - 1) / partSize != parts);
+		return candidates;
+	}
+
+	private static MessageDigest newMD5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -21,11 +21,15 @@
 
 package de.taimos.pipeline.aws;
 
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 
+import de.taimos.pipeline.aws.s3.TransferSettings;
+
 public class AbstractS3StepTest {
 	@Test
 	public void gettersWorkAsExpected() throws Exception {
@@ -34,4 +38,26 @@ public class AbstractS3StepTest {
 		Assert.assertEquals(true, amazonS3ClientBuilder.isPathStyleAccessEnabled());
 		Assert.assertEquals(true, amazonS3ClientBuilder.isPayloadSigningEnabled());
 	}
+
+	@Test
+	public void transferSettingsArePassedToClientOptions() throws Exception {
+		S3UploadStep step = new S3UploadStep("my-bucket", false, false);
+		step.setTransferConcurrency(32);
+		step.setMinimumUploadPartSizeMB(8);
+		step.setMultipartUploadThresholdMB(64);
+		step.setTransferProfile("auto");
+		final TransferSettings settings = step.createS3ClientOptions().getTransferSettings();
+		Assert.assertEquals(Integer.valueOf(32), settings.getConcurrency());
+		Assert.assertEquals(Integer.valueOf(8), settings.getMinimumUploadPartSizeMB());
+		Assert.assertEquals(Integer.valueOf(64), settings.getMultipartUploadThresholdMB());
+		Assert.assertNull(settings.getMultipartCopyThresholdMB());
+		Assert.assertTrue(settings.isAuto());
+	}
+
+	@Test
+	public void doNotAcceptTooSmallPartSize() {
+		S3UploadStep step = new S3UploadStep("my-bucket", false, false);
+		step.setMinimumUploadPartSizeMB(1);
+		assertThrows(IllegalArgumentException.class, step::createS3ClientOptions);
+	}
 }
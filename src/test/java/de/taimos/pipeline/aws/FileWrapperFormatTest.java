@@ -0,0 +1,62 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.StringWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FileWrapperFormatTest {
+
+	@Test
+	public void jsonLinesHaveOneObjectPerFile() throws Exception {
+		StringWriter writer = new StringWriter();
+		FileWrapperFormat.JSONL.writeHeader(writer);
+		FileWrapperFormat.JSONL.write(writer, new FileWrapper("a \"b\".txt", "dir/a \"b\".txt", false, 12, 1000));
+		FileWrapperFormat.JSONL.write(writer, new FileWrapper("dir", "dir", true, 0, 0));
+
+		Assert.assertEquals("{\"name\":\"a \\\"b\\\".txt\",\"path\":\"dir/a \\\"b\\\".txt\",\"directory\":false,\"length\":12,\"lastModified\":1000}\n"
+				+ "{\"name\":\"dir\",\"path\":\"dir/\",\"directory\":true,\"length\":0,\"lastModified\":0}\n", writer.toString());
+	}
+
+	@Test
+	public void csvHasHeaderAndQuotedFields() throws Exception {
+		StringWriter writer = new StringWriter();
+		FileWrapperFormat.CSV.writeHeader(writer);
+		FileWrapperFormat.CSV.write(writer, new FileWrapper("a,\"b\".txt", "dir/a,\"b\".txt", false, 12, 1000));
+		FileWrapperFormat.CSV.write(writer, new FileWrapper("c.txt", "c.txt", false, 1, 2));
+
+		Assert.assertEquals("name,path,directory,length,lastModified\n"
+				+ "\"a,\"\"b\"\".txt\",\"dir/a,\"\"b\"\".txt\",false,12,1000\n"
+				+ "c.txt,c.txt,false,1,2\n", writer.toString());
+	}
+
+	@Test
+	public void formatIsParsed() {
+		Assert.assertEquals(FileWrapperFormat.CSV, FileWrapperFormat.of(" CSV "));
+		Assert.assertEquals(FileWrapperFormat.JSONL, FileWrapperFormat.of("jsonl"));
+		assertThrows(IllegalArgumentException.class, () -> FileWrapperFormat.of("xml"));
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class S3AbortMultipartUploadsStepTest {
+
+	@Test
+	public void gettersWorkAsExpected() throws Exception {
+		S3AbortMultipartUploadsStep step = new S3AbortMultipartUploadsStep("my-bucket", false, false);
+		step.setPath("builds/");
+		step.setOlderThanHours(48);
+		Assert.assertEquals("my-bucket", step.getBucket());
+		Assert.assertEquals("builds/", step.getPath());
+		Assert.assertEquals(Integer.valueOf(48), step.getOlderThanHours());
+	}
+
+	@Test
+	public void doNotAcceptNegativeAge() throws Exception {
+		S3AbortMultipartUploadsStep step = new S3AbortMultipartUploadsStep("my-bucket", false, false);
+		step.setOlderThanHours(-1);
+		S3AbortMultipartUploadsStep.Execution execution = new S3AbortMultipartUploadsStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("OlderThanHours must not be negative", t.getMessage());
+	}
+}
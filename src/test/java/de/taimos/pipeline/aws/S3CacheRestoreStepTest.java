@@ -0,0 +1,51 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class S3CacheRestoreStepTest {
+
+	@Test
+	public void gettersWorkAsExpected() throws Exception {
+		S3CacheRestoreStep step = new S3CacheRestoreStep("my-bucket", "maven", false, false);
+		step.setRestoreKeys("maven-");
+		Assert.assertEquals("my-bucket", step.getBucket());
+		Assert.assertEquals("maven", step.getKey());
+		Assert.assertEquals("", step.getPath());
+		Assert.assertEquals("maven-", step.getRestoreKeys());
+		Assert.assertEquals("tar.gz", step.getArchive());
+	}
+
+	@Test
+	public void keyIsRequired() throws Exception {
+		S3CacheRestoreStep step = new S3CacheRestoreStep("my-bucket", "", false, false);
+		S3CacheRestoreStep.Execution execution = new S3CacheRestoreStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("Key must not be null or empty", t.getMessage());
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class S3CacheSaveStepTest {
+
+	@Test
+	public void gettersWorkAsExpected() throws Exception {
+		S3CacheSaveStep step = new S3CacheSaveStep("my-bucket", "maven", false, false);
+		step.setPath("caches/");
+		step.setHashFiles("**/pom.xml");
+		step.setIncludePathPattern(".m2/repository/**");
+		Assert.assertEquals("my-bucket", step.getBucket());
+		Assert.assertEquals("maven", step.getKey());
+		Assert.assertEquals("caches/", step.getPath());
+		Assert.assertEquals("**/pom.xml", step.getHashFiles());
+		Assert.assertEquals(".m2/repository/**", step.getIncludePathPattern());
+		Assert.assertEquals("tar.gz", step.getArchive());
+	}
+
+	@Test
+	public void includePathPatternIsRequired() throws Exception {
+		S3CacheSaveStep step = new S3CacheSaveStep("my-bucket", "maven", false, false);
+		S3CacheSaveStep.Execution execution = new S3CacheSaveStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("IncludePathPattern must not be null or empty", t.getMessage());
+	}
+}
@@ -52,4 +52,33 @@ public class S3CopyStepTest
 		Assert.assertEquals("AES256", step.getSseAlgorithm());
 		Assert.assertEquals("attachment", step.getContentDisposition());
 	}
+
+	@Test
+	public void gettersWorkAsExpectedForFolderCase() throws Exception {
+		S3CopyStep step = new S3CopyStep("my-bucket", "release/1.0/", "other-bucket", "release/", false, false);
+		step.setGlob("**/*.jar");
+		step.setExcludeGlob("**/*-sources.jar");
+		Assert.assertEquals("release/1.0/", step.getFromPath());
+		Assert.assertEquals("**/*.jar", step.getGlob());
+		Assert.assertEquals("**/*-sources.jar", step.getExcludeGlob());
+	}
+
+	@Test
+	public void gettersWorkAsExpectedForSyncCase() throws Exception {
+		S3CopyStep step = new S3CopyStep("my-bucket", "release/1.0/", "other-bucket", "release/1.0/", false, false);
+		step.setSync(true);
+		step.setMirror(true);
+		Assert.assertTrue(step.isSync());
+		Assert.assertTrue(step.isMirror());
+	}
+
+	@Test
+	public void foldersMustNotContainEachOther() {
+		Assert.assertTrue(S3CopyStep.Execution.overlaps("a/", "a/b/"));
+		Assert.assertTrue(S3CopyStep.Execution.overlaps("a/b/", "a/"));
+		Assert.assertTrue(S3CopyStep.Execution.overlaps("/", "x/"));
+		Assert.assertFalse(S3CopyStep.Execution.overlaps("a/", "a/"));
+		Assert.assertFalse(S3CopyStep.Execution.overlaps("a/", "b/"));
+		Assert.assertFalse(S3CopyStep.Execution.overlaps("a/", "ab/"));
+	}
 }
@@ -21,8 +21,12 @@
 
 package de.taimos.pipeline.aws;
 
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.Mockito;
 
 public class S3DeleteStepTest {
 	@Test
@@ -30,5 +34,35 @@ public class S3DeleteStepTest {
 		S3DeleteStep step = new S3DeleteStep("my-bucket", "my-path", false, false);
 		Assert.assertEquals("my-bucket", step.getBucket());
 		Assert.assertEquals("my-path", step.getPath());
+		Assert.assertNull(step.getInventoryManifest());
+		Assert.assertFalse(step.isPurgeVersions());
+		Assert.assertFalse(step.isNoncurrentVersionsOnly());
+		Assert.assertNull(step.getOlderThanDays());
+	}
+
+	@Test
+	public void inventoryManifestCanBeSet() throws Exception {
+		S3DeleteStep step = new S3DeleteStep("my-bucket", "my-path/", false, false);
+		step.setInventoryManifest("s3://inventory/manifest.json");
+		Assert.assertEquals("s3://inventory/manifest.json", step.getInventoryManifest());
+	}
+
+	@Test
+	public void purgeOptionsCanBeSet() throws Exception {
+		S3DeleteStep step = new S3DeleteStep("my-bucket", "my-path/", false, false);
+		step.setPurgeVersions(true);
+		step.setNoncurrentVersionsOnly(true);
+		step.setOlderThanDays(30);
+		Assert.assertTrue(step.isPurgeVersions());
+		Assert.assertTrue(step.isNoncurrentVersionsOnly());
+		Assert.assertEquals(Integer.valueOf(30), step.getOlderThanDays());
+	}
+
+	@Test
+	public void doNotAcceptAMissingPath() throws Exception {
+		S3DeleteStep step = new S3DeleteStep("my-bucket", null, false, false);
+		S3DeleteStep.Execution execution = new S3DeleteStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::start);
+		Assert.assertEquals("Path must not be null", t.getMessage());
 	}
 }
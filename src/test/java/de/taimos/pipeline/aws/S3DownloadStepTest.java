@@ -43,4 +43,34 @@ public class S3DownloadStepTest {
 		S3DownloadStep step = new S3DownloadStep("my-file", "my-bucket", false, false);
 		Assert.assertFalse(step.isForce());
 	}
+
+	@Test
+	public void defaultSyncIsFalse() throws Exception {
+		S3DownloadStep step = new S3DownloadStep("my-file", "my-bucket", false, false);
+		Assert.assertFalse(step.isSync());
+		Assert.assertFalse(step.isMirror());
+	}
+
+	@Test
+	public void defaultCacheIsFalse() throws Exception {
+		S3DownloadStep step = new S3DownloadStep("my-file", "my-bucket", false, false);
+		Assert.assertFalse(step.isCache());
+	}
+
+	@Test
+	public void defaultResumableIsFalse() throws Exception {
+		S3DownloadStep step = new S3DownloadStep("my-file", "my-bucket", false, false);
+		Assert.assertFalse(step.isResumable());
+		step.setResumable(true);
+		Assert.assertTrue(step.isResumable());
+	}
+
+	@Test
+	public void pathPatternsWorkAsExpected() throws Exception {
+		S3DownloadStep step = new S3DownloadStep("my-file", "my-bucket", false, false);
+		step.setIncludePathPattern("**/*.jar");
+		step.setExcludePathPattern("**/*-sources.jar");
+		Assert.assertEquals("**/*.jar", step.getIncludePathPattern());
+		Assert.assertEquals("**/*-sources.jar", step.getExcludePathPattern());
+	}
 }
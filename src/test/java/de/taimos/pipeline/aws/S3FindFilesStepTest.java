@@ -21,15 +21,52 @@
 
 package de.taimos.pipeline.aws;
 
-import java.nio.file.Paths;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
 
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
 public class S3FindFilesStepTest {
+
+	@Rule
+	public TemporaryFolder workspace = new TemporaryFolder();
+
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+	private StepContext context;
+
+	@Before
+	public void setupContext() throws Exception {
+		AWSClientFactory.setFactoryDelegate(x -> this.s3Client);
+		this.context = Mockito.mock(StepContext.class);
+		Mockito.when(this.context.get(TaskListener.class)).thenReturn(new StreamTaskListener(new ByteArrayOutputStream()));
+		Mockito.when(this.context.get(EnvVars.class)).thenReturn(new EnvVars());
+		Mockito.when(this.context.get(FilePath.class)).thenReturn(new FilePath(this.workspace.getRoot()));
+	}
+
 	@Test
 	public void gettersWorkAsExpected() throws Exception {
 		S3FindFilesStep step = new S3FindFilesStep("my-bucket", false, false);
@@ -81,6 +118,79 @@ public class S3FindFilesStepTest {
 		Assert.assertFalse(step.isOnlyFiles());
 	}
 
+	@Test
+	public void outputFileIsWrittenInListingOrder() throws Exception {
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+			ListObjectsV2Request request = invocation.getArgument(0);
+			Assert.assertEquals("/", request.getDelimiter());
+			switch (request.getPrefix()) {
+				case "root/":
+					return this.page(Arrays.asList(this.summary("root/top.txt", 1, 0, null)), Arrays.asList("root/slow/", "root/fast/"));
+				case "root/slow/":
+					// a slow folder must not change the order of the file
+					Thread.sleep(100);
+					return this.page(Arrays.asList(this.summary("root/slow/a.txt", 3, 1000, null), this.summary("root/slow/b.log", 4, 1000, null)), Collections.emptyList());
+				case "root/fast/":
+					return this.page(Arrays.asList(this.summary("root/fast/c,d.txt", 5, 2000, null)), Collections.emptyList());
+				default:
+					throw new IllegalArgumentException(request.getPrefix());
+			}
+		});
+		S3FindFilesStep step = new S3FindFilesStep("my-bucket", false, false);
+		step.setPath("root");
+		step.setGlob("*/*.txt");
+		step.setOnlyFiles(true);
+		step.setOutputFile("out/files.csv");
+
+		Object result = new S3FindFilesStep.Execution(step, this.context).run();
+
+		File file = new File(this.workspace.getRoot(), "out/files.csv");
+		Map<String, Object> expected = new LinkedHashMap<>();
+		expected.put("count", 2L);
+		expected.put("path", new FilePath(file).getRemote());
+		Assert.assertEquals(expected, result);
+		Assert.assertEquals("name,path,directory,length,lastModified\n"
+				+ "a.txt,slow/a.txt,false,3,1000\n"
+				+ "\"c,d.txt\",\"fast/c,d.txt\",false,5,2000\n", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void filtersAreAppliedToTheListing() throws Exception {
+		long march = 1709251200000L; // 2024-03-01
+		long december = 1701388800000L; // 2023-12-01
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+			ListObjectsV2Request request = invocation.getArgument(0);
+			// everything below a "**" is listed flat
+			Assert.assertNull(request.getDelimiter());
+			Assert.assertEquals("root/", request.getPrefix());
+			return this.page(Arrays.asList(
+					this.summary("root/a.txt", 10, march, null),
+					this.summary("root/small.txt", 1, march, null),
+					this.summary("root/big.txt", 1000, march, null),
+					this.summary("root/old.txt", 10, december, null),
+					this.summary("root/cold.txt", 10, march, "GLACIER"),
+					this.summary("root/logs/b.log", 10, march, null),
+					this.summary("root/sub/c.txt", 10, march, "STANDARD")), Collections.emptyList());
+		});
+		S3FindFilesStep step = new S3FindFilesStep("my-bucket", false, false);
+		step.setPath("root");
+		step.setGlob("**");
+		step.setOnlyFiles(true);
+		step.setExcludeGlob("**/*.log");
+		step.setMinSize(5L);
+		step.setMaxSize(100L);
+		step.setModifiedAfter("2024-01-01");
+		step.setStorageClass("STANDARD");
+
+		FileWrapper[] files = (FileWrapper[]) new S3FindFilesStep.Execution(step, this.context).run();
+
+		Assert.assertEquals(2, files.length);
+		Assert.assertEquals("a.txt", files[0].getPath());
+		Assert.assertEquals(10, files[0].getLength());
+		Assert.assertEquals(march, files[0].getLastModified());
+		Assert.assertEquals("sub/c.txt", files[1].getPath());
+	}
+
 	@Test
 	public void computeMatcherString() throws Exception {
 		String matcherString;
@@ -98,27 +208,21 @@ public class S3FindFilesStepTest {
 	public void createFileWrapperFromFolder() throws Exception {
 		FileWrapper file;
 
-		file = S3FindFilesStep.Execution.createFileWrapperFromFolder(0, Paths.get("path/to/folder"));
-		Assert.assertEquals("folder", file.getName());
-		Assert.assertEquals("path/to/folder/", file.getPath());
-		Assert.assertTrue(file.isDirectory());
-		Assert.assertEquals(0, file.getLength());
-		Assert.assertEquals(0, file.getLastModified());
-		file = S3FindFilesStep.Execution.createFileWrapperFromFolder(0, Paths.get("path/to/folder/"));
+		file = S3FindFilesStep.Execution.createFileWrapperFromFolder("", "path/to/folder/");
 		Assert.assertEquals("folder", file.getName());
 		Assert.assertEquals("path/to/folder/", file.getPath());
 		Assert.assertTrue(file.isDirectory());
 		Assert.assertEquals(0, file.getLength());
 		Assert.assertEquals(0, file.getLastModified());
 
-		file = S3FindFilesStep.Execution.createFileWrapperFromFolder(1, Paths.get("path/to/folder"));
+		file = S3FindFilesStep.Execution.createFileWrapperFromFolder("path/", "path/to/folder/");
 		Assert.assertEquals("folder", file.getName());
 		Assert.assertEquals("to/folder/", file.getPath());
 		Assert.assertTrue(file.isDirectory());
 		Assert.assertEquals(0, file.getLength());
 		Assert.assertEquals(0, file.getLastModified());
 
-		file = S3FindFilesStep.Execution.createFileWrapperFromFolder(2, Paths.get("path/to/folder"));
+		file = S3FindFilesStep.Execution.createFileWrapperFromFolder("path/to/", "path/to/folder/");
 		Assert.assertEquals("folder", file.getName());
 		Assert.assertEquals("folder/", file.getPath());
 		Assert.assertTrue(file.isDirectory());
@@ -135,25 +239,53 @@ public class S3FindFilesStepTest {
 		s3ObjectSummary.setLastModified(new Date(9000));
 		s3ObjectSummary.setSize(12);
 
-		file = S3FindFilesStep.Execution.createFileWrapperFromFile(0, Paths.get(s3ObjectSummary.getKey()), s3ObjectSummary);
+		file = S3FindFilesStep.Execution.createFileWrapperFromFile("", s3ObjectSummary);
 		Assert.assertEquals("file.ext", file.getName());
 		Assert.assertEquals("path/to/my/file.ext", file.getPath());
 		Assert.assertFalse(file.isDirectory());
 		Assert.assertEquals(12, file.getLength());
 		Assert.assertEquals(9000, file.getLastModified());
 
-		file = S3FindFilesStep.Execution.createFileWrapperFromFile(1, Paths.get(s3ObjectSummary.getKey()), s3ObjectSummary);
+		file = S3FindFilesStep.Execution.createFileWrapperFromFile("path/", s3ObjectSummary);
 		Assert.assertEquals("file.ext", file.getName());
 		Assert.assertEquals("to/my/file.ext", file.getPath());
 		Assert.assertFalse(file.isDirectory());
 		Assert.assertEquals(12, file.getLength());
 		Assert.assertEquals(9000, file.getLastModified());
 
-		file = S3FindFilesStep.Execution.createFileWrapperFromFile(2, Paths.get(s3ObjectSummary.getKey()), s3ObjectSummary);
+		file = S3FindFilesStep.Execution.createFileWrapperFromFile("path/to/", s3ObjectSummary);
 		Assert.assertEquals("file.ext", file.getName());
 		Assert.assertEquals("my/file.ext", file.getPath());
 		Assert.assertFalse(file.isDirectory());
 		Assert.assertEquals(12, file.getLength());
 		Assert.assertEquals(9000, file.getLastModified());
 	}
+
+	@Test
+	public void createFileWrapperFromInventoryFileWithoutModificationDate() throws Exception {
+		S3ObjectSummary s3ObjectSummary = new S3ObjectSummary();
+		s3ObjectSummary.setKey("path/file.ext");
+		s3ObjectSummary.setSize(12);
+
+		FileWrapper file = S3FindFilesStep.Execution.createFileWrapperFromFile("path/", s3ObjectSummary);
+		Assert.assertEquals("file.ext", file.getPath());
+		Assert.assertEquals(0, file.getLastModified());
+	}
+
+	private ListObjectsV2Result page(List<S3ObjectSummary> summaries, List<String> prefixes) {
+		ListObjectsV2Result result = new ListObjectsV2Result();
+		result.getObjectSummaries().addAll(summaries);
+		result.getCommonPrefixes().addAll(prefixes);
+		return result;
+	}
+
+	private S3ObjectSummary summary(String key, long size, long lastModified, String storageClass) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setBucketName("my-bucket");
+		summary.setKey(key);
+		summary.setSize(size);
+		summary.setLastModified(new Date(lastModified));
+		summary.setStorageClass(storageClass);
+		return summary;
+	}
 }
@@ -0,0 +1,65 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class S3PruneStepTest {
+
+	@Test
+	public void gettersWorkAsExpected() throws Exception {
+		S3PruneStep step = new S3PruneStep("my-bucket", false, false);
+		step.setPath("artifacts/my-job/");
+		step.setGroupPattern("\\d+");
+		step.setKeep(10);
+		step.setKeepNewerThan("P14D");
+		step.setDryRun(true);
+		Assert.assertEquals("my-bucket", step.getBucket());
+		Assert.assertEquals("artifacts/my-job/", step.getPath());
+		Assert.assertEquals("\\d+", step.getGroupPattern());
+		Assert.assertEquals(Integer.valueOf(10), step.getKeep());
+		Assert.assertEquals("P14D", step.getKeepNewerThan());
+		Assert.assertTrue(step.isDryRun());
+	}
+
+	@Test
+	public void requireARetentionPolicy() throws Exception {
+		S3PruneStep step = new S3PruneStep("my-bucket", false, false);
+		S3PruneStep.Execution execution = new S3PruneStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("Keep or KeepNewerThan must be set", t.getMessage());
+	}
+
+	@Test
+	public void doNotAcceptNegativeKeep() throws Exception {
+		S3PruneStep step = new S3PruneStep("my-bucket", false, false);
+		step.setKeep(-1);
+		S3PruneStep.Execution execution = new S3PruneStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("Keep must not be negative", t.getMessage());
+	}
+}
@@ -79,6 +79,83 @@ public class S3UploadStepTest {
 		Assert.assertEquals("", step.getPath());
 	}
 
+	@Test
+	public void gettersWorkAsExpectedForSync() throws Exception {
+		S3UploadStep step = new S3UploadStep("my-bucket", false, false);
+		Assert.assertFalse(step.isSync());
+		Assert.assertFalse(step.isMirror());
+		step.setSync(true);
+		step.setMirror(true);
+		Assert.assertTrue(step.isSync());
+		Assert.assertTrue(step.isMirror());
+	}
+
+	@Test
+	public void doNotAcceptMirrorWithoutSync() throws Exception {
+		S3UploadStep step = new S3UploadStep("my-bucket", false, false);
+		step.setIncludePathPattern("**");
+		step.setMirror(true);
+		S3UploadStep.Execution execution = new S3UploadStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("Mirror can only be used together with Sync", t.getMessage());
+	}
+
+	@Test
+	public void doNotAcceptArchiveWithSync() throws Exception {
+		S3UploadStep step = new S3UploadStep("my-bucket", false, false);
+		step.setIncludePathPattern("**");
+		step.setPath("build.tar.gz");
+		step.setArchive("tar.gz");
+		step.setSync(true);
+		S3UploadStep.Execution execution = new S3UploadStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("Archive and Sync cannot be used together", t.getMessage());
+	}
+
+	@Test
+	public void doNotAcceptUnknownArchiveFormat() throws Exception {
+		S3UploadStep step = new S3UploadStep("my-bucket", false, false);
+		step.setIncludePathPattern("**");
+		step.setPath("build.rar");
+		step.setArchive("rar");
+		S3UploadStep.Execution execution = new S3UploadStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("Archive must be one of tar, tar.gz or zip", t.getMessage());
+	}
+
+	@Test
+	public void doNotAcceptContentAddressedWithSync() throws Exception {
+		S3UploadStep step = new S3UploadStep("my-bucket", false, false);
+		step.setIncludePathPattern("**");
+		step.setPath("manifests/build-1.json");
+		step.setContentAddressed(true);
+		step.setSync(true);
+		S3UploadStep.Execution execution = new S3UploadStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("ContentAddressed and Sync cannot be used together", t.getMessage());
+	}
+
+	@Test
+	public void contentAddressedRequiresManifestPath() throws Exception {
+		S3UploadStep step = new S3UploadStep("my-bucket", false, false);
+		step.setIncludePathPattern("**");
+		step.setPath("manifests/");
+		step.setContentAddressed(true);
+		S3UploadStep.Execution execution = new S3UploadStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("ContentAddressed requires the path of the manifest object", t.getMessage());
+	}
+
+	@Test
+	public void resumableRequiresFile() throws Exception {
+		S3UploadStep step = new S3UploadStep("my-bucket", false, false);
+		step.setIncludePathPattern("**");
+		step.setResumable(true);
+		S3UploadStep.Execution execution = new S3UploadStep.Execution(step, Mockito.mock(StepContext.class));
+		Throwable t = assertThrows(IllegalArgumentException.class, execution::run);
+		Assert.assertEquals("Resumable can only be used together with File", t.getMessage());
+	}
+
 	@Test
 	public void bucketMustBeDefined() throws Exception {
 		S3UploadStep step = new S3UploadStep(null, false, false);
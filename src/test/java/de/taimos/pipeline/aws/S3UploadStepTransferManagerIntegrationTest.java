@@ -16,11 +16,11 @@
 
 package de.taimos.pipeline.aws;
 
+import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.transfer.MultipleFileUpload;
-import com.amazonaws.services.s3.transfer.ObjectMetadataProvider;
-import com.amazonaws.services.s3.transfer.ObjectTaggingProvider;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
 import hudson.model.Run;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
@@ -35,15 +35,8 @@ import org.jvnet.hudson.test.JenkinsRule;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
-import java.io.File;
-import java.util.Collections;
-import java.util.List;
-
 import static org.hamcrest.MatcherAssert.assertThat;
-import static org.hamcrest.Matchers.containsString;
-import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.matchesRegex;
-import static org.hamcrest.Matchers.not;
 
 @For(S3UploadStep.class)
 public class S3UploadStepTransferManagerIntegrationTest {
@@ -74,33 +67,28 @@ public class S3UploadStepTransferManagerIntegrationTest {
 				+ "}\n", true)
 		);
 
-		MultipleFileUpload upload = Mockito.mock(MultipleFileUpload.class);
-		Mockito.when(transferManager.uploadFileList(Mockito.eq("test-bucket"), Mockito.eq(""), Mockito.any(File.class), Mockito.any(List.class), Mockito.any(ObjectMetadataProvider.class), Mockito.any(ObjectTaggingProvider.class)))
-				.thenReturn(upload);
-		Mockito.when(upload.getSubTransfers()).thenReturn(Collections.emptyList());
+		Upload upload = Mockito.mock(Upload.class);
+		Mockito.when(transferManager.upload(Mockito.any(PutObjectRequest.class))).thenReturn(upload);
+		Mockito.when(upload.isDone()).thenReturn(true);
 
 		jenkinsRule.assertBuildStatusSuccess(job.scheduleBuild2(0));
 
-		ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
-		ArgumentCaptor<File> captorDirectory = ArgumentCaptor.forClass(File.class);
-
-		Mockito.verify(transferManager).uploadFileList(
-				Mockito.eq("test-bucket"),
-				Mockito.eq(""),
-				captorDirectory.capture(),
-				captor.capture(),
-				Mockito.any(ObjectMetadataProvider.class),
-				Mockito.any(ObjectTaggingProvider.class));
-		Mockito.verify(upload).getSubTransfers();
+		ArgumentCaptor<PutObjectRequest> captor = ArgumentCaptor.forClass(PutObjectRequest.class);
+
+		Mockito.verify(transferManager).getConfiguration();
+		Mockito.verify(transferManager).upload(captor.capture());
+		Mockito.verify(upload).addProgressListener(Mockito.any(ProgressListener.class));
+		Mockito.verify(upload).isDone();
 		Mockito.verify(upload).waitForCompletion();
 		Mockito.verify(transferManager).shutdownNow();
 		Mockito.verifyNoMoreInteractions(transferManager, upload);
 
-		Assert.assertEquals(1, captor.getValue().size());
-		Assert.assertEquals("test.txt", ((File)captor.getValue().get(0)).getName());
-		assertThat(((File)captor.getValue().get(0)).getPath(), matchesRegex("^.*subdir.test.txt$"));
-		assertThat(captorDirectory.getValue().getPath(), endsWith("work"));
-		assertThat(captorDirectory.getValue().getPath(), not(containsString("subdir")));
+		PutObjectRequest request = captor.getValue();
+		Assert.assertEquals("test-bucket", request.getBucketName());
+		Assert.assertEquals("subdir/test.txt", request.getKey());
+		Assert.assertEquals("test.txt", request.getFile().getName());
+		assertThat(request.getFile().getPath(), matchesRegex("^.*work.subdir.test.txt$"));
+		Assert.assertEquals(6, request.getMetadata().getContentLength());
 	}
 
 	@Test
@@ -0,0 +1,75 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+
+public class ArchiveTransferTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+	@Test
+	public void archiveIsExtractedWhileDownloading() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			zip.putNextEntry(new ZipEntry("sub/a.txt"));
+			zip.write("Hello!".getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		S3Object object = new S3Object();
+		object.setObjectContent(new ByteArrayInputStream(bytes.toByteArray()));
+		object.getObjectMetadata().setContentLength(bytes.size());
+		Mockito.when(this.s3Client.getObject("my-bucket", "caches/maven.zip")).thenReturn(object);
+		File target = this.folder.newFolder("target");
+
+		long size = ArchiveTransfer.extract(this.s3Client, "my-bucket", "caches/maven.zip", ArchiveFormat.ZIP, target, new PrintStream(new ByteArrayOutputStream()));
+
+		Assert.assertEquals(bytes.size(), size);
+		Assert.assertEquals("Hello!", new String(Files.readAllBytes(new File(target, "sub/a.txt").toPath()), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void contentTypeMatchesTheFormat() {
+		Assert.assertEquals("application/x-tar", ArchiveFormat.TAR.getContentType());
+		Assert.assertEquals("application/gzip", ArchiveFormat.TAR_GZ.getContentType());
+		Assert.assertEquals("application/zip", ArchiveFormat.ZIP.getContentType());
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+
+public class BatchDeleterTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void deletesInBatchesOfThousandKeys() throws Exception {
+		Mockito.when(this.s3Client.deleteObjects(Mockito.any(DeleteObjectsRequest.class))).thenReturn(new DeleteObjectsResult(Collections.emptyList()));
+
+		BatchDeleter deleter = new BatchDeleter(this.s3Client, "my-bucket", this.executor, 2, 1);
+		for (int i = 0; i < 2500; i++) {
+			deleter.delete("folder/" + i);
+		}
+		deleter.finish();
+
+		ArgumentCaptor<DeleteObjectsRequest> requests = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+		Mockito.verify(this.s3Client, Mockito.times(3)).deleteObjects(requests.capture());
+		List<Integer> sizes = requests.getAllValues().stream().map(r -> r.getKeys().size()).sorted().collect(Collectors.toList());
+		Assert.assertEquals(Arrays.asList(500, 1000, 1000), sizes);
+		Assert.assertEquals("my-bucket", requests.getValue().getBucketName());
+		Assert.assertTrue(requests.getValue().getQuiet());
+		Assert.assertEquals(2500, deleter.getDeleted());
+		Assert.assertEquals(3, deleter.getRequests());
+		Assert.assertTrue(deleter.getFailures().isEmpty());
+	}
+
+	@Test
+	public void retriesThrottledRequests() throws Exception {
+		AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+		slowDown.setStatusCode(503);
+		slowDown.setErrorCode("SlowDown");
+		Mockito.when(this.s3Client.deleteObjects(Mockito.any(DeleteObjectsRequest.class)))
+				.thenThrow(slowDown)
+				.thenReturn(new DeleteObjectsResult(Collections.emptyList()));
+
+		BatchDeleter deleter = new BatchDeleter(this.s3Client, "my-bucket", this.executor, 2, 1);
+		deleter.delete("a");
+		deleter.delete("b");
+		deleter.finish();
+
+		Assert.assertEquals(2, deleter.getDeleted());
+		Assert.assertEquals(2, deleter.getRequests());
+		Assert.assertEquals(1, deleter.getRetries());
+	}
+
+	@Test
+	public void reportsFailedKeysAndRetriesTransientErrors() throws Exception {
+		List<List<String>> requested = Collections.synchronizedList(new ArrayList<>());
+		Mockito.when(this.s3Client.deleteObjects(Mockito.any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+			DeleteObjectsRequest request = invocation.getArgument(0);
+			requested.add(request.getKeys().stream().map(DeleteObjectsRequest.KeyVersion::getKey).collect(Collectors.toList()));
+			if (requested.size() > 1) {
+				return new DeleteObjectsResult(Collections.emptyList());
+			}
+			throw new MultiObjectDeleteException(Arrays.asList(error("b", "AccessDenied"), error("c", "InternalError")), Collections.emptyList());
+		});
+
+		BatchDeleter deleter = new BatchDeleter(this.s3Client, "my-bucket", this.executor, 2, 1);
+		deleter.delete("a");
+		deleter.delete("b");
+		deleter.delete("c");
+		deleter.finish();
+
+		Assert.assertEquals(Arrays.asList(Arrays.asList("a", "b", "c"), Collections.singletonList("c")), requested);
+		Assert.assertEquals(2, deleter.getDeleted());
+		Assert.assertEquals(1, deleter.getFailures().size());
+		Assert.assertEquals("b", deleter.getFailures().get(0).getKey());
+		Assert.assertEquals("AccessDenied", deleter.getFailures().get(0).getCode());
+	}
+
+	@Test
+	public void failedRequestStopsDeletion() throws Exception {
+		AmazonS3Exception accessDenied = new AmazonS3Exception("Access Denied");
+		accessDenied.setStatusCode(403);
+		accessDenied.setErrorCode("AccessDenied");
+		Mockito.when(this.s3Client.deleteObjects(Mockito.any(DeleteObjectsRequest.class))).thenThrow(accessDenied);
+
+		BatchDeleter deleter = new BatchDeleter(this.s3Client, "my-bucket", this.executor, 2, 1);
+		deleter.delete("a");
+
+		AmazonS3Exception e = assertThrows(AmazonS3Exception.class, deleter::finish);
+		Assert.assertEquals("AccessDenied", e.getErrorCode());
+		Mockito.verify(this.s3Client).deleteObjects(Mockito.any(DeleteObjectsRequest.class));
+	}
+
+	private static MultiObjectDeleteException.DeleteError error(String key, String code) {
+		MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+		error.setKey(key);
+		error.setCode(code);
+		error.setMessage(code);
+		return error;
+	}
+}
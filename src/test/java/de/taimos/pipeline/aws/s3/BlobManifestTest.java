@@ -0,0 +1,171 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+public class BlobManifestTest {
+
+	private static final String HELLO_SHA256 = "334d016f755cd6dc58c53a86e183882f8ec14f52fb05345887c8a5edd42c87b7";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void identicalFilesShareOneBlob() throws Exception {
+		File base = this.folder.newFolder("base");
+		File a = this.createFile(base, "a.txt", "Hello!");
+		File b = this.createFile(base, "sub/b.txt", "Hello!");
+		File c = this.createFile(base, "c.txt", "other");
+
+		BlobManifest manifest = BlobManifest.create(base, Arrays.asList(c, b, a), "cas", this.executor);
+
+		Assert.assertEquals(3, manifest.getEntries().size());
+		Assert.assertEquals("a.txt", manifest.getEntries().get(0).getPath());
+		Assert.assertEquals("sub/b.txt", manifest.getEntries().get(2).getPath());
+		Assert.assertEquals(HELLO_SHA256, manifest.getEntries().get(0).getSha256());
+		Assert.assertEquals(2, manifest.getUniqueBlobs().size());
+		Assert.assertEquals(17, manifest.getTotalBytes());
+		Assert.assertEquals("cas/33/" + HELLO_SHA256, manifest.blobKey(HELLO_SHA256));
+	}
+
+	@Test
+	public void manifestRoundTrip() throws Exception {
+		BlobManifest manifest = new BlobManifest("blobs/", Collections.singletonList(new BlobManifest.Entry("dir/a.txt", HELLO_SHA256, 6)));
+
+		BlobManifest parsed = BlobManifest.parse(new ByteArrayInputStream(manifest.toJson()));
+
+		Assert.assertEquals("blobs/", parsed.getBlobPrefix());
+		Assert.assertEquals(1, parsed.getEntries().size());
+		Assert.assertEquals("dir/a.txt", parsed.getEntries().get(0).getPath());
+		Assert.assertEquals(HELLO_SHA256, parsed.getEntries().get(0).getSha256());
+		Assert.assertEquals(6, parsed.getEntries().get(0).getSize());
+	}
+
+	@Test
+	public void doNotAcceptInvalidHash() {
+		String json = "{\"version\":1,\"algorithm\":\"SHA-256\",\"blobPrefix\":\"blobs/\",\"files\":[{\"path\":\"a\",\"sha256\":\"../x\",\"size\":1}]}";
+		assertThrows(IOException.class, () -> BlobManifest.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))));
+	}
+
+	@Test
+	public void onlyMissingBlobsAreReported() throws Exception {
+		String otherSha256 = "2eb4f1c2b2e0b8c9b7e2d1a0f3b4c5d6e7f8091a2b3c4d5e6f708192a3b4c5d6";
+		BlobManifest manifest = new BlobManifest("blobs", Arrays.asList(
+				new BlobManifest.Entry("a.txt", HELLO_SHA256, 6),
+				new BlobManifest.Entry("b.txt", HELLO_SHA256, 6),
+				new BlobManifest.Entry("c.txt", otherSha256, 5)));
+		AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+		notFound.setStatusCode(404);
+		Mockito.when(this.s3Client.getObjectMetadata("my-bucket", "blobs/33/" + HELLO_SHA256)).thenReturn(new ObjectMetadata());
+		Mockito.when(this.s3Client.getObjectMetadata("my-bucket", "blobs/2e/" + otherSha256)).thenThrow(notFound);
+
+		Set<String> missing = manifest.findMissingBlobs(this.s3Client, "my-bucket", this.executor);
+
+		Assert.assertEquals(Collections.singleton(otherSha256), missing);
+		Mockito.verify(this.s3Client, Mockito.times(2)).getObjectMetadata(Mockito.eq("my-bucket"), Mockito.anyString());
+	}
+
+	@Test
+	public void restoreDownloadsEveryBlobOnce() throws Exception {
+		File target = this.folder.newFolder("target");
+		BlobManifest manifest = new BlobManifest("blobs/", Arrays.asList(
+				new BlobManifest.Entry("a.txt", HELLO_SHA256, 6),
+				new BlobManifest.Entry("sub/b.txt", HELLO_SHA256, 6)));
+		Mockito.when(this.s3Client.getObject(Mockito.any(GetObjectRequest.class), Mockito.any(File.class))).thenAnswer(invocation -> {
+			File file = invocation.getArgument(1);
+			file.getParentFile().mkdirs();
+			Files.write(file.toPath(), "Hello!".getBytes(StandardCharsets.UTF_8));
+			return new ObjectMetadata();
+		});
+
+		Assert.assertEquals(1, manifest.restore(this.s3Client, "my-bucket", target, this.executor));
+
+		ArgumentCaptor<GetObjectRequest> request = ArgumentCaptor.forClass(GetObjectRequest.class);
+		Mockito.verify(this.s3Client).getObject(request.capture(), Mockito.any(File.class));
+		Assert.assertEquals("blobs/33/" + HELLO_SHA256, request.getValue().getKey());
+		Assert.assertEquals("Hello!", new String(Files.readAllBytes(new File(target, "sub/b.txt").toPath()), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void corruptBlobFailsTheRestore() throws Exception {
+		File target = this.folder.newFolder("target");
+		BlobManifest manifest = new BlobManifest("blobs/", Collections.singletonList(new BlobManifest.Entry("a.txt", HELLO_SHA256, 6)));
+		Mockito.when(this.s3Client.getObject(Mockito.any(GetObjectRequest.class), Mockito.any(File.class))).thenAnswer(invocation -> {
+			File file = invocation.getArgument(1);
+			file.getParentFile().mkdirs();
+			Files.write(file.toPath(), "Hallo!".getBytes(StandardCharsets.UTF_8));
+			return new ObjectMetadata();
+		});
+
+		IOException e = assertThrows(IOException.class, () -> manifest.restore(this.s3Client, "my-bucket", target, this.executor));
+		Assert.assertTrue(e.getMessage().startsWith("Blob " + HELLO_SHA256 + " has the SHA-256 "));
+		Assert.assertFalse(new File(target, "a.txt").exists());
+	}
+
+	@Test
+	public void doNotRestoreOutsideOfTarget() throws Exception {
+		File target = this.folder.newFolder("target");
+		BlobManifest manifest = new BlobManifest("blobs/", Collections.singletonList(new BlobManifest.Entry("../evil.txt", HELLO_SHA256, 6)));
+		assertThrows(IOException.class, () -> manifest.restore(this.s3Client, "my-bucket", target, this.executor));
+		Mockito.verifyNoInteractions(this.s3Client);
+	}
+
+	private File createFile(File base, String path, String content) throws IOException {
+		File file = new File(base, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class BuildCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+	@Test
+	public void keysMapToArchiveObjects() {
+		Assert.assertEquals("caches/maven-abc.tar.gz", BuildCache.objectKey("caches", "maven-abc", ArchiveFormat.TAR_GZ));
+		Assert.assertEquals("maven-abc.zip", BuildCache.objectKey("", "maven-abc", ArchiveFormat.ZIP));
+		Assert.assertEquals("maven-abc", BuildCache.cacheKey("caches/", "caches/maven-abc.tar.gz", ArchiveFormat.TAR_GZ));
+	}
+
+	@Test
+	public void exactKeyWins() {
+		Mockito.when(this.s3Client.doesObjectExist("my-bucket", "caches/maven-abc.tar.gz")).thenReturn(true);
+
+		Assert.assertEquals("caches/maven-abc.tar.gz", BuildCache.find(this.s3Client, "my-bucket", "caches/", "maven-abc", Collections.singletonList("maven-"), ArchiveFormat.TAR_GZ));
+
+		Mockito.verify(this.s3Client, Mockito.never()).listObjectsV2(Mockito.any(ListObjectsV2Request.class));
+	}
+
+	@Test
+	public void mostRecentCacheOfRestoreKeyIsUsed() {
+		ListObjectsV2Result empty = new ListObjectsV2Result();
+		ListObjectsV2Result result = new ListObjectsV2Result();
+		result.getObjectSummaries().addAll(Arrays.asList(
+				this.summary("caches/maven-old.tar.gz", 1000),
+				this.summary("caches/maven-new.tar.gz", 3000),
+				this.summary("caches/maven-newest.zip", 5000)));
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenReturn(empty, result);
+
+		String found = BuildCache.find(this.s3Client, "my-bucket", "caches", "maven-abc", Arrays.asList("maven-linux-", "maven-"), ArchiveFormat.TAR_GZ);
+
+		Assert.assertEquals("caches/maven-new.tar.gz", found);
+		ArgumentCaptor<ListObjectsV2Request> requests = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+		Mockito.verify(this.s3Client, Mockito.times(2)).listObjectsV2(requests.capture());
+		Assert.assertEquals("caches/maven-", requests.getValue().getPrefix());
+	}
+
+	@Test
+	public void noCacheFound() {
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenReturn(new ListObjectsV2Result());
+		Assert.assertNull(BuildCache.find(this.s3Client, "my-bucket", "caches/", "maven-abc", Collections.singletonList("maven-"), ArchiveFormat.TAR_GZ));
+	}
+
+	@Test
+	public void restoreKeysAreSplit() {
+		Assert.assertEquals(Arrays.asList("maven-linux-", "maven-"), BuildCache.parseRestoreKeys("maven-linux-\n maven-,"));
+		Assert.assertTrue(BuildCache.parseRestoreKeys(null).isEmpty());
+	}
+
+	@Test
+	public void hashChangesWithLockfiles() throws Exception {
+		File base = this.folder.newFolder("ws");
+		this.createFile(base, "pom.xml", "<project/>");
+		File module = this.createFile(base, "module/pom.xml", "<project>1</project>");
+		this.createFile(base, "README.md", "ignored");
+
+		String first = BuildCache.hashFiles(base, "**/pom.xml", null);
+		this.createFile(base, "README.md", "still ignored");
+		Assert.assertEquals(first, BuildCache.hashFiles(base, "**/pom.xml", null));
+		Assert.assertEquals(64, first.length());
+
+		Files.write(module.toPath(), "<project>2</project>".getBytes(StandardCharsets.UTF_8));
+		Assert.assertNotEquals(first, BuildCache.hashFiles(base, "**/pom.xml", null));
+	}
+
+	@Test
+	public void hashRequiresMatchingFiles() throws Exception {
+		File base = this.folder.newFolder("ws");
+		assertThrows(IOException.class, () -> BuildCache.hashFiles(base, "**/package-lock.json", null));
+	}
+
+	private S3ObjectSummary summary(String key, long lastModified) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setKey(key);
+		summary.setLastModified(new Date(lastModified));
+		return summary;
+	}
+
+	private File createFile(File base, String path, String content) throws IOException {
+		File file = new File(base, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DownloadCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void storedObjectsAreRestoredByETag() throws Exception {
+		DownloadCache cache = new DownloadCache(this.folder.newFolder("cache"), 1024, false);
+		File first = new File(this.folder.getRoot(), "ws1/a.bin");
+		File second = new File(this.folder.getRoot(), "ws2/sub/a.bin");
+
+		Assert.assertFalse(cache.restore("my-bucket", "my-key", "etag", 6, first));
+		this.store(cache, "my-key", "etag", "Hello!", first);
+
+		Assert.assertTrue(cache.restore("my-bucket", "my-key", "\"etag\"", 6, second));
+		Assert.assertEquals("Hello!", new String(Files.readAllBytes(second.toPath()), StandardCharsets.UTF_8));
+		Assert.assertEquals("Hello!", new String(Files.readAllBytes(first.toPath()), StandardCharsets.UTF_8));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(6, cache.getBytesFromCache());
+	}
+
+	@Test
+	public void changedObjectIsAMiss() throws Exception {
+		DownloadCache cache = new DownloadCache(this.folder.newFolder("cache"), 1024, false);
+		this.store(cache, "my-key", "etag", "Hello!", new File(this.folder.getRoot(), "ws/a.bin"));
+
+		Assert.assertFalse(cache.restore("my-bucket", "my-key", "other", 6, new File(this.folder.getRoot(), "ws/b.bin")));
+		Assert.assertFalse(cache.restore("my-bucket", "my-key", null, 6, new File(this.folder.getRoot(), "ws/b.bin")));
+		Assert.assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+		File directory = this.folder.newFolder("cache");
+		DownloadCache cache = new DownloadCache(directory, 10, false);
+		this.store(cache, "old", "etag", "Hello!", new File(this.folder.getRoot(), "ws/old.bin"));
+		// make sure the entries have different modification times
+		new File(directory, directory.list()[0]).setLastModified(System.currentTimeMillis() - 60000);
+		this.store(cache, "new", "etag", "World!", new File(this.folder.getRoot(), "ws/new.bin"));
+
+		Assert.assertEquals(1, directory.list().length);
+		Assert.assertFalse(cache.restore("my-bucket", "old", "etag", 6, new File(this.folder.getRoot(), "ws2/old.bin")));
+		Assert.assertTrue(cache.restore("my-bucket", "new", "etag", 6, new File(this.folder.getRoot(), "ws2/new.bin")));
+	}
+
+	private void store(DownloadCache cache, String key, String eTag, String content, File target) throws IOException {
+		File temp = cache.newTempFile("my-bucket", key);
+		temp.getParentFile().mkdirs();
+		Files.write(temp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		cache.store(temp, "my-bucket", key, eTag, target);
+	}
+}
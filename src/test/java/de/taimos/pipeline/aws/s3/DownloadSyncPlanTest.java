@@ -0,0 +1,175 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+public class DownloadSyncPlanTest {
+
+	private static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+	@Test
+	public void onlyChangedObjectsAreDownloaded() throws Exception {
+		File target = this.folder.newFolder("target");
+		File same = this.createFile(target, "same.txt", "Hello!");
+		this.createFile(target, "sub/changed.txt", "old");
+		this.mockListing(
+				this.summary("deps/same.txt", 6, ETagUtils.md5Hex(same)),
+				this.summary("deps/sub/changed.txt", 3, "00000000000000000000000000000000"),
+				this.summary("deps/new.txt", 4, "11111111111111111111111111111111"),
+				this.summary("deps/folder/", 0, "d41d8cd98f00b204e9800998ecf8427e"));
+
+		DownloadSyncPlan plan = DownloadSyncPlan.create(this.s3Client, "my-bucket", "deps", target, null, null, false, MIN_PART_SIZE);
+
+		Assert.assertEquals(1, plan.getUnchangedCount());
+		Assert.assertEquals(2, plan.getChangedObjects().size());
+		Assert.assertEquals("deps/new.txt", plan.getChangedObjects().get(0).getKey());
+		Assert.assertEquals("deps/sub/changed.txt", plan.getChangedObjects().get(1).getKey());
+		Assert.assertEquals(new File(target, "sub/changed.txt").getAbsoluteFile(), plan.targetFile("deps/sub/changed.txt"));
+		Assert.assertTrue(plan.getObsoleteFiles().isEmpty());
+	}
+
+	@Test
+	public void recordedFilesAreNotRead() throws Exception {
+		File target = this.folder.newFolder("target");
+		File file = this.createFile(target, "a.txt", "Hello!");
+		DownloadSyncState state = DownloadSyncState.load(this.folder.newFolder("state"), "my-bucket", "deps/", target);
+		// the recorded ETag does not match the content, so a match proves the file was not hashed
+		state.record("a.txt", file, "\"abc\"");
+		this.mockListing(this.summary("deps/a.txt", 6, "abc"));
+
+		DownloadSyncPlan plan = DownloadSyncPlan.create(this.s3Client, "my-bucket", "deps/", target, null, state, false, MIN_PART_SIZE);
+
+		Assert.assertEquals(1, plan.getUnchangedCount());
+		Assert.assertTrue(plan.getChangedObjects().isEmpty());
+	}
+
+	@Test
+	public void stateSurvivesReload() throws Exception {
+		File target = this.folder.newFolder("target");
+		File stateDir = this.folder.newFolder("state");
+		File file = this.createFile(target, "a.txt", "Hello!");
+		DownloadSyncState state = DownloadSyncState.load(stateDir, "my-bucket", "deps/", target);
+		state.record("a.txt", file, "abc");
+		state.save();
+
+		DownloadSyncState loaded = DownloadSyncState.load(stateDir, "my-bucket", "deps", target);
+
+		Assert.assertTrue(loaded.matches("a.txt", file, "abc"));
+		Assert.assertFalse(loaded.matches("a.txt", file, "def"));
+		Files.write(file.toPath(), "Hello!!".getBytes(StandardCharsets.UTF_8));
+		Assert.assertFalse(loaded.matches("a.txt", file, "abc"));
+	}
+
+	@Test
+	public void mirrorCollectsLocalExtras() throws Exception {
+		File target = this.folder.newFolder("target");
+		File same = this.createFile(target, "same.txt", "Hello!");
+		File extra = this.createFile(target, "sub/extra.txt", "extra");
+		this.mockListing(this.summary("deps/same.txt", 6, ETagUtils.md5Hex(same)));
+
+		DownloadSyncPlan plan = DownloadSyncPlan.create(this.s3Client, "my-bucket", "deps/", target, null, null, true, MIN_PART_SIZE);
+
+		Assert.assertEquals(Collections.singletonList(extra.getAbsoluteFile()), plan.getObsoleteFiles());
+	}
+
+	@Test
+	public void partialDownloadsOfChangedObjectsAreKept() throws Exception {
+		File target = this.folder.newFolder("target");
+		this.createFile(target, "big.bin.partial", "Hel");
+		this.createFile(target, "big.bin.partial.json", "{}");
+		File stale = this.createFile(target, "gone.bin.partial", "old");
+		this.mockListing(this.summary("deps/big.bin", 6, "abc"));
+
+		DownloadSyncPlan plan = DownloadSyncPlan.create(this.s3Client, "my-bucket", "deps/", target, null, null, true, MIN_PART_SIZE);
+
+		Assert.assertEquals(1, plan.getChangedObjects().size());
+		Assert.assertEquals(Collections.singletonList(stale.getAbsoluteFile()), plan.getObsoleteFiles());
+	}
+
+	@Test
+	public void filterIsAppliedWhileListing() throws Exception {
+		File target = this.folder.newFolder("target");
+		File extra = this.createFile(target, "notes.txt", "extra");
+		this.createFile(target, "kept.bin", "kept");
+		this.mockListing(this.summary("deps/a.jar", 4, "abc"), this.summary("deps/b.txt", 4, "def"));
+
+		DownloadSyncPlan plan = DownloadSyncPlan.create(this.s3Client, "my-bucket", "deps/", target, new KeyPatternFilter("**/*.jar,**/*.txt", "b.*"), null, true, MIN_PART_SIZE);
+
+		Assert.assertEquals(1, plan.getChangedObjects().size());
+		Assert.assertEquals("deps/a.jar", plan.getChangedObjects().get(0).getKey());
+		// local files outside of the selection are never obsolete
+		Assert.assertEquals(Collections.singletonList(extra.getAbsoluteFile()), plan.getObsoleteFiles());
+	}
+
+	@Test
+	public void doNotWriteOutsideOfTarget() throws Exception {
+		File target = this.folder.newFolder("target");
+		this.mockListing(this.summary("deps/../evil.txt", 4, "abc"));
+		assertThrows(IllegalArgumentException.class, () -> DownloadSyncPlan.create(this.s3Client, "my-bucket", "deps/", target, null, null, false, MIN_PART_SIZE));
+	}
+
+	private void mockListing(S3ObjectSummary... summaries) {
+		ListObjectsV2Result result = new ListObjectsV2Result();
+		Collections.addAll(result.getObjectSummaries(), summaries);
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenReturn(result);
+	}
+
+	private S3ObjectSummary summary(String key, long size, String eTag) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setKey(key);
+		summary.setSize(size);
+		summary.setETag(eTag);
+		return summary;
+	}
+
+	private File createFile(File base, String path, String content) throws IOException {
+		File file = new File(base, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
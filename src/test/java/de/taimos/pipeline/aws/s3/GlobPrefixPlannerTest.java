@@ -0,0 +1,82 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.taimos.pipeline.aws.s3.PrefixLister.FolderPlan;
+
+public class GlobPrefixPlannerTest {
+
+	@Test
+	public void recursiveTailIsListedFlat() {
+		GlobPrefixPlanner planner = new GlobPrefixPlanner("glob:releases/2024-*/**/*.jar");
+
+		this.assertPlan(FolderPlan.Mode.DELIMITED, "releases", planner.apply(""));
+		this.assertPlan(FolderPlan.Mode.DELIMITED, "releases/2024-", planner.apply("releases/"));
+		this.assertPlan(FolderPlan.Mode.FLAT, "releases/2024-01/", planner.apply("releases/2024-01/"));
+		Assert.assertEquals(FolderPlan.Mode.SKIP, planner.apply("snapshots/").getMode());
+		Assert.assertEquals(FolderPlan.Mode.SKIP, planner.apply("releases/2023-12/").getMode());
+	}
+
+	@Test
+	public void foldersBelowTheGlobAreSkipped() {
+		GlobPrefixPlanner planner = new GlobPrefixPlanner("glob:builds/*/lib/*.jar");
+
+		this.assertPlan(FolderPlan.Mode.DELIMITED, "builds/", planner.apply("builds/"));
+		this.assertPlan(FolderPlan.Mode.DELIMITED, "builds/42/lib", planner.apply("builds/42/"));
+		this.assertPlan(FolderPlan.Mode.DELIMITED, "builds/42/lib/", planner.apply("builds/42/lib/"));
+		Assert.assertEquals(FolderPlan.Mode.SKIP, planner.apply("builds/42/docs/").getMode());
+		Assert.assertEquals(FolderPlan.Mode.SKIP, planner.apply("builds/42/lib/old/").getMode());
+	}
+
+	@Test
+	public void leadingRecursiveGlobListsEverythingFlat() {
+		this.assertPlan(FolderPlan.Mode.FLAT, "path/", new GlobPrefixPlanner("glob:path/**").apply("path/"));
+	}
+
+	@Test
+	public void unsplittableGlobIsNotPruned() {
+		GlobPrefixPlanner planner = new GlobPrefixPlanner("glob:{a,b/c}/*");
+
+		this.assertPlan(FolderPlan.Mode.DELIMITED, "", planner.apply(""));
+		this.assertPlan(FolderPlan.Mode.DELIMITED, "x/y/z/", planner.apply("x/y/z/"));
+	}
+
+	@Test
+	public void componentsAreSplitOutsideOfGroups() {
+		Assert.assertEquals(Arrays.asList("a", "{b,c}", "[de]*", ""), GlobPrefixPlanner.splitComponents("a/{b,c}/[de]*/"));
+		Assert.assertNull(GlobPrefixPlanner.splitComponents("a/[/]"));
+		Assert.assertNull(GlobPrefixPlanner.splitComponents("a\\*"));
+		Assert.assertEquals("2024-", GlobPrefixPlanner.literalPrefix("2024-*"));
+		Assert.assertEquals("", GlobPrefixPlanner.literalPrefix("{a,b}"));
+		Assert.assertEquals("x.jar", GlobPrefixPlanner.literalPrefix("x.jar"));
+	}
+
+	private void assertPlan(FolderPlan.Mode mode, String prefix, FolderPlan plan) {
+		Assert.assertEquals(mode, plan.getMode());
+		Assert.assertEquals(prefix, plan.getPrefix());
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class InventoryReaderTest {
+
+	private static final String MANIFEST = "{\"sourceBucket\":\"my-bucket\",\"destinationBucket\":\"arn:aws:s3:::inventory\","
+			+ "\"version\":\"2016-11-30\",\"creationTimestamp\":\"1514944800000\",\"fileFormat\":\"CSV\","
+			+ "\"fileSchema\":\"Bucket, Key, VersionId, IsLatest, IsDeleteMarker, Size, LastModifiedDate, ETag, StorageClass\","
+			+ "\"files\":[{\"key\":\"data/1.csv.gz\",\"size\":1},{\"key\":\"data/2.csv.gz\",\"size\":1}]}";
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void manifestIsParsed() throws Exception {
+		InventoryManifest manifest = InventoryManifest.parse(new ByteArrayInputStream(MANIFEST.getBytes(StandardCharsets.UTF_8)));
+
+		Assert.assertEquals("my-bucket", manifest.getSourceBucket());
+		Assert.assertEquals("inventory", manifest.getDestinationBucket());
+		Assert.assertEquals(new Date(1514944800000L), manifest.getCreationTime());
+		Assert.assertEquals("Key", manifest.getColumns().get(1));
+		Assert.assertEquals(Arrays.asList("data/1.csv.gz", "data/2.csv.gz"), manifest.getFiles());
+	}
+
+	@Test
+	public void onlyCsvInventoriesAreSupported() {
+		String orc = MANIFEST.replace("\"CSV\"", "\"ORC\"");
+		IOException e = assertThrows(IOException.class, () -> InventoryManifest.parse(new ByteArrayInputStream(orc.getBytes(StandardCharsets.UTF_8))));
+		Assert.assertEquals("Only CSV inventories are supported, not ORC", e.getMessage());
+	}
+
+	@Test
+	public void latestVersionsBelowThePrefixAreReadInFileOrder() throws Exception {
+		InventoryManifest manifest = InventoryManifest.parse(new ByteArrayInputStream(MANIFEST.getBytes(StandardCharsets.UTF_8)));
+		Mockito.when(this.s3Client.getObject("inventory", "data/1.csv.gz")).thenAnswer(invocation -> this.dataFile(
+				"\"my-bucket\",\"builds/a+b%2Bc.jar\",\"v1\",\"true\",\"false\",\"12\",\"2024-01-31T12:00:00.000Z\",\"etag\",\"STANDARD\"",
+				"\"my-bucket\",\"builds/old.jar\",\"v2\",\"false\",\"false\",\"1\",\"2024-01-01T00:00:00.000Z\",\"etag\",\"STANDARD\"",
+				"\"my-bucket\",\"other/x.jar\",\"v3\",\"true\",\"false\",\"1\",\"2024-01-01T00:00:00.000Z\",\"etag\",\"STANDARD\""));
+		Mockito.when(this.s3Client.getObject("inventory", "data/2.csv.gz")).thenAnswer(invocation -> this.dataFile(
+				"\"my-bucket\",\"builds/deleted.jar\",\"v4\",\"true\",\"true\",\"\",\"2024-01-01T00:00:00.000Z\",\"\",\"\"",
+				"\"my-bucket\",\"builds/z.jar\",\"v5\",\"true\",\"false\",\"3\",\"2024-01-02T00:00:00.000Z\",\"etag\",\"GLACIER\""));
+		InventoryReader reader = new InventoryReader(this.s3Client, this.executor, 2);
+		List<S3ObjectSummary> summaries = new ArrayList<>();
+
+		reader.read(manifest, "builds/", page -> page.getObjectSummaries(), summaries::addAll);
+
+		Assert.assertEquals(2, summaries.size());
+		Assert.assertEquals("builds/a b+c.jar", summaries.get(0).getKey());
+		Assert.assertEquals(12, summaries.get(0).getSize());
+		Assert.assertEquals(new Date(1706702400000L), summaries.get(0).getLastModified());
+		Assert.assertEquals("builds/z.jar", summaries.get(1).getKey());
+		Assert.assertEquals("GLACIER", summaries.get(1).getStorageClass());
+		Assert.assertEquals(2, reader.getFiles());
+		Assert.assertEquals(2, reader.getObjects());
+	}
+
+	@Test
+	public void quotedFieldsAreSplit() {
+		List<String> fields = new ArrayList<>();
+		InventoryReader.parseLine("\"a\",\"b,\"\"c\"\"\",,\"\"", fields);
+		Assert.assertEquals(Arrays.asList("a", "b,\"c\"", "", ""), fields);
+	}
+
+	@Test
+	public void unreadableFileFailsTheRead() throws Exception {
+		InventoryManifest manifest = new InventoryManifest("my-bucket", "inventory", new Date(), Arrays.asList("Bucket", "Key", "Size"), Collections.singletonList("data/1.csv.gz"));
+		Mockito.when(this.s3Client.getObject("inventory", "data/1.csv.gz")).thenAnswer(invocation -> this.dataFile("\"my-bucket\",\"a.txt\",\"not a number\""));
+
+		IOException e = assertThrows(IOException.class, () -> new InventoryReader(this.s3Client, this.executor, 2).read(manifest, "", page -> page.getObjectSummaries(), page -> { }));
+		Assert.assertEquals("Failed to read inventory file s3://inventory/data/1.csv.gz", e.getMessage());
+	}
+
+	@Test
+	public void filesAreOnlyReadAheadOfTheSinkUpToTheLimit() throws Exception {
+		List<String> files = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			files.add("data/" + i + ".csv.gz");
+		}
+		InventoryManifest manifest = new InventoryManifest("my-bucket", "inventory", new Date(), Arrays.asList("Bucket", "Key", "Size"), files);
+		AtomicInteger downloads = new AtomicInteger();
+		Mockito.when(this.s3Client.getObject(Mockito.eq("inventory"), Mockito.anyString())).thenAnswer(invocation -> {
+			downloads.incrementAndGet();
+			return this.dataFile("\"my-bucket\",\"a.txt\",\"1\"");
+		});
+		List<Integer> downloadsBeforeSink = new ArrayList<>();
+
+		new InventoryReader(this.s3Client, this.executor, 3).read(manifest, "", page -> page.getObjectSummaries(), page -> downloadsBeforeSink.add(downloads.get()));
+
+		Assert.assertEquals(10, downloadsBeforeSink.size());
+		for (int i = 0; i < downloadsBeforeSink.size(); i++) {
+			Assert.assertTrue("read ahead at file " + i, downloadsBeforeSink.get(i) <= i + 3);
+		}
+	}
+
+	@Test
+	public void pagesArePassedToTheSinkWhileTheFileIsRead() throws Exception {
+		InventoryManifest manifest = new InventoryManifest("my-bucket", "inventory", new Date(), Arrays.asList("Bucket", "Key", "Size"), Collections.singletonList("data/1.csv.gz"));
+		String[] lines = new String[20 * InventoryReader.PAGE_SIZE];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = "\"my-bucket\",\"key-" + i + "\",\"1\"";
+		}
+		Mockito.when(this.s3Client.getObject("inventory", "data/1.csv.gz")).thenAnswer(invocation -> this.dataFile(lines));
+		AtomicInteger mappedPages = new AtomicInteger();
+		List<Integer> mappedBeforeSink = new ArrayList<>();
+		List<String> keys = new ArrayList<>();
+
+		new InventoryReader(this.s3Client, this.executor, 1).read(manifest, "", page -> {
+			mappedPages.incrementAndGet();
+			return page.getObjectSummaries();
+		}, page -> {
+			mappedBeforeSink.add(mappedPages.get());
+			page.forEach(summary -> keys.add(summary.getKey()));
+		});
+
+		Assert.assertEquals(20, mappedBeforeSink.size());
+		for (int i = 0; i < mappedBeforeSink.size(); i++) {
+			// the pages the sink has taken, the pages waiting for it and the one waiting for room
+			Assert.assertTrue("read ahead at page " + i, mappedBeforeSink.get(i) <= i + 1 + InventoryReader.PAGES_PER_FILE);
+		}
+		Assert.assertEquals(lines.length, keys.size());
+		Assert.assertEquals("key-0", keys.get(0));
+		Assert.assertEquals("key-19999", keys.get(keys.size() - 1));
+	}
+
+	private S3Object dataFile(String... lines) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+		}
+		S3Object object = new S3Object();
+		object.setObjectContent(new ByteArrayInputStream(bytes.toByteArray()));
+		return object;
+	}
+}
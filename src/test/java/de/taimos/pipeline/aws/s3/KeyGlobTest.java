@@ -0,0 +1,111 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeyGlobTest {
+
+	@Test
+	public void starMatchesWithinOneSegment() {
+		KeyGlob glob = KeyGlob.compile("glob:builds/*.jar");
+
+		Assert.assertTrue(glob.matches("builds/app.jar"));
+		Assert.assertTrue(glob.matches("builds/.jar"));
+		Assert.assertFalse(glob.matches("builds/lib/app.jar"));
+		Assert.assertFalse(glob.matches("builds/app.jar.sha1"));
+		Assert.assertFalse(glob.matches("other/app.jar"));
+	}
+
+	@Test
+	public void doubleStarMatchesAcrossSegments() {
+		KeyGlob glob = KeyGlob.compile("builds/**/*.jar");
+
+		Assert.assertTrue(glob.matches("builds/1/app.jar"));
+		Assert.assertTrue(glob.matches("builds/1/lib/app.jar"));
+		Assert.assertFalse(glob.matches("builds/app.jar"));
+		Assert.assertFalse(glob.matches("builds/1/app.war"));
+		Assert.assertTrue(KeyGlob.compile("builds/**").matches("builds/1/lib/app.jar"));
+	}
+
+	@Test
+	public void charactersAndClasses() {
+		Assert.assertTrue(KeyGlob.compile("log-?.txt").matches("log-1.txt"));
+		Assert.assertFalse(KeyGlob.compile("log-?.txt").matches("log-12.txt"));
+		Assert.assertFalse(KeyGlob.compile("a?b").matches("a/b"));
+		Assert.assertTrue(KeyGlob.compile("log-[0-9].txt").matches("log-7.txt"));
+		Assert.assertFalse(KeyGlob.compile("log-[0-9].txt").matches("log-x.txt"));
+		Assert.assertTrue(KeyGlob.compile("log-[!0-9].txt").matches("log-x.txt"));
+		Assert.assertFalse(KeyGlob.compile("a[!x]b").matches("a/b"));
+		Assert.assertTrue(KeyGlob.compile("[-a]").matches("-"));
+	}
+
+	@Test
+	public void groupsMatchOneAlternative() {
+		KeyGlob glob = KeyGlob.compile("dist/{*.zip,docs/**}");
+
+		Assert.assertTrue(glob.matches("dist/app.zip"));
+		Assert.assertTrue(glob.matches("dist/docs/api/index.html"));
+		Assert.assertFalse(glob.matches("dist/lib/app.zip"));
+		Assert.assertFalse(glob.matches("dist/app.tar"));
+	}
+
+	@Test
+	public void escapedCharactersAreLiterals() {
+		KeyGlob glob = KeyGlob.compile("a\\*b");
+
+		Assert.assertTrue(glob.matches("a*b"));
+		Assert.assertFalse(glob.matches("axb"));
+	}
+
+	@Test
+	public void keysAreNotNormalized() {
+		Assert.assertFalse(KeyGlob.compile("*/b").matches("a//b"));
+		Assert.assertTrue(KeyGlob.compile("a/*/b").matches("a//b"));
+		Assert.assertFalse(KeyGlob.compile("a/b").matches("a/./b"));
+		Assert.assertFalse(KeyGlob.compile("A/*").matches("a/b"));
+	}
+
+	@Test
+	public void foldersAreMatchedWithoutTrailingSeparator() {
+		KeyGlob glob = KeyGlob.compile("builds/*");
+
+		Assert.assertTrue(glob.matchesFolder("builds/1/"));
+		Assert.assertFalse(glob.matches("builds/1/"));
+		Assert.assertFalse(glob.matchesFolder("builds/1/lib/"));
+	}
+
+	@Test
+	public void invalidGlobsAreRejected() {
+		assertThrows(PatternSyntaxException.class, () -> KeyGlob.compile("a[b"));
+		assertThrows(PatternSyntaxException.class, () -> KeyGlob.compile("{a,b"));
+		assertThrows(PatternSyntaxException.class, () -> KeyGlob.compile("{a,{b}}"));
+		assertThrows(PatternSyntaxException.class, () -> KeyGlob.compile("a\\"));
+		assertThrows(PatternSyntaxException.class, () -> KeyGlob.compile("a[/]"));
+		assertThrows(PatternSyntaxException.class, () -> KeyGlob.compile("[z-a]"));
+	}
+}
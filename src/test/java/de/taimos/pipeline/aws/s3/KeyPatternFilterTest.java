@@ -0,0 +1,68 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeyPatternFilterTest {
+
+	@Test
+	public void antPatternsMatchKeys() {
+		KeyPatternFilter filter = new KeyPatternFilter("**/*.jar, docs/", "**/*-sources.jar");
+		Assert.assertTrue(filter.test("a.jar"));
+		Assert.assertTrue(filter.test("lib/x/a.jar"));
+		Assert.assertTrue(filter.test("docs/x/index.html"));
+		Assert.assertTrue(filter.test("lib/a(1).jar"));
+		Assert.assertFalse(filter.test("lib/a-sources.jar"));
+		Assert.assertFalse(filter.test("a.jar.sha1"));
+		Assert.assertFalse(filter.test("b.txt"));
+	}
+
+	@Test
+	public void singleStarStaysWithinSegment() {
+		KeyPatternFilter filter = new KeyPatternFilter("*.txt", null);
+		Assert.assertTrue(filter.test("a.txt"));
+		Assert.assertFalse(filter.test("dir/a.txt"));
+	}
+
+	@Test
+	public void excludeOnlySelectsEverythingElse() {
+		KeyPatternFilter filter = new KeyPatternFilter(null, "tmp/**");
+		Assert.assertTrue(filter.test("a/b.txt"));
+		Assert.assertFalse(filter.test("tmp/b.txt"));
+	}
+
+	@Test
+	public void defaultExcludesAreAddedForWorkspaceFiles() {
+		KeyPatternFilter filter = KeyPatternFilter.withDefaultExcludes("**/*.txt", "tmp/**");
+		Assert.assertTrue(filter.test("a/b.txt"));
+		Assert.assertFalse(filter.test("tmp/b.txt"));
+		Assert.assertFalse(filter.test(".git/b.txt"));
+		Assert.assertFalse(filter.test("a/.svn/b.txt"));
+	}
+
+	@Test
+	public void noPatternsMeansNoFilter() {
+		Assert.assertNull(KeyPatternFilter.of(" ", null));
+	}
+}
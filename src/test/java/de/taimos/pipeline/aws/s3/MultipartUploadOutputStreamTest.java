@@ -0,0 +1,159 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+public class MultipartUploadOutputStreamTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void smallStreamIsUploadedWithSinglePut() throws Exception {
+		try (OutputStream out = new MultipartUploadOutputStream(this.s3Client, this.executor, "my-bucket", "my-key", null, null, 1024, 2)) {
+			out.write(new byte[100]);
+		}
+		ArgumentCaptor<PutObjectRequest> captor = ArgumentCaptor.forClass(PutObjectRequest.class);
+		Mockito.verify(this.s3Client).putObject(captor.capture());
+		Assert.assertEquals(100, captor.getValue().getMetadata().getContentLength());
+		Mockito.verifyNoMoreInteractions(this.s3Client);
+	}
+
+	@Test
+	public void largeStreamIsUploadedInParts() throws Exception {
+		this.mockMultipartUpload();
+		MultipartUploadOutputStream out = new MultipartUploadOutputStream(this.s3Client, this.executor, "my-bucket", "my-key", null, null, 1024, 2);
+		out.write(new byte[2500]);
+		out.close();
+
+		ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+		Mockito.verify(this.s3Client, Mockito.times(3)).uploadPart(parts.capture());
+		Assert.assertEquals(2500, parts.getAllValues().stream().mapToLong(UploadPartRequest::getPartSize).sum());
+		ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+		Mockito.verify(this.s3Client).completeMultipartUpload(complete.capture());
+		Assert.assertEquals("upload-id", complete.getValue().getUploadId());
+		Assert.assertEquals(3, complete.getValue().getPartETags().size());
+		Assert.assertEquals(1, complete.getValue().getPartETags().get(0).getPartNumber());
+		Assert.assertEquals(2500, out.getBytesWritten());
+	}
+
+	@Test
+	public void failedPartAbortsUpload() throws Exception {
+		this.mockInitiateUpload();
+		Mockito.when(this.s3Client.uploadPart(Mockito.any(UploadPartRequest.class))).thenThrow(new AmazonServiceException("boom"));
+		MultipartUploadOutputStream out = new MultipartUploadOutputStream(this.s3Client, this.executor, "my-bucket", "my-key", null, null, 1024, 2);
+		out.write(new byte[1500]);
+		assertThrows(IOException.class, out::close);
+		Mockito.verify(this.s3Client).abortMultipartUpload(Mockito.any(AbortMultipartUploadRequest.class));
+		Mockito.verify(this.s3Client, Mockito.never()).completeMultipartUpload(Mockito.any(CompleteMultipartUploadRequest.class));
+	}
+
+	@Test
+	public void bufferedPartsNeverExceedTheByteBudget() throws Exception {
+		this.mockInitiateUpload();
+		AtomicLong uploading = new AtomicLong();
+		AtomicLong maxUploading = new AtomicLong();
+		Mockito.when(this.s3Client.uploadPart(Mockito.any(UploadPartRequest.class))).thenAnswer(invocation -> {
+			UploadPartRequest request = invocation.getArgument(0);
+			maxUploading.accumulateAndGet(uploading.addAndGet(request.getPartSize()), Math::max);
+			Thread.sleep(5);
+			uploading.addAndGet(-request.getPartSize());
+			UploadPartResult result = new UploadPartResult();
+			result.setPartNumber(request.getPartNumber());
+			result.setETag("etag-" + request.getPartNumber());
+			return result;
+		});
+		ExecutorService wide = Executors.newFixedThreadPool(16);
+		try {
+			// 16 parts could be uploaded at once, but only 3 fit into the budget next to the part being written
+			MultipartUploadOutputStream out = new MultipartUploadOutputStream(this.s3Client, wide, "my-bucket", "my-key", null, null, 1024, 16, 4096);
+			for (int i = 0; i < 200; i++) {
+				out.write(new byte[1000]);
+			}
+			out.close();
+		} finally {
+			wide.shutdownNow();
+		}
+
+		Assert.assertTrue(String.valueOf(maxUploading.get()), maxUploading.get() <= 4096 - 1024);
+		Assert.assertTrue(String.valueOf(maxUploading.get()), maxUploading.get() > 1024);
+		ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+		Mockito.verify(this.s3Client).completeMultipartUpload(complete.capture());
+		Assert.assertEquals(196, complete.getValue().getPartETags().size());
+	}
+
+	@Test
+	public void partLargerThanTheBudgetIsStillUploaded() throws Exception {
+		this.mockMultipartUpload();
+		MultipartUploadOutputStream out = new MultipartUploadOutputStream(this.s3Client, this.executor, "my-bucket", "my-key", null, null, 1024, 2, 100);
+		out.write(new byte[2500]);
+		out.close();
+
+		Mockito.verify(this.s3Client, Mockito.times(3)).uploadPart(Mockito.any(UploadPartRequest.class));
+		Mockito.verify(this.s3Client).completeMultipartUpload(Mockito.any(CompleteMultipartUploadRequest.class));
+	}
+
+	private void mockMultipartUpload() {
+		this.mockInitiateUpload();
+		Mockito.when(this.s3Client.uploadPart(Mockito.any(UploadPartRequest.class))).thenAnswer(invocation -> {
+			UploadPartRequest request = invocation.getArgument(0);
+			UploadPartResult result = new UploadPartResult();
+			result.setPartNumber(request.getPartNumber());
+			result.setETag("etag-" + request.getPartNumber());
+			return result;
+		});
+	}
+
+	private void mockInitiateUpload() {
+		InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+		initiated.setUploadId("upload-id");
+		Mockito.when(this.s3Client.initiateMultipartUpload(Mockito.any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class ObjectSummaryFilterTest {
+
+	private static final long DAY = 24L * 60L * 60L * 1000L;
+
+	@Test
+	public void sizeBoundsAreInclusive() {
+		ObjectSummaryFilter filter = new ObjectSummaryFilter(10L, 20L, null, null, null);
+
+		Assert.assertFalse(filter.test(this.summary(9, 0, "STANDARD")));
+		Assert.assertTrue(filter.test(this.summary(10, 0, "STANDARD")));
+		Assert.assertTrue(filter.test(this.summary(20, 0, "STANDARD")));
+		Assert.assertFalse(filter.test(this.summary(21, 0, "STANDARD")));
+	}
+
+	@Test
+	public void modificationTimeIsAfterInclusiveAndBeforeExclusive() {
+		ObjectSummaryFilter filter = new ObjectSummaryFilter(null, null, new Date(1000), new Date(2000), null);
+
+		Assert.assertFalse(filter.test(this.summary(1, 999, null)));
+		Assert.assertTrue(filter.test(this.summary(1, 1000, null)));
+		Assert.assertTrue(filter.test(this.summary(1, 1999, null)));
+		Assert.assertFalse(filter.test(this.summary(1, 2000, null)));
+	}
+
+	@Test
+	public void storageClassesAreMatchedIgnoringCase() {
+		ObjectSummaryFilter filter = new ObjectSummaryFilter(null, null, null, null, "standard, GLACIER");
+
+		Assert.assertTrue(filter.test(this.summary(1, 0, "STANDARD")));
+		Assert.assertTrue(filter.test(this.summary(1, 0, null)));
+		Assert.assertTrue(filter.test(this.summary(1, 0, "GLACIER")));
+		Assert.assertFalse(filter.test(this.summary(1, 0, "STANDARD_IA")));
+	}
+
+	@Test
+	public void noConditionsMeansNoFilter() {
+		Assert.assertNull(ObjectSummaryFilter.of(null, null, null, null, " "));
+		Assert.assertNotNull(ObjectSummaryFilter.of(0L, null, null, null, null));
+		assertThrows(IllegalArgumentException.class, () -> new ObjectSummaryFilter(2L, 1L, null, null, null));
+	}
+
+	@Test
+	public void timesAreParsed() {
+		long now = 100 * DAY;
+
+		Assert.assertEquals(new Date(70 * DAY), ObjectSummaryFilter.parseTime("P30D", now));
+		Assert.assertEquals(new Date(now - 12 * 60 * 60 * 1000), ObjectSummaryFilter.parseTime("PT12H", now));
+		Assert.assertEquals(new Date(DAY), ObjectSummaryFilter.parseTime("1970-01-02", now));
+		Assert.assertEquals(new Date(DAY + 1000), ObjectSummaryFilter.parseTime("1970-01-02T01:00:01+01:00", now));
+		Assert.assertNull(ObjectSummaryFilter.parseTime("", now));
+		assertThrows(IllegalArgumentException.class, () -> ObjectSummaryFilter.parseTime("30 days", now));
+	}
+
+	private S3ObjectSummary summary(long size, long lastModified, String storageClass) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setKey("key");
+		summary.setSize(size);
+		summary.setLastModified(new Date(lastModified));
+		summary.setStorageClass(storageClass);
+		return summary;
+	}
+}
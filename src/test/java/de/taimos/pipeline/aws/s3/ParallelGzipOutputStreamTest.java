@@ -0,0 +1,65 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void membersDecompressAsOneStream() throws Exception {
+		byte[] data = new byte[1_000_000];
+		new Random(42).nextBytes(data);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (OutputStream out = new ParallelGzipOutputStream(bytes, this.executor, 64 * 1024, 3)) {
+			out.write(data, 0, 10);
+			out.write(data[10]);
+			out.write(data, 11, data.length - 11);
+		}
+		byte[] result = new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray())).readAllBytes();
+		Assert.assertArrayEquals(data, result);
+	}
+
+	@Test
+	public void emptyInputIsValidGzip() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new ParallelGzipOutputStream(bytes, this.executor, 4).close();
+		Assert.assertEquals(0, new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray())).readAllBytes().length);
+	}
+}
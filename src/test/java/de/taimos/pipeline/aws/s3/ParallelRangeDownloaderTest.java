@@ -0,0 +1,185 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+public class ParallelRangeDownloaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(3);
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+	private final byte[] content = new byte[1000];
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void rangesAreWrittenAtTheirOffset() throws Exception {
+		this.mockObject("etag");
+		File target = new File(this.folder.getRoot(), "sub/target.bin");
+
+		new ParallelRangeDownloader(this.s3Client, this.executor, 64, 3).download("my-bucket", "my-key", target);
+
+		Assert.assertArrayEquals(this.content, Files.readAllBytes(target.toPath()));
+		Assert.assertFalse(new File(target.getPath() + ParallelRangeDownloader.PARTIAL_SUFFIX).exists());
+		ArgumentCaptor<GetObjectRequest> requests = ArgumentCaptor.forClass(GetObjectRequest.class);
+		Mockito.verify(this.s3Client, Mockito.times(16)).getObject(requests.capture());
+		for (GetObjectRequest request : requests.getAllValues()) {
+			Assert.assertEquals(Arrays.asList("etag"), request.getMatchingETagConstraints());
+		}
+	}
+
+	@Test
+	public void emptyObjectCreatesEmptyFile() throws Exception {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(0);
+		Mockito.when(this.s3Client.getObjectMetadata("my-bucket", "my-key")).thenReturn(metadata);
+		File target = new File(this.folder.getRoot(), "empty.bin");
+
+		new ParallelRangeDownloader(this.s3Client, this.executor, 64, 3).download("my-bucket", "my-key", target);
+
+		Assert.assertTrue(target.isFile());
+		Assert.assertEquals(0, target.length());
+		Mockito.verify(this.s3Client, Mockito.never()).getObject(Mockito.any(GetObjectRequest.class));
+	}
+
+	@Test
+	public void changedObjectFailsTheDownload() throws Exception {
+		this.mockObject("etag");
+		Mockito.when(this.s3Client.getObject(Mockito.any(GetObjectRequest.class))).thenReturn(null);
+		File target = new File(this.folder.getRoot(), "target.bin");
+
+		assertThrows(IOException.class, () -> new ParallelRangeDownloader(this.s3Client, this.executor, 64, 3).download("my-bucket", "my-key", target));
+
+		Assert.assertFalse(target.exists());
+		Assert.assertFalse(new File(target.getPath() + ParallelRangeDownloader.PARTIAL_SUFFIX).exists());
+	}
+
+	@Test
+	public void resumableDownloadContinuesWithTheMissingBytes() throws Exception {
+		this.mockObject("etag");
+		this.failRangeAfter(512, 10);
+		File target = new File(this.folder.getRoot(), "target.bin");
+		File partial = new File(target.getPath() + ParallelRangeDownloader.PARTIAL_SUFFIX);
+
+		assertThrows(IOException.class, () -> new ParallelRangeDownloader(this.s3Client, this.executor, 64, 1, true).download("my-bucket", "my-key", target));
+
+		Assert.assertFalse(target.exists());
+		Assert.assertTrue(partial.isFile());
+		Assert.assertTrue(new File(target.getPath() + ParallelRangeDownloader.PARTIAL_STATE_SUFFIX).isFile());
+
+		Mockito.reset(this.s3Client);
+		this.mockObject("etag");
+		ParallelRangeDownloader downloader = new ParallelRangeDownloader(this.s3Client, this.executor, 64, 1, true);
+		downloader.download("my-bucket", "my-key", target);
+
+		Assert.assertArrayEquals(this.content, Files.readAllBytes(target.toPath()));
+		Assert.assertEquals(522, downloader.getResumedBytes());
+		Assert.assertFalse(partial.exists());
+		Assert.assertFalse(new File(target.getPath() + ParallelRangeDownloader.PARTIAL_STATE_SUFFIX).exists());
+		ArgumentCaptor<GetObjectRequest> requests = ArgumentCaptor.forClass(GetObjectRequest.class);
+		Mockito.verify(this.s3Client, Mockito.times(8)).getObject(requests.capture());
+		Assert.assertArrayEquals(new long[] { 522, 575 }, requests.getAllValues().get(0).getRange());
+	}
+
+	@Test
+	public void changedObjectIsNotResumed() throws Exception {
+		this.mockObject("etag");
+		this.failRangeAfter(512, 10);
+		File target = new File(this.folder.getRoot(), "target.bin");
+
+		assertThrows(IOException.class, () -> new ParallelRangeDownloader(this.s3Client, this.executor, 64, 1, true).download("my-bucket", "my-key", target));
+
+		Mockito.reset(this.s3Client);
+		this.mockObject("other");
+		ParallelRangeDownloader downloader = new ParallelRangeDownloader(this.s3Client, this.executor, 64, 1, true);
+		downloader.download("my-bucket", "my-key", target);
+
+		Assert.assertArrayEquals(this.content, Files.readAllBytes(target.toPath()));
+		Assert.assertEquals(0, downloader.getResumedBytes());
+		Mockito.verify(this.s3Client, Mockito.times(16)).getObject(Mockito.any(GetObjectRequest.class));
+	}
+
+	/**
+	 * Lets the stream of the range starting at the given offset break after the given number of bytes.
+	 */
+	private void failRangeAfter(long offset, int bytes) {
+		Mockito.when(this.s3Client.getObject(Mockito.any(GetObjectRequest.class))).thenAnswer(invocation -> {
+			long[] range = invocation.getArgument(0, GetObjectRequest.class).getRange();
+			InputStream in = new ByteArrayInputStream(Arrays.copyOfRange(this.content, (int) range[0], (int) range[1] + 1));
+			if (range[0] == offset) {
+				in = new SequenceInputStream(new ByteArrayInputStream(Arrays.copyOfRange(this.content, (int) range[0], (int) range[0] + bytes)), new InputStream() {
+					@Override
+					public int read() throws IOException {
+						throw new IOException("Connection reset");
+					}
+				});
+			}
+			S3Object object = new S3Object();
+			object.setObjectContent(in);
+			return object;
+		});
+	}
+
+	private void mockObject(String eTag) {
+		new Random(42).nextBytes(this.content);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(this.content.length);
+		metadata.setHeader("ETag", eTag);
+		Mockito.when(this.s3Client.getObjectMetadata("my-bucket", "my-key")).thenReturn(metadata);
+		Mockito.when(this.s3Client.getObject(Mockito.any(GetObjectRequest.class))).thenAnswer(invocation -> {
+			long[] range = invocation.getArgument(0, GetObjectRequest.class).getRange();
+			S3Object object = new S3Object();
+			object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(this.content, (int) range[0], (int) range[1] + 1)));
+			return object;
+		});
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.Copy;
+import com.amazonaws.services.s3.transfer.TransferManager;
+
+public class PrefixCopierTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+	private final List<String> copied = Collections.synchronizedList(new ArrayList<>());
+	private final Map<String, TreeMap<String, S3ObjectSummary>> buckets = new ConcurrentHashMap<>();
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void copiesMatchingObjectsBelowTheTargetPrefix() throws Exception {
+		this.mockListing("release/1.0/", "release/1.0/", 0, "release/1.0/app.jar", 10, "release/1.0/lib/dep.jar", 20, "release/1.0/app-tests.jar", 30, "release/1.0/README", 40);
+		Mockito.when(this.s3Client.copyObject(Mockito.any(CopyObjectRequest.class))).thenAnswer(invocation -> {
+			CopyObjectRequest request = invocation.getArgument(0);
+			this.copied.add(request.getSourceBucketName() + "/" + request.getSourceKey() + " > " + request.getDestinationBucketName() + "/" + request.getDestinationKey());
+			return new CopyObjectResult();
+		});
+
+		PrefixCopier copier = new PrefixCopier(this.s3Client, null, this.executor, 2, 1000, 1);
+		copier.copy("from", "release/1.0/", "to", "releases/", KeyGlob.compile("**.jar"), KeyGlob.compile("*-tests.jar"),
+				(fromKey, toKey) -> new CopyObjectRequest("from", fromKey, "to", toKey));
+
+		Assert.assertEquals(Arrays.asList("from/release/1.0/app.jar > to/releases/app.jar", "from/release/1.0/lib/dep.jar > to/releases/lib/dep.jar"),
+				this.copied.stream().sorted().collect(Collectors.toList()));
+		Assert.assertEquals(2, copier.getObjects());
+		Assert.assertEquals(30, copier.getBytes());
+	}
+
+	@Test
+	public void copiesLargeObjectsInParts() throws Exception {
+		this.mockListing("a/", "a/small", 10, "a/large", 2000);
+		TransferManager transferManager = Mockito.mock(TransferManager.class);
+		Copy copy = Mockito.mock(Copy.class);
+		Mockito.when(transferManager.copy(Mockito.any(CopyObjectRequest.class))).thenReturn(copy);
+
+		PrefixCopier copier = new PrefixCopier(this.s3Client, transferManager, this.executor, 2, 1000, 1);
+		copier.copy("from", "a/", "to", "b/", null, null, (fromKey, toKey) -> new CopyObjectRequest("from", fromKey, "to", toKey));
+
+		Mockito.verify(this.s3Client).copyObject(Mockito.any(CopyObjectRequest.class));
+		Mockito.verify(transferManager).copy(Mockito.any(CopyObjectRequest.class));
+		Mockito.verify(copy).waitForCompletion();
+		Assert.assertEquals(2010, copier.getBytes());
+	}
+
+	@Test
+	public void retriesThrottledCopies() throws Exception {
+		this.mockListing("a/", "a/x", 1);
+		AtomicInteger attempts = new AtomicInteger();
+		Mockito.when(this.s3Client.copyObject(Mockito.any(CopyObjectRequest.class))).thenAnswer(invocation -> {
+			if (attempts.incrementAndGet() < 3) {
+				AmazonS3Exception slowDown = new AmazonS3Exception("Please reduce your request rate.");
+				slowDown.setStatusCode(503);
+				slowDown.setErrorCode("SlowDown");
+				throw slowDown;
+			}
+			return new CopyObjectResult();
+		});
+
+		PrefixCopier copier = new PrefixCopier(this.s3Client, null, this.executor, 2, 1000, 1);
+		copier.copy("from", "a/", "to", "b/", null, null, (fromKey, toKey) -> new CopyObjectRequest("from", fromKey, "to", toKey));
+
+		Assert.assertEquals(1, copier.getObjects());
+		Assert.assertEquals(2, copier.getRetries());
+	}
+
+	@Test
+	public void failedCopyStopsTheCopy() throws Exception {
+		this.mockListing("a/", "a/x", 1);
+		AmazonS3Exception accessDenied = new AmazonS3Exception("Access Denied");
+		accessDenied.setStatusCode(403);
+		accessDenied.setErrorCode("AccessDenied");
+		Mockito.when(this.s3Client.copyObject(Mockito.any(CopyObjectRequest.class))).thenThrow(accessDenied);
+
+		PrefixCopier copier = new PrefixCopier(this.s3Client, null, this.executor, 2, 1000, 1);
+		AmazonS3Exception e = assertThrows(AmazonS3Exception.class,
+				() -> copier.copy("from", "a/", "to", "b/", null, null, (fromKey, toKey) -> new CopyObjectRequest("from", fromKey, "to", toKey)));
+		Assert.assertEquals("AccessDenied", e.getErrorCode());
+		Assert.assertEquals(0, copier.getObjects());
+	}
+
+	@Test
+	public void syncCopiesMissingAndChangedObjectsAndDeletesExtras() throws Exception {
+		this.mockBucket("from", "a/", "etag-a", 1, "a/changed", "etag-new", 2, "a/missing", "etag-m", 3, "a/same", "etag-s", 4, "a/skip.tmp", "etag-t", 5);
+		this.mockBucket("to", "b/changed", "etag-old", 2, "b/extra", "etag-e", 6, "b/same", "etag-s", 4, "b/z.tmp", "etag-z", 7);
+		Mockito.when(this.s3Client.copyObject(Mockito.any(CopyObjectRequest.class))).thenAnswer(invocation -> {
+			CopyObjectRequest request = invocation.getArgument(0);
+			this.copied.add(request.getSourceKey() + " > " + request.getDestinationKey());
+			return new CopyObjectResult();
+		});
+		List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+		Mockito.when(this.s3Client.deleteObjects(Mockito.any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+			DeleteObjectsRequest request = invocation.getArgument(0);
+			request.getKeys().forEach(key -> deleted.add(key.getKey()));
+			return new DeleteObjectsResult(Collections.emptyList());
+		});
+
+		PrefixCopier copier = new PrefixCopier(this.s3Client, null, this.executor, 2, 1000, 1);
+		BatchDeleter deleter = new BatchDeleter(this.s3Client, "to", this.executor, 2);
+		ExecutorService listingExecutor = Executors.newFixedThreadPool(2);
+		try {
+			copier.sync("from", "a/", "to", "b/", null, KeyGlob.compile("*.tmp"), (fromKey, toKey) -> new CopyObjectRequest("from", fromKey, "to", toKey), listingExecutor, deleter, false);
+		} finally {
+			listingExecutor.shutdownNow();
+		}
+		deleter.finish();
+
+		Assert.assertEquals(Arrays.asList("a/changed > b/changed", "a/missing > b/missing"), this.copied.stream().sorted().collect(Collectors.toList()));
+		Assert.assertEquals(Collections.singletonList("b/extra"), deleted);
+		Assert.assertEquals(2, copier.getObjects());
+		Assert.assertEquals(5, copier.getBytes());
+		Assert.assertEquals(1, copier.getUnchanged());
+	}
+
+	@Test
+	public void multipartAndKmsCopiesAreComparedByModificationTime() {
+		S3ObjectSummary source = this.summary("3858f62230ac3c915f300c664312c11f-3", 20, 1000);
+		Assert.assertTrue(PrefixCopier.isSame(source, this.summary("9e107d9d372bb6826bd81d3542a419d6", 20, 2000), false));
+		Assert.assertTrue(PrefixCopier.isSame(source, this.summary("e4d909c290d0fb1ca068ffaddf22cbd0-2", 20, 1000), false));
+		Assert.assertFalse(PrefixCopier.isSame(source, this.summary("9e107d9d372bb6826bd81d3542a419d6", 20, 500), false));
+		Assert.assertFalse(PrefixCopier.isSame(source, this.summary("9e107d9d372bb6826bd81d3542a419d6", 21, 2000), false));
+
+		S3ObjectSummary single = this.summary("3858f62230ac3c915f300c664312c11f", 20, 1000);
+		Assert.assertTrue(PrefixCopier.isSame(single, this.summary("3858f62230ac3c915f300c664312c11f", 20, 500), false));
+		Assert.assertFalse(PrefixCopier.isSame(single, this.summary("9e107d9d372bb6826bd81d3542a419d6", 20, 2000), false));
+		// SSE-KMS copies have random ETags
+		Assert.assertTrue(PrefixCopier.isSame(single, this.summary("9e107d9d372bb6826bd81d3542a419d6", 20, 2000), true));
+	}
+
+	@Test
+	public void keysAreOrderedLikeTheirUtf8Bytes() {
+		Assert.assertTrue(PrefixCopier.KEY_ORDER.compare("a", "ab") < 0);
+		Assert.assertTrue(PrefixCopier.KEY_ORDER.compare("a/b", "a-b") > 0);
+		// U+FF5E is encoded with 3 bytes, U+1F600 with 4 bytes, while its first UTF-16 char is smaller
+		Assert.assertTrue(PrefixCopier.KEY_ORDER.compare("\uFF5E", "\uD83D\uDE00") < 0);
+		Assert.assertTrue("\uFF5E".compareTo("\uD83D\uDE00") > 0);
+	}
+
+	private S3ObjectSummary summary(String etag, long size, long lastModified) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setETag(etag);
+		summary.setSize(size);
+		summary.setLastModified(new Date(lastModified));
+		return summary;
+	}
+
+	/**
+	 * Answers the listings of the bucket from the given objects, one object per page.
+	 *
+	 * @param bucket         the bucket
+	 * @param keysEtagsSizes triples of key, ETag and size
+	 */
+	private void mockBucket(String bucket, Object... keysEtagsSizes) {
+		TreeMap<String, S3ObjectSummary> objects = new TreeMap<>();
+		for (int i = 0; i < keysEtagsSizes.length; i += 3) {
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setBucketName(bucket);
+			summary.setKey((String) keysEtagsSizes[i]);
+			summary.setETag((String) keysEtagsSizes[i + 1]);
+			summary.setSize((Integer) keysEtagsSizes[i + 2]);
+			objects.put(summary.getKey(), summary);
+		}
+		if (this.buckets.put(bucket, objects) != null || this.buckets.size() > 1) {
+			// the answer below serves all buckets
+			return;
+		}
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+			ListObjectsV2Request request = invocation.getArgument(0);
+			String after = request.getContinuationToken() == null ? request.getPrefix() : request.getContinuationToken();
+			ListObjectsV2Result result = new ListObjectsV2Result();
+			Map.Entry<String, S3ObjectSummary> next = request.getContinuationToken() == null
+					? this.buckets.get(request.getBucketName()).ceilingEntry(after) : this.buckets.get(request.getBucketName()).higherEntry(after);
+			if (next != null && next.getKey().startsWith(request.getPrefix())) {
+				result.getObjectSummaries().add(next.getValue());
+				Map.Entry<String, S3ObjectSummary> following = this.buckets.get(request.getBucketName()).higherEntry(next.getKey());
+				result.setTruncated(following != null && following.getKey().startsWith(request.getPrefix()));
+				result.setNextContinuationToken(next.getKey());
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * @param prefix      the expected prefix of the listing
+	 * @param keysAndSize pairs of key and size
+	 */
+	private void mockListing(String prefix, Object... keysAndSize) {
+		ListObjectsV2Result result = new ListObjectsV2Result();
+		for (int i = 0; i < keysAndSize.length; i += 2) {
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setKey((String) keysAndSize[i]);
+			summary.setSize((Integer) keysAndSize[i + 1]);
+			result.getObjectSummaries().add(summary);
+		}
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+			ListObjectsV2Request request = invocation.getArgument(0);
+			Assert.assertEquals(prefix, request.getPrefix());
+			return result;
+		});
+	}
+}
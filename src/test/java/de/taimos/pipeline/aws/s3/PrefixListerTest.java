@@ -0,0 +1,189 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class PrefixListerTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(4);
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void resultsAreMergedInBreadthFirstOrder() throws Exception {
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+			ListObjectsV2Request request = invocation.getArgument(0);
+			Assert.assertEquals("/", request.getDelimiter());
+			switch (request.getPrefix()) {
+				case "root/":
+					if (request.getContinuationToken() == null) {
+						return this.page("token", Arrays.asList("root/a.txt"), Arrays.asList("root/x/"));
+					}
+					return this.page(null, Arrays.asList("root/b.txt"), Arrays.asList("root/y/"));
+				case "root/x/":
+					// a slow folder must not change the order
+					Thread.sleep(100);
+					return this.page(null, Arrays.asList("root/x/c.txt"), Arrays.asList("root/x/z/"));
+				case "root/y/":
+					return this.page(null, Arrays.asList("root/y/d.txt"), Collections.emptyList());
+				case "root/x/z/":
+					return this.page(null, Arrays.asList("root/x/z/e.txt"), Collections.emptyList());
+				default:
+					throw new IllegalArgumentException(request.getPrefix());
+			}
+		});
+		PrefixLister lister = new PrefixLister(this.s3Client, this.executor);
+
+		List<String> keys = lister.list("my-bucket", "root", this::keys);
+
+		Assert.assertEquals(Arrays.asList("root/a.txt", "root/b.txt", "root/x/c.txt", "root/y/d.txt", "root/x/z/e.txt"), keys);
+		Assert.assertEquals(4, lister.getFolders());
+		Assert.assertEquals(5, lister.getRequests());
+	}
+
+	@Test
+	public void flatListingReportsSubFolders() throws Exception {
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+			ListObjectsV2Request request = invocation.getArgument(0);
+			Assert.assertNull(request.getDelimiter());
+			Assert.assertEquals("root/2024-", request.getPrefix());
+			if (request.getContinuationToken() == null) {
+				return this.page("token", Arrays.asList("root/2024-01/a/x.jar", "root/2024-01/b.jar"), Collections.emptyList());
+			}
+			return this.page(null, Arrays.asList("root/2024-01/c/y.jar", "root/2024-02.txt"), Collections.emptyList());
+		});
+		PrefixLister lister = new PrefixLister(this.s3Client, this.executor);
+
+		List<String> entries = lister.list("my-bucket", "root/", folder -> PrefixLister.FolderPlan.flat(folder + "2024-"), page -> {
+			List<String> all = this.keys(page);
+			all.addAll(page.getCommonPrefixes());
+			return all;
+		});
+
+		Assert.assertEquals(Arrays.asList("root/2024-01/a/x.jar", "root/2024-01/b.jar", "root/2024-01/", "root/2024-01/a/",
+				"root/2024-01/c/y.jar", "root/2024-02.txt", "root/2024-01/c/"), entries);
+		Assert.assertEquals(1, lister.getFolders());
+		Assert.assertEquals(2, lister.getRequests());
+	}
+
+	@Test
+	public void skippedFoldersAreNotListed() throws Exception {
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenReturn(this.page(null, Arrays.asList("a.txt"), Arrays.asList("skipped/", "listed/")),
+				this.page(null, Arrays.asList("listed/b.txt"), Collections.emptyList()));
+
+		List<String> keys = new PrefixLister(this.s3Client, this.executor).list("my-bucket", "",
+				folder -> folder.startsWith("skipped") ? PrefixLister.FolderPlan.skip() : PrefixLister.FolderPlan.delimited(folder), this::keys);
+
+		Assert.assertEquals(Arrays.asList("a.txt", "listed/b.txt"), keys);
+		Mockito.verify(this.s3Client, Mockito.times(2)).listObjectsV2(Mockito.any(ListObjectsV2Request.class));
+	}
+
+	@Test
+	public void sinkReceivesPagesInOrderWhileListing() throws Exception {
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+			ListObjectsV2Request request = invocation.getArgument(0);
+			if (request.getPrefix() == null) {
+				return this.page(null, Arrays.asList("a.txt"), Arrays.asList("slow/", "fast/"));
+			}
+			if ("slow/".equals(request.getPrefix())) {
+				Thread.sleep(100);
+			}
+			return this.page(null, Arrays.asList(request.getPrefix() + "b.txt"), Collections.emptyList());
+		});
+		List<List<String>> pages = new ArrayList<>();
+
+		new PrefixLister(this.s3Client, this.executor).list("my-bucket", "", PrefixLister.FolderPlan::delimited, this::keys, pages::add);
+
+		Assert.assertEquals(Arrays.asList(Arrays.asList("a.txt"), Arrays.asList("slow/b.txt"), Arrays.asList("fast/b.txt")), pages);
+	}
+
+	@Test
+	public void sinkFailureStopsListing() {
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenReturn(this.page("token", Arrays.asList("a.txt"), Collections.emptyList()));
+
+		IOException e = assertThrows(IOException.class, () -> new PrefixLister(this.s3Client, this.executor).list("my-bucket", "", PrefixLister.FolderPlan::delimited, this::keys, page -> {
+			throw new IOException("disk full");
+		}));
+		Assert.assertEquals("disk full", e.getMessage());
+	}
+
+	@Test
+	public void failureIsPropagated() {
+		AmazonS3Exception denied = new AmazonS3Exception("Access Denied");
+		denied.setStatusCode(403);
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+			ListObjectsV2Request request = invocation.getArgument(0);
+			if (request.getPrefix() == null) {
+				return this.page(null, Collections.emptyList(), Arrays.asList("a/", "b/"));
+			}
+			throw denied;
+		});
+
+		AmazonS3Exception e = assertThrows(AmazonS3Exception.class, () -> new PrefixLister(this.s3Client, this.executor).list("my-bucket", "", this::keys));
+		Assert.assertEquals(403, e.getStatusCode());
+	}
+
+	private List<String> keys(ListObjectsV2Result page) {
+		List<String> keys = new ArrayList<>();
+		for (S3ObjectSummary summary : page.getObjectSummaries()) {
+			keys.add(summary.getKey());
+		}
+		return keys;
+	}
+
+	private ListObjectsV2Result page(String nextToken, List<String> keys, List<String> commonPrefixes) {
+		ListObjectsV2Result result = new ListObjectsV2Result();
+		for (String key : keys) {
+			S3ObjectSummary summary = new S3ObjectSummary();
+			summary.setKey(key);
+			result.getObjectSummaries().add(summary);
+		}
+		result.getCommonPrefixes().addAll(commonPrefixes);
+		result.setNextContinuationToken(nextToken);
+		result.setTruncated(nextToken != null);
+		return result;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+
+public class ResumableUploadStateTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void stateIsRestored() throws Exception {
+		File file = this.createFile();
+		ResumableUploadState state = ResumableUploadState.of(this.folder.newFolder("state"), "my-bucket", "my-key", file);
+		Assert.assertNull(state.load(file));
+
+		state.save(new PersistableUpload("my-bucket", "my-key", file.getAbsolutePath(), "upload-id", 8 * 1024 * 1024, 16 * 1024 * 1024), file);
+
+		PersistableUpload upload = state.load(file);
+		Assert.assertNotNull(upload);
+		Assert.assertTrue(upload.serialize().contains("\"multipartUploadId\":\"upload-id\""));
+	}
+
+	@Test
+	public void stateOfModifiedFileIsDiscarded() throws Exception {
+		File file = this.createFile();
+		ResumableUploadState state = ResumableUploadState.of(this.folder.newFolder("state"), "my-bucket", "my-key", file);
+		state.save(new PersistableUpload("my-bucket", "my-key", file.getAbsolutePath(), "upload-id", 8 * 1024 * 1024, 16 * 1024 * 1024), file);
+
+		Files.write(file.toPath(), "Hello World!".getBytes(StandardCharsets.UTF_8));
+
+		Assert.assertNull(state.load(file));
+		Assert.assertFalse(state.getStateFile().exists());
+	}
+
+	@Test
+	public void corruptStateIsDiscarded() throws Exception {
+		File file = this.createFile();
+		ResumableUploadState state = ResumableUploadState.of(this.folder.newFolder("state"), "my-bucket", "my-key", file);
+		Files.write(state.getStateFile().toPath(), "{".getBytes(StandardCharsets.UTF_8));
+
+		Assert.assertNull(state.load(file));
+		Assert.assertFalse(state.getStateFile().exists());
+	}
+
+	@Test
+	public void stateFileDependsOnTarget() throws Exception {
+		File file = this.createFile();
+		File dir = this.folder.newFolder("state");
+		Assert.assertEquals(ResumableUploadState.of(dir, "my-bucket", "my-key", file).getStateFile(), ResumableUploadState.of(dir, "my-bucket", "my-key", file).getStateFile());
+		Assert.assertNotEquals(ResumableUploadState.of(dir, "my-bucket", "my-key", file).getStateFile(), ResumableUploadState.of(dir, "my-bucket", "other-key", file).getStateFile());
+	}
+
+	private File createFile() throws Exception {
+		File file = this.folder.newFile("big.bin");
+		Files.write(file.toPath(), "Hello!".getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
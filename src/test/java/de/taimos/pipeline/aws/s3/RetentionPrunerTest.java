@@ -0,0 +1,195 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class RetentionPrunerTest {
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+	private final TreeMap<String, Date> objects = new TreeMap<>();
+	private final List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+	private final PrintStream logger = new PrintStream(new ByteArrayOutputStream(), true);
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void keepsTheNewestBuildsInNumericOrder() throws Exception {
+		this.mockBucket("job/9/a.jar", 30, "job/10/a.jar", 20, "job/10/b.jar", 20, "job/11/a.jar", 10, "job/latest.txt", 40, "job/tmp/x", 50);
+
+		RetentionPruner pruner = new RetentionPruner(this.s3Client, "my-bucket", "job", Pattern.compile("\\d+"), 2, null);
+		this.prune(pruner);
+
+		Assert.assertEquals(Collections.singletonList("job/9/a.jar"), this.deleted);
+		Assert.assertEquals(3, pruner.getGroups());
+		Assert.assertEquals(2, pruner.getKeptGroups());
+		Assert.assertEquals(1, pruner.getPrunedGroups());
+		Assert.assertEquals(1, pruner.getPrunedObjects());
+		Assert.assertEquals(5, pruner.getPrunedBytes());
+	}
+
+	@Test
+	public void keepsGroupsWithRecentObjects() throws Exception {
+		this.mockBucket("job/1/a.jar", 30, "job/1/late.log", 2, "job/2/a.jar", 20, "job/3/a.jar", 10);
+
+		RetentionPruner pruner = new RetentionPruner(this.s3Client, "my-bucket", "job/", null, null, new Date(System.currentTimeMillis() - 5 * DAY));
+		this.prune(pruner);
+
+		Assert.assertEquals(Arrays.asList("job/2/a.jar", "job/3/a.jar"), this.sortedDeleted());
+		Assert.assertEquals(1, pruner.getKeptGroups());
+	}
+
+	@Test
+	public void keepsGroupsSatisfyingEitherCondition() throws Exception {
+		this.mockBucket("job/1/a.jar", 1, "job/2/a.jar", 20, "job/3/a.jar", 10);
+
+		RetentionPruner pruner = new RetentionPruner(this.s3Client, "my-bucket", "job/", null, 1, new Date(System.currentTimeMillis() - 5 * DAY));
+		this.prune(pruner);
+
+		Assert.assertEquals(Collections.singletonList("job/2/a.jar"), this.deleted);
+	}
+
+	@Test
+	public void ordersByTheFirstGroupOfThePattern() throws Exception {
+		this.mockBucket("nightly/b-2024-01-02/a", 1, "nightly/a-2024-01-03/a", 1, "nightly/c-2024-01-01/a", 1);
+
+		RetentionPruner pruner = new RetentionPruner(this.s3Client, "my-bucket", "nightly/", Pattern.compile("\\w-(.*)"), 1, null);
+		this.prune(pruner);
+
+		Assert.assertEquals(Arrays.asList("nightly/b-2024-01-02/a", "nightly/c-2024-01-01/a"), this.sortedDeleted());
+	}
+
+	@Test
+	public void dryRunDeletesNothing() throws Exception {
+		this.mockBucket("job/1/a.jar", 30, "job/2/a.jar", 20);
+
+		RetentionPruner pruner = new RetentionPruner(this.s3Client, "my-bucket", "job/", null, 1, null);
+		pruner.prune(null, this.logger);
+
+		Assert.assertEquals(1, pruner.getPrunedGroups());
+		Assert.assertEquals(1, pruner.getPrunedObjects());
+		Mockito.verify(this.s3Client, Mockito.never()).deleteObjects(Mockito.any(DeleteObjectsRequest.class));
+	}
+
+	@Test
+	public void comparesNumbersByValue() {
+		Assert.assertTrue(RetentionPruner.GROUP_ORDER.compare("9", "10") < 0);
+		Assert.assertTrue(RetentionPruner.GROUP_ORDER.compare("010", "9") > 0);
+		Assert.assertEquals(0, RetentionPruner.GROUP_ORDER.compare("007", "7"));
+		Assert.assertTrue(RetentionPruner.GROUP_ORDER.compare("2024-01-02", "2024-01-10") < 0);
+		Assert.assertTrue(RetentionPruner.GROUP_ORDER.compare("build-9", "build-10") < 0);
+
+		// numeric and other names mixed must still be a total order
+		List<String> names = Arrays.asList("latest", "10", "1a", "9", "010", "1", "b", "1b", "a");
+		for (String a : names) {
+			for (String b : names) {
+				Assert.assertEquals(a + " " + b, Integer.signum(RetentionPruner.GROUP_ORDER.compare(a, b)), -Integer.signum(RetentionPruner.GROUP_ORDER.compare(b, a)));
+				for (String c : names) {
+					if (RetentionPruner.GROUP_ORDER.compare(a, b) <= 0 && RetentionPruner.GROUP_ORDER.compare(b, c) <= 0) {
+						Assert.assertTrue(a + " " + b + " " + c, RetentionPruner.GROUP_ORDER.compare(a, c) <= 0);
+					}
+				}
+			}
+		}
+		List<String> sorted = new ArrayList<>(names);
+		sorted.sort(RetentionPruner.GROUP_ORDER);
+		Assert.assertEquals(Arrays.asList("1", "1a", "1b", "9", "10", "010", "a", "b", "latest"), sorted);
+	}
+
+	private void prune(RetentionPruner pruner) throws Exception {
+		BatchDeleter deleter = new BatchDeleter(this.s3Client, "my-bucket", this.executor, 2);
+		pruner.prune(deleter, this.logger);
+		deleter.finish(this.logger, "objects");
+	}
+
+	private List<String> sortedDeleted() {
+		return this.deleted.stream().sorted().collect(Collectors.toList());
+	}
+
+	/**
+	 * @param keysAndAges pairs of key and age in days, every object has the length of its key's last segment
+	 */
+	private void mockBucket(Object... keysAndAges) {
+		for (int i = 0; i < keysAndAges.length; i += 2) {
+			this.objects.put((String) keysAndAges[i], new Date(System.currentTimeMillis() - (Integer) keysAndAges[i + 1] * DAY));
+		}
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+			ListObjectsV2Request request = invocation.getArgument(0);
+			String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+			ListObjectsV2Result result = new ListObjectsV2Result();
+			for (String key : this.objects.tailMap(prefix).keySet()) {
+				if (!key.startsWith(prefix)) {
+					break;
+				}
+				int slash = request.getDelimiter() == null ? -1 : key.indexOf('/', prefix.length());
+				if (slash >= 0) {
+					String folder = key.substring(0, slash + 1);
+					if (!result.getCommonPrefixes().contains(folder)) {
+						result.getCommonPrefixes().add(folder);
+					}
+				} else {
+					S3ObjectSummary summary = new S3ObjectSummary();
+					summary.setKey(key);
+					summary.setSize(key.substring(key.lastIndexOf('/') + 1).getBytes(StandardCharsets.UTF_8).length);
+					summary.setLastModified(this.objects.get(key));
+					result.getObjectSummaries().add(summary);
+				}
+			}
+			return result;
+		});
+		Mockito.when(this.s3Client.deleteObjects(Mockito.any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+			DeleteObjectsRequest request = invocation.getArgument(0);
+			request.getKeys().forEach(key -> this.deleted.add(key.getKey()));
+			return new DeleteObjectsResult(Collections.emptyList());
+		});
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+
+public class StaleMultipartUploadsTest {
+
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+	private final PrintStream logger = new PrintStream(new ByteArrayOutputStream());
+
+	@Test
+	public void onlyOldUploadsAreAborted() throws Exception {
+		Date cutoff = new Date(100000);
+		MultipartUploadListing first = new MultipartUploadListing();
+		first.setMultipartUploads(Arrays.asList(this.upload("builds/old.bin", "u1", 1000), this.upload("builds/new.bin", "u2", 200000)));
+		first.setTruncated(true);
+		first.setNextKeyMarker("builds/new.bin");
+		first.setNextUploadIdMarker("u2");
+		MultipartUploadListing second = new MultipartUploadListing();
+		second.setMultipartUploads(Collections.singletonList(this.upload("builds/older.bin", "u3", 500)));
+		Mockito.when(this.s3Client.listMultipartUploads(Mockito.any(ListMultipartUploadsRequest.class))).thenReturn(first, second);
+
+		Assert.assertEquals(2, StaleMultipartUploads.abort(this.s3Client, "my-bucket", "builds/", cutoff, this.logger));
+
+		ArgumentCaptor<ListMultipartUploadsRequest> list = ArgumentCaptor.forClass(ListMultipartUploadsRequest.class);
+		Mockito.verify(this.s3Client, Mockito.times(2)).listMultipartUploads(list.capture());
+		Assert.assertEquals("builds/", list.getValue().getPrefix());
+		ArgumentCaptor<AbortMultipartUploadRequest> abort = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+		Mockito.verify(this.s3Client, Mockito.times(2)).abortMultipartUpload(abort.capture());
+		Assert.assertEquals("u1", abort.getAllValues().get(0).getUploadId());
+		Assert.assertEquals("builds/older.bin", abort.getAllValues().get(1).getKey());
+	}
+
+	private MultipartUpload upload(String key, String uploadId, long initiated) {
+		MultipartUpload upload = new MultipartUpload();
+		upload.setKey(key);
+		upload.setUploadId(uploadId);
+		upload.setInitiated(new Date(initiated));
+		return upload;
+	}
+}
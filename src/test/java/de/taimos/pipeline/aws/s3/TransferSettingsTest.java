@@ -0,0 +1,84 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TransferSettingsTest {
+
+	private static final long MB = 1024L * 1024L;
+
+	@Test
+	public void stepValuesTakePrecedenceOverDefaults() {
+		TransferSettings defaults = new TransferSettings().withConcurrency(8).withMultipartUploadThresholdMB(32).withProfile("auto");
+		TransferSettings merged = new TransferSettings().withConcurrency(4).withProfile("").withDefaults(defaults);
+		Assert.assertEquals(Integer.valueOf(4), merged.getConcurrency());
+		Assert.assertEquals(Integer.valueOf(32), merged.getMultipartUploadThresholdMB());
+		Assert.assertTrue(merged.isAuto());
+	}
+
+	@Test
+	public void autoTuneIsIgnoredWithoutAutoProfile() {
+		TransferSettings settings = new TransferSettings();
+		Assert.assertSame(settings, settings.autoTune(100, 100 * MB, 10 * MB));
+	}
+
+	@Test
+	public void autoTuneManySmallFiles() {
+		TransferSettings tuned = new TransferSettings().withProfile("auto").autoTune(40000, 40000 * 100 * 1024L, MB);
+		Assert.assertEquals(Integer.valueOf(64), tuned.getConcurrency());
+		Assert.assertEquals(Integer.valueOf(8), tuned.getMinimumUploadPartSizeMB());
+		Assert.assertEquals(Integer.valueOf(16), tuned.getMultipartUploadThresholdMB());
+	}
+
+	@Test
+	public void autoTuneLargeFiles() {
+		TransferSettings tuned = new TransferSettings().withProfile("auto").autoTune(2, 12 * 1024 * MB, 10 * 1024 * MB);
+		Assert.assertEquals(Integer.valueOf(16), tuned.getConcurrency());
+		// 10 GB in at most 1000 parts needs 11 MB parts, rounded up to 16 MB
+		Assert.assertEquals(Integer.valueOf(16), tuned.getMinimumUploadPartSizeMB());
+		Assert.assertEquals(Integer.valueOf(16), tuned.getMultipartUploadThresholdMB());
+	}
+
+	@Test
+	public void autoTuneKeepsExplicitValues() {
+		TransferSettings tuned = new TransferSettings().withProfile("auto").withConcurrency(4).autoTune(40000, 40000 * 100 * 1024L, MB);
+		Assert.assertEquals(Integer.valueOf(4), tuned.getConcurrency());
+	}
+
+	@Test
+	public void downloadPartSizeFallsBackToDefault() {
+		Assert.assertEquals(16 * MB, new TransferSettings().getDownloadPartSize(16 * MB));
+		Assert.assertEquals(64 * MB, new TransferSettings().withDownloadPartSizeMB(64).getDownloadPartSize(16 * MB));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nonPositiveDownloadPartSizeIsRejected() {
+		new TransferSettings().withDownloadPartSizeMB(0).validate();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownProfileIsRejected() {
+		new TransferSettings().withProfile("fast").validate();
+	}
+}
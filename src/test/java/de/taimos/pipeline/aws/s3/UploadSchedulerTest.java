@@ -0,0 +1,130 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+import com.amazonaws.services.s3.transfer.Upload;
+
+public class UploadSchedulerTest {
+
+	private static final long MB = 1024L * 1024L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void uploadsLargestFilesFirst() throws Exception {
+		List<File> files = Arrays.asList(
+				this.createFile("a.txt", 1000),
+				this.createFile("big/b.bin", 20 * MB),
+				this.createFile("c.txt", 5000),
+				this.createFile("huge.bin", 50 * MB));
+		TransferManager transferManager = this.transferManager();
+		Upload upload = Mockito.mock(Upload.class);
+		Mockito.when(upload.isDone()).thenReturn(true);
+		Mockito.when(transferManager.upload(Mockito.any(PutObjectRequest.class))).thenReturn(upload);
+
+		List<Upload> started = new ArrayList<>();
+		new UploadScheduler(transferManager, 2).upload("my-bucket", "prefix", this.folder.getRoot(), files, null, null, started::add);
+
+		ArgumentCaptor<PutObjectRequest> captor = ArgumentCaptor.forClass(PutObjectRequest.class);
+		Mockito.verify(transferManager, Mockito.times(4)).upload(captor.capture());
+		List<String> keys = captor.getAllValues().stream().map(PutObjectRequest::getKey).collect(Collectors.toList());
+		Assert.assertEquals(Arrays.asList("prefix/huge.bin", "prefix/big/b.bin", "prefix/c.txt", "prefix/a.txt"), keys);
+		Assert.assertEquals(4, started.size());
+		Mockito.verify(upload, Mockito.times(4)).waitForCompletion();
+	}
+
+	@Test
+	public void respectsInFlightByteBudget() throws Exception {
+		List<File> files = Arrays.asList(this.createFile("a.bin", 40 * MB), this.createFile("b.bin", 30 * MB));
+		TransferManager transferManager = this.transferManager();
+		Upload first = Mockito.mock(Upload.class);
+		Upload second = Mockito.mock(Upload.class);
+		// the first upload only finishes after it was polled twice
+		Mockito.when(first.isDone()).thenReturn(false, true);
+		Mockito.when(second.isDone()).thenReturn(true);
+		Mockito.when(transferManager.upload(Mockito.any(PutObjectRequest.class))).thenReturn(first, second);
+
+		List<Upload> started = new ArrayList<>();
+		new UploadScheduler(transferManager, 4, 32 * MB).upload("my-bucket", "", this.folder.getRoot(), files, null, null, upload -> {
+			if (upload == second) {
+				Mockito.verify(first, Mockito.times(2)).isDone();
+			}
+			started.add(upload);
+		});
+
+		Assert.assertEquals(Arrays.asList(first, second), started);
+	}
+
+	@Test
+	public void abortsRunningUploadsOnFailure() throws Exception {
+		List<File> files = Arrays.asList(this.createFile("a.txt", 10), this.createFile("b.txt", 20));
+		TransferManager transferManager = this.transferManager();
+		Upload failed = Mockito.mock(Upload.class);
+		Upload running = Mockito.mock(Upload.class);
+		Mockito.when(failed.isDone()).thenReturn(true);
+		Mockito.doThrow(new AmazonClientException("boom")).when(failed).waitForCompletion();
+		Mockito.when(transferManager.upload(Mockito.any(PutObjectRequest.class))).thenReturn(failed, running);
+
+		UploadScheduler scheduler = new UploadScheduler(transferManager, 4);
+		assertThrows(AmazonClientException.class, () -> scheduler.upload("my-bucket", "", this.folder.getRoot(), files, null, null, upload -> { }));
+		Mockito.verify(running).abort();
+	}
+
+	private TransferManager transferManager() {
+		TransferManager transferManager = Mockito.mock(TransferManager.class);
+		TransferManagerConfiguration configuration = new TransferManagerConfiguration();
+		configuration.setMultipartUploadThreshold(16 * MB);
+		configuration.setMinimumUploadPartSize(5 * MB);
+		Mockito.when(transferManager.getConfiguration()).thenReturn(configuration);
+		return transferManager;
+	}
+
+	private File createFile(String name, long size) throws Exception {
+		File file = new File(this.folder.getRoot(), name);
+		file.getParentFile().mkdirs();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(size);
+		}
+		return file;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+public class UploadSyncPlanTest {
+
+	private static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final AmazonS3 s3Client = Mockito.mock(AmazonS3.class);
+
+	@Test
+	public void onlyChangedFilesAreUploaded() throws Exception {
+		File base = this.folder.newFolder("base");
+		File same = this.createFile(base, "same.txt", "Hello!");
+		File changed = this.createFile(base, "sub/changed.txt", "new");
+		File added = this.createFile(base, "new.txt", "new!");
+		this.mockListing(
+				this.summary("dist/same.txt", 6, ETagUtils.md5Hex(same)),
+				this.summary("dist/sub/changed.txt", 3, "00000000000000000000000000000000"),
+				this.summary("dist/gone.txt", 4, "11111111111111111111111111111111"),
+				this.summary("dist/folder/", 0, "d41d8cd98f00b204e9800998ecf8427e"));
+
+		UploadSyncPlan plan = UploadSyncPlan.create(this.s3Client, "my-bucket", "dist", base, Arrays.asList(same, changed, added), null, false, MIN_PART_SIZE);
+
+		Assert.assertEquals(1, plan.getUnchangedCount());
+		Assert.assertEquals(Arrays.asList(changed, added), plan.getChangedFiles());
+		Assert.assertTrue(plan.getObsoleteKeys().isEmpty());
+	}
+
+	@Test
+	public void mirrorCollectsRemoteExtras() throws Exception {
+		File base = this.folder.newFolder("base");
+		File same = this.createFile(base, "same.txt", "Hello!");
+		this.mockListing(
+				this.summary("dist/same.txt", 6, ETagUtils.md5Hex(same)),
+				this.summary("dist/gone.txt", 4, "11111111111111111111111111111111"),
+				this.summary("dist/folder/", 0, "d41d8cd98f00b204e9800998ecf8427e"));
+
+		UploadSyncPlan plan = UploadSyncPlan.create(this.s3Client, "my-bucket", "dist/", base, Collections.singletonList(same), null, true, MIN_PART_SIZE);
+
+		Assert.assertEquals(Collections.singletonList("dist/gone.txt"), plan.getObsoleteKeys());
+	}
+
+	@Test
+	public void mirrorOnlyDeletesKeysSelectedByThePatterns() throws Exception {
+		File base = this.folder.newFolder("base");
+		File jar = this.createFile(base, "lib/a.jar", "jar");
+		this.mockListing(
+				this.summary("dist/lib/a.jar", 3, ETagUtils.md5Hex(jar)),
+				this.summary("dist/lib/old.jar", 3, "11111111111111111111111111111111"),
+				this.summary("dist/lib/a-sources.jar", 3, "22222222222222222222222222222222"),
+				this.summary("dist/index.html", 4, "33333333333333333333333333333333"),
+				this.summary("dist/.git/config", 4, "44444444444444444444444444444444"));
+
+		UploadSyncPlan plan = UploadSyncPlan.create(this.s3Client, "my-bucket", "dist/", base, Collections.singletonList(jar),
+				KeyPatternFilter.withDefaultExcludes("**/*.jar", "**/*-sources.jar"), true, MIN_PART_SIZE);
+
+		Assert.assertEquals(1, plan.getUnchangedCount());
+		Assert.assertEquals(Collections.singletonList("dist/lib/old.jar"), plan.getObsoleteKeys());
+	}
+
+	@Test
+	public void obsoleteKeysAreDeletedInBatches() throws Exception {
+		File base = this.folder.newFolder("base");
+		this.mockListing(this.summary("dist/a.txt", 4, "abc"), this.summary("dist/b.txt", 4, "def"));
+		Mockito.when(this.s3Client.deleteObjects(Mockito.any(DeleteObjectsRequest.class))).thenReturn(new DeleteObjectsResult(Collections.emptyList()));
+		UploadSyncPlan plan = UploadSyncPlan.create(this.s3Client, "my-bucket", "dist/", base, Collections.emptyList(), null, true, MIN_PART_SIZE);
+
+		plan.deleteObsoleteKeys(this.s3Client, Runnable::run, 2, new PrintStream(new ByteArrayOutputStream()));
+
+		ArgumentCaptor<DeleteObjectsRequest> request = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+		Mockito.verify(this.s3Client).deleteObjects(request.capture());
+		Assert.assertEquals("my-bucket", request.getValue().getBucketName());
+		Assert.assertEquals(2, request.getValue().getKeys().size());
+	}
+
+	private void mockListing(S3ObjectSummary... summaries) {
+		ListObjectsV2Result result = new ListObjectsV2Result();
+		Collections.addAll(result.getObjectSummaries(), summaries);
+		Mockito.when(this.s3Client.listObjectsV2(Mockito.any(ListObjectsV2Request.class))).thenReturn(result);
+	}
+
+	private S3ObjectSummary summary(String key, long size, String eTag) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setKey(key);
+		summary.setSize(size);
+		summary.setETag(eTag);
+		return summary;
+	}
+
+	private File createFile(File base, String path, String content) throws IOException {
+		File file = new File(base, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * -
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package de.taimos.pipeline.aws.s3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3VersionSummary;
+
+public class VersionSummaryFilterTest {
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	// versions of a key are listed newest first
+	private final List<S3VersionSummary> listing = Arrays.asList(
+			version("a", "a3", true, false, 1),
+			version("a", "a2", false, false, 10),
+			version("a", "a1", false, false, 40),
+			version("b", "b2", true, true, 50),
+			version("b", "b1", false, false, 60),
+			version("ba", "ba1", true, false, 100));
+
+	@Test
+	public void selectsEverything() {
+		Assert.assertEquals(Arrays.asList("a3", "a2", "a1", "b2", "b1", "ba1"), this.select(new VersionSummaryFilter(null, false, null)));
+	}
+
+	@Test
+	public void selectsNoncurrentVersions() {
+		Assert.assertEquals(Arrays.asList("a2", "a1", "b1"), this.select(new VersionSummaryFilter(null, true, null)));
+	}
+
+	@Test
+	public void noncurrentVersionsAgeFromTheirSuccessor() {
+		// a2 is noncurrent since 1 day, a1 since 10 days and b1 since 50 days
+		Date cutoff = new Date(System.currentTimeMillis() - 5 * DAY);
+		Assert.assertEquals(Arrays.asList("a1", "b1"), this.select(new VersionSummaryFilter(null, true, cutoff)));
+	}
+
+	@Test
+	public void currentVersionsAgeFromTheirModification() {
+		Date cutoff = new Date(System.currentTimeMillis() - 45 * DAY);
+		Assert.assertEquals(Arrays.asList("b2", "b1", "ba1"), this.select(new VersionSummaryFilter(null, false, cutoff)));
+	}
+
+	@Test
+	public void selectsOnlyTheExactKey() {
+		Assert.assertEquals(Arrays.asList("b2", "b1"), this.select(new VersionSummaryFilter("b", false, null)));
+	}
+
+	private List<String> select(VersionSummaryFilter filter) {
+		List<String> selected = new ArrayList<>();
+		for (S3VersionSummary summary : this.listing) {
+			if (filter.test(summary)) {
+				selected.add(summary.getVersionId());
+			}
+		}
+		return selected;
+	}
+
+	private static S3VersionSummary version(String key, String versionId, boolean latest, boolean deleteMarker, int daysAgo) {
+		S3VersionSummary summary = new S3VersionSummary();
+		summary.setKey(key);
+		summary.setVersionId(versionId);
+		summary.setIsLatest(latest);
+		summary.setIsDeleteMarker(deleteMarker);
+		summary.setLastModified(new Date(System.currentTimeMillis() - daysAgo * DAY));
+		return summary;
+	}
+}
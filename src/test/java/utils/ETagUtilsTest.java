@@ -0,0 +1,72 @@
+package utils;
+
+/*-
+ * #%L
+ * Pipeline: AWS Steps
+ * %%
+ * Copyright (C) 2016 - 2017 Taimos GmbH
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.taimos.pipeline.aws.utils.ETagUtils;
+
+public class ETagUtilsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void md5OfSinglePartUpload() throws Exception {
+		File file = this.createFile("Hello!");
+		Assert.assertEquals("952d2c56d0485958336747bcdd98590d", ETagUtils.md5Hex(file));
+		Assert.assertTrue(ETagUtils.matches(file, 6, "\"952d2c56d0485958336747bcdd98590d\"", 5 * 1024 * 1024));
+	}
+
+	@Test
+	public void sha256() throws Exception {
+		File file = this.createFile("Hello!");
+		Assert.assertEquals("334d016f755cd6dc58c53a86e183882f8ec14f52fb05345887c8a5edd42c87b7", ETagUtils.sha256Hex(file));
+	}
+
+	@Test
+	public void multipartETag() throws Exception {
+		File file = this.createFile("Hello!");
+		Assert.assertEquals("cf8f9946f4eb258a0b4baa2b008722e4-3", ETagUtils.multipartETag(file, 2));
+		Assert.assertEquals("c0934a52426ebbf4d7f48e863acfd941-2", ETagUtils.multipartETag(file, 4));
+		Assert.assertTrue(ETagUtils.matches(file, 6, "cf8f9946f4eb258a0b4baa2b008722e4-3", 2));
+	}
+
+	@Test
+	public void sizeMismatchDoesNotMatch() throws Exception {
+		File file = this.createFile("Hello!");
+		Assert.assertFalse(ETagUtils.matches(file, 7, "952d2c56d0485958336747bcdd98590d", 5 * 1024 * 1024));
+		Assert.assertFalse(ETagUtils.matches(file, 6, "00000000000000000000000000000000", 5 * 1024 * 1024));
+	}
+
+	private File createFile(String content) throws Exception {
+		File file = this.folder.newFile();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}